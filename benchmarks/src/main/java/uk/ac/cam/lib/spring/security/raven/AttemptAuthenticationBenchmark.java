@@ -0,0 +1,79 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.savedrequest.HttpSessionRequestCache;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The callback handling done by the filter itself: parsing the response,
+ * reading the saved request from the session and reconstructing the Raven
+ * request. The AuthenticationManager simply returns the token, so validation
+ * is not included (see {@link ProviderAuthenticateBenchmark}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AttemptAuthenticationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Filter {
+        RavenAuthenticationFilter filter;
+        HttpSessionRequestCache requestCache;
+
+        @Setup
+        public void setUp() {
+            requestCache = new HttpSessionRequestCache();
+            filter = new RavenAuthenticationFilter(
+                (Authentication token) -> token,
+                DefaultRavenRequestCreator.builder(
+                    RavenFixtures.CALLBACK_URL).build(),
+                requestCache);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Callback {
+        MockHttpServletRequest request;
+        MockHttpServletResponse response;
+
+        @Setup
+        public void setUp(Filter filter) {
+            MockHttpSession session = new MockHttpSession();
+
+            MockHttpServletRequest original = new MockHttpServletRequest(
+                "GET", "/collections/treasures/1");
+            original.setQueryString("page=2&view=full");
+            original.addParameter("page", "2");
+            original.addParameter("view", "full");
+            original.addHeader("Accept", "text/html");
+            original.setSession(session);
+
+            response = new MockHttpServletResponse();
+            filter.requestCache.saveRequest(original, response);
+
+            String authResponse = RavenFixtures.responseString();
+            request = new MockHttpServletRequest("GET", "/callback");
+            request.setQueryString("WLS-Response=" + authResponse);
+            request.addParameter("WLS-Response", authResponse);
+            request.setSession(session);
+        }
+    }
+
+    @Benchmark
+    public Authentication attemptAuthentication(Filter filter, Callback cb)
+        throws Exception {
+
+        return filter.filter.attemptAuthentication(cb.request, cb.response);
+    }
+}
@@ -0,0 +1,60 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * Runs the selected benchmarks at a series of thread counts, with GC
+ * (allocation) profiling enabled.
+ *
+ * <p>Usage: {@code java -jar target/benchmarks.jar [regex]}. The thread counts
+ * default to powers of two up to the number of available processors (plus the
+ * processor count itself), and can be set with
+ * {@code -Draven.bench.threads=1,2,8}. Plain JMH command line options are
+ * available by running {@code org.openjdk.jmh.Main} instead.
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {}
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+
+        for(int threads : threadCounts()) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(include)
+                .threads(threads)
+                .forks(1)
+                .addProfiler(GCProfiler.class)
+                .result(String.format("jmh-result-%dt.json", threads))
+                .resultFormat(ResultFormatType.JSON);
+
+            new Runner(options.build()).run();
+        }
+    }
+
+    static int[] threadCounts() {
+        String configured = System.getProperty("raven.bench.threads");
+        if(configured != null) {
+            return Arrays.stream(configured.split(","))
+                .map(String::trim)
+                .mapToInt(Integer::parseInt)
+                .toArray();
+        }
+
+        int cpus = Runtime.getRuntime().availableProcessors();
+        TreeSet<Integer> counts = new TreeSet<>();
+        for(int t = 1; t <= cpus; t *= 2)
+            counts.add(t);
+        counts.add(cpus);
+
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
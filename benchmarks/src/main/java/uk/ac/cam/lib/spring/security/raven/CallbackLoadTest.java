@@ -0,0 +1,249 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.web.savedrequest.HttpSessionRequestCache;
+import uk.ac.cam.lib.spring.security.raven.concurrent.VirtualThreads;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.time.Clock;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures callback throughput against the number of concurrent clients, with
+ * callbacks handled on a fixed pool of "container" threads (synchronously)
+ * and on virtual threads (with
+ * {@link RavenAuthenticationFilter#setCallbackExecutor}).
+ *
+ * <p>Each callback is validated by a {@link RavenAuthenticationProvider}
+ * whose token creator blocks, as a directory lookup would. Synchronous
+ * throughput is capped at {@code containerThreads / lookupMillis}; with
+ * virtual threads the container's threads are released while the lookup
+ * waits, so throughput grows with the number of clients until the CPU is
+ * saturated.
+ *
+ * <p>Usage: {@code java -cp target/benchmarks.jar
+ * uk.ac.cam.lib.spring.security.raven.CallbackLoadTest}, on Java 21 or later
+ * for the virtual thread column. Configured with
+ * {@code -Draven.load.clients=1,16,64,256},
+ * {@code -Draven.load.containerThreads=16},
+ * {@code -Draven.load.lookupMillis=5} and {@code -Draven.load.seconds=5}.
+ */
+public final class CallbackLoadTest {
+
+    private static final String DONE = CallbackLoadTest.class.getName() +
+        ".DONE";
+
+    private final int containerThreads;
+    private final long lookupMillis;
+    private final long seconds;
+    private final MockHttpSession session = new MockHttpSession();
+    private final HttpSessionRequestCache requestCache =
+        new HttpSessionRequestCache();
+
+    private CallbackLoadTest(int containerThreads, long lookupMillis,
+                             long seconds) {
+        this.containerThreads = containerThreads;
+        this.lookupMillis = lookupMillis;
+        this.seconds = seconds;
+
+        MockHttpServletRequest original = new MockHttpServletRequest(
+            "GET", "/collections/treasures/1");
+        original.addHeader("Accept", "text/html");
+        original.setSession(session);
+        requestCache.saveRequest(original, new MockHttpServletResponse());
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] clients = Arrays.stream(
+                System.getProperty("raven.load.clients", "1,16,64,256")
+                    .split(","))
+            .map(String::trim)
+            .mapToInt(Integer::parseInt)
+            .toArray();
+
+        CallbackLoadTest test = new CallbackLoadTest(
+            Integer.getInteger("raven.load.containerThreads", 16),
+            Long.getLong("raven.load.lookupMillis", 5),
+            Long.getLong("raven.load.seconds", 5));
+
+        System.out.printf(
+            "%d container threads, %dms lookups, %s%n%n",
+            test.containerThreads, test.lookupMillis,
+            VirtualThreads.isSupported()
+                ? "virtual threads" : "no virtual threads (Java 21+ needed)");
+        System.out.printf("%8s %14s %14s%n", "clients", "sync (/s)",
+                          "virtual (/s)");
+
+        for(int c : clients) {
+            double sync = test.run(c, null);
+
+            String virtual = "-";
+            if(VirtualThreads.isSupported()) {
+                ExecutorService executor =
+                    VirtualThreads.newExecutor("raven-callback");
+                try {
+                    virtual = String.format("%.0f", test.run(c, executor));
+                }
+                finally {
+                    executor.shutdown();
+                }
+            }
+            System.out.printf("%8d %14.0f %14s%n", c, sync, virtual);
+        }
+    }
+
+    private RavenAuthenticationFilter newFilter(ExecutorService executor) {
+        RavenAuthenticationProvider provider = new RavenAuthenticationProvider(
+            RavenFixtures.nativeValidator(), token -> {
+                try {
+                    Thread.sleep(this.lookupMillis);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return token.authenticate(
+                    token.getPrincipal(), Collections.emptyList());
+            });
+
+        RavenAuthenticationFilter filter = new RavenAuthenticationFilter(
+            provider::authenticate,
+            DefaultRavenRequestCreator.builder(
+                RavenFixtures.CALLBACK_URL).build(),
+            requestCache,
+            request -> true,
+            Clock.fixed(RavenFixtures.RECEIVED, ZoneOffset.UTC),
+            RavenAuthenticationFilter.RESPONSE_PARAMETER_NAME);
+
+        filter.setCallbackExecutor(executor);
+        filter.setAuthenticationSuccessHandler(
+            (request, response, auth) -> done(request));
+        filter.setAuthenticationFailureHandler((request, response, e) -> {
+            System.err.println("Callback failed: " + e);
+            done(request);
+        });
+        return filter;
+    }
+
+    private static void done(ServletRequest request) {
+        ((CountDownLatch)request.getAttribute(DONE)).countDown();
+    }
+
+    /** @return Completed callbacks per second. */
+    private double run(int clients, ExecutorService callbackExecutor)
+        throws InterruptedException {
+
+        RavenAuthenticationFilter filter = newFilter(callbackExecutor);
+        ExecutorService container =
+            Executors.newFixedThreadPool(this.containerThreads);
+        FilterChain chain = (request, response) -> {
+            throw new IllegalStateException("Callback not handled");
+        };
+        String authResponse = RavenFixtures.responseString();
+
+        // A second's warm up, then count for the configured time
+        long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        long deadline = measureFrom + TimeUnit.SECONDS.toNanos(this.seconds);
+        LongAdder completed = new LongAdder();
+
+        List<Thread> threads = new ArrayList<>();
+        for(int i = 0; i < clients; i++) {
+            Thread client = new Thread(() -> {
+                long now;
+                while((now = System.nanoTime()) < deadline) {
+                    CountDownLatch done = new CountDownLatch(1);
+                    MockHttpServletRequest request = new DispatchingRequest(
+                        filter, chain, container);
+                    request.setQueryString("WLS-Response=" + authResponse);
+                    request.setSession(this.session);
+                    request.setAsyncSupported(true);
+                    request.setAttribute(DONE, done);
+
+                    container.execute(() -> {
+                        try {
+                            filter.doFilter(
+                                request, new MockHttpServletResponse(), chain);
+                        }
+                        catch(Exception e) {
+                            System.err.println("Callback failed: " + e);
+                            done.countDown();
+                        }
+                    });
+
+                    try {
+                        done.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    if(now >= measureFrom)
+                        completed.increment();
+                }
+            }, "client-" + i);
+            client.start();
+            threads.add(client);
+        }
+
+        for(Thread t : threads)
+            t.join();
+        container.shutdown();
+        container.awaitTermination(10, TimeUnit.SECONDS);
+
+        return completed.sum() / (double)this.seconds;
+    }
+
+    /**
+     * A request which, like a container, dispatches back to the filter on
+     * the container's threads when its async context is dispatched.
+     */
+    private static final class DispatchingRequest
+        extends MockHttpServletRequest {
+
+        private final RavenAuthenticationFilter filter;
+        private final FilterChain chain;
+        private final Executor container;
+
+        DispatchingRequest(RavenAuthenticationFilter filter,
+                           FilterChain chain, Executor container) {
+            super("GET", "/callback");
+            this.filter = filter;
+            this.chain = chain;
+            this.container = container;
+        }
+
+        @Override
+        public AsyncContext startAsync(ServletRequest request,
+                                       ServletResponse response) {
+            MockAsyncContext async =
+                (MockAsyncContext)super.startAsync(request, response);
+            async.addDispatchHandler(() -> this.container.execute(() -> {
+                setDispatcherType(DispatcherType.ASYNC);
+                try {
+                    this.filter.doFilter(
+                        this, async.getResponse(), this.chain);
+                }
+                catch(Exception e) {
+                    System.err.println("Dispatch failed: " + e);
+                }
+            }));
+            return async;
+        }
+    }
+}
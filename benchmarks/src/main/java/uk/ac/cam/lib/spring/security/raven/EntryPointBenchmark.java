@@ -0,0 +1,64 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.InsufficientAuthenticationException;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator.RequestParam;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redirecting an unauthenticated request to Raven. A new response is needed
+ * for each invocation as the redirect commits it; its allocation is part of
+ * the reported figures.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EntryPointBenchmark {
+
+    private static final InsufficientAuthenticationException EXCEPTION =
+        new InsufficientAuthenticationException("benchmark");
+
+    @Param({"static", "dynamic"})
+    public String creator;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private RavenAuthenticationEntryPoint entryPoint;
+    private MockHttpServletRequest request;
+
+    @Setup
+    public void setUp() {
+        DefaultRavenRequestCreator.Builder builder = "static".equals(creator)
+            ? DefaultRavenRequestCreator.builder(RavenFixtures.CALLBACK_URL)
+            : DefaultRavenRequestCreator.builder(
+                (p, r) -> r.getRequestURL().toString());
+
+        entryPoint = new RavenAuthenticationEntryPoint(builder
+            .withValue(RequestParam.desc, "Cambridge Digital Library")
+            .withValue(RequestParam.msg, "you need to log in to view this")
+            .build());
+        if(cached)
+            entryPoint.setLoginUrlCache(new RavenLoginUrlCache(1024));
+
+        request = new MockHttpServletRequest("GET", "/collections/treasures/1");
+    }
+
+    @Benchmark
+    public MockHttpServletResponse commence() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        entryPoint.commence(request, response, EXCEPTION);
+        return response;
+    }
+}
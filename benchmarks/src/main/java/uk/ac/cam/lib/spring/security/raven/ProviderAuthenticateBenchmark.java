@@ -0,0 +1,59 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.security.core.Authentication;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+import uk.ac.cam.ucs.webauth.WebauthValidator;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of a correctly signed response, both through
+ * {@link RavenAuthenticationProvider} and through the toolkit's
+ * {@link WebauthValidator} on its own, so that the provider's overhead can be
+ * separated from the cost of the RSA verification.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProviderAuthenticateBenchmark {
+
+    private RavenAuthenticationProvider provider;
+    private WebauthValidator validator;
+    private RavenAuthenticationToken token;
+    private WebauthRequest request;
+    private WebauthResponse response;
+
+    @Setup
+    public void setUp() {
+        validator = RavenFixtures.validator();
+        provider = new RavenAuthenticationProvider(validator,
+            t -> t.authenticate(t.getPrincipal(), Collections.emptyList()));
+
+        request = RavenFixtures.request();
+        response = RavenFixtures.response();
+        token = new RavenAuthenticationToken(
+            request, response, RavenFixtures.RECEIVED);
+    }
+
+    @Benchmark
+    public Authentication authenticate() {
+        return provider.authenticate(token);
+    }
+
+    @Benchmark
+    public WebauthResponse validate() throws WebauthException {
+        validator.validate(
+            request, response, RavenFixtures.RECEIVED.toEpochMilli());
+        return response;
+    }
+}
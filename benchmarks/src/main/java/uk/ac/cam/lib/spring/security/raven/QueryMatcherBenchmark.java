@@ -0,0 +1,64 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.web.util.matcher.RequestMatcher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code WLS-Response} detection which runs for every request passing
+ * through {@link RavenAuthenticationFilter}. Almost all real traffic takes
+ * one of the non-matching paths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryMatcherBenchmark {
+
+    @Param({"none", "short", "long", "match"})
+    public String query;
+
+    private RequestMatcher matcher;
+    private MockHttpServletRequest request;
+
+    @Setup
+    public void setUp() {
+        matcher = RavenAuthenticationFilter
+            .queryContainsResponseParamRequestMatcher(
+                RavenAuthenticationFilter.RESPONSE_PARAMETER_NAME);
+
+        request = new MockHttpServletRequest("GET", "/collections/treasures");
+        request.setQueryString(queryString(query));
+    }
+
+    private static String queryString(String kind) {
+        switch(kind) {
+            case "none":
+                return null;
+            case "short":
+                return "page=2";
+            case "long":
+                return "q=medieval%20manuscripts&page=12&sort=date&" +
+                    "facet-collection=treasures&facet-language=latin&" +
+                    "utm_source=newsletter&utm_medium=email&" +
+                    "utm_campaign=exam-week&view=full&rows=50";
+            case "match":
+                return "WLS-Response=" + RavenFixtures.responseString();
+            default:
+                throw new IllegalArgumentException(kind);
+        }
+    }
+
+    @Benchmark
+    public boolean matches() {
+        return matcher.matches(request);
+    }
+}
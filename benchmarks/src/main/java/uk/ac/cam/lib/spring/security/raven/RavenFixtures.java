@@ -0,0 +1,195 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import uk.ac.cam.lib.spring.security.raven.validation.NativeRavenResponseValidator;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+import uk.ac.cam.ucs.webauth.WebauthValidator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Collections;
+
+/**
+ * Shared data for the benchmarks: a locally generated WLS key pair, correctly
+ * signed {@code WLS-Response} values and matching {@link WebauthRequest}s.
+ */
+public final class RavenFixtures {
+
+    public static final String KID = "901";
+    public static final String CALLBACK_URL = "http://example.com/callback";
+    public static final String PROTECTED_URL =
+        "http://example.com/collections/treasures/1?page=2&view=full";
+    public static final String PRINCIPAL = "hwtb2";
+
+    /**
+     * The time responses are issued at. Tokens are created with a receive
+     * time shortly after this, so validation is repeatable no matter when the
+     * benchmarks are run.
+     */
+    public static final Instant ISSUE = Instant.parse("2016-08-11T15:58:17Z");
+    public static final Instant RECEIVED = ISSUE.plusSeconds(1);
+
+    /** The alias the toolkit's WebauthValidator looks up keys under. */
+    private static final String KEY_ALIAS_PREFIX = "webauth-pubkey";
+
+    private static final DateTimeFormatter ISSUE_FORMAT = DateTimeFormatter
+        .ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final KeyPair KEY_PAIR = generateKeyPair();
+
+    private RavenFixtures() {}
+
+    public static KeyPair keyPair() {
+        return KEY_PAIR;
+    }
+
+    private static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+            gen.initialize(1024);
+            return gen.generateKeyPair();
+        }
+        catch(GeneralSecurityException e) {
+            throw new AssertionError("RSA is always available", e);
+        }
+    }
+
+    public static WebauthValidator validator() {
+        return new WebauthValidator(keyStore(KEY_PAIR.getPublic(), KID));
+    }
+
+    public static NativeRavenResponseValidator nativeValidator() {
+        return new NativeRavenResponseValidator(
+            Collections.singletonMap(KID, KEY_PAIR.getPublic()));
+    }
+
+    /**
+     * Create a KeyStore holding a single public key in the form that
+     * {@link WebauthValidator} expects.
+     */
+    public static KeyStore keyStore(PublicKey key, String kid) {
+        try {
+            KeyStore ks = KeyStore.getInstance("JKS");
+            ks.load(null, null);
+            ks.setCertificateEntry(
+                KEY_ALIAS_PREFIX + kid, new PublicKeyCertificate(key));
+            return ks;
+        }
+        catch(GeneralSecurityException | java.io.IOException e) {
+            throw new AssertionError("Failed to create KeyStore", e);
+        }
+    }
+
+    public static WebauthRequest request() {
+        WebauthRequest request = new WebauthRequest();
+        request.set("ver", "3");
+        request.set("url", CALLBACK_URL);
+        return request;
+    }
+
+    public static String responseString() {
+        return responseString(PRINCIPAL, "1470931097-27163-123");
+    }
+
+    public static String responseString(String principal, String id) {
+        return signedResponse(
+            KEY_PAIR.getPrivate(), KID, CALLBACK_URL, principal, ISSUE, id);
+    }
+
+    public static WebauthResponse response() {
+        try {
+            return new WebauthResponse(responseString());
+        }
+        catch(WebauthException e) {
+            throw new AssertionError("Fixture response is malformed", e);
+        }
+    }
+
+    public static RavenAuthenticationToken unauthenticatedToken() {
+        return new RavenAuthenticationToken(request(), response(), RECEIVED);
+    }
+
+    /**
+     * Produce a version 3 WLS response signed with {@code key}, as described
+     * in the WAA->WLS protocol specification.
+     */
+    public static String signedResponse(
+        PrivateKey key, String kid, String url, String principal,
+        Instant issue, String id) {
+
+        String signed = String.join("!",
+            "3", "200", "", ISSUE_FORMAT.format(issue), id, escape(url),
+            escape(principal), "current", "pwd", "", "36000", "");
+
+        return signed + "!" + kid + "!" + sign(key, signed);
+    }
+
+    private static String escape(String field) {
+        return field.replace("%", "%25").replace("!", "%21");
+    }
+
+    private static String sign(PrivateKey key, String data) {
+        try {
+            Signature sig = Signature.getInstance("SHA1withRSA");
+            sig.initSign(key);
+            sig.update(data.getBytes(StandardCharsets.UTF_8));
+
+            // Raven uses base64 with URL-safe substitutions of its own
+            return Base64.getEncoder().encodeToString(sig.sign())
+                .replace('+', '-').replace('/', '.').replace('=', '_');
+        }
+        catch(GeneralSecurityException e) {
+            throw new AssertionError("Failed to sign response", e);
+        }
+    }
+
+    /**
+     * A minimal certificate which simply carries a public key. The validator
+     * only needs the key, so this saves generating real X.509 certificates.
+     */
+    private static final class PublicKeyCertificate extends Certificate {
+        private final PublicKey key;
+
+        PublicKeyCertificate(PublicKey key) {
+            super("X.509");
+            this.key = key;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return this.key.getEncoded();
+        }
+
+        @Override
+        public void verify(PublicKey key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void verify(PublicKey key, String sigProvider) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString() {
+            return "PublicKeyCertificate(" + this.key + ")";
+        }
+
+        @Override
+        public PublicKey getPublicKey() {
+            return this.key;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a {@code WLS-Response} and reading the fields the filter and
+ * provider need before validation, with {@link WlsResponse} and with the
+ * toolkit's {@link WebauthResponse}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResponseParsingBenchmark {
+
+    private String response;
+
+    @Setup
+    public void setUp() {
+        response = RavenFixtures.responseString();
+    }
+
+    @Benchmark
+    public void wlsResponse(Blackhole bh) throws WebauthException {
+        WlsResponse parsed = WlsResponse.parse(response);
+        bh.consume(parsed.getStatus());
+        bh.consume(parsed.getPrincipal());
+        bh.consume(parsed.getParams());
+    }
+
+    @Benchmark
+    public void webauthResponse(Blackhole bh) throws WebauthException {
+        WebauthResponse parsed = new WebauthResponse(response);
+        bh.consume(parsed.getInt("status"));
+        bh.consume(parsed.get("principal"));
+        bh.consume(parsed.get("params"));
+    }
+}
@@ -0,0 +1,127 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing the security context of a session holding a Raven login, as a
+ * replicated or externally stored session would. {@code codec*} use
+ * {@link RavenTokenCodec} directly; {@code java*} serialize a
+ * {@link SecurityContextImpl} with an ObjectOutputStream (which delegates to
+ * the codec for the token); {@code reference*} do the same for an equivalent
+ * {@link UsernamePasswordAuthenticationToken}, as a comparison with default
+ * Java serialization. Tokens couldn't be serialized before the codec was
+ * added, as their {@code Optional} fields aren't serializable.
+ *
+ * <p>The encoded size of each form is printed when the benchmark starts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TokenSerializationBenchmark {
+
+    private static final List<GrantedAuthority> AUTHORITIES =
+        AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_CUDL_VIEWER");
+
+    private RavenAuthenticationToken token;
+    private SecurityContextImpl context;
+    private SecurityContextImpl referenceContext;
+
+    private byte[] codecBytes;
+    private byte[] javaBytes;
+    private byte[] referenceBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        User user = new User(RavenFixtures.PRINCIPAL, "", AUTHORITIES);
+        WebAuthenticationDetails details = new WebAuthenticationDetails(
+            new MockHttpServletRequest());
+
+        token = RavenFixtures.unauthenticatedToken()
+            .authenticate(user, AUTHORITIES);
+        token.setDetails(details);
+        context = new SecurityContextImpl();
+        context.setAuthentication(token);
+
+        UsernamePasswordAuthenticationToken reference =
+            new UsernamePasswordAuthenticationToken(user, null, AUTHORITIES);
+        reference.setDetails(details);
+        referenceContext = new SecurityContextImpl();
+        referenceContext.setAuthentication(reference);
+
+        codecBytes = RavenTokenCodec.encode(token);
+        javaBytes = serialize(context);
+        referenceBytes = serialize(referenceContext);
+
+        System.out.printf(
+            "%nBytes per session: codec=%d, java=%d, reference=%d%n",
+            codecBytes.length, javaBytes.length, referenceBytes.length);
+    }
+
+    private static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes)
+        throws IOException, ClassNotFoundException {
+
+        try(ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public byte[] codecEncode() {
+        return RavenTokenCodec.encode(token);
+    }
+
+    @Benchmark
+    public RavenAuthenticationToken codecDecode() {
+        return RavenTokenCodec.decode(codecBytes);
+    }
+
+    @Benchmark
+    public byte[] javaSerialize() throws IOException {
+        return serialize(context);
+    }
+
+    @Benchmark
+    public Object javaDeserialize() throws Exception {
+        return deserialize(javaBytes);
+    }
+
+    @Benchmark
+    public byte[] referenceSerialize() throws IOException {
+        return serialize(referenceContext);
+    }
+
+    @Benchmark
+    public Object referenceDeserialize() throws Exception {
+        return deserialize(referenceBytes);
+    }
+}
@@ -0,0 +1,61 @@
+package uk.ac.cam.lib.spring.security.raven.admission;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of admitting (or rejecting) a callback, which is paid by every
+ * callback before its response is parsed. {@code flood} sends every callback
+ * from one client, which is over its limit; {@code manyClients} spreads them
+ * over more clients than the controller has buckets for.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AdmissionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Controller {
+        TokenBucketAdmissionController controller;
+
+        @Setup
+        public void setUp() {
+            controller = new TokenBucketAdmissionController(
+                RateLimit.perSecond(1000, 1000), RateLimit.perSecond(5, 10));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Clients {
+        String[] addresses;
+        int next;
+
+        @Setup
+        public void setUp() {
+            addresses = new String[1 << 14];
+            for(int i = 0; i < addresses.length; i++) {
+                addresses[i] = String.format(
+                    "10.%d.%d.%d", i >> 16 & 0xff, i >> 8 & 0xff, i & 0xff);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean flood(Controller c) {
+        return c.controller.tryAdmit("192.0.2.1", Instant.now());
+    }
+
+    @Benchmark
+    public boolean manyClients(Controller c, Clients clients) {
+        String client =
+            clients.addresses[clients.next++ & (clients.addresses.length - 1)];
+        return c.controller.tryAdmit(client, Instant.now());
+    }
+}
@@ -0,0 +1,69 @@
+package uk.ac.cam.lib.spring.security.raven.hooks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+import uk.ac.cam.lib.spring.security.raven.RavenFixtures;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator.RequestParam;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DefaultRavenRequestCreator#createLoginRequest} with only static
+ * params, with a dynamic return URL and with every optional param set. This
+ * runs twice per login: once in the entry point and once in the filter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestCreatorBenchmark {
+
+    @Param({"static", "dynamic", "full"})
+    public String params;
+
+    private DefaultRavenRequestCreator creator;
+    private MockHttpServletRequest request;
+
+    @Setup
+    public void setUp() {
+        DefaultRavenRequestCreator.Builder builder;
+        switch(params) {
+            case "static":
+                builder = DefaultRavenRequestCreator.builder(
+                    RavenFixtures.CALLBACK_URL);
+                break;
+            case "dynamic":
+                builder = DefaultRavenRequestCreator.builder(
+                    (p, r) -> r.getRequestURL().toString());
+                break;
+            case "full":
+                builder = DefaultRavenRequestCreator.builder(
+                        (p, r) -> r.getRequestURL().toString())
+                    .withValue(RequestParam.desc, "Cambridge Digital Library")
+                    .withValue(RequestParam.aauth, "pwd")
+                    .withValue(RequestParam.iact, "yes")
+                    .withValue(RequestParam.msg, "you need to log in")
+                    .withValue(RequestParam.fail, "yes")
+                    .withDynamicValue(RequestParam.params,
+                        (p, r) -> r.getRequestURI());
+                break;
+            default:
+                throw new IllegalArgumentException(params);
+        }
+        creator = builder.build();
+
+        request = new MockHttpServletRequest("GET", "/collections/treasures/1");
+    }
+
+    @Benchmark
+    public WebauthRequest createLoginRequest() {
+        return creator.createLoginRequest(request);
+    }
+}
@@ -0,0 +1,57 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.ac.cam.lib.spring.security.raven.RavenFixtures;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of validating a response which has been seen before: {@code cached}
+ * answers from a {@link CachingRavenResponseValidator}, while {@code uncached}
+ * verifies the signature again with {@link NativeRavenResponseValidator}.
+ * Both include parsing the response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CachingValidatorBenchmark {
+
+    private NativeRavenResponseValidator validator;
+    private CachingRavenResponseValidator cachingValidator;
+    private WebauthRequest request;
+    private String response;
+
+    @Setup
+    public void setUp() throws WebauthException {
+        validator = RavenFixtures.nativeValidator();
+        cachingValidator = new CachingRavenResponseValidator(validator, 1024);
+        request = RavenFixtures.request();
+        response = RavenFixtures.responseString();
+
+        cachingValidator.validate(request, WlsResponse.parse(response),
+                                  RavenFixtures.RECEIVED);
+    }
+
+    @Benchmark
+    public WlsResponse cached() throws WebauthException {
+        WlsResponse parsed = WlsResponse.parse(response);
+        cachingValidator.validate(request, parsed, RavenFixtures.RECEIVED);
+        return parsed;
+    }
+
+    @Benchmark
+    public WlsResponse uncached() throws WebauthException {
+        WlsResponse parsed = WlsResponse.parse(response);
+        validator.validate(request, parsed, RavenFixtures.RECEIVED);
+        return parsed;
+    }
+}
@@ -0,0 +1,72 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.ac.cam.lib.spring.security.raven.RavenFixtures;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of rejecting a forged response: {@code preValidate} rejects one
+ * with an unknown {@code kid} using {@link ResponsePreValidator}, while
+ * {@code verify} rejects one with a known {@code kid} but a bad signature
+ * using {@link NativeRavenResponseValidator}, as happens without a
+ * pre-validator. Both include parsing the response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreValidationBenchmark {
+
+    private ResponsePreValidator preValidator;
+    private NativeRavenResponseValidator validator;
+    private WebauthRequest request;
+    private String unknownKid;
+    private String badSignature;
+
+    @Setup
+    public void setUp() {
+        validator = RavenFixtures.nativeValidator();
+        preValidator = ResponsePreValidator.forValidator(validator);
+        preValidator.setUrlPrefix(RavenFixtures.CALLBACK_URL);
+        request = RavenFixtures.request();
+
+        String response = RavenFixtures.responseString();
+        int kid = response.lastIndexOf('!', response.lastIndexOf('!') - 1);
+        unknownKid = response.substring(0, kid) + "!999" +
+            response.substring(response.lastIndexOf('!'));
+        badSignature = response.replace("hwtb2", "abc12");
+    }
+
+    @Benchmark
+    public Object preValidate() throws WebauthException {
+        try {
+            preValidator.check(WlsResponse.parse(unknownKid),
+                               RavenFixtures.RECEIVED);
+            throw new AssertionError("Not rejected");
+        }
+        catch(PreValidationException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object verify() {
+        try {
+            validator.validate(request, WlsResponse.parse(badSignature),
+                               RavenFixtures.RECEIVED);
+            throw new AssertionError("Not rejected");
+        }
+        catch(WebauthException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.ac.cam.lib.spring.security.raven.RavenFixtures;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+import uk.ac.cam.ucs.webauth.WebauthValidator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation of a correctly signed response by a single validator shared by
+ * every thread, with {@link NativeRavenResponseValidator} and with the
+ * toolkit's {@link WebauthValidator}. Run at increasing thread counts (as
+ * {@code BenchmarkRunner} does), throughput should grow with the number of
+ * cores, as the native validator's threads share nothing but the immutable
+ * key table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResponseValidatorBenchmark {
+
+    @Param({"native", "toolkit"})
+    public String implementation;
+
+    private RavenResponseValidator validator;
+    private WebauthRequest request;
+    private String response;
+
+    @Setup
+    public void setUp() {
+        if("native".equals(implementation)) {
+            validator = RavenFixtures.nativeValidator();
+        }
+        else {
+            WebauthValidator toolkit = RavenFixtures.validator();
+            validator = (req, resp, now) -> toolkit.validate(
+                req, resp.toWebauthResponse(), now.toEpochMilli());
+        }
+
+        request = RavenFixtures.request();
+        response = RavenFixtures.responseString();
+    }
+
+    /** Parses the response each time, as the toolkit caches nothing. */
+    @Benchmark
+    public WlsResponse validate() throws WebauthException {
+        WlsResponse parsed = WlsResponse.parse(response);
+        validator.validate(request, parsed, RavenFixtures.RECEIVED);
+        return parsed;
+    }
+}
@@ -0,0 +1,98 @@
+package uk.ac.cam.lib.spring.security.raven.vedorised;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.web.PortResolverImpl;
+import org.springframework.security.web.savedrequest.DefaultSavedRequest;
+import org.springframework.security.web.savedrequest.SavedRequest;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of, and the accessors request creators use on,
+ * {@link SavedRequestAwareWrapper}. A wrapper is created for every Raven
+ * callback. The {@code legacy} implementation is the wrapper as originally
+ * vendorised from Spring ({@link LegacySavedRequestAwareWrapper}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SavedRequestAwareWrapperBenchmark {
+
+    @Param({"lazy", "legacy"})
+    public String implementation;
+
+    private SavedRequest saved;
+    private MockHttpServletRequest callback;
+    private HttpServletRequest wrapper;
+
+    @Setup
+    public void setUp() {
+        MockHttpServletRequest original = new MockHttpServletRequest(
+            "GET", "/collections/treasures/1");
+        original.setQueryString("page=2&view=full&tag=a&tag=b");
+        original.addParameter("page", "2");
+        original.addParameter("view", "full");
+        original.addParameter("tag", new String[]{"a", "b"});
+        original.addHeader("Accept", "text/html");
+        original.addHeader("Accept-Language", "en-GB");
+        original.addHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64)");
+        original.setCookies(new Cookie("JSESSIONID", "abcdef0123456789"),
+                            new Cookie("theme", "dark"));
+        saved = new DefaultSavedRequest(original, new PortResolverImpl());
+
+        callback = new MockHttpServletRequest("GET", "/callback");
+        callback.addParameter("WLS-Response", "3!200!...");
+        callback.addParameter("tag", new String[]{"b", "c"});
+
+        wrapper = construct();
+    }
+
+    @Benchmark
+    public HttpServletRequest construct() {
+        return "legacy".equals(implementation) ?
+            new LegacySavedRequestAwareWrapper(saved, callback) :
+            new SavedRequestAwareWrapper(saved, callback);
+    }
+
+    /** A new wrapper's parameters, as read by a request creator. */
+    @Benchmark
+    public Map constructAndGetParameterMap() {
+        return construct().getParameterMap();
+    }
+
+    @Benchmark
+    public String getParameter() {
+        return wrapper.getParameter("page");
+    }
+
+    @Benchmark
+    public String[] getParameterValues() {
+        return wrapper.getParameterValues("tag");
+    }
+
+    @Benchmark
+    public Map getParameterMap() {
+        return wrapper.getParameterMap();
+    }
+
+    @Benchmark
+    public String getHeader() {
+        return wrapper.getHeader("Accept");
+    }
+
+    @Benchmark
+    public Cookie[] getCookies() {
+        return wrapper.getCookies();
+    }
+}
@@ -0,0 +1,107 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.core.Authentication;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import uk.ac.cam.lib.spring.security.raven.AuthenticatedRavenTokenCreator;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+
+import java.io.Closeable;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Adapts a blocking {@link AuthenticatedRavenTokenCreator} (such as a
+ * {@code UserDetailsRavenTokenCreator} backed by a directory) to a
+ * {@link ReactiveAuthenticatedRavenTokenCreator}, by running it on a bounded
+ * {@link Scheduler} rather than the event loop.
+ *
+ * <p>The scheduler limits both the number of threads and the number of
+ * lookups waiting for one. Once the queue is full, further logins fail with
+ * an {@link AuthenticationServiceException} instead of queueing without
+ * bound behind a slow directory.
+ */
+public class BlockingRavenTokenCreatorAdapter
+    implements ReactiveAuthenticatedRavenTokenCreator, Closeable {
+
+    public static final int DEFAULT_MAX_THREADS =
+        Schedulers.DEFAULT_BOUNDED_ELASTIC_SIZE;
+    public static final int DEFAULT_MAX_QUEUED = 1000;
+
+    private static final String THREAD_NAME_PREFIX = "raven-token-creator";
+
+    private final AuthenticatedRavenTokenCreator delegate;
+    private final Scheduler scheduler;
+    private final boolean ownsScheduler;
+
+    public BlockingRavenTokenCreatorAdapter(
+        AuthenticatedRavenTokenCreator delegate) {
+
+        this(delegate, DEFAULT_MAX_THREADS, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Run the creator on a new scheduler, which is disposed by
+     * {@link #close()}.
+     *
+     * @param maxThreads The maximum number of concurrent calls to the creator.
+     * @param maxQueued The maximum number of calls waiting for a thread.
+     */
+    public BlockingRavenTokenCreatorAdapter(
+        AuthenticatedRavenTokenCreator delegate, int maxThreads,
+        int maxQueued) {
+
+        Assert.notNull(delegate);
+        Assert.isTrue(maxThreads > 0, "maxThreads must be positive");
+        Assert.isTrue(maxQueued > 0, "maxQueued must be positive");
+
+        this.delegate = delegate;
+        this.scheduler = Schedulers.newBoundedElastic(
+            maxThreads, maxQueued, THREAD_NAME_PREFIX, 60, true);
+        this.ownsScheduler = true;
+    }
+
+    /**
+     * Run the creator on an existing scheduler, which {@link #close()} leaves
+     * running. The scheduler should be bounded.
+     */
+    public BlockingRavenTokenCreatorAdapter(
+        AuthenticatedRavenTokenCreator delegate, Scheduler scheduler) {
+
+        Assert.notNull(delegate);
+        Assert.notNull(scheduler);
+
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+        this.ownsScheduler = false;
+    }
+
+    public AuthenticatedRavenTokenCreator getDelegate() {
+        return this.delegate;
+    }
+
+    public Scheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    @Override
+    public Mono<Authentication> createAuthenticatedToken(
+        RavenAuthenticationToken validatedToken) {
+
+        return Mono.fromCallable(
+                () -> this.delegate.createAuthenticatedToken(validatedToken))
+            .subscribeOn(this.scheduler)
+            .onErrorMap(RejectedExecutionException.class,
+                e -> new AuthenticationServiceException(
+                    "Too many logins waiting for user lookups", e));
+    }
+
+    /** Dispose of the scheduler, if it was created by this adapter. */
+    @Override
+    public void close() {
+        if(this.ownsScheduler)
+            this.scheduler.dispose();
+    }
+}
@@ -0,0 +1,51 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.web.server.authentication.AuthenticationWebFilter;
+import org.springframework.security.web.server.authentication.RedirectServerAuthenticationSuccessHandler;
+import org.springframework.security.web.server.context.WebSessionServerSecurityContextRepository;
+import org.springframework.security.web.server.util.matcher.ServerWebExchangeMatcher.MatchResult;
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+
+/**
+ * The WebFlux counterpart of {@link RavenAuthenticationFilter}: intercepts
+ * requests with a {@code WLS-Response} in their query string, and
+ * authenticates the token created by a
+ * {@link RavenServerAuthenticationConverter} with a
+ * {@link ReactiveAuthenticationManager}, presumably a
+ * {@link RavenReactiveAuthenticationManager}.
+ *
+ * <p>Successful logins are saved in the {@code WebSession} and redirected to
+ * the original request in the converter's {@code ServerRequestCache}. Both can
+ * be changed with {@code AuthenticationWebFilter}'s setters.
+ */
+public class RavenAuthenticationWebFilter extends AuthenticationWebFilter {
+
+    private final RavenServerAuthenticationConverter converter;
+
+    public RavenAuthenticationWebFilter(
+        ReactiveAuthenticationManager authenticationManager,
+        RavenServerAuthenticationConverter converter) {
+
+        super(authenticationManager);
+
+        Assert.notNull(converter);
+        this.converter = converter;
+
+        setServerAuthenticationConverter(converter);
+        setRequiresAuthenticationMatcher(exchange -> converter.hasResponse(
+            exchange) ? MatchResult.match() : MatchResult.notMatch());
+        setSecurityContextRepository(
+            new WebSessionServerSecurityContextRepository());
+
+        RedirectServerAuthenticationSuccessHandler successHandler =
+            new RedirectServerAuthenticationSuccessHandler();
+        successHandler.setRequestCache(converter.getRequestCache());
+        setAuthenticationSuccessHandler(successHandler);
+    }
+
+    public RavenServerAuthenticationConverter getConverter() {
+        return this.converter;
+    }
+}
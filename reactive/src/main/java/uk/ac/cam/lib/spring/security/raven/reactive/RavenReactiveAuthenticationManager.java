@@ -0,0 +1,157 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import uk.ac.cam.lib.spring.security.raven.AuthenticatedRavenTokenCreator;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationProvider;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics.Stage;
+import uk.ac.cam.lib.spring.security.raven.replay.InMemoryReplayCache;
+import uk.ac.cam.lib.spring.security.raven.replay.ReplayStore;
+import uk.ac.cam.lib.spring.security.raven.validation.RavenResponseValidator;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The WebFlux counterpart of {@link RavenAuthenticationProvider}: validates a
+ * {@link RavenAuthenticationToken} and creates an authenticated token from it
+ * with a {@link ReactiveAuthenticatedRavenTokenCreator}.
+ *
+ * <p>Validation is delegated to
+ * {@link RavenAuthenticationProvider#validate(RavenAuthenticationToken)}, so
+ * the provider's validator, replay store and metrics apply as they do for
+ * servlet requests. Checking a response is CPU-bound and takes microseconds,
+ * so without a replay store, or with an {@link InMemoryReplayCache}, it runs
+ * on the subscribing thread. Other {@link ReplayStore}s may block (a
+ * {@code MappedReplayStore} takes a file lock), so with them validation runs
+ * on the {@link #setValidationScheduler(Scheduler) validation scheduler}
+ * instead of the event loop. The token creator must not block (see
+ * {@link BlockingRavenTokenCreatorAdapter}).
+ *
+ * <p>Tokens other than {@code RavenAuthenticationToken}s are not supported,
+ * and result in an empty {@code Mono}.
+ */
+public class RavenReactiveAuthenticationManager
+    implements ReactiveAuthenticationManager {
+
+    private static final AuthenticatedRavenTokenCreator UNUSED_TOKEN_CREATOR =
+        token -> {
+            throw new IllegalStateException(
+                "Tokens are created by the ReactiveAuthenticatedRavenTokenCreator");
+        };
+
+    private final RavenAuthenticationProvider provider;
+    private final ReactiveAuthenticatedRavenTokenCreator tokenCreator;
+    private Scheduler validationScheduler = Schedulers.boundedElastic();
+
+    public RavenReactiveAuthenticationManager(
+        RavenResponseValidator responseValidator,
+        ReactiveAuthenticatedRavenTokenCreator tokenCreator) {
+
+        this(new RavenAuthenticationProvider(
+                 responseValidator, UNUSED_TOKEN_CREATOR),
+             tokenCreator);
+    }
+
+    /**
+     * @param provider The provider which validates tokens. Its
+     *                 {@link AuthenticatedRavenTokenCreator} is not used.
+     * @param tokenCreator The creator of authenticated tokens.
+     */
+    public RavenReactiveAuthenticationManager(
+        RavenAuthenticationProvider provider,
+        ReactiveAuthenticatedRavenTokenCreator tokenCreator) {
+
+        Assert.notNull(provider);
+        Assert.notNull(tokenCreator);
+
+        this.provider = provider;
+        this.tokenCreator = tokenCreator;
+    }
+
+    public RavenAuthenticationProvider getProvider() {
+        return this.provider;
+    }
+
+    public ReactiveAuthenticatedRavenTokenCreator getTokenCreator() {
+        return this.tokenCreator;
+    }
+
+    /**
+     * Set the scheduler which validates tokens when the provider's replay
+     * store may block. It should be bounded; if it rejects a validation the
+     * login fails with an {@link AuthenticationServiceException}. Defaults to
+     * {@link Schedulers#boundedElastic()}.
+     */
+    public void setValidationScheduler(Scheduler validationScheduler) {
+        Assert.notNull(validationScheduler);
+        this.validationScheduler = validationScheduler;
+    }
+
+    public Scheduler getValidationScheduler() {
+        return this.validationScheduler;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Fails with an {@link IllegalStateException} if the
+     * {@link ReactiveAuthenticatedRavenTokenCreator} emits an unauthenticated
+     * token, or none.
+     */
+    @Override
+    public Mono<Authentication> authenticate(Authentication authentication) {
+        if(!(authentication instanceof RavenAuthenticationToken))
+            return Mono.empty();
+
+        RavenAuthenticationToken token =
+            (RavenAuthenticationToken)authentication;
+
+        if(!mayBlock(this.provider.getReplayStore())) {
+            return Mono.defer(() -> {
+                this.provider.validate(token);
+                return createAuthenticatedToken(token);
+            });
+        }
+
+        return Mono.fromRunnable(() -> this.provider.validate(token))
+            .subscribeOn(this.validationScheduler)
+            .onErrorMap(RejectedExecutionException.class,
+                e -> new AuthenticationServiceException(
+                    "Too many logins waiting for validation", e))
+            .then(Mono.defer(() -> createAuthenticatedToken(token)));
+    }
+
+    private static boolean mayBlock(ReplayStore replayStore) {
+        return replayStore != null &&
+            !(replayStore instanceof InMemoryReplayCache);
+    }
+
+    private Mono<Authentication> createAuthenticatedToken(
+        RavenAuthenticationToken token) {
+
+        RavenMetrics metrics = this.provider.getMetrics();
+        long start = System.nanoTime();
+
+        return this.tokenCreator.createAuthenticatedToken(token)
+            .switchIfEmpty(Mono.error(() -> new IllegalStateException(
+                "ReactiveAuthenticatedRavenTokenCreator returned no token. " +
+                "creator: " + this.tokenCreator)))
+            .doFinally(signal -> metrics.recordStage(
+                Stage.TOKEN_CREATION, System.nanoTime() - start))
+            .map(result -> {
+                if(!result.isAuthenticated())
+                    throw new IllegalStateException(String.format(
+                        "ReactiveAuthenticatedRavenTokenCreator returned an " +
+                        "unauthenticated token. creator: %s, token: %s",
+                        this.tokenCreator, result));
+                return result;
+            });
+    }
+}
@@ -0,0 +1,209 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.web.server.authentication.ServerAuthenticationConverter;
+import org.springframework.security.web.server.savedrequest.ServerRequestCache;
+import org.springframework.security.web.server.savedrequest.WebSessionServerRequestCache;
+import org.springframework.util.Assert;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+import uk.ac.cam.lib.spring.security.raven.QueryParameterScanner;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationEntryPoint;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationException;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.RavenRequestCreator;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.lib.spring.security.raven.issued.IssuedRequestStore;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.time.Clock;
+import java.time.Instant;
+
+/**
+ * Creates a {@link RavenAuthenticationToken} from the {@code WLS-Response} in
+ * a request's query string, as {@link RavenAuthenticationFilter} does.
+ *
+ * <p>The Raven request the response answers is taken from the
+ * {@link IssuedRequestStore} (if one is set), or else created again from the
+ * original request's URI in the {@link ServerRequestCache}. The saved URI is
+ * left in the cache, so the success handler can redirect to it.
+ */
+public class RavenServerAuthenticationConverter
+    implements ServerAuthenticationConverter {
+
+    private final RavenRequestCreator ravenRequestCreator;
+    private final ServerRequestCache requestCache;
+    private final Clock clock;
+    private QueryParameterScanner responseParameter;
+    private IssuedRequestStore issuedRequestStore;
+
+    public RavenServerAuthenticationConverter(
+        RavenRequestCreator ravenRequestCreator) {
+
+        this(ravenRequestCreator, new WebSessionServerRequestCache(),
+             Clock.systemUTC(),
+             RavenAuthenticationFilter.RESPONSE_PARAMETER_NAME);
+    }
+
+    public RavenServerAuthenticationConverter(
+        RavenRequestCreator ravenRequestCreator,
+        ServerRequestCache requestCache,
+        Clock clock,
+        String responseParameterName) {
+
+        Assert.notNull(ravenRequestCreator);
+        Assert.notNull(requestCache);
+        Assert.notNull(clock);
+        Assert.hasText(responseParameterName);
+
+        this.ravenRequestCreator = ravenRequestCreator;
+        this.requestCache = requestCache;
+        this.clock = clock;
+        this.responseParameter =
+            new QueryParameterScanner(responseParameterName);
+    }
+
+    public RavenRequestCreator getRavenRequestCreator() {
+        return this.ravenRequestCreator;
+    }
+
+    public ServerRequestCache getRequestCache() {
+        return this.requestCache;
+    }
+
+    public Clock getClock() {
+        return this.clock;
+    }
+
+    public String getResponseParameterName() {
+        return this.responseParameter.getName();
+    }
+
+    /**
+     * Set the maximum length of the (raw) response parameter value. Requests
+     * with longer values are rejected without being parsed. Defaults to
+     * {@link QueryParameterScanner#DEFAULT_MAX_VALUE_LENGTH}.
+     */
+    public void setMaxResponseLength(int maxResponseLength) {
+        this.responseParameter =
+            this.responseParameter.withMaxValueLength(maxResponseLength);
+    }
+
+    public int getMaxResponseLength() {
+        return this.responseParameter.getMaxValueLength();
+    }
+
+    /**
+     * Use the Raven requests remembered by the
+     * {@link RavenAuthenticationEntryPoint} rather than creating them again
+     * from the original request.
+     *
+     * @param issuedRequestStore The store the entry point uses, or null to
+     *                           always recreate requests (the default).
+     * @see RavenAuthenticationFilter#setIssuedRequestStore(IssuedRequestStore)
+     */
+    public void setIssuedRequestStore(IssuedRequestStore issuedRequestStore) {
+        this.issuedRequestStore = issuedRequestStore;
+    }
+
+    public IssuedRequestStore getIssuedRequestStore() {
+        return this.issuedRequestStore;
+    }
+
+    /**
+     * Determine whether a request's query string contains a response
+     * parameter. Only the query string is considered, so a request body is
+     * never read.
+     */
+    public boolean hasResponse(ServerWebExchange exchange) {
+        return this.responseParameter.isPresentIn(
+            exchange.getRequest().getURI().getRawQuery());
+    }
+
+    @Override
+    public Mono<Authentication> convert(ServerWebExchange exchange) {
+        Instant now = this.clock.instant();
+
+        WlsResponse authResponse;
+        try {
+            authResponse = parseResponse(exchange);
+        }
+        catch(BadCredentialsException e) {
+            return Mono.error(e);
+        }
+
+        exchange.getAttributes().put(
+            RavenAuthenticationFilter.RESPONSE_ATTRIBUTE, authResponse);
+
+        IssuedRequestStore store = this.issuedRequestStore;
+        String nonce = store == null ? null : authResponse.getParams();
+        if(nonce != null && nonce.isEmpty())
+            nonce = null;
+
+        WebauthRequest issued = nonce == null ? null : store.take(nonce, now);
+        Mono<WebauthRequest> authRequest = issued != null
+            ? Mono.just(issued) : recreateRequest(exchange, nonce);
+
+        return authRequest.map(request ->
+            new RavenAuthenticationToken(request, authResponse, now));
+    }
+
+    private WlsResponse parseResponse(ServerWebExchange exchange) {
+        String response;
+        try {
+            response = this.responseParameter.extractFrom(
+                exchange.getRequest().getURI().getRawQuery());
+        }
+        catch(IllegalArgumentException e) {
+            throw new BadCredentialsException(
+                "Invalid " + getResponseParameterName() + " parameter", e);
+        }
+
+        if(response == null)
+            throw new BadCredentialsException(
+                "Request contained no query parameter named: " +
+                    getResponseParameterName());
+
+        try {
+            WlsResponse authResponse = WlsResponse.parse(response);
+
+            // Reject responses without a numeric version and status before
+            // looking up the original request.
+            authResponse.getVersion();
+            authResponse.getStatus();
+            return authResponse;
+        }
+        catch(WebauthException | NumberFormatException e) {
+            throw new BadCredentialsException(
+                "Invalid " + getResponseParameterName() + " parameter", e);
+        }
+    }
+
+    private Mono<WebauthRequest> recreateRequest(
+        ServerWebExchange exchange, String nonce) {
+
+        return this.requestCache.getRedirectUri(exchange)
+            .switchIfEmpty(Mono.error(() -> new RavenAuthenticationException(
+                "Original request not in ServerRequestCache")))
+            .map(uri -> {
+                WebauthRequest request = getRavenRequestCreator()
+                    .createLoginRequest(ServerRequestView.of(uri, exchange));
+
+                if(request == null)
+                    throw new IllegalStateException(
+                        "RavenRequestCreator.createLoginRequest() returned " +
+                        "null");
+
+                if(nonce != null && request.get("params") == null) {
+                    WebauthRequest issued = RavenAuthenticationEntryPoint
+                        .withParams(request, nonce);
+                    if(issued != null)
+                        return issued;
+                }
+                return request;
+            });
+    }
+}
@@ -0,0 +1,76 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.web.server.ServerAuthenticationEntryPoint;
+import org.springframework.security.web.server.savedrequest.ServerRequestCache;
+import org.springframework.security.web.server.savedrequest.WebSessionServerRequestCache;
+import org.springframework.util.Assert;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationEntryPoint;
+
+import java.net.URI;
+
+/**
+ * The WebFlux counterpart of {@link RavenAuthenticationEntryPoint}: saves the
+ * request in a {@link ServerRequestCache} and redirects the user to the Raven
+ * login page.
+ *
+ * <p>The login URL is created by a {@link RavenAuthenticationEntryPoint}, so
+ * its {@code RavenRequestCreator}, login URL cache and issued request store
+ * are shared with the servlet version. None of these block.
+ */
+public class RavenServerAuthenticationEntryPoint
+    implements ServerAuthenticationEntryPoint {
+
+    private final RavenAuthenticationEntryPoint entryPoint;
+    private final ServerRequestCache requestCache;
+
+    public RavenServerAuthenticationEntryPoint(
+        RavenAuthenticationEntryPoint entryPoint) {
+
+        this(entryPoint, new WebSessionServerRequestCache());
+    }
+
+    /**
+     * @param entryPoint The entry point which creates login URLs.
+     * @param requestCache The cache to save requests in, which must be the
+     *                     one the {@link RavenServerAuthenticationConverter}
+     *                     uses.
+     */
+    public RavenServerAuthenticationEntryPoint(
+        RavenAuthenticationEntryPoint entryPoint,
+        ServerRequestCache requestCache) {
+
+        Assert.notNull(entryPoint);
+        Assert.notNull(requestCache);
+
+        this.entryPoint = entryPoint;
+        this.requestCache = requestCache;
+    }
+
+    public RavenAuthenticationEntryPoint getEntryPoint() {
+        return this.entryPoint;
+    }
+
+    public ServerRequestCache getRequestCache() {
+        return this.requestCache;
+    }
+
+    @Override
+    public Mono<Void> commence(ServerWebExchange exchange,
+                               AuthenticationException e) {
+
+        return this.requestCache.saveRequest(exchange)
+            .then(Mono.fromCallable(() -> this.entryPoint.getLoginUrl(
+                ServerRequestView.of(exchange))))
+            .flatMap(loginUrl -> {
+                ServerHttpResponse response = exchange.getResponse();
+                response.setStatusCode(HttpStatus.FOUND);
+                response.getHeaders().setLocation(URI.create(loginUrl));
+                return response.setComplete();
+            });
+    }
+}
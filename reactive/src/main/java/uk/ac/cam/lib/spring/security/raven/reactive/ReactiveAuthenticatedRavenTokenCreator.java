@@ -0,0 +1,30 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.springframework.security.core.Authentication;
+import reactor.core.publisher.Mono;
+import uk.ac.cam.lib.spring.security.raven.AuthenticatedRavenTokenCreator;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+
+/**
+ * The non-blocking counterpart of {@link AuthenticatedRavenTokenCreator}, used
+ * by {@link RavenReactiveAuthenticationManager}.
+ *
+ * <p>Implementations must not block the calling thread, which is normally an
+ * event loop thread. Blocking creators can be adapted with
+ * {@link BlockingRavenTokenCreatorAdapter}, which runs them on a bounded
+ * scheduler.
+ */
+@FunctionalInterface
+public interface ReactiveAuthenticatedRavenTokenCreator {
+    /**
+     * Create an Authentication object to represent the logged-in user.
+     *
+     * The emitted authentication object must be authenticated
+     * ({@link Authentication#isAuthenticated()}).
+     *
+     * @param validatedToken A valid Raven login request.
+     * @return The Authentication object to use.
+     */
+    Mono<Authentication> createAuthenticatedToken(
+        RavenAuthenticationToken validatedToken);
+}
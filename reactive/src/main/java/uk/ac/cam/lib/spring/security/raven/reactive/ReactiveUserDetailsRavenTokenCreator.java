@@ -0,0 +1,84 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.ReactiveUserDetailsService;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Mono;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.hooks.UserDetailsRavenTokenCreator;
+
+/**
+ * The non-blocking counterpart of {@link UserDetailsRavenTokenCreator}, which
+ * uses {@link UserDetails} instances obtained from a
+ * {@link ReactiveUserDetailsService} to create authenticated
+ * {@link RavenAuthenticationToken}s.
+ */
+public class ReactiveUserDetailsRavenTokenCreator
+    implements ReactiveAuthenticatedRavenTokenCreator {
+
+    private final ReactiveUserDetailsService userDetailsService;
+
+    public ReactiveUserDetailsRavenTokenCreator(
+        ReactiveUserDetailsService userDetailsService) {
+
+        Assert.notNull(userDetailsService);
+
+        this.userDetailsService = userDetailsService;
+    }
+
+    public ReactiveUserDetailsService getUserDetailsService() {
+        return this.userDetailsService;
+    }
+
+    @Override
+    public Mono<Authentication> createAuthenticatedToken(
+        RavenAuthenticationToken validatedToken) {
+
+        Assert.isTrue(!validatedToken.isAuthenticated());
+
+        String username = this.getUsername(validatedToken);
+        return this.loadUserDetails(username)
+            .switchIfEmpty(Mono.error(() -> new UsernameNotFoundException(
+                "User not found: " + username)))
+            .map(details ->
+                this.createTokenFromUserDetails(validatedToken, details));
+    }
+
+    /**
+     * Get the UserDetails for a username. Can be overridden by subclasses to
+     * change how users are looked up.
+     *
+     * This implementation calls the {@link ReactiveUserDetailsService}.
+     *
+     * @param username The username returned by
+     *                 {@link #getUsername(RavenAuthenticationToken)}.
+     * @return The user's details, or empty if the user is not known.
+     */
+    protected Mono<UserDetails> loadUserDetails(String username) {
+        return getUserDetailsService().findByUsername(username);
+    }
+
+    /**
+     * Get the username from the token. Can be overridden by subclasses to
+     * modify usernames.
+     *
+     * This implementation returns the string representation of the token's
+     * principal, which is the user's CRSid.
+     */
+    protected String getUsername(RavenAuthenticationToken token) {
+        return token.getPrincipal().toString();
+    }
+
+    /**
+     * Create an authenticated version of the unauthenticated token, using the
+     * specified UserDetails instance. Can be overridden to customise the
+     * Authentication object.
+     */
+    protected Authentication createTokenFromUserDetails(
+        RavenAuthenticationToken previous, UserDetails details) {
+
+        return previous.authenticate(details, details.getAuthorities());
+    }
+}
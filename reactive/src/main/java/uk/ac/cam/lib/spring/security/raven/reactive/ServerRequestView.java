@@ -0,0 +1,158 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.springframework.http.HttpMethod;
+import org.springframework.util.Assert;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+import uk.ac.cam.lib.spring.security.raven.OriginalRequestView;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link OriginalRequestView} of a WebFlux request.
+ *
+ * <p>When the entry point redirects a user to Raven this is a view of the
+ * current request. When the callback is handled it's a view of the URI in the
+ * {@link org.springframework.security.web.server.savedrequest.ServerRequestCache},
+ * resolved against the current request. A
+ * {@code ServerRequestCache} only saves the path and query of {@code GET}
+ * requests, so parameters are those of the query string, and headers are
+ * those of the current request.
+ *
+ * <p>There is no servlet request, so {@link #toServletRequest()} throws
+ * {@link UnsupportedOperationException}: the {@code RavenRequestCreator} must
+ * only use the view (as {@code DefaultRavenRequestCreator} does with fixed
+ * values and {@code ViewParamProducer}s).
+ */
+public final class ServerRequestView implements OriginalRequestView {
+
+    private final ServerWebExchange exchange;
+    private final String method;
+    private final URI uri;
+    private Map<String, String[]> parameters;
+
+    private ServerRequestView(ServerWebExchange exchange, String method,
+                              URI uri) {
+        this.exchange = exchange;
+        this.method = method;
+        this.uri = uri;
+    }
+
+    /** Get a view of the request currently being handled. */
+    public static ServerRequestView of(ServerWebExchange exchange) {
+        Assert.notNull(exchange);
+
+        HttpMethod method = exchange.getRequest().getMethod();
+        return new ServerRequestView(
+            exchange, method == null ? null : method.name(),
+            exchange.getRequest().getURI());
+    }
+
+    /**
+     * Get a view of a saved request.
+     *
+     * @param savedUri The URI of the original request, as saved by a
+     *                 {@code ServerRequestCache}. Relative URIs are resolved
+     *                 against the current request's URI.
+     * @param currentExchange The exchange being handled, which provides
+     *                        headers and attributes.
+     */
+    public static ServerRequestView of(URI savedUri,
+                                       ServerWebExchange currentExchange) {
+        Assert.notNull(savedUri);
+        Assert.notNull(currentExchange);
+
+        return new ServerRequestView(
+            currentExchange, HttpMethod.GET.name(),
+            currentExchange.getRequest().getURI().resolve(savedUri));
+    }
+
+    @Override
+    public String getMethod() {
+        return this.method;
+    }
+
+    @Override
+    public String getUrl() {
+        return this.uri.toString();
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = getParameterValues(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        return getParameterMap().get(name);
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        if(this.parameters == null)
+            this.parameters = parseQuery(this.uri);
+        return this.parameters;
+    }
+
+    private static Map<String, String[]> parseQuery(URI uri) {
+        if(uri.getRawQuery() == null)
+            return Collections.emptyMap();
+
+        MultiValueMap<String, String> raw = UriComponentsBuilder.fromUri(uri)
+            .build(true).getQueryParams();
+
+        MultiValueMap<String, String> decoded = new LinkedMultiValueMap<>();
+        for(Map.Entry<String, List<String>> e : raw.entrySet()) {
+            String name = decode(e.getKey());
+            for(String value : e.getValue())
+                decoded.add(name, value == null ? "" : decode(value));
+        }
+
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        for(Map.Entry<String, List<String>> e : decoded.entrySet()) {
+            parameters.put(e.getKey(),
+                           e.getValue().toArray(new String[0]));
+        }
+        return Collections.unmodifiableMap(parameters);
+    }
+
+    private static String decode(String value) {
+        return UriUtils.decode(value.replace('+', ' '), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return this.exchange.getRequest().getHeaders().getFirst(name);
+    }
+
+    /** An attribute of the current {@link ServerWebExchange}. */
+    @Override
+    public Object getAttribute(String name) {
+        return this.exchange.getAttribute(name);
+    }
+
+    public ServerWebExchange getExchange() {
+        return this.exchange;
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, as WebFlux requests are
+     *         not servlet requests.
+     */
+    @Override
+    public HttpServletRequest toServletRequest() {
+        throw new UnsupportedOperationException(
+            "WebFlux requests have no HttpServletRequest; the " +
+            "RavenRequestCreator must only use the OriginalRequestView");
+    }
+}
@@ -0,0 +1,113 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.core.Authentication;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import uk.ac.cam.lib.spring.security.raven.AuthenticatedRavenTokenCreator;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockingRavenTokenCreatorAdapterTest {
+
+    private BlockingRavenTokenCreatorAdapter adapter;
+
+    @After
+    public void tearDown() {
+        if(this.adapter != null)
+            this.adapter.close();
+    }
+
+    @Test
+    public void testCreatorRunsOnBoundedScheduler() {
+        AtomicReference<String> thread = new AtomicReference<>();
+        this.adapter = new BlockingRavenTokenCreatorAdapter(token -> {
+            thread.set(Thread.currentThread().getName());
+            return token.authenticate(
+                token.getPrincipal(), Collections.emptyList());
+        });
+
+        Authentication auth = this.adapter.createAuthenticatedToken(
+            ReactiveUserDetailsRavenTokenCreatorTest.token("abc123")).block();
+
+        assertThat(auth.isAuthenticated(), is(true));
+        assertThat(thread.get(), startsWith("raven-token-creator"));
+        assertThat(thread.get(),
+            not(equalTo(Thread.currentThread().getName())));
+    }
+
+    @Test
+    public void testFullQueueFailsLogin() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AuthenticatedRavenTokenCreator blocked = token -> {
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return token.authenticate(
+                token.getPrincipal(), Collections.emptyList());
+        };
+        this.adapter = new BlockingRavenTokenCreatorAdapter(blocked, 1, 1);
+
+        Mono<Authentication> running = this.adapter.createAuthenticatedToken(
+            ReactiveUserDetailsRavenTokenCreatorTest.token("abc123")).cache();
+        running.subscribe();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Mono<Authentication> queued = this.adapter.createAuthenticatedToken(
+            ReactiveUserDetailsRavenTokenCreatorTest.token("abc123")).cache();
+        queued.subscribe();
+
+        try {
+            this.adapter.createAuthenticatedToken(
+                ReactiveUserDetailsRavenTokenCreatorTest.token("abc123"))
+                .block();
+            fail();
+        }
+        catch(AuthenticationServiceException e) {
+            assertThat(e.getMessage(), containsString("Too many"));
+        }
+        finally {
+            release.countDown();
+        }
+
+        assertThat(running.block().isAuthenticated(), is(true));
+        assertThat(queued.block().isAuthenticated(), is(true));
+    }
+
+    @Test
+    public void testSharedSchedulerIsNotDisposed() {
+        Scheduler scheduler = Schedulers.newSingle("test");
+        try {
+            this.adapter = new BlockingRavenTokenCreatorAdapter(
+                token -> null, scheduler);
+            assertThat(this.adapter.getScheduler(), sameInstance(scheduler));
+
+            this.adapter.close();
+            assertThat(scheduler.isDisposed(), is(false));
+        }
+        finally {
+            scheduler.dispose();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveThreads() {
+        new BlockingRavenTokenCreatorAdapter(token -> null, 0, 1);
+    }
+}
@@ -0,0 +1,120 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.mock.web.server.MockWebSession;
+import org.springframework.security.authentication.InsufficientAuthenticationException;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.web.server.context.WebSessionServerSecurityContextRepository;
+import org.springframework.security.web.server.savedrequest.WebSessionServerRequestCache;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationEntryPoint;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+
+import java.net.URI;
+import java.time.Clock;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class RavenAuthenticationWebFilterTest {
+
+    private RavenServerAuthenticationEntryPoint entryPoint;
+    private RavenAuthenticationWebFilter filter;
+    private MockWebSession session;
+    private AtomicInteger chainCalls;
+    private WebFilterChain chain;
+
+    @Before
+    public void setUp() {
+        WebSessionServerRequestCache requestCache =
+            new WebSessionServerRequestCache();
+        RavenAuthenticationEntryPoint servletEntryPoint =
+            new RavenAuthenticationEntryPoint(
+                RavenServerAuthenticationEntryPointTest.requestUrlCreator());
+
+        this.entryPoint = new RavenServerAuthenticationEntryPoint(
+            servletEntryPoint, requestCache);
+        this.filter = new RavenAuthenticationWebFilter(
+            new RavenReactiveAuthenticationManager(
+                (req, resp, now) -> {},
+                token -> Mono.just(token.authenticate(
+                    token.getPrincipal(), Collections.emptyList()))),
+            new RavenServerAuthenticationConverter(
+                servletEntryPoint.getRequestCreator(), requestCache,
+                Clock.fixed(RavenServerAuthenticationConverterTest.NOW,
+                            ZoneOffset.UTC),
+                RavenAuthenticationFilter.RESPONSE_PARAMETER_NAME));
+
+        this.session = new MockWebSession();
+        this.chainCalls = new AtomicInteger();
+        // AuthenticationWebFilter calls the chain even when it handles the
+        // request, but only subscribes to the result when it doesn't.
+        this.chain = exchange ->
+            Mono.fromRunnable(this.chainCalls::incrementAndGet);
+    }
+
+    private MockServerWebExchange exchange(
+        MockServerHttpRequest.BaseBuilder<?> request) {
+
+        return MockServerWebExchange.builder(request).session(this.session)
+            .build();
+    }
+
+    @Test
+    public void testRequestsWithoutResponseArePassedOn() {
+        this.filter.filter(exchange(MockServerHttpRequest.get(
+            "https://example.com/page?a=b")), this.chain).block();
+
+        assertThat(this.chainCalls.get(), equalTo(1));
+    }
+
+    @Test
+    public void testLoginCycle() {
+        this.entryPoint.commence(
+            exchange(MockServerHttpRequest.get("https://example.com/page")
+                .accept(MediaType.TEXT_HTML)),
+            new InsufficientAuthenticationException("foo")).block();
+
+        MockServerWebExchange callback = exchange(
+            RavenServerAuthenticationConverterTest.callback(
+                RavenServerAuthenticationConverterTest.response("")));
+        this.filter.filter(callback, this.chain).block();
+
+        assertThat(this.chainCalls.get(), equalTo(0));
+        assertThat(callback.getResponse().getStatusCode(),
+            equalTo(HttpStatus.FOUND));
+        assertThat(callback.getResponse().getHeaders().getLocation(),
+            equalTo(URI.create("/page")));
+
+        SecurityContext context = this.session.getAttribute(
+            WebSessionServerSecurityContextRepository
+                .DEFAULT_SPRING_SECURITY_CONTEXT_ATTR_NAME);
+        assertThat(context.getAuthentication().isAuthenticated(), is(true));
+        assertThat(context.getAuthentication().getPrincipal(),
+            equalTo("test0001"));
+    }
+
+    @Test
+    public void testFailedLoginIsUnauthorized() {
+        MockServerWebExchange callback = exchange(
+            RavenServerAuthenticationConverterTest.callback(
+                RavenServerAuthenticationConverterTest.response("")));
+        this.filter.filter(callback, this.chain).block();
+
+        assertThat(this.chainCalls.get(), equalTo(0));
+        assertThat(callback.getResponse().getStatusCode(),
+            equalTo(HttpStatus.UNAUTHORIZED));
+        assertThat(this.session.getAttributes().containsKey(
+            WebSessionServerSecurityContextRepository
+                .DEFAULT_SPRING_SECURITY_CONTEXT_ATTR_NAME), is(false));
+    }
+}
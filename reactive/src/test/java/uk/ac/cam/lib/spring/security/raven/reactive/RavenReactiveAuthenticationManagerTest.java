@@ -0,0 +1,202 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.junit.Test;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationException;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationProvider;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.metrics.CountingRavenMetrics;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics.Stage;
+import uk.ac.cam.lib.spring.security.raven.replay.InMemoryReplayCache;
+import uk.ac.cam.lib.spring.security.raven.replay.ReplayKey;
+import uk.ac.cam.lib.spring.security.raven.replay.ReplayStore;
+import uk.ac.cam.lib.spring.security.raven.validation.RavenResponseValidator;
+import uk.ac.cam.ucs.webauth.WebauthException;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class RavenReactiveAuthenticationManagerTest {
+
+    private static final RavenResponseValidator VALID = (req, resp, now) -> {};
+
+    private static final ReactiveAuthenticatedRavenTokenCreator AUTHENTICATE =
+        token -> Mono.just(token.authenticate(
+            token.getPrincipal(), Collections.emptyList()));
+
+    @Test
+    public void testAuthenticateValidatesThenCreatesToken() {
+        AtomicInteger validations = new AtomicInteger();
+        RavenReactiveAuthenticationManager manager =
+            new RavenReactiveAuthenticationManager(
+                (req, resp, now) -> validations.incrementAndGet(),
+                AUTHENTICATE);
+
+        Mono<Authentication> result = manager.authenticate(
+            ReactiveUserDetailsRavenTokenCreatorTest.token("abc123"));
+        assertThat("validation waits for subscription",
+            validations.get(), equalTo(0));
+
+        Authentication auth = result.block();
+        assertThat(validations.get(), equalTo(1));
+        assertThat(auth.isAuthenticated(), is(true));
+        assertThat(auth.getPrincipal(), equalTo("abc123"));
+    }
+
+    @Test
+    public void testInvalidResponseIsNotPassedToTokenCreator() {
+        AtomicInteger creations = new AtomicInteger();
+        RavenReactiveAuthenticationManager manager =
+            new RavenReactiveAuthenticationManager(
+                (req, resp, now) -> { throw new WebauthException("bad"); },
+                token -> {
+                    creations.incrementAndGet();
+                    return AUTHENTICATE.createAuthenticatedToken(token);
+                });
+
+        try {
+            manager.authenticate(
+                ReactiveUserDetailsRavenTokenCreatorTest.token("abc123"))
+                .block();
+            fail();
+        }
+        catch(RavenAuthenticationException e) {
+            assertThat(creations.get(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void testOtherTokensAreNotSupported() {
+        RavenReactiveAuthenticationManager manager =
+            new RavenReactiveAuthenticationManager(VALID, AUTHENTICATE);
+
+        assertThat(manager.authenticate(
+            new TestingAuthenticationToken("a", "b")).block(), nullValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTokenCreatorMustCreateAuthenticatedToken() {
+        new RavenReactiveAuthenticationManager(VALID, Mono::just)
+            .authenticate(
+                ReactiveUserDetailsRavenTokenCreatorTest.token("abc123"))
+            .block();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTokenCreatorMustCreateAToken() {
+        new RavenReactiveAuthenticationManager(VALID, token -> Mono.empty())
+            .authenticate(
+                ReactiveUserDetailsRavenTokenCreatorTest.token("abc123"))
+            .block();
+    }
+
+    @Test
+    public void testProviderMetricsRecordTokenCreation() {
+        RavenAuthenticationProvider provider = new RavenAuthenticationProvider(
+            VALID, token -> { throw new AssertionError("unused"); });
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+        provider.setMetrics(metrics);
+
+        RavenReactiveAuthenticationManager manager =
+            new RavenReactiveAuthenticationManager(provider, AUTHENTICATE);
+        assertThat(manager.getProvider(), sameInstance(provider));
+        assertThat(manager.getTokenCreator(), sameInstance(AUTHENTICATE));
+
+        RavenAuthenticationToken token =
+            ReactiveUserDetailsRavenTokenCreatorTest.token("abc123");
+        manager.authenticate(token).block();
+
+        assertThat(metrics.getCount(Stage.VALIDATION), equalTo(1L));
+        assertThat(metrics.getCount(Stage.TOKEN_CREATION), equalTo(1L));
+    }
+
+    /** A replay store which records the thread it's used on. */
+    private static final class ThreadRecordingReplayStore
+        implements ReplayStore {
+
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+
+        @Override
+        public boolean contains(ReplayKey key, Instant received) {
+            this.thread.set(Thread.currentThread());
+            return false;
+        }
+
+        @Override
+        public boolean add(ReplayKey key, Instant received) {
+            return true;
+        }
+    }
+
+    private static RavenReactiveAuthenticationManager managerWith(
+        ReplayStore replayStore) {
+
+        RavenAuthenticationProvider provider = new RavenAuthenticationProvider(
+            VALID, token -> { throw new AssertionError("unused"); });
+        provider.setReplayStore(replayStore);
+        return new RavenReactiveAuthenticationManager(provider, AUTHENTICATE);
+    }
+
+    @Test
+    public void testBlockingReplayStoreIsUsedOnValidationScheduler() {
+        ThreadRecordingReplayStore store = new ThreadRecordingReplayStore();
+        RavenReactiveAuthenticationManager manager = managerWith(store);
+        Scheduler scheduler = Schedulers.newSingle("raven-validation");
+        manager.setValidationScheduler(scheduler);
+        assertThat(manager.getValidationScheduler(), sameInstance(scheduler));
+
+        try {
+            Authentication auth = manager.authenticate(
+                ReactiveUserDetailsRavenTokenCreatorTest.token("abc123"))
+                .block();
+
+            assertThat(auth.isAuthenticated(), is(true));
+            assertThat(store.thread.get().getName(),
+                       startsWith("raven-validation"));
+        }
+        finally {
+            scheduler.dispose();
+        }
+    }
+
+    @Test
+    public void testInMemoryReplayCacheIsUsedOnSubscribingThread() {
+        InMemoryReplayCache cache = new InMemoryReplayCache(100, Duration.ofMinutes(1));
+        RavenReactiveAuthenticationManager manager = managerWith(cache);
+        Executor rejecting = task -> {
+            throw new RejectedExecutionException();
+        };
+        manager.setValidationScheduler(Schedulers.fromExecutor(rejecting));
+
+        Authentication auth = manager.authenticate(
+            ReactiveUserDetailsRavenTokenCreatorTest.token("abc123")).block();
+
+        assertThat(auth.isAuthenticated(), is(true));
+    }
+
+    @Test(expected = AuthenticationServiceException.class)
+    public void testRejectedValidationFailsLogin() {
+        RavenReactiveAuthenticationManager manager =
+            managerWith(new ThreadRecordingReplayStore());
+        manager.setValidationScheduler(Schedulers.fromExecutor(task -> {
+            throw new RejectedExecutionException();
+        }));
+
+        manager.authenticate(
+            ReactiveUserDetailsRavenTokenCreatorTest.token("abc123")).block();
+    }
+}
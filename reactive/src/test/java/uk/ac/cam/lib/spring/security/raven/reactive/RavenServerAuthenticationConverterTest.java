@@ -0,0 +1,165 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.mock.web.server.MockWebSession;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.web.server.savedrequest.WebSessionServerRequestCache;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationException;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.lib.spring.security.raven.issued.InMemoryIssuedRequestStore;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class RavenServerAuthenticationConverterTest {
+
+    static final Instant NOW = Instant.parse("2026-01-01T00:00:00Z");
+
+    private WebSessionServerRequestCache requestCache;
+    private RavenServerAuthenticationConverter converter;
+    private MockWebSession session;
+
+    static String response(String params) {
+        return "3!200!!20260101T000000Z!1!https://example.com/page!test0001!" +
+               "current!pwd!!36000!" + params + "!901!c2ln";
+    }
+
+    static MockServerHttpRequest.BaseBuilder<?> callback(String response) {
+        try {
+            return MockServerHttpRequest.method(HttpMethod.GET, URI.create(
+                "https://example.com/page?WLS-Response=" +
+                URLEncoder.encode(response, "UTF-8")));
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        this.requestCache = new WebSessionServerRequestCache();
+        this.converter = new RavenServerAuthenticationConverter(
+            RavenServerAuthenticationEntryPointTest.requestUrlCreator(),
+            this.requestCache, Clock.fixed(NOW, ZoneOffset.UTC),
+            RavenAuthenticationFilter.RESPONSE_PARAMETER_NAME);
+        this.session = new MockWebSession();
+    }
+
+    private MockServerWebExchange exchange(MockServerHttpRequest.BaseBuilder<?> request) {
+        return MockServerWebExchange.builder(request).session(this.session)
+            .build();
+    }
+
+    private void saveRequest(String uri) {
+        this.requestCache.saveRequest(exchange(MockServerHttpRequest.get(uri)
+            .accept(MediaType.TEXT_HTML))).block();
+    }
+
+    @Test
+    public void testHasResponse() {
+        assertThat(this.converter.hasResponse(exchange(callback("x"))),
+            is(true));
+        assertThat(this.converter.hasResponse(exchange(
+            MockServerHttpRequest.get("https://example.com/?a=b"))), is(false));
+    }
+
+    @Test
+    public void testConvertRecreatesRequestFromSavedUri() {
+        saveRequest("https://example.com/page");
+        MockServerWebExchange exchange = exchange(callback(response("")));
+
+        RavenAuthenticationToken token = (RavenAuthenticationToken)
+            this.converter.convert(exchange).block();
+
+        assertThat(token.isAuthenticated(), is(false));
+        assertThat(token.getPrincipal(), equalTo("test0001"));
+        assertThat(token.getResponseReceivedTime().get(), equalTo(NOW));
+        assertThat(token.getRavenRequest().get().get("url"),
+            equalTo("https://example.com/page"));
+        assertThat(exchange.getAttribute(
+                RavenAuthenticationFilter.RESPONSE_ATTRIBUTE),
+            instanceOf(WlsResponse.class));
+    }
+
+    @Test
+    public void testConvertFailsWithoutSavedRequest() {
+        try {
+            this.converter.convert(exchange(callback(response("")))).block();
+            fail();
+        }
+        catch(RavenAuthenticationException e) {
+            assertThat(e.getMessage(), containsString("not in ServerRequestCache"));
+        }
+    }
+
+    @Test(expected = BadCredentialsException.class)
+    public void testConvertRejectsMalformedResponse() {
+        this.converter.convert(exchange(callback("1!2!3"))).block();
+    }
+
+    @Test(expected = BadCredentialsException.class)
+    public void testConvertRejectsNonNumericStatus() {
+        this.converter.convert(exchange(callback(
+            response("").replace("!200!", "!abc!")))).block();
+    }
+
+    @Test(expected = BadCredentialsException.class)
+    public void testConvertRejectsOverlongResponse() {
+        this.converter.setMaxResponseLength(10);
+        assertThat(this.converter.getMaxResponseLength(), equalTo(10));
+        this.converter.convert(exchange(callback(response("")))).block();
+    }
+
+    @Test
+    public void testConvertUsesIssuedRequest() {
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(16, Duration.ofMinutes(1));
+        this.converter.setIssuedRequestStore(store);
+
+        WebauthRequest issued = new WebauthRequest();
+        issued.set("ver", "3");
+        issued.set("url", "https://example.com/issued");
+        issued.set("params", "nonce");
+        store.put("nonce", issued, NOW);
+
+        RavenAuthenticationToken token = (RavenAuthenticationToken)
+            this.converter.convert(exchange(callback(response("nonce"))))
+                .block();
+
+        assertThat(token.getRavenRequest().get().get("url"),
+            equalTo("https://example.com/issued"));
+    }
+
+    @Test
+    public void testConvertGivesRecreatedRequestTheResponseNonce() {
+        this.converter.setIssuedRequestStore(
+            new InMemoryIssuedRequestStore(16, Duration.ofMinutes(1)));
+        saveRequest("https://example.com/page");
+
+        RavenAuthenticationToken token = (RavenAuthenticationToken)
+            this.converter.convert(exchange(callback(response("nonce"))))
+                .block();
+
+        assertThat(token.getRavenRequest().get().get("url"),
+            equalTo("https://example.com/page"));
+        assertThat(token.getRavenRequest().get().get("params"),
+            equalTo("nonce"));
+    }
+}
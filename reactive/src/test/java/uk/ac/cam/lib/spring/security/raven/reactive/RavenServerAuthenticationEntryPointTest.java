@@ -0,0 +1,64 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.authentication.InsufficientAuthenticationException;
+import org.springframework.security.web.server.savedrequest.WebSessionServerRequestCache;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationEntryPoint;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator.ViewParamProducer;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class RavenServerAuthenticationEntryPointTest {
+
+    static DefaultRavenRequestCreator requestUrlCreator() {
+        return DefaultRavenRequestCreator.builder(
+            (ViewParamProducer)(param, request) -> request.getUrl()).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorRejectsNullEntryPoint() {
+        new RavenServerAuthenticationEntryPoint(null);
+    }
+
+    @Test
+    public void testCommenceSavesRequestAndRedirectsToRaven() {
+        WebSessionServerRequestCache requestCache =
+            new WebSessionServerRequestCache();
+        RavenServerAuthenticationEntryPoint ep =
+            new RavenServerAuthenticationEntryPoint(
+                new RavenAuthenticationEntryPoint(requestUrlCreator()),
+                requestCache);
+
+        MockServerWebExchange exchange = MockServerWebExchange.from(
+            MockServerHttpRequest.get("https://example.com/page?a=b")
+                .accept(MediaType.TEXT_HTML));
+
+        ep.commence(exchange, new InsufficientAuthenticationException("foo"))
+            .block();
+
+        assertThat(exchange.getResponse().getStatusCode(),
+            equalTo(HttpStatus.FOUND));
+
+        URI location = exchange.getResponse().getHeaders().getLocation();
+        assertThat(location.toString(), startsWith(
+            RavenAuthenticationEntryPoint.DEFAULT_RAVEN_AUTH_URL + "?ver=3&"));
+        assertThat(UriUtils.decode(UriComponentsBuilder.fromUri(location)
+                .build(true).getQueryParams().getFirst("url"),
+                StandardCharsets.UTF_8),
+            equalTo("https://example.com/page?a=b"));
+
+        assertThat(requestCache.getRedirectUri(exchange).block(),
+            equalTo(URI.create("/page?a=b")));
+    }
+}
@@ -0,0 +1,61 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.MapReactiveUserDetailsService;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.util.ArrayList;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ReactiveUserDetailsRavenTokenCreatorTest {
+
+    static RavenAuthenticationToken token(String principal) {
+        try {
+            return new RavenAuthenticationToken(
+                new WebauthRequest(),
+                WlsResponse.parse(RavenServerAuthenticationConverterTest
+                    .response("").replace("test0001", principal)),
+                RavenServerAuthenticationConverterTest.NOW);
+        }
+        catch(WebauthException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private final UserDetails user = User.withUsername("abc123")
+        .password("").roles("USER").build();
+
+    private final ReactiveUserDetailsRavenTokenCreator creator =
+        new ReactiveUserDetailsRavenTokenCreator(
+            new MapReactiveUserDetailsService(this.user));
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorRejectsNullService() {
+        new ReactiveUserDetailsRavenTokenCreator(null);
+    }
+
+    @Test
+    public void testCreatesTokenFromUserDetails() {
+        Authentication auth =
+            this.creator.createAuthenticatedToken(token("abc123")).block();
+
+        assertThat(auth.isAuthenticated(), is(true));
+        assertThat(auth.getPrincipal(), equalTo(this.user));
+        assertThat(new ArrayList<>(auth.getAuthorities()),
+            equalTo(new ArrayList<>(this.user.getAuthorities())));
+    }
+
+    @Test(expected = UsernameNotFoundException.class)
+    public void testUnknownUserIsNotFound() {
+        this.creator.createAuthenticatedToken(token("xyz999")).block();
+    }
+}
@@ -0,0 +1,70 @@
+package uk.ac.cam.lib.spring.security.raven.reactive;
+
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+
+import java.net.URI;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ServerRequestViewTest {
+
+    private static MockServerWebExchange exchange(String uri) {
+        MockServerWebExchange exchange = MockServerWebExchange.from(
+            MockServerHttpRequest.method(HttpMethod.POST, URI.create(uri))
+                .header("Accept", "text/html"));
+        exchange.getAttributes().put("attr", "value");
+        return exchange;
+    }
+
+    @Test
+    public void testViewOfCurrentRequest() {
+        ServerRequestView view = ServerRequestView.of(
+            exchange("https://example.com/a%20b?x=1&x=2&y=%C3%A9+f&z"));
+
+        assertThat(view.getMethod(), equalTo("POST"));
+        assertThat(view.getUrl(),
+            equalTo("https://example.com/a%20b?x=1&x=2&y=%C3%A9+f&z"));
+        assertThat(view.getParameter("x"), equalTo("1"));
+        assertThat(view.getParameterValues("x"), arrayContaining("1", "2"));
+        assertThat(view.getParameter("y"), equalTo("é f"));
+        assertThat(view.getParameter("z"), equalTo(""));
+        assertThat(view.getParameter("missing"), nullValue());
+        assertThat(view.getParameterMap().keySet(),
+            contains("x", "y", "z"));
+        assertThat(view.getHeader("Accept"), equalTo("text/html"));
+        assertThat(view.getAttribute("attr"), equalTo("value"));
+    }
+
+    @Test
+    public void testViewOfSavedRequestIsResolvedAgainstCurrentRequest() {
+        ServerRequestView view = ServerRequestView.of(
+            URI.create("/original?q=1"),
+            exchange("https://example.com/callback?WLS-Response=foo"));
+
+        assertThat(view.getMethod(), equalTo("GET"));
+        assertThat(view.getUrl(),
+            equalTo("https://example.com/original?q=1"));
+        assertThat(view.getParameterMap().keySet(), contains("q"));
+        assertThat(view.getParameter("WLS-Response"), nullValue());
+        assertThat(view.getHeader("Accept"), equalTo("text/html"));
+        assertThat(view.getAttribute("attr"), equalTo("value"));
+    }
+
+    @Test
+    public void testRequestWithoutQueryHasNoParameters() {
+        ServerRequestView view =
+            ServerRequestView.of(exchange("https://example.com/"));
+
+        assertThat(view.getParameterMap().isEmpty(), is(true));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testViewHasNoServletRequest() {
+        ServerRequestView.of(exchange("https://example.com/"))
+            .toServletRequest();
+    }
+}
@@ -0,0 +1,61 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.springframework.security.web.util.UrlUtils;
+import org.springframework.util.Assert;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+
+/**
+ * An {@link OriginalRequestView} of a live request.
+ */
+public final class HttpServletRequestView implements OriginalRequestView {
+
+    private final HttpServletRequest request;
+
+    public HttpServletRequestView(HttpServletRequest request) {
+        Assert.notNull(request);
+        this.request = request;
+    }
+
+    @Override
+    public String getMethod() {
+        return this.request.getMethod();
+    }
+
+    @Override
+    public String getUrl() {
+        return UrlUtils.buildFullRequestUrl(this.request);
+    }
+
+    @Override
+    public String getParameter(String name) {
+        return this.request.getParameter(name);
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        return this.request.getParameterValues(name);
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return this.request.getParameterMap();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return this.request.getHeader(name);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return this.request.getAttribute(name);
+    }
+
+    /** Returns the viewed request itself. */
+    @Override
+    public HttpServletRequest toServletRequest() {
+        return this.request;
+    }
+}
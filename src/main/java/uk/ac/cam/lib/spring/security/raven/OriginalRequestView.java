@@ -0,0 +1,59 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.springframework.security.web.savedrequest.SavedRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+
+/**
+ * A read-only view of the request which is being (or was) redirected to
+ * Raven, holding the parts of it a {@link RavenRequestCreator} can use.
+ *
+ * <p>When the entry point redirects a user to Raven this is a view of the
+ * current request ({@link HttpServletRequestView}). When the filter handles
+ * the callback it's a view of the original request in the
+ * {@link org.springframework.security.web.savedrequest.RequestCache}
+ * ({@link SavedRequestView}), so both see the same URL and parameters.
+ */
+public interface OriginalRequestView {
+
+    static OriginalRequestView of(HttpServletRequest request) {
+        return new HttpServletRequestView(request);
+    }
+
+    /**
+     * @param savedRequest The original request.
+     * @param currentRequest The request being handled, which provides
+     *                       attributes.
+     */
+    static OriginalRequestView of(SavedRequest savedRequest,
+                                  HttpServletRequest currentRequest) {
+        return new SavedRequestView(savedRequest, currentRequest);
+    }
+
+    String getMethod();
+
+    /** The full URL of the request, including its query string. */
+    String getUrl();
+
+    /** The first value of a parameter, or null if it has no values. */
+    String getParameter(String name);
+
+    String[] getParameterValues(String name);
+
+    Map<String, String[]> getParameterMap();
+
+    /** The first value of a header, or null if it has no values. */
+    String getHeader(String name);
+
+    /** An attribute of the request currently being handled. */
+    Object getAttribute(String name);
+
+    /**
+     * Get the request as an {@link HttpServletRequest}, for code which needs
+     * the servlet API. Views of saved requests create a
+     * {@link uk.ac.cam.lib.spring.security.raven.vedorised.SavedRequestAwareWrapper}
+     * the first time this is called.
+     */
+    HttpServletRequest toServletRequest();
+}
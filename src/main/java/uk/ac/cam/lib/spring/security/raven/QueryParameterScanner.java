@@ -0,0 +1,235 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds a single named parameter in a raw (undecoded) query string.
+ *
+ * <p>This is used to detect and extract the {@code WLS-Response} parameter.
+ * Detection runs for every request passing through
+ * {@link RavenAuthenticationFilter}, so {@link #isPresentIn(String)} makes a
+ * single pass over the query, decoding percent-escaped parameter names as it
+ * goes, without allocating. Only the query string is examined; request
+ * bodies are never read.
+ *
+ * <p>Parameter names are compared after percent-decoding them as UTF-8, as
+ * {@link org.springframework.web.util.UriUtils#decode(String, String)} would.
+ * Values are decoded as a servlet container would decode them, so {@code +} is
+ * a space.
+ */
+public final class QueryParameterScanner {
+
+    /**
+     * Raven responses are typically well under 2KB; the largest part is the
+     * return URL which the application controls.
+     */
+    public static final int DEFAULT_MAX_VALUE_LENGTH = 8192;
+
+    private final String name;
+    private final byte[] encodedName;
+    private final int maxValueLength;
+
+    public QueryParameterScanner(String name) {
+        this(name, DEFAULT_MAX_VALUE_LENGTH);
+    }
+
+    public QueryParameterScanner(String name, int maxValueLength) {
+        Assert.hasText(name);
+        Assert.isTrue(maxValueLength > 0, "maxValueLength must be positive");
+
+        this.name = name;
+        this.encodedName = name.getBytes(StandardCharsets.UTF_8);
+        this.maxValueLength = maxValueLength;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getMaxValueLength() {
+        return this.maxValueLength;
+    }
+
+    public QueryParameterScanner withMaxValueLength(int maxValueLength) {
+        return new QueryParameterScanner(this.name, maxValueLength);
+    }
+
+    /**
+     * @param query A raw query string, or null.
+     * @return true if the query contains the parameter, with or without a
+     *         value.
+     */
+    public boolean isPresentIn(String query) {
+        return query != null && indexOfValue(query) >= 0;
+    }
+
+    /**
+     * Get the decoded value of the first occurrence of the parameter.
+     *
+     * @param query A raw query string, or null.
+     * @return The value (empty if the parameter has no {@code =}), or null if
+     *         the parameter is not present.
+     * @throws IllegalArgumentException if the raw value is longer than the
+     *         maximum value length, or is not correctly percent-encoded.
+     */
+    public String extractFrom(String query) {
+        if(query == null)
+            return null;
+
+        int start = indexOfValue(query);
+        if(start < 0)
+            return null;
+
+        int end = query.indexOf('&', start);
+        if(end < 0)
+            end = query.length();
+
+        if(end - start > this.maxValueLength) {
+            throw new IllegalArgumentException(String.format(
+                "Value of %s is longer than %d characters", this.name,
+                this.maxValueLength));
+        }
+
+        return decodeValue(query, start, end);
+    }
+
+    /**
+     * Get the index of the start of the first value of our parameter, or -1 if
+     * it's not present.
+     */
+    private int indexOfValue(String query) {
+        int length = query.length();
+        int pairStart = 0;
+
+        while(pairStart <= length) {
+            int nameEnd = pairStart;
+            char c = 0;
+            while(nameEnd < length &&
+                  (c = query.charAt(nameEnd)) != '=' && c != '&') {
+                nameEnd++;
+            }
+
+            if(nameMatches(query, pairStart, nameEnd)) {
+                return nameEnd < length && c == '=' ? nameEnd + 1 : nameEnd;
+            }
+
+            int pairEnd = nameEnd;
+            while(pairEnd < length && query.charAt(pairEnd) != '&')
+                pairEnd++;
+            pairStart = pairEnd + 1;
+        }
+        return -1;
+    }
+
+    private boolean nameMatches(String query, int start, int end) {
+        byte[] expected = this.encodedName;
+        int matched = 0;
+
+        for(int i = start; i < end; i++) {
+            char c = query.charAt(i);
+
+            if(c == '%') {
+                int b = decodeEscape(query, i, end);
+                if(b < 0 || matched == expected.length ||
+                   expected[matched++] != (byte)b) {
+                    return false;
+                }
+                i += 2;
+            }
+            else if(c < 0x80) {
+                if(matched == expected.length || expected[matched++] != c)
+                    return false;
+            }
+            else {
+                // Raw non-ASCII characters shouldn't appear in a query string,
+                // but compare them by their UTF-8 encoding if they do.
+                int codePoint = Character.codePointAt(query, i);
+                if(Character.isSupplementaryCodePoint(codePoint))
+                    i++;
+
+                matched = matchUtf8(codePoint, expected, matched);
+                if(matched < 0)
+                    return false;
+            }
+        }
+        return matched == expected.length;
+    }
+
+    private static int matchUtf8(int codePoint, byte[] expected, int offset) {
+        int byteCount = codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+        if(offset + byteCount > expected.length)
+            return -1;
+
+        int lead = byteCount == 2 ? 0xc0 : byteCount == 3 ? 0xe0 : 0xf0;
+        int shift = 6 * (byteCount - 1);
+        if(expected[offset++] != (byte)(lead | (codePoint >> shift)))
+            return -1;
+
+        while(shift > 0) {
+            shift -= 6;
+            if(expected[offset++] != (byte)(0x80 | ((codePoint >> shift) & 0x3f)))
+                return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * Decode the %XX escape at {@code i}, returning -1 if it's malformed.
+     */
+    private static int decodeEscape(String s, int i, int end) {
+        if(i + 2 >= end)
+            return -1;
+
+        int hi = Character.digit(s.charAt(i + 1), 16);
+        int lo = Character.digit(s.charAt(i + 2), 16);
+        if(hi < 0 || lo < 0)
+            return -1;
+
+        return (hi << 4) | lo;
+    }
+
+    private String decodeValue(String query, int start, int end) {
+        boolean needsDecoding = false;
+        for(int i = start; i < end && !needsDecoding; i++) {
+            char c = query.charAt(i);
+            needsDecoding = c == '%' || c == '+';
+        }
+        if(!needsDecoding)
+            return query.substring(start, end);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+        for(int i = start; i < end; i++) {
+            char c = query.charAt(i);
+
+            if(c == '%') {
+                int b = decodeEscape(query, i, end);
+                if(b < 0) {
+                    throw new IllegalArgumentException(
+                        "Invalid percent-encoding in value of " + this.name);
+                }
+                bytes.write(b);
+                i += 2;
+            }
+            else if(c == '+') {
+                bytes.write(' ');
+            }
+            else if(c < 0x80) {
+                bytes.write(c);
+            }
+            else {
+                int codePoint = query.codePointAt(i);
+                if(Character.isSupplementaryCodePoint(codePoint))
+                    i++;
+
+                byte[] encoded = new String(Character.toChars(codePoint))
+                    .getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
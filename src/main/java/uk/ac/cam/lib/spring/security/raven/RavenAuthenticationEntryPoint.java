@@ -4,6 +4,7 @@ import org.springframework.security.core.AuthenticationException;
 import org.springframework.security.web.AuthenticationEntryPoint;
 import org.springframework.util.Assert;
 import org.springframework.web.util.UriComponentsBuilder;
+import uk.ac.cam.lib.spring.security.raven.issued.IssuedRequestStore;
 import uk.ac.cam.ucs.webauth.WebauthRequest;
 
 import javax.servlet.ServletException;
@@ -11,6 +12,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 
 
 public class RavenAuthenticationEntryPoint implements AuthenticationEntryPoint {
@@ -18,9 +26,31 @@ public class RavenAuthenticationEntryPoint implements AuthenticationEntryPoint {
     public static final URI DEFAULT_RAVEN_AUTH_URL = URI.create(
         "https://raven.cam.ac.uk/auth/authenticate.html");
 
+    /**
+     * The names of the fields of a Raven authentication request, in the order
+     * they appear in login URLs. {@code date} is always last.
+     */
+    public static final List<String> REQUEST_FIELDS = Collections.unmodifiableList(
+        Arrays.asList("ver", "url", "desc", "aauth", "iact", "msg", "params",
+                      "skew", "fail", "date"));
+
+    private static final int DATE_FIELD = REQUEST_FIELDS.size() - 1;
+    private static final int PARAMS_FIELD = REQUEST_FIELDS.indexOf("params");
+
+    private static final int NONCE_BYTES = 16;
+    private static final SecureRandom NONCE_RANDOM = new SecureRandom();
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
     private final URI ravenAuthUri;
     private final RavenRequestCreator requestCreator;
 
+    private final String loginUrlBase;
+    private final String loginUrlFragment;
+    private RavenLoginUrlCache loginUrlCache;
+    private IssuedRequestStore issuedRequestStore;
+    private Clock clock = Clock.systemUTC();
+
     public RavenAuthenticationEntryPoint(RavenRequestCreator requestCreator) {
         this(requestCreator, DEFAULT_RAVEN_AUTH_URL);
     }
@@ -32,6 +62,14 @@ public class RavenAuthenticationEntryPoint implements AuthenticationEntryPoint {
 
         this.requestCreator = requestCreator;
         this.ravenAuthUri = ravenAuthUri;
+
+        this.loginUrlBase = UriComponentsBuilder.fromUri(ravenAuthUri)
+            .replaceQuery(null)
+            .fragment(null)
+            .build(true)
+            .toUriString() + "?";
+        this.loginUrlFragment = ravenAuthUri.getRawFragment() == null
+            ? "" : "#" + ravenAuthUri.getRawFragment();
     }
 
     public RavenRequestCreator getRequestCreator() {
@@ -42,22 +80,234 @@ public class RavenAuthenticationEntryPoint implements AuthenticationEntryPoint {
         return this.ravenAuthUri;
     }
 
+    /**
+     * Reuse the login URLs generated for previous requests with the same
+     * values (other than {@code date}).
+     *
+     * @param loginUrlCache The cache to use, or null to generate every URL
+     *                      (the default).
+     */
+    public void setLoginUrlCache(RavenLoginUrlCache loginUrlCache) {
+        this.loginUrlCache = loginUrlCache;
+    }
+
+    public RavenLoginUrlCache getLoginUrlCache() {
+        return this.loginUrlCache;
+    }
+
+    /**
+     * Remember the requests sent to Raven, so that the
+     * {@link RavenAuthenticationFilter} receiving the response can use them
+     * rather than creating them again.
+     *
+     * <p>Requests whose {@code params} the {@link RavenRequestCreator} leaves
+     * empty are given a random nonce as their {@code params}, and stored under
+     * it. Requests which already have {@code params}, or have fields which
+     * aren't part of the protocol, are not stored. The
+     * filter must be given the same store.
+     *
+     * @param issuedRequestStore The store to use, or null to recreate every
+     *                           request when its response arrives (the
+     *                           default).
+     */
+    public void setIssuedRequestStore(IssuedRequestStore issuedRequestStore) {
+        this.issuedRequestStore = issuedRequestStore;
+    }
+
+    public IssuedRequestStore getIssuedRequestStore() {
+        return this.issuedRequestStore;
+    }
+
+    /**
+     * Set the clock used to timestamp requests in the
+     * {@link #setIssuedRequestStore(IssuedRequestStore) issued request store}.
+     */
+    public void setClock(Clock clock) {
+        Assert.notNull(clock);
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return this.clock;
+    }
+
     @Override
     public void commence(
         HttpServletRequest request, HttpServletResponse response,
         AuthenticationException authException)
         throws IOException, ServletException {
 
-        WebauthRequest ravenRequest = getRequestCreator()
-            .createLoginRequest(request);
+        response.sendRedirect(getLoginUrl(
+            getRequestCreator().createLoginRequest(request)));
+    }
 
-        response.sendRedirect(getLoginUrl(ravenRequest).toString());
+    /**
+     * Get the URL to redirect the user to in order to log in, as
+     * {@link #commence(HttpServletRequest, HttpServletResponse, AuthenticationException)}
+     * does. This allows entry points which don't use the servlet API to share
+     * this entry point's configuration.
+     *
+     * @param request A view of the request which requires authentication.
+     */
+    public String getLoginUrl(OriginalRequestView request) {
+        return getLoginUrl(getRequestCreator().createLoginRequest(request));
     }
 
-    private URI getLoginUrl(WebauthRequest request) {
-        return UriComponentsBuilder.fromUri(getRavenAuthUri())
-            .replaceQuery(request.toQString().replace("+", "%20"))
-            .build(true)
-            .toUri();
+    private String getLoginUrl(WebauthRequest ravenRequest) {
+        IssuedRequestStore store = this.issuedRequestStore;
+        boolean hasNonce = false;
+        if(store != null &&
+           ravenRequest.get(REQUEST_FIELDS.get(PARAMS_FIELD)) == null) {
+
+            String nonce = newNonce();
+            WebauthRequest issued = withParams(ravenRequest, nonce);
+            if(issued != null) {
+                ravenRequest = issued;
+                store.put(nonce, ravenRequest, this.clock.instant());
+                hasNonce = true;
+            }
+        }
+
+        return getLoginUrl(ravenRequest, hasNonce);
+    }
+
+    /**
+     * Copy a request, setting its {@code params}. Requests created by a
+     * {@link RavenRequestCreator} may be shared, so are never modified.
+     *
+     * @return The copy, or null if the request has fields which aren't part
+     *         of the protocol, as they can't be copied.
+     */
+    public static WebauthRequest withParams(WebauthRequest request, String params) {
+        WebauthRequest copy = new WebauthRequest();
+        int fieldCount = 0;
+        for(String field : REQUEST_FIELDS) {
+            String value = request.get(field);
+            if(value != null) {
+                copy.set(field, value);
+                fieldCount++;
+            }
+        }
+        if(fieldCount != request.length())
+            return null;
+
+        copy.set(REQUEST_FIELDS.get(PARAMS_FIELD), params);
+        return copy;
+    }
+
+    private static String newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        NONCE_RANDOM.nextBytes(nonce);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(nonce);
+    }
+
+    /**
+     * Build the login URL by appending the request's fields to the Raven auth
+     * URL.
+     *
+     * <p>Values are encoded as by {@link WebauthRequest#toQString()}, except
+     * that spaces are encoded as {@code %20} rather than {@code +}.
+     *
+     * @param hasNonce Whether {@code params} holds a nonce, in which case it
+     *                 is appended (before {@code date}) rather than being
+     *                 part of the cached URL.
+     */
+    private String getLoginUrl(WebauthRequest request, boolean hasNonce) {
+        String[] values = new String[DATE_FIELD];
+        int fieldCount = 0;
+        for(int i = 0; i < values.length; i++) {
+            values[i] = request.get(REQUEST_FIELDS.get(i));
+            if(values[i] != null)
+                fieldCount++;
+        }
+
+        String nonce = null;
+        if(hasNonce) {
+            nonce = values[PARAMS_FIELD];
+            values[PARAMS_FIELD] = null;
+        }
+
+        String date = request.get(REQUEST_FIELDS.get(DATE_FIELD));
+        if(date != null)
+            fieldCount++;
+
+        // Requests with fields that aren't part of the protocol are encoded
+        // by the request itself, so that the extra fields are preserved.
+        if(fieldCount != request.length()) {
+            return this.loginUrlBase +
+                request.toQString().replace("+", "%20") + this.loginUrlFragment;
+        }
+
+        RavenLoginUrlCache cache = this.loginUrlCache;
+        List<String> key = cache == null ? null : Arrays.asList(values);
+        String url = cache == null ? null : cache.get(key);
+
+        if(url == null) {
+            StringBuilder builder = new StringBuilder(256)
+                .append(this.loginUrlBase);
+            for(int i = 0; i < values.length; i++)
+                appendField(builder, REQUEST_FIELDS.get(i), values[i]);
+            url = builder.toString();
+
+            if(cache != null)
+                cache.put(key, url);
+        }
+
+        if(nonce == null && date == null && this.loginUrlFragment.isEmpty())
+            return url;
+
+        StringBuilder builder = new StringBuilder(
+            url.length() + this.loginUrlFragment.length() + 64).append(url);
+        appendField(builder, REQUEST_FIELDS.get(PARAMS_FIELD), nonce);
+        appendField(builder, REQUEST_FIELDS.get(DATE_FIELD), date);
+        return builder.append(this.loginUrlFragment).toString();
+    }
+
+    private static void appendField(
+        StringBuilder url, String name, String value) {
+
+        if(value == null)
+            return;
+
+        if(url.charAt(url.length() - 1) != '?')
+            url.append('&');
+        url.append(name).append('=');
+        appendEncoded(url, value);
+    }
+
+    /**
+     * Percent-encode a value as UTF-8, leaving the same characters unencoded
+     * as {@link java.net.URLEncoder}.
+     */
+    private static void appendEncoded(StringBuilder url, String value) {
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+               (c >= '0' && c <= '9') ||
+               c == '.' || c == '-' || c == '*' || c == '_') {
+                url.append(c);
+            }
+            else if(c < 0x80) {
+                appendEscape(url, c);
+            }
+            else {
+                int end = i + 1;
+                if(Character.isHighSurrogate(c) && end < value.length() &&
+                   Character.isLowSurrogate(value.charAt(end))) {
+                    end++;
+                }
+
+                for(byte b : value.substring(i, end)
+                    .getBytes(StandardCharsets.UTF_8)) {
+                    appendEscape(url, b & 0xff);
+                }
+                i = end - 1;
+            }
+        }
+    }
+
+    private static void appendEscape(StringBuilder url, int b) {
+        url.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
     }
 }
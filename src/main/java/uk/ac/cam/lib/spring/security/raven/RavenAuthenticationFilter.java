@@ -4,35 +4,39 @@ import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.authentication.AbstractAuthenticationProcessingFilter;
-import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
 import org.springframework.security.web.savedrequest.RequestCache;
 import org.springframework.security.web.util.matcher.AndRequestMatcher;
 import org.springframework.security.web.util.matcher.AnyRequestMatcher;
-import org.springframework.security.web.util.matcher.RegexRequestMatcher;
 import org.springframework.security.web.util.matcher.RequestMatcher;
 import org.springframework.util.Assert;
-import org.springframework.util.StreamUtils;
-import org.springframework.web.bind.ServletRequestUtils;
-import org.springframework.web.util.UriUtils;
-import uk.ac.cam.lib.spring.security.raven.vedorised.SavedRequestAwareWrapper;
+import uk.ac.cam.lib.spring.security.raven.admission.AdmissionController;
+import uk.ac.cam.lib.spring.security.raven.concurrent.SecurityContextHandOff;
+import uk.ac.cam.lib.spring.security.raven.concurrent.VirtualThreads;
+import uk.ac.cam.lib.spring.security.raven.issued.IssuedRequestStore;
+import uk.ac.cam.lib.spring.security.raven.metrics.NoOpRavenMetrics;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics.Stage;
+import uk.ac.cam.lib.spring.security.raven.validation.ResponsePreValidator;
 import uk.ac.cam.ucs.webauth.WebauthException;
 import uk.ac.cam.ucs.webauth.WebauthRequest;
 import uk.ac.cam.ucs.webauth.WebauthResponse;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.time.Clock;
 import java.time.Instant;
-import java.time.OffsetDateTime;
-import java.time.temporal.ChronoField;
-import java.time.temporal.TemporalField;
-import java.util.Arrays;
 import java.util.Optional;
-import java.util.regex.Pattern;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Intercepts redirected requests from the Raven WLS which contain
@@ -40,16 +44,52 @@ import java.util.regex.Pattern;
  * {@link RavenAuthenticationToken} is created and passed on to our
  * {@link AuthenticationManager} to be checked for validity, presumably by an
  * instance of {@link RavenAuthenticationProvider}.
+ *
+ * <p>Callbacks are normally handled on the container's thread. With a
+ * {@link #setCallbackExecutor(Executor) callback executor} they're handled
+ * asynchronously instead, so the container's thread isn't held while the
+ * response is validated and the user's details are looked up.
  */
 public class RavenAuthenticationFilter
     extends AbstractAuthenticationProcessingFilter {
 
     public static final String RESPONSE_PARAMETER_NAME = "WLS-Response";
 
+    /** {@code 429 Too Many Requests}, which Servlet 3.1 doesn't define. */
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * The request attribute holding the parsed {@link WlsResponse} while
+     * the original request is looked up, so that a {@link RequestCache} can
+     * use it without parsing it again.
+     */
+    public static final String RESPONSE_ATTRIBUTE =
+        RavenAuthenticationFilter.class.getName() + ".RESPONSE";
+
+    /**
+     * Marks a request which {@link #doFilter} has already found to be a
+     * callback, so super's doFilter doesn't scan its query string again.
+     */
+    private static final String MATCHED_ATTRIBUTE =
+        RavenAuthenticationFilter.class.getName() + ".MATCHED";
+
+    /**
+     * Holds the {@link AsyncOutcome} of a callback handled on the callback
+     * executor, until it's dispatched back to the container.
+     */
+    private static final String ASYNC_OUTCOME_ATTRIBUTE =
+        RavenAuthenticationFilter.class.getName() + ".ASYNC_OUTCOME";
+
     private final RequestCache requestCache;
     private final RavenRequestCreator ravenRequestCreator;
     private final String responseParameterName;
     private final Clock clock;
+    private QueryParameterScanner responseParameter;
+    private RavenMetrics metrics = NoOpRavenMetrics.INSTANCE;
+    private IssuedRequestStore issuedRequestStore;
+    private Executor callbackExecutor;
+    private AdmissionController admissionController;
+    private ResponsePreValidator preValidator;
 
     public RavenAuthenticationFilter(
         AuthenticationManager authenticationManager,
@@ -83,6 +123,8 @@ public class RavenAuthenticationFilter
         this.requestCache = requestCache;
         this.clock = clock;
         this.responseParameterName = responseParameterName;
+        this.responseParameter =
+            new QueryParameterScanner(responseParameterName);
     }
 
     @Override
@@ -95,24 +137,134 @@ public class RavenAuthenticationFilter
     static RequestMatcher queryContainsResponseParamRequestMatcher(
         String responseParameterName) {
 
-        return r -> Optional.ofNullable(r.getQueryString())
-            .map(query -> Arrays.stream(query.split("&"))
-                .map(p -> {
-                    try {
-                        return UriUtils.decode(p.split("=", 2)[0], "UTF-8");
-                    }
-                    catch(UnsupportedEncodingException e) {
-                        throw new AssertionError("Won't happen", e);
-                    }
-                })
-                .anyMatch(p -> p.equals(responseParameterName))
-            ).orElse(false);
+        QueryParameterScanner scanner =
+            new QueryParameterScanner(responseParameterName);
+
+        return r -> scanner.isPresentIn(r.getQueryString());
     }
 
     public String getResponseParameterName() {
         return this.responseParameterName;
     }
 
+    /**
+     * Set the maximum length of the (raw) response parameter value. Requests
+     * with longer values are rejected without being parsed. Defaults to
+     * {@link QueryParameterScanner#DEFAULT_MAX_VALUE_LENGTH}.
+     */
+    public void setMaxResponseLength(int maxResponseLength) {
+        this.responseParameter =
+            this.responseParameter.withMaxValueLength(maxResponseLength);
+    }
+
+    public int getMaxResponseLength() {
+        return this.responseParameter.getMaxValueLength();
+    }
+
+    /**
+     * Set the receiver of login timings and outcomes. Defaults to
+     * {@link NoOpRavenMetrics}.
+     */
+    public void setMetrics(RavenMetrics metrics) {
+        Assert.notNull(metrics);
+        this.metrics = metrics;
+    }
+
+    public RavenMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Use the Raven requests remembered by the
+     * {@link RavenAuthenticationEntryPoint} rather than creating them again
+     * from the original request.
+     *
+     * <p>The request is looked up by the response's {@code params}. If it
+     * isn't found, the request is recreated as usual and given the
+     * response's {@code params}, as the entry point gave the request it sent.
+     *
+     * @param issuedRequestStore The store the entry point uses, or null to
+     *                           always recreate requests (the default).
+     */
+    public void setIssuedRequestStore(IssuedRequestStore issuedRequestStore) {
+        this.issuedRequestStore = issuedRequestStore;
+    }
+
+    public IssuedRequestStore getIssuedRequestStore() {
+        return this.issuedRequestStore;
+    }
+
+    /**
+     * Check responses' fields before the original request is looked up, so
+     * responses which can't be valid are rejected without reading the
+     * session, recreating the request or verifying a signature.
+     *
+     * @param preValidator The pre-validator, or null to leave all checks to
+     *                     the provider (the default).
+     * @see ResponsePreValidator#forValidator
+     */
+    public void setPreValidator(ResponsePreValidator preValidator) {
+        this.preValidator = preValidator;
+    }
+
+    public ResponsePreValidator getPreValidator() {
+        return this.preValidator;
+    }
+
+    /**
+     * Limit the rate at which callbacks are handled. Callbacks which aren't
+     * admitted get an empty {@code 429 Too Many Requests} response before
+     * their response is parsed, without invoking the failure handler.
+     *
+     * <p>Clients are identified by {@link HttpServletRequest#getRemoteAddr()},
+     * so behind a proxy the container must be configured to report the
+     * client's address (e.g. Tomcat's {@code RemoteIpValve}).
+     *
+     * @param admissionController The controller, or null to handle every
+     *                            callback (the default).
+     * @see uk.ac.cam.lib.spring.security.raven.admission.TokenBucketAdmissionController
+     */
+    public void setAdmissionController(
+        AdmissionController admissionController) {
+
+        this.admissionController = admissionController;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return this.admissionController;
+    }
+
+    /**
+     * Handle callbacks asynchronously (with the Servlet 3 async API) on
+     * threads from an executor, rather than on the container's thread. This
+     * is intended for an executor of virtual threads (see
+     * {@link VirtualThreads#newExecutor(String)}), which can wait on slow
+     * {@link AuthenticatedRavenTokenCreator} lookups in far greater numbers
+     * than the container's pool.
+     *
+     * <p>The filter and any filters before it must support async requests;
+     * callbacks of requests which don't are handled synchronously. The
+     * response is validated and the user looked up on the executor's thread
+     * (with an empty security context, see {@link SecurityContextHandOff}),
+     * and the request is then {@link AsyncContext#dispatch() dispatched} back
+     * to the container, which invokes the success or failure handler. The
+     * filter chain must therefore also be mapped for {@code ASYNC}
+     * dispatches (as Spring Security's initializers map it), so that the
+     * {@code SecurityContextPersistenceFilter} saves the new security context
+     * on the container's thread as usual. If the executor rejects a callback
+     * it's handled on the container's thread.
+     *
+     * @param callbackExecutor The executor, or null to handle callbacks on the
+     *                         container's thread (the default).
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public Executor getCallbackExecutor() {
+        return this.callbackExecutor;
+    }
+
     public RequestCache getRequestCache() {
         return this.requestCache;
     }
@@ -131,9 +283,9 @@ public class RavenAuthenticationFilter
      *
      * @param currentRequest
      * @param currentResponse
-     * @return The original request.
+     * @return A view of the original request.
      */
-    private Optional<HttpServletRequest> getInterceptedRequest(
+    private Optional<OriginalRequestView> getInterceptedRequest(
         HttpServletRequest currentRequest,
         HttpServletResponse currentResponse) {
 
@@ -142,12 +294,23 @@ public class RavenAuthenticationFilter
         // handler redirecting to the original page.
         return Optional.ofNullable(getRequestCache()
                 .getRequest(currentRequest, currentResponse))
-            .map(sr -> new SavedRequestAwareWrapper(sr, currentRequest));
+            .map(sr -> OriginalRequestView.of(sr, currentRequest));
     }
 
+    /**
+     * Get the auth response from the request's query string. Only the query
+     * string is considered, so a POST body is never parsed.
+     */
     private String getAuthResponse(HttpServletRequest request) {
-        String response = ServletRequestUtils.getStringParameter(
-            request, this.getResponseParameterName(), null);
+        String response;
+        try {
+            response = this.responseParameter.extractFrom(
+                request.getQueryString());
+        }
+        catch(IllegalArgumentException e) {
+            throw new BadCredentialsException(
+                "Invalid " + this.getResponseParameterName() + " parameter", e);
+        }
 
         if(response == null)
             throw new BadCredentialsException(
@@ -157,30 +320,220 @@ public class RavenAuthenticationFilter
         return response;
     }
 
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res,
+                         FilterChain chain)
+        throws IOException, ServletException {
+
+        HttpServletRequest request = (HttpServletRequest)req;
+        HttpServletResponse response = (HttpServletResponse)res;
+
+        Object outcome = request.getAttribute(ASYNC_OUTCOME_ATTRIBUTE);
+        if(outcome != null &&
+           request.getDispatcherType() == DispatcherType.ASYNC) {
+            request.removeAttribute(ASYNC_OUTCOME_ATTRIBUTE);
+            finishAsync(request, response, chain, (AsyncOutcome)outcome);
+            return;
+        }
+
+        Executor executor = this.callbackExecutor;
+        AdmissionController admission = this.admissionController;
+
+        if(executor == null && admission == null) {
+            super.doFilter(req, res, chain);
+            return;
+        }
+
+        // Match once here; super.doFilter() then skips its own check
+        if(!requiresAuthentication(request, response)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        if(admission != null && !admission.tryAdmit(
+            request.getRemoteAddr(), getClock().instant())) {
+            if(logger.isDebugEnabled())
+                logger.debug("Callback from " + request.getRemoteAddr() +
+                             " not admitted");
+            response.setStatus(SC_TOO_MANY_REQUESTS);
+            response.setHeader("Retry-After", "1");
+            response.setContentLength(0);
+            return;
+        }
+
+        request.setAttribute(MATCHED_ATTRIBUTE, Boolean.TRUE);
+
+        if(executor == null || !request.isAsyncSupported()) {
+            super.doFilter(req, res, chain);
+            return;
+        }
+
+        AsyncContext async = request.startAsync(request, response);
+        Runnable callback = SecurityContextHandOff.wrap(
+            SecurityContextHolder.createEmptyContext(),
+            () -> handleAsync(request, response, chain, async));
+        try {
+            executor.execute(callback);
+        }
+        catch(RejectedExecutionException e) {
+            logger.warn("Callback executor rejected callback; handling it " +
+                        "on the container's thread", e);
+            callback.run();
+        }
+    }
+
+    private void handleAsync(
+        HttpServletRequest request, HttpServletResponse response,
+        FilterChain chain, AsyncContext async) {
+
+        // Once dispatched, the request belongs to the container's thread
+        AsyncOutcome outcome = new AsyncOutcome(async);
+        request.setAttribute(ASYNC_OUTCOME_ATTRIBUTE, outcome);
+        try {
+            super.doFilter(request, response, chain);
+        }
+        catch(IOException | ServletException | RuntimeException e) {
+            logger.error("Failed to handle Raven callback", e);
+            if(!outcome.isDispatched() && !response.isCommitted()) {
+                try {
+                    response.sendError(
+                        HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+                catch(IOException ignored) {
+                    // The client has probably gone
+                }
+            }
+        }
+        finally {
+            SecurityContextHolder.clearContext();
+            if(!outcome.isDispatched()) {
+                request.removeAttribute(ASYNC_OUTCOME_ATTRIBUTE);
+                async.complete();
+            }
+        }
+    }
+
+    /**
+     * Invoke the success or failure handler for a callback handled on the
+     * executor, now the container has dispatched it back to this filter.
+     */
+    private void finishAsync(
+        HttpServletRequest request, HttpServletResponse response,
+        FilterChain chain, AsyncOutcome outcome)
+        throws IOException, ServletException {
+
+        if(outcome.authentication != null) {
+            super.successfulAuthentication(
+                request, response, chain, outcome.authentication);
+        }
+        else {
+            super.unsuccessfulAuthentication(
+                request, response, outcome.failure);
+        }
+    }
+
+    @Override
+    protected boolean requiresAuthentication(
+        HttpServletRequest request, HttpServletResponse response) {
+
+        if(request.getAttribute(MATCHED_ATTRIBUTE) != null) {
+            request.removeAttribute(MATCHED_ATTRIBUTE);
+            return true;
+        }
+
+        long start = System.nanoTime();
+        try {
+            return super.requiresAuthentication(request, response);
+        }
+        finally {
+            this.metrics.recordStage(
+                Stage.QUERY_DETECTION, System.nanoTime() - start);
+        }
+    }
+
     @Override
     public Authentication attemptAuthentication(
         HttpServletRequest request,
         HttpServletResponse response)
         throws AuthenticationException, IOException, ServletException {
 
+        long start = System.nanoTime();
+        try {
+            return this.authenticate(request, response);
+        }
+        finally {
+            this.metrics.recordStage(
+                Stage.CALLBACK, System.nanoTime() - start);
+        }
+    }
+
+    private Authentication authenticate(
+        HttpServletRequest request, HttpServletResponse response) {
+
+        RavenMetrics metrics = this.metrics;
         Instant now = getClock().instant();
 
-        WebauthResponse authResponse;
+        long start = System.nanoTime();
+        WlsResponse authResponse;
         try {
-            authResponse = new WebauthResponse(
+            authResponse = WlsResponse.parse(
                 getAuthResponse(request));
-        } catch (WebauthException e) {
+
+            // Reject responses without a numeric version and status before
+            // looking up the original request.
+            authResponse.getVersion();
+            authResponse.getStatus();
+        } catch (WebauthException | NumberFormatException e) {
             throw new BadCredentialsException(
                 "Invalid " + this.getResponseParameterName() + " parameter", e);
         }
+        finally {
+            metrics.recordStage(
+                Stage.RESPONSE_PARSING, System.nanoTime() - start);
+        }
+
+        ResponsePreValidator preValidator = this.preValidator;
+        if(preValidator != null) {
+            start = System.nanoTime();
+            try {
+                preValidator.check(authResponse, now);
+            }
+            finally {
+                metrics.recordStage(
+                    Stage.PRE_VALIDATION, System.nanoTime() - start);
+            }
+        }
 
-        HttpServletRequest originalRequest =
-            getInterceptedRequest(request, response)
-                .orElseThrow(() -> new RavenAuthenticationException(
-                    "Original request not in RequestCache"));
+        request.setAttribute(RESPONSE_ATTRIBUTE, authResponse);
 
-        WebauthRequest authRequest = getRavenRequestCreator()
-            .createLoginRequest(originalRequest);
+        IssuedRequestStore store = this.issuedRequestStore;
+        String nonce = store == null ? null : authResponse.getParams();
+        if(nonce != null && nonce.isEmpty())
+            nonce = null;
+
+        WebauthRequest authRequest = null;
+        if(nonce != null) {
+            start = System.nanoTime();
+            try {
+                authRequest = store.take(nonce, now);
+            }
+            finally {
+                metrics.recordStage(
+                    Stage.REQUEST_RECONSTRUCTION, System.nanoTime() - start);
+            }
+        }
+
+        if(authRequest == null) {
+            authRequest = recreateRequest(request, response);
+
+            if(nonce != null && authRequest != null &&
+               authRequest.get("params") == null) {
+                WebauthRequest issued = RavenAuthenticationEntryPoint
+                    .withParams(authRequest, nonce);
+                if(issued != null)
+                    authRequest = issued;
+            }
+        }
 
         if(authRequest == null)
             throw new IllegalStateException(
@@ -189,4 +542,113 @@ public class RavenAuthenticationFilter
         return this.getAuthenticationManager().authenticate(
             new RavenAuthenticationToken(authRequest, authResponse, now));
     }
+
+    private WebauthRequest recreateRequest(
+        HttpServletRequest request, HttpServletResponse response) {
+
+        RavenMetrics metrics = this.metrics;
+
+        long start = System.nanoTime();
+        Optional<OriginalRequestView> interceptedRequest;
+        try {
+            interceptedRequest = getInterceptedRequest(request, response);
+        }
+        finally {
+            metrics.recordStage(
+                Stage.REQUEST_CACHE_LOOKUP, System.nanoTime() - start);
+        }
+
+        OriginalRequestView originalRequest = interceptedRequest
+            .orElseThrow(() -> new RavenAuthenticationException(
+                "Original request not in RequestCache"));
+
+        start = System.nanoTime();
+        try {
+            return getRavenRequestCreator()
+                .createLoginRequest(originalRequest);
+        }
+        finally {
+            metrics.recordStage(
+                Stage.REQUEST_RECONSTRUCTION, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    protected void successfulAuthentication(
+        HttpServletRequest request, HttpServletResponse response,
+        FilterChain chain, Authentication authResult)
+        throws IOException, ServletException {
+
+        this.metrics.recordSuccess();
+
+        AsyncOutcome outcome = asyncOutcome(request);
+        if(outcome != null) {
+            // The SecurityContextPersistenceFilter of the request's original
+            // dispatch has already saved the context it had, and would race
+            // with a save from this thread. Finish on the container's thread,
+            // where the filter saves the new context when the handler returns.
+            outcome.authentication = authResult;
+            outcome.dispatch();
+            return;
+        }
+        super.successfulAuthentication(request, response, chain, authResult);
+    }
+
+    @Override
+    protected void unsuccessfulAuthentication(
+        HttpServletRequest request, HttpServletResponse response,
+        AuthenticationException failed)
+        throws IOException, ServletException {
+
+        if(failed instanceof BadStatusRavenAuthenticationException) {
+            this.metrics.recordBadStatus(
+                ((BadStatusRavenAuthenticationException)failed).getStatus());
+        }
+        else {
+            this.metrics.recordFailure(failed);
+        }
+
+        AsyncOutcome outcome = asyncOutcome(request);
+        if(outcome != null) {
+            outcome.failure = failed;
+            outcome.dispatch();
+            return;
+        }
+        super.unsuccessfulAuthentication(request, response, failed);
+    }
+
+    /**
+     * The outcome to record if the request is being handled on the callback
+     * executor, or null.
+     */
+    private static AsyncOutcome asyncOutcome(HttpServletRequest request) {
+        Object outcome = request.getAttribute(ASYNC_OUTCOME_ATTRIBUTE);
+        if(outcome == null || ((AsyncOutcome)outcome).isDispatched())
+            return null;
+        return (AsyncOutcome)outcome;
+    }
+
+    /**
+     * The result of a callback handled on the executor, handed to the
+     * container's thread by {@link AsyncContext#dispatch()}.
+     */
+    private static final class AsyncOutcome {
+        private final AsyncContext async;
+        private volatile boolean dispatched;
+        volatile Authentication authentication;
+        volatile AuthenticationException failure;
+
+        AsyncOutcome(AsyncContext async) {
+            this.async = async;
+        }
+
+        boolean isDispatched() {
+            return this.dispatched;
+        }
+
+        void dispatch() {
+            this.dispatched = true;
+            this.async.dispatch();
+        }
+    }
 }
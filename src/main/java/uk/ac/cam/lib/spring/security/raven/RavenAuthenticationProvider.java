@@ -1,10 +1,17 @@
 package uk.ac.cam.lib.spring.security.raven;
 
 import org.springframework.security.authentication.AuthenticationProvider;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.ProviderManager;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
 import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.metrics.NoOpRavenMetrics;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics.Stage;
+import uk.ac.cam.lib.spring.security.raven.replay.ReplayKey;
+import uk.ac.cam.lib.spring.security.raven.replay.ReplayStore;
+import uk.ac.cam.lib.spring.security.raven.validation.RavenResponseValidator;
 import uk.ac.cam.ucs.webauth.WebauthException;
 import uk.ac.cam.ucs.webauth.WebauthRequest;
 import uk.ac.cam.ucs.webauth.WebauthResponse;
@@ -19,7 +26,10 @@ import java.util.Optional;
 public class RavenAuthenticationProvider implements AuthenticationProvider {
 
     private WebauthValidator validator;
+    private RavenResponseValidator responseValidator;
     private AuthenticatedRavenTokenCreator tokenCreator;
+    private ReplayStore replayStore;
+    private RavenMetrics metrics = NoOpRavenMetrics.INSTANCE;
 
     public RavenAuthenticationProvider(
         WebauthValidator validator,
@@ -32,14 +42,74 @@ public class RavenAuthenticationProvider implements AuthenticationProvider {
         this.tokenCreator = tokenCreator;
     }
 
+    /**
+     * Create a provider which validates responses with a
+     * {@link RavenResponseValidator}, such as
+     * {@link uk.ac.cam.lib.spring.security.raven.validation.NativeRavenResponseValidator},
+     * rather than the toolkit's {@link WebauthValidator}.
+     */
+    public RavenAuthenticationProvider(
+        RavenResponseValidator responseValidator,
+        AuthenticatedRavenTokenCreator tokenCreator) {
+
+        Assert.notNull(responseValidator);
+        Assert.notNull(tokenCreator);
+
+        this.responseValidator = responseValidator;
+        this.tokenCreator = tokenCreator;
+    }
+
+    /**
+     * @return The toolkit validator, or null if the provider uses a
+     *         {@link RavenResponseValidator}.
+     */
     public WebauthValidator getWebauthValidator() {
         return this.validator;
     }
 
+    /**
+     * @return The response validator, or null if the provider uses the
+     *         toolkit's {@link WebauthValidator}.
+     */
+    public RavenResponseValidator getResponseValidator() {
+        return this.responseValidator;
+    }
+
     public AuthenticatedRavenTokenCreator getTokenCreator() {
         return this.tokenCreator;
     }
 
+    /**
+     * Reject responses which have already been used to authenticate. Seen
+     * responses are identified by their {@code issue} and {@code id} fields,
+     * which the WLS guarantees to be unique. Responses which have been seen
+     * are rejected before their signature is checked.
+     *
+     * @param replayStore The store of seen responses, or null to disable
+     *                    replay detection (the default).
+     */
+    public void setReplayStore(ReplayStore replayStore) {
+        this.replayStore = replayStore;
+    }
+
+    public ReplayStore getReplayStore() {
+        return this.replayStore;
+    }
+
+    /**
+     * Set the receiver of validation and token creation timings. Defaults to
+     * {@link NoOpRavenMetrics}. Login outcomes are recorded by
+     * {@link RavenAuthenticationFilter}.
+     */
+    public void setMetrics(RavenMetrics metrics) {
+        Assert.notNull(metrics);
+        this.metrics = metrics;
+    }
+
+    public RavenMetrics getMetrics() {
+        return this.metrics;
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -56,18 +126,85 @@ public class RavenAuthenticationProvider implements AuthenticationProvider {
         RavenAuthenticationToken token =
             (RavenAuthenticationToken)authentication;
 
+        validate(token);
+
+        RavenMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        Authentication result;
+        try {
+            result = getTokenCreator().createAuthenticatedToken(token);
+        }
+        finally {
+            metrics.recordStage(
+                Stage.TOKEN_CREATION, System.nanoTime() - start);
+        }
+
+        if(!result.isAuthenticated())
+            throw new IllegalStateException(String.format(
+                "AuthenticatedRavenTokenCreator returned an unauthenticated " +
+                "token. creator: %s, token: %s", getTokenCreator(), result));
+
+        return result;
+    }
+
+    /**
+     * Check that a token holds a genuine, successful response to its request,
+     * without creating an authenticated token from it. The response is
+     * recorded in the {@link ReplayStore} (if any), so it can't be validated
+     * again.
+     *
+     * <p>{@link #authenticate(Authentication)} calls this before passing the
+     * token to the {@link AuthenticatedRavenTokenCreator}. It's public so
+     * that callers which create authenticated tokens differently (such as
+     * without blocking) can share the provider's validation.
+     *
+     * @throws AuthenticationException if the response is not valid.
+     */
+    public void validate(RavenAuthenticationToken token)
+        throws AuthenticationException {
+
         WebauthRequest request = token.getRavenRequest()
             .orElseThrow(this::reportClearedCredentials);
-        WebauthResponse response = token.getRavenResponse()
-            .orElseThrow(this::reportClearedCredentials);
         Instant authResponseTimestamp = token.getResponseReceivedTime()
             .orElseThrow(this::reportClearedCredentials);
 
+        // Responses validated by a RavenResponseValidator are never converted
+        // to the toolkit's representation.
+        RavenResponseValidator responseValidator = this.responseValidator;
+        WlsResponse wlsResponse = null;
+        WebauthResponse response = null;
+        if(responseValidator != null) {
+            wlsResponse = token.getWlsResponse()
+                .orElseThrow(this::reportClearedCredentials);
+        }
+        else {
+            response = token.getRavenResponse()
+                .orElseThrow(this::reportClearedCredentials);
+        }
+
+        ReplayKey replayKey = null;
+        if(this.replayStore != null) {
+            replayKey = wlsResponse != null
+                ? ReplayKey.of(wlsResponse) : ReplayKey.of(response);
+
+            if(isReplay(replayKey, authResponseTimestamp))
+                throw reportReplay();
+        }
+
+        RavenMetrics metrics = this.metrics;
         Optional<Integer> status = Optional.empty();
+        long start = System.nanoTime();
         try {
-            status = Optional.of(response.getInt("status"));
-            getWebauthValidator().validate(
-                request, response, authResponseTimestamp.toEpochMilli());
+            if(wlsResponse != null) {
+                status = Optional.of(wlsResponse.getStatus());
+                responseValidator.validate(
+                    request, wlsResponse, authResponseTimestamp);
+            }
+            else {
+                status = Optional.of(response.getInt("status"));
+                getWebauthValidator().validate(
+                    request, response, authResponseTimestamp.toEpochMilli());
+            }
         }
         catch(WebauthException e) {
             if(status.isPresent() && status.get() != WebauthResponse.SUCCESS) {
@@ -78,16 +215,39 @@ public class RavenAuthenticationProvider implements AuthenticationProvider {
             throw new RavenAuthenticationException(
                 "Raven auth response did not validate", e);
         }
+        finally {
+            metrics.recordStage(Stage.VALIDATION, System.nanoTime() - start);
+        }
 
-        Authentication result = getTokenCreator()
-            .createAuthenticatedToken(token);
+        // Only record responses once they're known to be genuine, otherwise
+        // forged responses could be used to block future logins.
+        if(replayKey != null && !recordUse(replayKey, authResponseTimestamp))
+            throw reportReplay();
+    }
 
-        if(!result.isAuthenticated())
-            throw new IllegalStateException(String.format(
-                "AuthenticatedRavenTokenCreator returned an unauthenticated " +
-                "token. creator: %s, token: %s", getTokenCreator(), result));
+    private boolean isReplay(ReplayKey key, Instant received) {
+        try {
+            return this.replayStore.contains(key, received);
+        }
+        catch(RuntimeException e) {
+            throw new AuthenticationServiceException(
+                "ReplayStore failed to check response", e);
+        }
+    }
 
-        return result;
+    private boolean recordUse(ReplayKey key, Instant received) {
+        try {
+            return this.replayStore.add(key, received);
+        }
+        catch(RuntimeException e) {
+            throw new AuthenticationServiceException(
+                "ReplayStore failed to record response", e);
+        }
+    }
+
+    private RavenAuthenticationException reportReplay() {
+        return new ReplayedRavenAuthenticationException(
+            "Raven auth response has already been used");
     }
 
     private RavenAuthenticationException reportClearedCredentials() {
@@ -6,19 +6,39 @@ import org.springframework.util.Assert;
 import uk.ac.cam.ucs.webauth.WebauthRequest;
 import uk.ac.cam.ucs.webauth.WebauthResponse;
 
+import java.io.InvalidObjectException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
 import java.time.Instant;
 import java.util.Collection;
 import java.util.Optional;
 
+/**
+ * An {@link org.springframework.security.core.Authentication} representing a
+ * Raven login.
+ *
+ * <p>Tokens are serialized using {@link RavenTokenCodec}, rather than by
+ * default serialization of their fields. The codec only records the fields of
+ * this class, so subclasses must override {@link #writeReplace()} to be
+ * serializable; otherwise serializing them throws
+ * {@link NotSerializableException} rather than losing their type.
+ */
 public class RavenAuthenticationToken extends AbstractAuthenticationToken {
 
-    private Optional<WebauthRequest> request;
-    private Optional<WebauthResponse> response;
-    private Optional<Instant>  responseReceivedTime;
-    private final Object principal;
+    private static final long serialVersionUID = 1L;
 
-    static String getUsername(WebauthResponse response) {
-        String username = response.get("principal");
+    private transient Optional<WebauthRequest> request;
+    private transient Optional<WlsResponse> response;
+    private transient Optional<Instant>  responseReceivedTime;
+    private final transient Object principal;
+
+    private static WlsResponse wrap(WebauthResponse response) {
+        return response == null ? null : WlsResponse.of(response);
+    }
+
+    static String getUsername(WlsResponse response) {
+        String username = response.getPrincipal();
         Assert.notNull(username); // May be empty though
         return username;
     }
@@ -31,6 +51,18 @@ public class RavenAuthenticationToken extends AbstractAuthenticationToken {
         WebauthRequest request, WebauthResponse response,
         Instant responseReceivedTime) {
 
+        this(request, wrap(response), responseReceivedTime);
+    }
+
+    /**
+     * Used to construct unauthenticated tokens from received Raven auth
+     * responses, without creating a {@link WebauthResponse} until it's
+     * needed.
+     */
+    public RavenAuthenticationToken(
+        WebauthRequest request, WlsResponse response,
+        Instant responseReceivedTime) {
+
         this(request, response, responseReceivedTime,
              getUsername(response), null, false);
 
@@ -58,6 +90,16 @@ public class RavenAuthenticationToken extends AbstractAuthenticationToken {
         Collection<? extends GrantedAuthority> authorities,
         boolean isAuthenticated) {
 
+        this(request, wrap(response), responseReceivedTime, principal,
+             authorities, isAuthenticated);
+    }
+
+    protected RavenAuthenticationToken(
+        WebauthRequest request, WlsResponse response,
+        Instant responseReceivedTime, Object principal,
+        Collection<? extends GrantedAuthority> authorities,
+        boolean isAuthenticated) {
+
         super(authorities);
 
         int nullCount = (request == null ? 1 : 0) + (response == null ? 1 : 0) +
@@ -82,9 +124,9 @@ public class RavenAuthenticationToken extends AbstractAuthenticationToken {
 
         return new RavenAuthenticationToken(
             this.getRavenRequest().orElse(null),
-            this.getRavenResponse().orElse(null),
+            this.getWlsResponse().orElse(null),
             this.getResponseReceivedTime().orElse(null),
-            principal, authorities);
+            principal, authorities, true);
     }
 
     @Override
@@ -102,7 +144,15 @@ public class RavenAuthenticationToken extends AbstractAuthenticationToken {
         return this.request;
     }
 
+    /**
+     * Get the toolkit's representation of the Raven response, creating it if
+     * the token was constructed with a {@link WlsResponse}.
+     */
     public Optional<WebauthResponse> getRavenResponse() {
+        return this.response.map(WlsResponse::toWebauthResponse);
+    }
+
+    public Optional<WlsResponse> getWlsResponse() {
         return this.response;
     }
 
@@ -111,8 +161,9 @@ public class RavenAuthenticationToken extends AbstractAuthenticationToken {
     }
 
     public boolean hasCredentials() {
+        // Not getRavenResponse(), which would create a WebauthResponse
         return this.getRavenRequest().isPresent() &&
-            this.getRavenResponse().isPresent() &&
+            this.response.isPresent() &&
             this.getResponseReceivedTime().isPresent();
     }
 
@@ -129,4 +180,25 @@ public class RavenAuthenticationToken extends AbstractAuthenticationToken {
         this.response = Optional.empty();
         this.responseReceivedTime = Optional.empty();
     }
+
+    /**
+     * Serialize tokens as a {@link RavenTokenExternalForm}.
+     *
+     * @throws NotSerializableException if this is an instance of a subclass,
+     *         which the external form would deserialize as this class.
+     */
+    protected Object writeReplace() throws ObjectStreamException {
+        if(getClass() != RavenAuthenticationToken.class)
+            throw new NotSerializableException(getClass().getName() +
+                " must override writeReplace() to be serialized");
+
+        return new RavenTokenExternalForm(this);
+    }
+
+    private void readObject(ObjectInputStream in)
+        throws InvalidObjectException {
+
+        throw new InvalidObjectException(
+            "RavenAuthenticationToken is serialized as RavenTokenExternalForm");
+    }
 }
@@ -0,0 +1,88 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import uk.ac.cam.lib.spring.security.raven.concurrent.StripedExpiringMap;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, least-recently-used cache of the Raven login URLs generated by
+ * {@link RavenAuthenticationEntryPoint}.
+ *
+ * <p>URLs are keyed by the values of the Raven request they were generated
+ * from, excluding {@code date}, which differs for every request and is
+ * appended to the cached URL each time it's used. The same applies to the
+ * nonce added to {@code params} when the entry point has an
+ * {@link uk.ac.cam.lib.spring.security.raven.issued.IssuedRequestStore}. The cache is only effective
+ * if the {@link RavenRequestCreator} produces a limited number of distinct
+ * requests, for example when the return URL is fixed.
+ *
+ * <p>URLs are held in a {@link StripedExpiringMap} of at most
+ * {@code maxEntries}, in access order. They don't expire.
+ */
+public class RavenLoginUrlCache {
+
+    public static final int DEFAULT_STRIPES =
+        StripedExpiringMap.DEFAULT_STRIPES;
+
+    /** Entries never expire, so lookups needn't pass the time. */
+    private static final long NOW = 0;
+
+    private final StripedExpiringMap<List<String>, String> urls;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public RavenLoginUrlCache(int maxEntries) {
+        this(maxEntries, DEFAULT_STRIPES);
+    }
+
+    public RavenLoginUrlCache(int maxEntries, int stripes) {
+        this.urls = new StripedExpiringMap<>(
+            maxEntries, stripes, true, url -> Long.MAX_VALUE);
+    }
+
+    /**
+     * @return The cached URL (without a date) for the request values, or null.
+     */
+    String get(List<String> requestValues) {
+        String url = this.urls.get(requestValues, NOW);
+        if(url == null)
+            this.misses.increment();
+        else
+            this.hits.increment();
+        return url;
+    }
+
+    void put(List<String> requestValues, String url) {
+        this.urls.put(requestValues, url, NOW);
+    }
+
+    /** The maximum number of URLs held, across all stripes. */
+    public int getMaxEntries() {
+        return this.urls.getMaxEntries();
+    }
+
+    public int size() {
+        return this.urls.size();
+    }
+
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return The proportion of lookups which found a URL, or 0 if there have
+     *         been no lookups.
+     */
+    public double getHitRate() {
+        long hits = this.hits.sum();
+        long total = hits + this.misses.sum();
+
+        return total == 0 ? 0 : (double)hits / total;
+    }
+}
@@ -7,5 +7,17 @@ import javax.servlet.http.HttpServletRequest;
 public interface RavenRequestCreator {
     WebauthRequest createLoginRequest(HttpServletRequest request);
 
-
+    /**
+     * Create the login request for a view of the original request. The
+     * filter uses this to reconstruct the request sent to Raven.
+     *
+     * <p>The default implementation calls
+     * {@link #createLoginRequest(HttpServletRequest)} with
+     * {@link OriginalRequestView#toServletRequest()}; implementations which
+     * only need the view should override it to avoid creating a servlet
+     * request for saved requests.
+     */
+    default WebauthRequest createLoginRequest(OriginalRequestView request) {
+        return this.createLoginRequest(request.toServletRequest());
+    }
 }
@@ -0,0 +1,483 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.util.Assert;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A compact, versioned binary encoding of {@link RavenAuthenticationToken}s.
+ *
+ * <p>This is used when tokens are serialized (e.g. as part of a replicated
+ * or externally stored session), and can also be used directly by session
+ * stores with their own serialization. The Raven response is stored as the
+ * string received from the WLS, and the request as its field values. String
+ * principals, Spring Security {@link User} principals and
+ * {@link SimpleGrantedAuthority}s are written field by field; other
+ * principals, authorities and details fall back to Java serialization, so
+ * must be {@link Serializable}.
+ *
+ * <p>When tokens are serialized, those values are written to and read from
+ * the enclosing object stream, so the stream's class loader and any
+ * {@code ObjectInputFilter} apply to them. Tokens written to a plain
+ * {@link DataOutput} (including by {@link #encode}) hold them as nested byte
+ * arrays, which are read with a new {@link ObjectInputStream} having neither,
+ * so only decode such tokens from a trusted source, such as a store written
+ * only by the application.
+ *
+ * <p>The encoding starts with a version number. Decoding supports every
+ * earlier version; tokens encoded by a later version of this class can't be
+ * decoded.
+ */
+public final class RavenTokenCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int FLAG_AUTHENTICATED = 1;
+    private static final int FLAG_CREDENTIALS = 1 << 1;
+    private static final int FLAG_DETAILS = 1 << 2;
+    /**
+     * Serialized values are written to the enclosing {@link ObjectOutput}
+     * rather than as nested byte arrays.
+     */
+    private static final int FLAG_OBJECT_VALUES = 1 << 3;
+
+    private static final int PRINCIPAL_STRING = 0;
+    private static final int PRINCIPAL_USER = 1;
+    private static final int PRINCIPAL_SERIALIZED = 2;
+
+    private static final int AUTHORITY_SIMPLE = 0;
+    private static final int AUTHORITY_SERIALIZED = 1;
+
+    /** Marks a request with fields outside the protocol. */
+    private static final int REQUEST_QUERY_STRING = 0xffff;
+
+    private static final List<String> REQUEST_FIELDS =
+        RavenAuthenticationEntryPoint.REQUEST_FIELDS;
+
+    private RavenTokenCodec() { }
+
+    public static byte[] encode(RavenAuthenticationToken token) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try {
+            write(token, new DataOutputStream(bytes));
+        }
+        catch(IOException e) {
+            throw new IllegalArgumentException("Failed to encode token", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes are not a valid encoding
+     *         of a token.
+     */
+    public static RavenAuthenticationToken decode(byte[] encoded) {
+        Assert.notNull(encoded);
+
+        try {
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(encoded));
+            RavenAuthenticationToken token = read(in);
+
+            if(in.read() != -1)
+                throw new IOException("Unexpected data after token");
+            return token;
+        }
+        catch(IOException e) {
+            throw new IllegalArgumentException("Invalid encoded token", e);
+        }
+    }
+
+    public static void write(RavenAuthenticationToken token, DataOutput out)
+        throws IOException {
+
+        Assert.notNull(token);
+
+        boolean credentials = token.hasCredentials();
+        Object details = token.getDetails();
+
+        writeVarInt(out, VERSION);
+        out.writeByte(
+            (token.isAuthenticated() ? FLAG_AUTHENTICATED : 0) |
+            (credentials ? FLAG_CREDENTIALS : 0) |
+            (details != null ? FLAG_DETAILS : 0) |
+            (out instanceof ObjectOutput ? FLAG_OBJECT_VALUES : 0));
+
+        writePrincipal(out, token.getPrincipal());
+        writeAuthorities(out, token.getAuthorities());
+
+        if(credentials) {
+            writeRequest(out, token.getRavenRequest().get());
+            writeString(out, token.getWlsResponse().get().getToken());
+
+            Instant received = token.getResponseReceivedTime().get();
+            writeVarLong(out, received.getEpochSecond());
+            writeVarInt(out, received.getNano());
+        }
+
+        if(details != null)
+            writeSerialized(out, details);
+    }
+
+    public static RavenAuthenticationToken read(DataInput in)
+        throws IOException {
+
+        int version = readVarInt(in);
+        if(version < 1 || version > VERSION)
+            throw new IOException("Unsupported token encoding version: " +
+                                  version);
+
+        int flags = in.readUnsignedByte();
+        boolean objectValues = (flags & FLAG_OBJECT_VALUES) != 0;
+        if(objectValues && !(in instanceof ObjectInput))
+            throw new IOException(
+                "Token was encoded with an ObjectOutput, so must be read " +
+                "from an ObjectInput");
+
+        Object principal = readPrincipal(in, objectValues);
+        List<GrantedAuthority> authorities =
+            readAuthorities(in, objectValues);
+
+        WebauthRequest request = null;
+        WlsResponse response = null;
+        Instant received = null;
+        if((flags & FLAG_CREDENTIALS) != 0) {
+            request = readRequest(in);
+            try {
+                response = WlsResponse.parse(readString(in));
+            }
+            catch(WebauthException e) {
+                throw new IOException("Invalid Raven response", e);
+            }
+            received = Instant.ofEpochSecond(readVarLong(in), readVarInt(in));
+        }
+
+        RavenAuthenticationToken token;
+        try {
+            token = new RavenAuthenticationToken(
+                request, response, received, principal, authorities,
+                (flags & FLAG_AUTHENTICATED) != 0);
+        }
+        catch(IllegalArgumentException e) {
+            throw new IOException("Invalid token", e);
+        }
+
+        if((flags & FLAG_DETAILS) != 0)
+            token.setDetails(readSerialized(in, objectValues));
+
+        return token;
+    }
+
+    private static void writePrincipal(DataOutput out, Object principal)
+        throws IOException {
+
+        if(principal instanceof String) {
+            out.writeByte(PRINCIPAL_STRING);
+            writeString(out, (String)principal);
+        }
+        else if(principal.getClass() == User.class &&
+                !((User)principal).getUsername().isEmpty()) {
+            User user = (User)principal;
+
+            out.writeByte(PRINCIPAL_USER);
+            writeString(out, user.getUsername());
+            writeNullableString(out, user.getPassword());
+            out.writeByte(
+                (user.isEnabled() ? 1 : 0) |
+                (user.isAccountNonExpired() ? 1 << 1 : 0) |
+                (user.isCredentialsNonExpired() ? 1 << 2 : 0) |
+                (user.isAccountNonLocked() ? 1 << 3 : 0));
+            writeAuthorities(out, user.getAuthorities());
+        }
+        else {
+            out.writeByte(PRINCIPAL_SERIALIZED);
+            writeSerialized(out, principal);
+        }
+    }
+
+    private static Object readPrincipal(DataInput in, boolean objectValues)
+        throws IOException {
+
+        int type = in.readUnsignedByte();
+
+        switch(type) {
+            case PRINCIPAL_STRING:
+                return readString(in);
+            case PRINCIPAL_USER:
+                String username = readString(in);
+                String password = readNullableString(in);
+                int flags = in.readUnsignedByte();
+                List<GrantedAuthority> authorities =
+                    readAuthorities(in, objectValues);
+
+                User user;
+                try {
+                    user = new User(
+                        username, password == null ? "" : password,
+                        (flags & 1) != 0, (flags & (1 << 1)) != 0,
+                        (flags & (1 << 2)) != 0, (flags & (1 << 3)) != 0,
+                        authorities);
+                }
+                catch(IllegalArgumentException e) {
+                    throw new IOException("Invalid User principal", e);
+                }
+
+                if(password == null)
+                    user.eraseCredentials();
+                return user;
+            case PRINCIPAL_SERIALIZED:
+                return readSerialized(in, objectValues);
+            default:
+                throw new IOException("Unknown principal type: " + type);
+        }
+    }
+
+    private static void writeAuthorities(
+        DataOutput out, Collection<? extends GrantedAuthority> authorities)
+        throws IOException {
+
+        writeVarInt(out, authorities.size());
+        for(GrantedAuthority authority : authorities) {
+            if(authority.getClass() == SimpleGrantedAuthority.class) {
+                out.writeByte(AUTHORITY_SIMPLE);
+                writeString(out, authority.getAuthority());
+            }
+            else {
+                out.writeByte(AUTHORITY_SERIALIZED);
+                writeSerialized(out, authority);
+            }
+        }
+    }
+
+    private static List<GrantedAuthority> readAuthorities(
+        DataInput in, boolean objectValues) throws IOException {
+
+        int count = readVarInt(in);
+        List<GrantedAuthority> authorities =
+            new ArrayList<>(Math.min(count, 64));
+
+        for(int i = 0; i < count; i++) {
+            int type = in.readUnsignedByte();
+
+            if(type == AUTHORITY_SIMPLE) {
+                authorities.add(new SimpleGrantedAuthority(readString(in)));
+            }
+            else if(type == AUTHORITY_SERIALIZED) {
+                Object authority = readSerialized(in, objectValues);
+                if(!(authority instanceof GrantedAuthority))
+                    throw new IOException("Not a GrantedAuthority: " +
+                                          authority);
+                authorities.add((GrantedAuthority)authority);
+            }
+            else {
+                throw new IOException("Unknown authority type: " + type);
+            }
+        }
+        return authorities;
+    }
+
+    /**
+     * Requests are written as a bit mask of the protocol fields they contain,
+     * followed by the values. A request with other fields is written as its
+     * query string.
+     */
+    private static void writeRequest(DataOutput out, WebauthRequest request)
+        throws IOException {
+
+        int mask = 0;
+        int count = 0;
+        for(int i = 0; i < REQUEST_FIELDS.size(); i++) {
+            if(request.get(REQUEST_FIELDS.get(i)) != null) {
+                mask |= 1 << i;
+                count++;
+            }
+        }
+
+        if(count != request.length()) {
+            out.writeShort(REQUEST_QUERY_STRING);
+            writeString(out, request.toQString());
+            return;
+        }
+
+        out.writeShort(mask);
+        for(int i = 0; i < REQUEST_FIELDS.size(); i++) {
+            if((mask & (1 << i)) != 0)
+                writeString(out, request.get(REQUEST_FIELDS.get(i)));
+        }
+    }
+
+    private static WebauthRequest readRequest(DataInput in)
+        throws IOException {
+
+        WebauthRequest request = new WebauthRequest();
+        int mask = in.readUnsignedShort();
+
+        if(mask == REQUEST_QUERY_STRING) {
+            for(String pair : readString(in).split("&")) {
+                if(pair.isEmpty())
+                    continue;
+
+                int eq = pair.indexOf('=');
+                request.set(decode(eq < 0 ? pair : pair.substring(0, eq)),
+                            eq < 0 ? "" : decode(pair.substring(eq + 1)));
+            }
+            return request;
+        }
+
+        if(mask >>> REQUEST_FIELDS.size() != 0)
+            throw new IOException("Invalid request field mask: " + mask);
+
+        for(int i = 0; i < REQUEST_FIELDS.size(); i++) {
+            if((mask & (1 << i)) != 0)
+                request.set(REQUEST_FIELDS.get(i), readString(in));
+        }
+        return request;
+    }
+
+    private static String decode(String value) throws IOException {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch(UnsupportedEncodingException | IllegalArgumentException e) {
+            throw new IOException("Invalid request query string", e);
+        }
+    }
+
+    /**
+     * Write a value with Java serialization: to {@code out} itself if it's an
+     * {@link ObjectOutput}, otherwise as a length-prefixed byte array.
+     */
+    private static void writeSerialized(DataOutput out, Object value)
+        throws IOException {
+
+        if(out instanceof ObjectOutput) {
+            ((ObjectOutput)out).writeObject(value);
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(value);
+        }
+
+        writeVarInt(out, bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    private static Object readSerialized(DataInput in, boolean objectValues)
+        throws IOException {
+
+        if(objectValues) {
+            try {
+                return ((ObjectInput)in).readObject();
+            }
+            catch(ClassNotFoundException e) {
+                throw new IOException("Failed to deserialize token value", e);
+            }
+        }
+
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+
+        try(ObjectInputStream ois = new ObjectInputStream(
+            new ByteArrayInputStream(bytes))) {
+            return ois.readObject();
+        }
+        catch(ClassNotFoundException e) {
+            throw new IOException("Failed to deserialize token value", e);
+        }
+    }
+
+    private static void writeString(DataOutput out, String value)
+        throws IOException {
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeNullableString(DataOutput out, String value)
+        throws IOException {
+
+        out.writeBoolean(value != null);
+        if(value != null)
+            writeString(out, value);
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    /** Lengths are limited so that corrupt input can't exhaust memory. */
+    private static int readLength(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if(length < 0 || length > (1 << 24))
+            throw new IOException("Invalid length: " + length);
+        return length;
+    }
+
+    private static void writeVarInt(DataOutput out, int value)
+        throws IOException {
+
+        writeVarLong(out, value & 0xffffffffL);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        long value = readVarLong(in);
+        if(value >>> 32 != 0)
+            throw new IOException("Invalid varint");
+        return (int)value;
+    }
+
+    /** Unsigned LEB128. */
+    private static void writeVarLong(DataOutput out, long value)
+        throws IOException {
+
+        while((value & ~0x7fL) != 0) {
+            out.writeByte((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Invalid varint");
+    }
+}
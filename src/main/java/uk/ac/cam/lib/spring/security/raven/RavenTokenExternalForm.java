@@ -0,0 +1,43 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+
+/**
+ * The serialized form of a {@link RavenAuthenticationToken}, written using
+ * {@link RavenTokenCodec}.
+ *
+ * <p>Tokens replace themselves with an instance of this class when serialized,
+ * and instances resolve back to the token they hold when deserialized. It
+ * should not be used directly.
+ */
+public final class RavenTokenExternalForm implements Externalizable {
+
+    private static final long serialVersionUID = 1L;
+
+    private RavenAuthenticationToken token;
+
+    /** Used by deserialization. */
+    public RavenTokenExternalForm() { }
+
+    RavenTokenExternalForm(RavenAuthenticationToken token) {
+        this.token = token;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        RavenTokenCodec.write(this.token, out);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        this.token = RavenTokenCodec.read(in);
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+        return this.token;
+    }
+}
@@ -0,0 +1,13 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+/**
+ * An exception raised when a Raven response which has already been used to
+ * authenticate is received again.
+ */
+public class ReplayedRavenAuthenticationException
+    extends RavenAuthenticationException {
+
+    public ReplayedRavenAuthenticationException(String msg) {
+        super(msg);
+    }
+}
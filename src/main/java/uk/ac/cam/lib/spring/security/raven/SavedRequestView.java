@@ -0,0 +1,87 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.springframework.security.web.savedrequest.SavedRequest;
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.vedorised.SavedRequestAwareWrapper;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link OriginalRequestView} of a {@link SavedRequest}.
+ *
+ * <p>The method, URL, parameters and headers are those of the saved request;
+ * unlike {@link SavedRequestAwareWrapper}, the current request's parameters
+ * are not merged in. Attributes are those of the current request.
+ */
+public final class SavedRequestView implements OriginalRequestView {
+
+    private final SavedRequest savedRequest;
+    private final HttpServletRequest currentRequest;
+    private HttpServletRequest servletRequest;
+
+    public SavedRequestView(SavedRequest savedRequest,
+                            HttpServletRequest currentRequest) {
+        Assert.notNull(savedRequest);
+        Assert.notNull(currentRequest);
+
+        this.savedRequest = savedRequest;
+        this.currentRequest = currentRequest;
+    }
+
+    public SavedRequest getSavedRequest() {
+        return this.savedRequest;
+    }
+
+    @Override
+    public String getMethod() {
+        return this.savedRequest.getMethod();
+    }
+
+    @Override
+    public String getUrl() {
+        return this.savedRequest.getRedirectUrl();
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = this.savedRequest.getParameterValues(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        return this.savedRequest.getParameterValues(name);
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return this.savedRequest.getParameterMap();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        List<String> values = this.savedRequest.getHeaderValues(name);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return this.currentRequest.getAttribute(name);
+    }
+
+    /**
+     * Returns a {@link SavedRequestAwareWrapper} of the saved and current
+     * requests, created on first use.
+     */
+    @Override
+    public HttpServletRequest toServletRequest() {
+        if(this.servletRequest == null) {
+            this.servletRequest =
+                new SavedRequestAwareWrapper(this.savedRequest,
+                                             this.currentRequest);
+        }
+        return this.servletRequest;
+    }
+}
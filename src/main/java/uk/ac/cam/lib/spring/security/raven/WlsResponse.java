@@ -0,0 +1,323 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.springframework.util.Assert;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Raven authentication response, parsed from the {@code WLS-Response}
+ * parameter without copying its fields.
+ *
+ * <p>{@link #parse(String)} makes a single pass over the response, recording
+ * where each {@code !}-separated field starts, and rejects responses which
+ * don't have the number of fields of protocol version 1 or 3, as
+ * {@link WebauthResponse} does. Fields are only extracted (and
+ * {@code %21}/{@code %25} escapes decoded) when they're read, and the numeric
+ * fields are read directly from the response when they contain only digits.
+ *
+ * <p>{@link #toWebauthResponse()} creates the toolkit's representation of the
+ * response the first time it's needed (to validate the response's signature),
+ * and returns the same instance thereafter. Instances are immutable and can be
+ * shared between threads.
+ */
+public final class WlsResponse {
+
+    private static final List<String> V1_FIELDS = Collections.unmodifiableList(
+        Arrays.asList("ver", "status", "msg", "issue", "id", "url",
+                      "principal", "auth", "sso", "life", "params", "kid",
+                      "sig"));
+
+    private static final List<String> V3_FIELDS = Collections.unmodifiableList(
+        Arrays.asList("ver", "status", "msg", "issue", "id", "url",
+                      "principal", "ptags", "auth", "sso", "life", "params",
+                      "kid", "sig"));
+
+    private static final int MAX_FIELDS = V3_FIELDS.size();
+
+    private static final int VER = 0;
+    private static final int STATUS = 1;
+    private static final int MSG = 2;
+    private static final int ISSUE = 3;
+    private static final int ID = 4;
+    private static final int URL = 5;
+    private static final int PRINCIPAL = 6;
+    private static final int PTAGS = 7;
+
+    private final String token;
+    private final int[] starts;
+    private final List<String> fields;
+    private volatile WebauthResponse webauthResponse;
+
+    private WlsResponse(String token, int[] starts,
+                        WebauthResponse webauthResponse) {
+        this.token = token;
+        this.starts = starts;
+        this.fields = starts.length - 1 == MAX_FIELDS ? V3_FIELDS : V1_FIELDS;
+        this.webauthResponse = webauthResponse;
+    }
+
+    /**
+     * Parse a response.
+     *
+     * @param token The value of the {@code WLS-Response} parameter.
+     * @throws WebauthException if the response doesn't have the number of
+     *         fields of a known protocol version.
+     */
+    public static WlsResponse parse(String token) throws WebauthException {
+        if(token == null)
+            throw new WebauthException("Response is null");
+
+        return new WlsResponse(token, fieldStarts(token), null);
+    }
+
+    /**
+     * Get a view of a response which has already been parsed by the toolkit.
+     * {@link #toWebauthResponse()} returns {@code response}.
+     */
+    public static WlsResponse of(WebauthResponse response) {
+        Assert.notNull(response);
+
+        try {
+            return new WlsResponse(
+                response.getToken(), fieldStarts(response.getToken()),
+                response);
+        }
+        catch(WebauthException e) {
+            throw new IllegalArgumentException(
+                "WebauthResponse has an invalid token", e);
+        }
+    }
+
+    /**
+     * Find the start of each field. An extra element holds the position one
+     * past the end of the token, so that field {@code i} ends at
+     * {@code starts[i + 1] - 1}.
+     */
+    private static int[] fieldStarts(String token) throws WebauthException {
+        int[] starts = new int[MAX_FIELDS + 1];
+        int count = 1;
+        for(int i = 0; i < token.length(); i++) {
+            if(token.charAt(i) == '!') {
+                if(count == MAX_FIELDS)
+                    throw wrongFieldCount(token);
+                starts[count++] = i + 1;
+            }
+        }
+
+        if(count != MAX_FIELDS && count != V1_FIELDS.size())
+            throw wrongFieldCount(token);
+
+        starts[count] = token.length() + 1;
+        return count == MAX_FIELDS ? starts : Arrays.copyOf(starts, count + 1);
+    }
+
+    private static WebauthException wrongFieldCount(String token) {
+        int count = 1;
+        for(int i = 0; i < token.length(); i++) {
+            if(token.charAt(i) == '!')
+                count++;
+        }
+        return new WebauthException("Wrong number of fields: " + count);
+    }
+
+    /** The response, exactly as it was received. */
+    public String getToken() {
+        return this.token;
+    }
+
+    /** The number of fields: 13 for protocol version 1 or 2, 14 for 3. */
+    public int length() {
+        return this.fields.size();
+    }
+
+    /**
+     * Get a field by name, as {@link WebauthResponse#get(String)} would.
+     *
+     * @return The decoded field, or null if the response's protocol version
+     *         has no such field.
+     */
+    public String get(String name) {
+        int index = this.fields.indexOf(name);
+        return index < 0 ? null : field(index);
+    }
+
+    /**
+     * Get a numeric field by name, as {@link WebauthResponse#getInt(String)}
+     * would.
+     *
+     * @throws NumberFormatException if the field isn't a number, or doesn't
+     *         exist.
+     */
+    public int getInt(String name) {
+        int index = this.fields.indexOf(name);
+        if(index < 0)
+            throw new NumberFormatException("null");
+        return intField(index);
+    }
+
+    public int getVersion() {
+        return intField(VER);
+    }
+
+    public int getStatus() {
+        return intField(STATUS);
+    }
+
+    public String getMessage() {
+        return field(MSG);
+    }
+
+    public String getIssue() {
+        return field(ISSUE);
+    }
+
+    public String getId() {
+        return field(ID);
+    }
+
+    public String getUrl() {
+        return field(URL);
+    }
+
+    public String getPrincipal() {
+        return field(PRINCIPAL);
+    }
+
+    /**
+     * The principal's tags (such as {@code current}), which are only sent in
+     * protocol version 3 responses.
+     *
+     * @return The tags, or an empty list if there are none.
+     */
+    public List<String> getPtags() {
+        if(this.fields != V3_FIELDS)
+            return Collections.emptyList();
+
+        String ptags = field(PTAGS);
+        if(ptags.isEmpty())
+            return Collections.emptyList();
+
+        List<String> tags = new ArrayList<>(2);
+        int start = 0;
+        for(int end; (end = ptags.indexOf(',', start)) >= 0; start = end + 1)
+            tags.add(ptags.substring(start, end));
+        tags.add(ptags.substring(start));
+        return Collections.unmodifiableList(tags);
+    }
+
+    public String getAuth() {
+        return field(this.fields.size() - 6);
+    }
+
+    public String getSso() {
+        return field(this.fields.size() - 5);
+    }
+
+    public String getLife() {
+        return field(this.fields.size() - 4);
+    }
+
+    public String getParams() {
+        return field(this.fields.size() - 3);
+    }
+
+    public String getKid() {
+        return field(this.fields.size() - 2);
+    }
+
+    public String getSig() {
+        return field(this.fields.size() - 1);
+    }
+
+    /**
+     * Get the toolkit's representation of the response, creating it on first
+     * use.
+     */
+    public WebauthResponse toWebauthResponse() {
+        WebauthResponse response = this.webauthResponse;
+        if(response == null) {
+            try {
+                response = new WebauthResponse(this.token);
+            }
+            catch(WebauthException e) {
+                throw new IllegalStateException(
+                    "WebauthResponse rejected a response with a valid number " +
+                    "of fields", e);
+            }
+            this.webauthResponse = response;
+        }
+        return response;
+    }
+
+    /** Whether {@link #toWebauthResponse()} has created its response. */
+    boolean isConverted() {
+        return this.webauthResponse != null;
+    }
+
+    private String field(int index) {
+        int start = this.starts[index];
+        int end = this.starts[index + 1] - 1;
+
+        for(int i = start; i < end; i++) {
+            if(this.token.charAt(i) == '%')
+                return decode(start, end);
+        }
+        return this.token.substring(start, end);
+    }
+
+    /**
+     * Decode the {@code %21} and {@code %25} escapes of {@code !} and
+     * {@code %}. Other {@code %} characters are left as they are.
+     */
+    private String decode(int start, int end) {
+        StringBuilder value = new StringBuilder(end - start);
+        for(int i = start; i < end; i++) {
+            char c = this.token.charAt(i);
+            if(c == '%' && i + 2 < end && this.token.charAt(i + 1) == '2') {
+                char escaped = this.token.charAt(i + 2);
+                if(escaped == '1' || escaped == '5') {
+                    value.append(escaped == '1' ? '!' : '%');
+                    i += 2;
+                    continue;
+                }
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Read a numeric field, without extracting it if it's a plain run of
+     * digits. Anything else is parsed by {@link Integer#parseInt(String)}, as
+     * the toolkit would.
+     */
+    private int intField(int index) {
+        int start = this.starts[index];
+        int end = this.starts[index + 1] - 1;
+
+        // 9 digits can't overflow an int
+        if(end > start && end - start <= 9) {
+            int value = 0;
+            int i = start;
+            for(; i < end; i++) {
+                char c = this.token.charAt(i);
+                if(c < '0' || c > '9')
+                    break;
+                value = value * 10 + (c - '0');
+            }
+            if(i == end)
+                return value;
+        }
+        return Integer.parseInt(field(index));
+    }
+
+    @Override
+    public String toString() {
+        return this.token;
+    }
+}
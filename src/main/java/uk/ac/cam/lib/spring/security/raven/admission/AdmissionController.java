@@ -0,0 +1,26 @@
+package uk.ac.cam.lib.spring.security.raven.admission;
+
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+
+import java.time.Instant;
+
+/**
+ * Decides whether {@link RavenAuthenticationFilter} handles a Raven callback,
+ * before its response is parsed or its signature verified, so that floods of
+ * junk {@code WLS-Response} values can be shed cheaply.
+ *
+ * <p>Implementations must be safe to call from multiple threads, and should
+ * be much cheaper than validating a response.
+ */
+public interface AdmissionController {
+
+    /**
+     * Consume a permit for a callback.
+     *
+     * @param client The client's address.
+     * @param now The time the callback was received.
+     * @return true if the callback should be handled, false if it should be
+     *         rejected with {@code 429 Too Many Requests}.
+     */
+    boolean tryAdmit(String client, Instant now);
+}
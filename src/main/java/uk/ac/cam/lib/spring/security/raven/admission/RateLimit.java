@@ -0,0 +1,63 @@
+package uk.ac.cam.lib.spring.security.raven.admission;
+
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+
+/**
+ * A sustained rate and a burst size: a token bucket which holds
+ * {@code burst} tokens and refills at {@code rate} tokens per second.
+ */
+public final class RateLimit {
+
+    private final double permitsPerSecond;
+    private final int burst;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+
+    private RateLimit(double permitsPerSecond, int burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.intervalNanos = Math.max(1, (long)(1e9 / permitsPerSecond));
+        this.toleranceNanos = this.intervalNanos * (burst - 1);
+    }
+
+    /**
+     * @param permitsPerSecond The sustained rate.
+     * @param burst The number of permits available at once.
+     */
+    public static RateLimit perSecond(double permitsPerSecond, int burst) {
+        Assert.isTrue(permitsPerSecond > 0 && permitsPerSecond <= 1e9,
+                      "permitsPerSecond must be in (0, 1e9]");
+        Assert.isTrue(burst > 0, "burst must be positive");
+
+        return new RateLimit(permitsPerSecond, burst);
+    }
+
+    public double getPermitsPerSecond() {
+        return this.permitsPerSecond;
+    }
+
+    public int getBurst() {
+        return this.burst;
+    }
+
+    /** The time in which one permit is replenished. */
+    public Duration getInterval() {
+        return Duration.ofNanos(this.intervalNanos);
+    }
+
+    long intervalNanos() {
+        return this.intervalNanos;
+    }
+
+    long toleranceNanos() {
+        return this.toleranceNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RateLimit(%s/s, burst %d)",
+                             this.permitsPerSecond, this.burst);
+    }
+}
@@ -0,0 +1,186 @@
+package uk.ac.cam.lib.spring.security.raven.admission;
+
+import org.springframework.util.Assert;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admits callbacks within a per-client and a global {@link RateLimit}.
+ *
+ * <p>Each limit is a token bucket, held as the single time at which the
+ * bucket will next be full (the generic cell rate algorithm), so a permit is
+ * taken with one compare-and-set and nothing locks or allocates. A client is
+ * checked against its own bucket first, so clients over their limit don't
+ * use up the global one.
+ *
+ * <p>Client buckets are held in a fixed-size table, so memory is bounded
+ * however many addresses send callbacks. Each client address hashes to a
+ * stripe of {@value #WAYS} buckets. A new client takes a bucket which has
+ * refilled (and so is no different from a new one), or else the stripe's
+ * fullest bucket, which counts as an eviction. Evicted clients start again
+ * with a full bucket, so size the table for the number of clients expected
+ * to be active within the time a bucket takes to refill. The global limit
+ * still applies to clients who are evicted.
+ */
+public class TokenBucketAdmissionController implements AdmissionController {
+
+    public static final int DEFAULT_MAX_CLIENTS = 4096;
+
+    /** The number of buckets a client address can occupy. */
+    public static final int WAYS = 4;
+
+    private final RateLimit globalLimit;
+    private final RateLimit clientLimit;
+    private final AtomicLong global = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicReferenceArray<Bucket> clients;
+    private final int stripeMask;
+
+    private final LongAdder globalRejections = new LongAdder();
+    private final LongAdder clientRejections = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public TokenBucketAdmissionController(RateLimit globalLimit,
+                                          RateLimit clientLimit) {
+        this(globalLimit, clientLimit, DEFAULT_MAX_CLIENTS);
+    }
+
+    /**
+     * @param globalLimit The limit on all callbacks, or null for none.
+     * @param clientLimit The limit on each client's callbacks, or null for
+     *                    none.
+     * @param maxClients The number of client buckets, rounded up to a power
+     *                   of two of at least {@link #WAYS}.
+     */
+    public TokenBucketAdmissionController(RateLimit globalLimit,
+                                          RateLimit clientLimit,
+                                          int maxClients) {
+        Assert.isTrue(maxClients > 0, "maxClients must be positive");
+        Assert.isTrue(maxClients <= 1 << 30, "maxClients is too large");
+
+        int size = Math.max(WAYS, Integer.highestOneBit(maxClients - 1) << 1);
+
+        this.globalLimit = globalLimit;
+        this.clientLimit = clientLimit;
+        this.clients = new AtomicReferenceArray<>(
+            clientLimit == null ? 0 : size);
+        this.stripeMask = size / WAYS - 1;
+    }
+
+    @Override
+    public boolean tryAdmit(String client, Instant now) {
+        Assert.notNull(client);
+        Assert.notNull(now);
+
+        long nowNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+
+        if(this.clientLimit != null && !tryAcquire(
+            bucketFor(client, nowNanos).full, this.clientLimit, nowNanos)) {
+            this.clientRejections.increment();
+            return false;
+        }
+        if(this.globalLimit != null &&
+           !tryAcquire(this.global, this.globalLimit, nowNanos)) {
+            this.globalRejections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param full The time at which the bucket will be full.
+     */
+    private static boolean tryAcquire(AtomicLong full, RateLimit limit,
+                                      long nowNanos) {
+        while(true) {
+            long current = full.get();
+            long start = Math.max(current, nowNanos);
+            if(start - nowNanos > limit.toleranceNanos())
+                return false;
+            if(full.compareAndSet(current, start + limit.intervalNanos()))
+                return true;
+        }
+    }
+
+    private Bucket bucketFor(String client, long nowNanos) {
+        int h = client.hashCode();
+        h ^= h >>> 16;
+        int stripe = (h & this.stripeMask) * WAYS;
+
+        while(true) {
+            int victim = -1;
+            Bucket victimBucket = null;
+            long victimFull = Long.MAX_VALUE;
+
+            for(int i = stripe; i < stripe + WAYS; i++) {
+                Bucket bucket = this.clients.get(i);
+                if(bucket == null) {
+                    if(victimFull != Long.MIN_VALUE) {
+                        victim = i;
+                        victimBucket = null;
+                        victimFull = Long.MIN_VALUE;
+                    }
+                    continue;
+                }
+                if(bucket.client.equals(client))
+                    return bucket;
+
+                long full = bucket.full.get();
+                if(full < victimFull) {
+                    victim = i;
+                    victimBucket = bucket;
+                    victimFull = full;
+                }
+            }
+
+            Bucket created = new Bucket(client);
+            if(this.clients.compareAndSet(victim, victimBucket, created)) {
+                if(victimBucket != null && victimFull > nowNanos)
+                    this.evictions.increment();
+                return created;
+            }
+        }
+    }
+
+    public RateLimit getGlobalLimit() {
+        return this.globalLimit;
+    }
+
+    public RateLimit getClientLimit() {
+        return this.clientLimit;
+    }
+
+    /** The number of client buckets. */
+    public int getMaxClients() {
+        return this.clients.length();
+    }
+
+    /** The number of callbacks rejected by the global limit. */
+    public long getGlobalRejectionCount() {
+        return this.globalRejections.sum();
+    }
+
+    /** The number of callbacks rejected by their client's limit. */
+    public long getClientRejectionCount() {
+        return this.clientRejections.sum();
+    }
+
+    /**
+     * The number of client buckets reused before they had refilled, to make
+     * room for other clients.
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    private static final class Bucket {
+        final String client;
+        final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+
+        Bucket(String client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.util.Assert;
+
+/**
+ * Binds a {@link SecurityContext} for the duration of a task, which
+ * {@link ScopedSecurityContextHolderStrategy} then uses as the task's
+ * context.
+ *
+ * <p>This is a multi-release class. The version in the jar's
+ * {@code META-INF/versions/21} binds the context with a
+ * {@code java.lang.ScopedValue} where the runtime provides one; this version
+ * binds it with a {@link ThreadLocal}, which is restored when the task ends.
+ */
+public final class ScopedSecurityContext {
+
+    private static final ThreadLocal<SecurityContext> CONTEXT =
+        new ThreadLocal<>();
+
+    private ScopedSecurityContext() {}
+
+    /** Whether contexts are bound with a {@code ScopedValue}. */
+    public static boolean isScopedValue() {
+        return false;
+    }
+
+    /**
+     * @return The context bound by the innermost
+     *         {@link #run(SecurityContext, Runnable)} on this thread, or null.
+     */
+    public static SecurityContext get() {
+        return CONTEXT.get();
+    }
+
+    /** Run a task with a context bound. */
+    public static void run(SecurityContext context, Runnable task) {
+        Assert.notNull(context);
+        Assert.notNull(task);
+
+        SecurityContext previous = CONTEXT.get();
+        CONTEXT.set(context);
+        try {
+            task.run();
+        }
+        finally {
+            if(previous == null)
+                CONTEXT.remove();
+            else
+                CONTEXT.set(previous);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextHolderStrategy;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link SecurityContextHolderStrategy} which uses the context bound by
+ * {@link ScopedSecurityContext} unless one has been set explicitly.
+ *
+ * <p>Contexts set with {@link #setContext(SecurityContext)} are held in a
+ * {@link ThreadLocal}, as with the default strategy, and take precedence, so
+ * Spring Security's filters work unchanged. Tasks wrapped by
+ * {@link SecurityContextHandOff} read the bound context without copying it
+ * into a {@code ThreadLocal}, which matters when they run on one of many
+ * virtual threads. Install it with:
+ *
+ * <pre>
+ * SecurityContextHolder.setStrategyName(
+ *     ScopedSecurityContextHolderStrategy.class.getName());
+ * </pre>
+ */
+public final class ScopedSecurityContextHolderStrategy
+    implements SecurityContextHolderStrategy {
+
+    private static final ThreadLocal<SecurityContext> contextHolder =
+        new ThreadLocal<>();
+
+    /**
+     * Determine whether this is the strategy used by
+     * {@link SecurityContextHolder}.
+     */
+    public static boolean isInstalled() {
+        return SecurityContextHolder.getContextHolderStrategy()
+            instanceof ScopedSecurityContextHolderStrategy;
+    }
+
+    @Override
+    public void clearContext() {
+        contextHolder.remove();
+    }
+
+    @Override
+    public SecurityContext getContext() {
+        SecurityContext ctx = contextHolder.get();
+        if(ctx != null)
+            return ctx;
+
+        ctx = ScopedSecurityContext.get();
+        if(ctx != null)
+            return ctx;
+
+        ctx = createEmptyContext();
+        contextHolder.set(ctx);
+        return ctx;
+    }
+
+    @Override
+    public void setContext(SecurityContext context) {
+        Assert.notNull(context,
+                       "Only non-null SecurityContext instances are permitted");
+        contextHolder.set(context);
+    }
+
+    @Override
+    public SecurityContext createEmptyContext() {
+        return new SecurityContextImpl();
+    }
+}
@@ -0,0 +1,51 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.Assert;
+
+/**
+ * Hands the current {@link SecurityContext} to a task run on another thread.
+ *
+ * <p>When {@link ScopedSecurityContextHolderStrategy} is installed the context
+ * is bound with {@link ScopedSecurityContext} for the duration of the task.
+ * Otherwise it's set in the {@link SecurityContextHolder} and the task's
+ * thread's original context is restored afterwards, as Spring Security's
+ * {@code DelegatingSecurityContextRunnable} does.
+ */
+public final class SecurityContextHandOff {
+
+    private SecurityContextHandOff() {}
+
+    /** Wrap a task to run with the calling thread's current context. */
+    public static Runnable wrap(Runnable task) {
+        return wrap(SecurityContextHolder.getContext(), task);
+    }
+
+    /** Wrap a task to run with {@code context}. */
+    public static Runnable wrap(SecurityContext context, Runnable task) {
+        Assert.notNull(context);
+        Assert.notNull(task);
+
+        return () -> {
+            if(ScopedSecurityContextHolderStrategy.isInstalled()) {
+                ScopedSecurityContext.run(context, task);
+                return;
+            }
+
+            SecurityContext original = SecurityContextHolder.getContext();
+            SecurityContextHolder.setContext(context);
+            try {
+                task.run();
+            }
+            finally {
+                SecurityContext empty =
+                    SecurityContextHolder.createEmptyContext();
+                if(empty.equals(original))
+                    SecurityContextHolder.clearContext();
+                else
+                    SecurityContextHolder.setContext(original);
+            }
+        };
+    }
+}
@@ -0,0 +1,225 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.springframework.util.Assert;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * A bounded map whose values expire, shared by the library's in-memory caches
+ * and stores.
+ *
+ * <p>Entries are held in a fixed number of independently locked stripes,
+ * each a {@link LinkedHashMap} holding at most {@code maxEntries / stripes}
+ * entries. Each value's expiry time (in epoch milliseconds) is given by a
+ * function of the value, so it needn't be wrapped. If a stripe is full, the
+ * entry at its head is evicted to make room: the least recently added, or
+ * with access order the least recently used.
+ *
+ * <p>Expired entries are removed from the head of a stripe whenever it's
+ * accessed. That removes all of them when every entry has the same lifetime
+ * (so a stripe's insertion order is also its expiry order); otherwise an
+ * expired entry may remain until it's looked up or evicted, but is never
+ * returned.
+ *
+ * @param <K> The key type. Keys should have well distributed hash codes.
+ * @param <V> The value type.
+ */
+public final class StripedExpiringMap<K, V> {
+
+    public static final int DEFAULT_STRIPES = 16;
+
+    private final Stripe<K, V>[] stripes;
+    private final ToLongFunction<? super V> expiry;
+    private final int maxEntries;
+
+    private final LongAdder evictions = new LongAdder();
+
+    public StripedExpiringMap(int maxEntries, int stripes,
+                              ToLongFunction<? super V> expiry) {
+        this(maxEntries, stripes, false, expiry);
+    }
+
+    /**
+     * @param maxEntries The maximum number of entries, which is rounded down
+     *                   to a multiple of {@code stripes} (but at least one per
+     *                   stripe).
+     * @param stripes The number of stripes, a power of two.
+     * @param accessOrder Evict the least recently used entry, rather than the
+     *                    least recently added.
+     * @param expiry Gives the time at which a value expires, in epoch
+     *               milliseconds. Use {@code Long.MAX_VALUE} for values which
+     *               don't expire.
+     */
+    @SuppressWarnings("unchecked")
+    public StripedExpiringMap(int maxEntries, int stripes, boolean accessOrder,
+                              ToLongFunction<? super V> expiry) {
+        Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+        Assert.isTrue(stripes > 0 && Integer.bitCount(stripes) == 1,
+            "stripes must be a power of two");
+        Assert.notNull(expiry);
+
+        int stripeCapacity = Math.max(1, maxEntries / stripes);
+
+        this.stripes = new Stripe[stripes];
+        for(int i = 0; i < stripes; i++)
+            this.stripes[i] = new Stripe<>(stripeCapacity, accessOrder);
+
+        this.expiry = expiry;
+        this.maxEntries = stripeCapacity * stripes;
+    }
+
+    /** @return The key's unexpired value, or null. */
+    public V get(K key, long nowMillis) {
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            expire(stripe, nowMillis);
+            V value = stripe.entries.get(key);
+            if(value != null && this.expiry.applyAsLong(value) <= nowMillis) {
+                stripe.entries.remove(key);
+                return null;
+            }
+            return value;
+        }
+        finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Add a value unless the key has an unexpired one.
+     *
+     * @return true if the value was added.
+     */
+    public boolean putIfAbsent(K key, V value, long nowMillis) {
+        Assert.notNull(value);
+
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            expire(stripe, nowMillis);
+            V existing = stripe.entries.get(key);
+            if(existing != null &&
+               this.expiry.applyAsLong(existing) > nowMillis)
+                return false;
+
+            insert(stripe, key, value);
+            return true;
+        }
+        finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Add a value, replacing any the key has. The entry moves to the end of
+     * its stripe's order.
+     */
+    public void put(K key, V value, long nowMillis) {
+        Assert.notNull(value);
+
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            expire(stripe, nowMillis);
+            insert(stripe, key, value);
+        }
+        finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /** @return The key's unexpired value, which is removed, or null. */
+    public V remove(K key, long nowMillis) {
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            expire(stripe, nowMillis);
+            V value = stripe.entries.remove(key);
+            if(value != null && this.expiry.applyAsLong(value) <= nowMillis)
+                return null;
+            return value;
+        }
+        finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public void clear() {
+        for(Stripe<K, V> stripe : this.stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.entries.clear();
+            }
+            finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /** The maximum number of entries held, across all stripes. */
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /** The number of entries held, including any which have expired. */
+    public int size() {
+        int size = 0;
+        for(Stripe<K, V> stripe : this.stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.entries.size();
+            }
+            finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /** The number of entries removed to make room for others. */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    private void insert(Stripe<K, V> stripe, K key, V value) {
+        // Remove first so that the entry moves to the end of the order
+        stripe.entries.remove(key);
+        stripe.entries.put(key, value);
+
+        if(stripe.entries.size() > stripe.capacity) {
+            Iterator<?> eldest = stripe.entries.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+            this.evictions.increment();
+        }
+    }
+
+    private void expire(Stripe<K, V> stripe, long nowMillis) {
+        Iterator<V> it = stripe.entries.values().iterator();
+
+        while(it.hasNext() && this.expiry.applyAsLong(it.next()) <= nowMillis)
+            it.remove();
+    }
+
+    private Stripe<K, V> stripeFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return this.stripes[h & (this.stripes.length - 1)];
+    }
+
+    private static final class Stripe<K, V> {
+        final LinkedHashMap<K, V> entries;
+        final int capacity;
+        final ReentrantLock lock = new ReentrantLock();
+
+        Stripe(int capacity, boolean accessOrder) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, accessOrder);
+            this.capacity = capacity;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Reuses expensive, non thread-safe objects (such as {@code Signature} and
+ * {@code Mac} instances, and scratch buffers).
+ *
+ * <p>Platform threads each keep their own instance in a {@link ThreadLocal},
+ * as they're few and long-lived. Virtual threads are created per task, so a
+ * {@code ThreadLocal} would create an instance per task and never reuse it;
+ * they share a bounded pool instead.
+ *
+ * <p>Values must be {@link #release(Object) released} when no longer in use,
+ * or {@link #discard(Object) discarded} if they may be in an unusable state.
+ */
+public final class ThreadCache<T> {
+
+    /** The default maximum number of values pooled for virtual threads. */
+    public static final int DEFAULT_MAX_SHARED = 64;
+
+    private final Supplier<? extends T> factory;
+    private final ThreadLocal<T> local = new ThreadLocal<>();
+    private final BlockingQueue<T> shared;
+
+    public ThreadCache(Supplier<? extends T> factory) {
+        this(factory, DEFAULT_MAX_SHARED);
+    }
+
+    /**
+     * @param factory Creates values when none are cached.
+     * @param maxShared The maximum number of values pooled for virtual
+     *                  threads.
+     */
+    public ThreadCache(Supplier<? extends T> factory, int maxShared) {
+        Assert.notNull(factory);
+        Assert.isTrue(maxShared > 0, "maxShared must be > 0");
+
+        this.factory = factory;
+        this.shared = new ArrayBlockingQueue<>(maxShared);
+    }
+
+    /**
+     * Get a value for the current thread's exclusive use, creating one if none
+     * is cached.
+     */
+    public T acquire() {
+        T value;
+        if(VirtualThreads.isVirtual(Thread.currentThread())) {
+            value = this.shared.poll();
+        }
+        else {
+            value = this.local.get();
+            // Cleared while in use, so a re-entrant acquire() gets its own.
+            if(value != null)
+                this.local.remove();
+        }
+        return value != null ? value : create();
+    }
+
+    /** Return a value obtained from {@link #acquire()} for reuse. */
+    public void release(T value) {
+        Assert.notNull(value);
+
+        if(VirtualThreads.isVirtual(Thread.currentThread()))
+            this.shared.offer(value);
+        else
+            this.local.set(value);
+    }
+
+    /**
+     * Drop a value obtained from {@link #acquire()} rather than reusing it.
+     * The next {@code acquire()} creates a new one.
+     */
+    public void discard(T value) {
+        Assert.notNull(value);
+    }
+
+    private T create() {
+        T value = this.factory.get();
+        Assert.state(value != null, "factory returned null");
+        return value;
+    }
+}
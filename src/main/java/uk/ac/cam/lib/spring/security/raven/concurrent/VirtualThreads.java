@@ -0,0 +1,42 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads from code compiled for Java 8.
+ *
+ * <p>This is a multi-release class. On Java 21 and later the version in the
+ * jar's {@code META-INF/versions/21} is used, which supports virtual threads;
+ * this version, used on earlier versions of Java, reports that they're not
+ * available.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    /** Whether this version of Java supports virtual threads. */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /** Whether {@code thread} is a virtual thread. */
+    public static boolean isVirtual(Thread thread) {
+        Assert.notNull(thread);
+        return false;
+    }
+
+    /**
+     * Create an executor which runs each task on a new virtual thread.
+     *
+     * @param name The prefix of the threads' names.
+     * @throws UnsupportedOperationException if virtual threads are not
+     *         supported.
+     */
+    public static ExecutorService newExecutor(String name) {
+        Assert.hasText(name);
+        throw new UnsupportedOperationException(
+            "Virtual threads require Java 21 or later");
+    }
+}
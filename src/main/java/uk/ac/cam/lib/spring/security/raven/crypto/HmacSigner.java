@@ -0,0 +1,184 @@
+package uk.ac.cam.lib.spring.security.raven.crypto;
+
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.concurrent.ThreadCache;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Computes and checks HMACs with a fixed key.
+ *
+ * <p>{@link Mac} instances are not thread-safe and are relatively expensive
+ * to create, so they're reused (see {@link ThreadCache}), each cloned (where
+ * the provider supports it) from one initialised with the key, so the key is
+ * only processed once. MACs are compared in constant time, and
+ * {@link #verify(byte[], int, int, byte[], int)} compares against a reused
+ * buffer, so verifying doesn't allocate.
+ */
+public final class HmacSigner {
+
+    public static final String DEFAULT_ALGORITHM = "HmacSHA256";
+
+    /** Keys shorter than this are rejected. */
+    public static final int MIN_KEY_LENGTH = 16;
+
+    private final SecretKeySpec key;
+    private final int macLength;
+    private final Mac prototype;
+    private final ReentrantLock prototypeLock = new ReentrantLock();
+    private final ThreadCache<State> states;
+
+    public HmacSigner(byte[] key) {
+        this(key, DEFAULT_ALGORITHM);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is too short, or the
+     *         algorithm is not supported.
+     */
+    public HmacSigner(byte[] key, String algorithm) {
+        Assert.notNull(key);
+        Assert.hasText(algorithm);
+        Assert.isTrue(key.length >= MIN_KEY_LENGTH, String.format(
+            "key must be at least %d bytes", MIN_KEY_LENGTH));
+
+        this.key = new SecretKeySpec(Arrays.copyOf(key, key.length), algorithm);
+
+        // Fail now rather than on first use if the algorithm or key is bad
+        this.prototype = createMac(this.key);
+        this.macLength = this.prototype.getMacLength();
+        this.states = new ThreadCache<>(() -> new State(this.newMac()));
+    }
+
+    private Mac newMac() {
+        this.prototypeLock.lock();
+        try {
+            try {
+                return (Mac)this.prototype.clone();
+            }
+            catch(CloneNotSupportedException e) {
+                return createMac(this.key);
+            }
+        }
+        finally {
+            this.prototypeLock.unlock();
+        }
+    }
+
+    private static Mac createMac(SecretKeySpec key) {
+        try {
+            Mac mac = Mac.getInstance(key.getAlgorithm());
+            mac.init(key);
+            return mac;
+        }
+        catch(NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalArgumentException(
+                "Unable to create Mac for algorithm: " + key.getAlgorithm(), e);
+        }
+    }
+
+    public String getAlgorithm() {
+        return this.key.getAlgorithm();
+    }
+
+    /** The length in bytes of the MACs produced. */
+    public int getMacLength() {
+        return this.macLength;
+    }
+
+    public byte[] sign(byte[] data) {
+        return sign(data, 0, data.length);
+    }
+
+    public byte[] sign(byte[] data, int offset, int length) {
+        State state = this.states.acquire();
+        try {
+            state.mac.update(data, offset, length);
+            return state.mac.doFinal();
+        }
+        finally {
+            this.states.release(state);
+        }
+    }
+
+    /**
+     * Sign data, writing the MAC into {@code out} at {@code outOffset}.
+     */
+    public void sign(byte[] data, int offset, int length,
+                     byte[] out, int outOffset) {
+        State state = this.states.acquire();
+        try {
+            state.mac.update(data, offset, length);
+            state.mac.doFinal(out, outOffset);
+        }
+        catch(GeneralSecurityException e) {
+            // The Mac is left part way through an operation
+            this.states.discard(state);
+            throw new IllegalArgumentException("MAC doesn't fit in output", e);
+        }
+        this.states.release(state);
+    }
+
+    public boolean verify(byte[] data, byte[] expectedMac) {
+        return verify(data, 0, data.length, expectedMac);
+    }
+
+    /**
+     * @return true if {@code expectedMac} is the MAC of the data.
+     */
+    public boolean verify(byte[] data, int offset, int length,
+                          byte[] expectedMac) {
+        Assert.notNull(expectedMac);
+
+        return MessageDigest.isEqual(sign(data, offset, length), expectedMac);
+    }
+
+    /**
+     * Check the MAC of a range of {@code data} against the
+     * {@link #getMacLength()} bytes of {@code mac} at {@code macOffset},
+     * without allocating.
+     *
+     * @return true if the MACs match. False if they don't, or if
+     *         {@code mac} holds fewer than {@link #getMacLength()} bytes after
+     *         {@code macOffset}.
+     */
+    public boolean verify(byte[] data, int offset, int length,
+                          byte[] mac, int macOffset) {
+        if(macOffset < 0 || mac.length - macOffset < this.macLength)
+            return false;
+
+        State state = this.states.acquire();
+        try {
+            state.mac.update(data, offset, length);
+            state.mac.doFinal(state.scratch, 0);
+
+            int difference = 0;
+            for(int i = 0; i < this.macLength; i++)
+                difference |= state.scratch[i] ^ mac[macOffset + i];
+            return difference == 0;
+        }
+        catch(GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        finally {
+            this.states.release(state);
+        }
+    }
+
+    private static final class State {
+        final Mac mac;
+        final byte[] scratch;
+
+        State(Mac mac) {
+            this.mac = mac;
+            this.scratch = new byte[mac.getMacLength()];
+        }
+    }
+}
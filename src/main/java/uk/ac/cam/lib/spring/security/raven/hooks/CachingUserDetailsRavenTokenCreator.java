@@ -0,0 +1,296 @@
+package uk.ac.cam.lib.spring.security.raven.hooks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.concurrent.StripedExpiringMap;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link UserDetailsRavenTokenCreator} which caches the UserDetails it loads.
+ *
+ * <p>Users are cached for a fixed TTL after being loaded. Usernames which the
+ * {@link UserDetailsService} reports as unknown (by throwing
+ * {@link UsernameNotFoundException}) are also cached, normally for a shorter
+ * time. Other exceptions are not cached.
+ *
+ * <p>If a refresh executor is set, a user who logs in after their entry has
+ * reached the refresh age (but before it expires) is reloaded in the
+ * background using the executor, while the cached details are used for the
+ * login. Frequently seen users therefore stay cached without their logins
+ * waiting on the UserDetailsService. If the reload fails, the existing entry
+ * is kept until it expires.
+ *
+ * <p>Entries are held in a {@link StripedExpiringMap} of at most
+ * {@code maxEntries}, which evicts the least recently loaded users to make
+ * room.
+ *
+ * <p>The same UserDetails instance is used for every login of a user while
+ * it's cached, so it should not be modified. In particular, if the
+ * UserDetails implement
+ * {@link org.springframework.security.core.CredentialsContainer}, the
+ * {@link org.springframework.security.authentication.ProviderManager} erasing
+ * credentials after authentication will erase them in the cached instance.
+ * Raven logins don't use the UserDetails' password, so this is normally
+ * harmless.
+ */
+public class CachingUserDetailsRavenTokenCreator
+    extends UserDetailsRavenTokenCreator {
+
+    private static final Log logger =
+        LogFactory.getLog(CachingUserDetailsRavenTokenCreator.class);
+
+    public static final int DEFAULT_STRIPES =
+        StripedExpiringMap.DEFAULT_STRIPES;
+    public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofSeconds(10);
+
+    private final StripedExpiringMap<String, Entry> entries;
+    private final long ttlMillis;
+    private long negativeTtlMillis;
+    private long refreshAfterMillis;
+    private Executor refreshExecutor;
+    private Clock clock = Clock.systemUTC();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder failedRefreshes = new LongAdder();
+
+    public CachingUserDetailsRavenTokenCreator(
+        UserDetailsService userDetailsService, Duration ttl, int maxEntries) {
+
+        this(userDetailsService, ttl, maxEntries, DEFAULT_STRIPES);
+    }
+
+    public CachingUserDetailsRavenTokenCreator(
+        UserDetailsService userDetailsService, Duration ttl, int maxEntries,
+        int stripes) {
+
+        super(userDetailsService);
+
+        Assert.notNull(ttl);
+        Assert.isTrue(!ttl.isNegative() && !ttl.isZero(),
+            "ttl must be positive");
+
+        this.entries = new StripedExpiringMap<>(
+            maxEntries, stripes, entry -> entry.expires);
+        this.ttlMillis = ttl.toMillis();
+        this.negativeTtlMillis = Math.min(
+            this.ttlMillis, DEFAULT_NEGATIVE_TTL.toMillis());
+        this.refreshAfterMillis = this.ttlMillis * 3 / 4;
+    }
+
+    /**
+     * @param negativeTtl How long unknown usernames are cached for. Zero
+     *                    disables caching of unknown usernames. Defaults to
+     *                    the lesser of {@link #DEFAULT_NEGATIVE_TTL} and the
+     *                    TTL.
+     */
+    public void setNegativeTtl(Duration negativeTtl) {
+        Assert.notNull(negativeTtl);
+        Assert.isTrue(!negativeTtl.isNegative(),
+            "negativeTtl must not be negative");
+
+        this.negativeTtlMillis = negativeTtl.toMillis();
+    }
+
+    public Duration getNegativeTtl() {
+        return Duration.ofMillis(this.negativeTtlMillis);
+    }
+
+    /**
+     * @param refreshExecutor The executor used to reload users in the
+     *                        background, or null to disable refresh-ahead (the
+     *                        default).
+     */
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public Executor getRefreshExecutor() {
+        return this.refreshExecutor;
+    }
+
+    /**
+     * @param refreshAfter The age at which a cached user is reloaded in the
+     *                     background when they next log in. Must be less than
+     *                     the TTL. Defaults to three quarters of the TTL.
+     */
+    public void setRefreshAfter(Duration refreshAfter) {
+        Assert.notNull(refreshAfter);
+        Assert.isTrue(!refreshAfter.isNegative() &&
+                      refreshAfter.toMillis() < this.ttlMillis,
+            "refreshAfter must be non-negative and less than the ttl");
+
+        this.refreshAfterMillis = refreshAfter.toMillis();
+    }
+
+    public Duration getRefreshAfter() {
+        return Duration.ofMillis(this.refreshAfterMillis);
+    }
+
+    public void setClock(Clock clock) {
+        Assert.notNull(clock);
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return this.clock;
+    }
+
+    public Duration getTtl() {
+        return Duration.ofMillis(this.ttlMillis);
+    }
+
+    @Override
+    protected UserDetails loadUserDetails(String username)
+        throws UsernameNotFoundException {
+
+        long now = this.clock.millis();
+        Entry entry = this.entries.get(username, now);
+        if(entry == null) {
+            this.misses.increment();
+            return this.load(username, now);
+        }
+
+        if(entry.notFound != null) {
+            this.negativeHits.increment();
+            throw new UsernameNotFoundException(
+                entry.notFound.getMessage(), entry.notFound);
+        }
+
+        this.hits.increment();
+        if(now - entry.loaded >= this.refreshAfterMillis)
+            this.refreshAhead(username, entry);
+
+        return entry.details;
+    }
+
+    private UserDetails load(String username, long now) {
+        UserDetails details;
+        try {
+            details = super.loadUserDetails(username);
+        }
+        catch(UsernameNotFoundException e) {
+            if(this.negativeTtlMillis > 0) {
+                this.entries.put(username, new Entry(
+                    null, e, now, now + this.negativeTtlMillis), now);
+            }
+            throw e;
+        }
+
+        Assert.notNull(details, "UserDetailsService returned null");
+        this.entries.put(username,
+                         new Entry(details, null, now, now + this.ttlMillis),
+                         now);
+        return details;
+    }
+
+    private void refreshAhead(String username, Entry entry) {
+        Executor executor = this.refreshExecutor;
+        if(executor == null || !entry.refreshing.compareAndSet(false, true))
+            return;
+
+        try {
+            executor.execute(() -> this.refresh(username));
+        }
+        catch(RejectedExecutionException e) {
+            // Allow a later login to try again
+            entry.refreshing.set(false);
+            this.failedRefreshes.increment();
+        }
+    }
+
+    private void refresh(String username) {
+        this.refreshes.increment();
+        try {
+            this.load(username, this.clock.millis());
+        }
+        catch(UsernameNotFoundException e) {
+            // The user has been removed; load() has replaced their entry
+        }
+        catch(RuntimeException e) {
+            this.failedRefreshes.increment();
+            logger.warn("Failed to refresh UserDetails of " + username, e);
+        }
+    }
+
+    /**
+     * Remove a user from the cache, so that their next login loads them.
+     */
+    public void invalidate(String username) {
+        this.entries.remove(username, this.clock.millis());
+    }
+
+    public void invalidateAll() {
+        this.entries.clear();
+    }
+
+    /** The maximum number of users held, across all stripes. */
+    public int getMaxEntries() {
+        return this.entries.getMaxEntries();
+    }
+
+    /** The number of users held, including any which have expired. */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /** The number of logins which used cached UserDetails. */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /** The number of logins rejected because of a cached unknown username. */
+    public long getNegativeHitCount() {
+        return this.negativeHits.sum();
+    }
+
+    /** The number of logins which called the UserDetailsService. */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /** The number of background reloads started. */
+    public long getRefreshCount() {
+        return this.refreshes.sum();
+    }
+
+    /**
+     * The number of background reloads which failed or couldn't be scheduled.
+     */
+    public long getFailedRefreshCount() {
+        return this.failedRefreshes.sum();
+    }
+
+    /** The number of unexpired users removed to make room for others. */
+    public long getEvictionCount() {
+        return this.entries.getEvictionCount();
+    }
+
+    private static final class Entry {
+        final UserDetails details;
+        final UsernameNotFoundException notFound;
+        final long loaded;
+        final long expires;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(UserDetails details, UsernameNotFoundException notFound,
+              long loaded, long expires) {
+            this.details = details;
+            this.notFound = notFound;
+            this.loaded = loaded;
+            this.expires = expires;
+        }
+    }
+}
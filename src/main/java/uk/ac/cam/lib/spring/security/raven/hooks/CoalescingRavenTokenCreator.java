@@ -0,0 +1,165 @@
+package uk.ac.cam.lib.spring.security.raven.hooks;
+
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.core.Authentication;
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.AuthenticatedRavenTokenCreator;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link AuthenticatedRavenTokenCreator} which shares one call of another
+ * creator between concurrent logins of the same user.
+ *
+ * <p>The first login of a user calls the delegate. Logins of the same user
+ * which arrive while that call is in progress wait (for at most the maximum
+ * wait) for it to finish, rather than calling the delegate themselves. Each
+ * waiting login's token is then authenticated with the principal and
+ * authorities of the delegate's result. If the delegate throws an exception,
+ * every waiting login throws the same exception.
+ *
+ * <p>As waiting logins don't receive the delegate's Authentication itself,
+ * this is only suitable for creators whose result is fully described by its
+ * principal and authorities, such as {@link UserDetailsRavenTokenCreator}.
+ */
+public class CoalescingRavenTokenCreator
+    implements AuthenticatedRavenTokenCreator {
+
+    public static final Duration DEFAULT_MAX_WAIT = Duration.ofSeconds(5);
+
+    private final AuthenticatedRavenTokenCreator delegate;
+    private final long maxWaitNanos;
+    private final ConcurrentMap<String, CompletableFuture<Authentication>>
+        inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public CoalescingRavenTokenCreator(
+        AuthenticatedRavenTokenCreator delegate) {
+
+        this(delegate, DEFAULT_MAX_WAIT);
+    }
+
+    public CoalescingRavenTokenCreator(
+        AuthenticatedRavenTokenCreator delegate, Duration maxWait) {
+
+        Assert.notNull(delegate);
+        Assert.notNull(maxWait);
+        Assert.isTrue(!maxWait.isNegative() && !maxWait.isZero(),
+            "maxWait must be positive");
+
+        this.delegate = delegate;
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    public AuthenticatedRavenTokenCreator getDelegate() {
+        return this.delegate;
+    }
+
+    public Duration getMaxWait() {
+        return Duration.ofNanos(this.maxWaitNanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws AuthenticationServiceException if the login waited for another
+     *         login's call to the delegate for longer than the maximum wait,
+     *         or was interrupted while waiting.
+     */
+    @Override
+    public Authentication createAuthenticatedToken(
+        RavenAuthenticationToken validatedToken) {
+
+        Assert.isTrue(!validatedToken.isAuthenticated());
+
+        String username = this.getUsername(validatedToken);
+        CompletableFuture<Authentication> call = new CompletableFuture<>();
+        CompletableFuture<Authentication> existing =
+            this.inFlight.putIfAbsent(username, call);
+
+        if(existing == null)
+            return this.callDelegate(username, call, validatedToken);
+
+        this.coalesced.increment();
+        Authentication result = this.await(username, existing);
+        return validatedToken.authenticate(
+            result.getPrincipal(), result.getAuthorities());
+    }
+
+    private Authentication callDelegate(
+        String username, CompletableFuture<Authentication> call,
+        RavenAuthenticationToken validatedToken) {
+
+        try {
+            Authentication result =
+                this.delegate.createAuthenticatedToken(validatedToken);
+            call.complete(result);
+            return result;
+        }
+        catch(RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            this.inFlight.remove(username, call);
+        }
+    }
+
+    private Authentication await(
+        String username, CompletableFuture<Authentication> call) {
+
+        try {
+            return call.get(this.maxWaitNanos, TimeUnit.NANOSECONDS);
+        }
+        catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            if(cause instanceof Error)
+                throw (Error)cause;
+            throw new AuthenticationServiceException(
+                "Failed to create token for " + username, cause);
+        }
+        catch(TimeoutException e) {
+            this.timeouts.increment();
+            throw new AuthenticationServiceException(
+                "Timed out waiting for another login of " + username, e);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationServiceException(
+                "Interrupted waiting for another login of " + username, e);
+        }
+    }
+
+    /**
+     * Get the username which identifies logins of the same user. Can be
+     * overridden by subclasses.
+     *
+     * This implementation returns the string representation of the token's
+     * principal (the user's CRSid).
+     */
+    protected String getUsername(RavenAuthenticationToken token) {
+        return token.getPrincipal().toString();
+    }
+
+    /** The number of logins which waited for another login's result. */
+    public long getCoalescedCount() {
+        return this.coalesced.sum();
+    }
+
+    /** The number of logins which gave up waiting for another login. */
+    public long getTimeoutCount() {
+        return this.timeouts.sum();
+    }
+}
@@ -1,14 +1,19 @@
 package uk.ac.cam.lib.spring.security.raven.hooks;
 
 import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.OriginalRequestView;
 import uk.ac.cam.lib.spring.security.raven.RavenRequestCreator;
 import uk.ac.cam.ucs.webauth.WebauthRequest;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
@@ -18,14 +23,60 @@ import java.util.stream.Collectors;
 import static uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator.Builder.DEFAULT_VERSION;
 
 
+/**
+ * A {@link RavenRequestCreator} which sets each Raven request parameter either
+ * to a fixed value or to the result of a {@link PerRequestParamProducer}.
+ * Producers which only need the URL, parameters or headers of the request
+ * can implement {@link ViewParamProducer} (see
+ * {@link Builder#withViewValue(RequestParam, ViewParamProducer)}), so that
+ * reconstructing a request on the Raven callback works directly from the
+ * saved request.
+ *
+ * <p>The parameters are compiled into a plan when the creator is constructed.
+ * Fixed values are validated, converted to strings and URL-encoded once, so
+ * only the per-request producers run (and are validated) for each request.
+ * If every parameter is fixed, a single prebuilt request is returned for every
+ * call. It can't be modified, and its {@code date} is the time the creator was
+ * constructed (the WLS ignores {@code date} in protocol version 3).
+ */
 public class DefaultRavenRequestCreator implements RavenRequestCreator {
 
     @FunctionalInterface
     public interface PerRequestParamProducer {
         Object getRequestValue(RequestParam param, HttpServletRequest request);
+
+        /**
+         * Produce the value for a view of the original request. The default
+         * implementation calls
+         * {@link #getRequestValue(RequestParam, HttpServletRequest)} with
+         * {@link OriginalRequestView#toServletRequest()}.
+         */
+        default Object getRequestValue(RequestParam param,
+                                       OriginalRequestView request) {
+            return this.getRequestValue(param, request.toServletRequest());
+        }
+    }
+
+    /**
+     * A {@link PerRequestParamProducer} which only needs an
+     * {@link OriginalRequestView}, so reconstructing the login request for a
+     * callback doesn't create a servlet request from the saved request.
+     */
+    @FunctionalInterface
+    public interface ViewParamProducer extends PerRequestParamProducer {
+        @Override
+        Object getRequestValue(RequestParam param,
+                               OriginalRequestView request);
+
+        @Override
+        default Object getRequestValue(RequestParam param,
+                                       HttpServletRequest request) {
+            return this.getRequestValue(param, OriginalRequestView.of(request));
+        }
     }
 
     private final Map<RequestParam, PerRequestParamProducer> valueProducers;
+    private final RequestPlan plan;
 
     public static DefaultRavenRequestCreator fromFixedValues(Map<RequestParam, Object> values) {
         Assert.notNull(values);
@@ -52,10 +103,11 @@ public class DefaultRavenRequestCreator implements RavenRequestCreator {
         this.valueProducers = Collections.unmodifiableMap(
             new EnumMap<>(valueProducers));
         validate();
+        this.plan = new RequestPlan(this.valueProducers);
     }
 
     private static PerRequestParamProducer staticProducer(Object value) {
-        return (p, r) -> value;
+        return new StaticValue(value);
     }
 
     private void validate() {
@@ -67,10 +119,24 @@ public class DefaultRavenRequestCreator implements RavenRequestCreator {
 
     @Override
     public WebauthRequest createLoginRequest(HttpServletRequest httpRequest) {
-        WebauthRequest request = new WebauthRequest();
+        if(this.plan.prebuilt != null)
+            return this.plan.prebuilt;
+
+        return this.createLoginRequest(OriginalRequestView.of(httpRequest));
+    }
+
+    @Override
+    public WebauthRequest createLoginRequest(OriginalRequestView originalRequest) {
+        if(this.plan.prebuilt != null)
+            return this.plan.prebuilt;
+
+        PlannedRequest request = new PlannedRequest(this.plan);
+        RequestParam[] params = this.plan.dynamicParams;
+        PerRequestParamProducer[] producers = this.plan.dynamicProducers;
 
-        this.valueProducers.forEach((param, valueProducer) -> {
-            Object value = valueProducer.getRequestValue(param, httpRequest);
+        for(int i = 0; i < params.length; i++) {
+            RequestParam param = params[i];
+            Object value = producers[i].getRequestValue(param, originalRequest);
 
             try {
                 param.validate(value);
@@ -81,9 +147,8 @@ public class DefaultRavenRequestCreator implements RavenRequestCreator {
                     "%s: %s - %s", param, value, e.getMessage()), e);
             }
 
-            request.set(param.name(), value.toString());
-        });
-
+            request.setDynamic(i, value.toString());
+        }
 
         return request;
     }
@@ -144,11 +209,188 @@ public class DefaultRavenRequestCreator implements RavenRequestCreator {
             return this;
         }
 
+        /**
+         * Set a parameter's value with a producer which only uses a view of
+         * the request.
+         */
+        public Builder withViewValue(
+            RequestParam param, ViewParamProducer producer) {
+
+            return this.withDynamicValue(param, producer);
+        }
+
         public DefaultRavenRequestCreator build() {
             return new DefaultRavenRequestCreator(this.valueProducers);
         }
     }
 
+    private static final class StaticValue implements ViewParamProducer {
+        private final Object value;
+
+        StaticValue(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object getRequestValue(
+            RequestParam param, OriginalRequestView request) {
+
+            return this.value;
+        }
+    }
+
+    /**
+     * The compiled form of a creator's parameters.
+     */
+    private static final class RequestPlan {
+        final RequestParam[] staticParams;
+        final String[] staticValues;
+        final String encodedStaticQuery;
+
+        final RequestParam[] dynamicParams;
+        final PerRequestParamProducer[] dynamicProducers;
+
+        final PlannedRequest prebuilt;
+
+        RequestPlan(Map<RequestParam, PerRequestParamProducer> producers) {
+            List<RequestParam> staticParams = new ArrayList<>();
+            List<String> staticValues = new ArrayList<>();
+            List<RequestParam> dynamicParams = new ArrayList<>();
+            List<PerRequestParamProducer> dynamicProducers = new ArrayList<>();
+
+            producers.forEach((param, producer) -> {
+                if(producer instanceof StaticValue) {
+                    Object value = ((StaticValue)producer).value;
+                    try {
+                        param.validate(value);
+                    }
+                    catch(IllegalArgumentException e) {
+                        throw new IllegalArgumentException(String.format(
+                            "Invalid value for key %s: %s - %s",
+                            param, value, e.getMessage()), e);
+                    }
+
+                    staticParams.add(param);
+                    staticValues.add(value.toString());
+                }
+                else {
+                    dynamicParams.add(param);
+                    dynamicProducers.add(producer);
+                }
+            });
+
+            this.staticParams = staticParams.toArray(new RequestParam[0]);
+            this.staticValues = staticValues.toArray(new String[0]);
+            this.dynamicParams = dynamicParams.toArray(new RequestParam[0]);
+            this.dynamicProducers = dynamicProducers.toArray(
+                new PerRequestParamProducer[0]);
+
+            StringBuilder query = new StringBuilder();
+            for(int i = 0; i < this.staticParams.length; i++)
+                appendParam(query, this.staticParams[i].name(),
+                            this.staticValues[i]);
+            this.encodedStaticQuery = query.toString();
+
+            this.prebuilt = this.dynamicParams.length == 0
+                ? new PlannedRequest(this).freeze() : null;
+        }
+    }
+
+    private static void appendParam(
+        StringBuilder query, String name, String value) {
+
+        if(query.length() > 0)
+            query.append('&');
+
+        try {
+            query.append(name).append('=')
+                .append(URLEncoder.encode(value, "UTF-8"));
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new AssertionError("Won't happen", e);
+        }
+    }
+
+    /**
+     * A WebauthRequest created from a {@link RequestPlan}, which uses the
+     * plan's pre-encoded fixed values when generating its query string.
+     */
+    private static final class PlannedRequest extends WebauthRequest {
+        private final RequestPlan plan;
+        private final String[] dynamicValues;
+        private boolean modified;
+        private boolean frozen;
+        private String query;
+
+        PlannedRequest(RequestPlan plan) {
+            this.plan = plan;
+            this.dynamicValues = new String[plan.dynamicParams.length];
+
+            for(int i = 0; i < plan.staticParams.length; i++)
+                super.set(plan.staticParams[i].name(), plan.staticValues[i]);
+        }
+
+        PlannedRequest freeze() {
+            this.query = this.toQString();
+            this.frozen = true;
+            return this;
+        }
+
+        void setDynamic(int index, String value) {
+            this.dynamicValues[index] = value;
+            super.set(this.plan.dynamicParams[index].name(), value);
+        }
+
+        @Override
+        public void set(String key, String value) {
+            if(this.frozen) {
+                throw new UnsupportedOperationException(
+                    "Requests shared by DefaultRavenRequestCreator can't be " +
+                    "modified");
+            }
+
+            // The WebauthRequest constructor sets values before our fields
+            // are initialised, so only later calls count as modifications.
+            if(this.plan != null)
+                this.modified = true;
+            super.set(key, value);
+        }
+
+        @Override
+        public void clear() {
+            if(this.frozen) {
+                throw new UnsupportedOperationException(
+                    "Requests shared by DefaultRavenRequestCreator can't be " +
+                    "modified");
+            }
+
+            this.modified = true;
+            this.query = null;
+            super.clear();
+        }
+
+        @Override
+        public String toQString() {
+            if(this.query != null)
+                return this.query;
+            if(this.modified)
+                return super.toQString();
+
+            StringBuilder query = new StringBuilder(
+                this.plan.encodedStaticQuery);
+            for(int i = 0; i < this.dynamicValues.length; i++) {
+                appendParam(query, this.plan.dynamicParams[i].name(),
+                            this.dynamicValues[i]);
+            }
+
+            String date = this.get("date");
+            if(date != null)
+                appendParam(query, "date", date);
+
+            return query.toString();
+        }
+    }
+
     public enum RequestParam {
         ver(true, RequestParam::requireInt),
         url(true),
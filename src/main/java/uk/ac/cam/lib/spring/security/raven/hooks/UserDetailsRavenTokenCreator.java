@@ -4,6 +4,7 @@ package uk.ac.cam.lib.spring.security.raven.hooks;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.util.Assert;
 import uk.ac.cam.lib.spring.security.raven.AuthenticatedRavenTokenCreator;
 import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
@@ -34,12 +35,29 @@ public class UserDetailsRavenTokenCreator
 
         Assert.isTrue(!validatedToken.isAuthenticated());
 
-        UserDetails details = getUserDetailsService().loadUserByUsername(
+        UserDetails details = this.loadUserDetails(
             this.getUsername(validatedToken));
 
         return this.createTokenFromUserDetails(validatedToken, details);
     }
 
+    /**
+     * Get the UserDetails for a username. Can be overridden by subclasses to
+     * change how users are looked up.
+     *
+     * This implementation calls the {@link UserDetailsService}.
+     *
+     * @param username The username returned by
+     *                 {@link #getUsername(RavenAuthenticationToken)}.
+     * @return The user's details.
+     * @throws UsernameNotFoundException if the user is not known.
+     */
+    protected UserDetails loadUserDetails(String username)
+        throws UsernameNotFoundException {
+
+        return getUserDetailsService().loadUserByUsername(username);
+    }
+
     /**
      * Get the username from the token. Can be overridden by subclasses to
      * modify usernames.
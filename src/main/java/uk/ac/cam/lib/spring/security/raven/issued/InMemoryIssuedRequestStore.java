@@ -0,0 +1,141 @@
+package uk.ac.cam.lib.spring.security.raven.issued;
+
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationEntryPoint;
+import uk.ac.cam.lib.spring.security.raven.concurrent.StripedExpiringMap;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, time-expiring store of issued Raven requests.
+ *
+ * <p>Requests are stored as an array of the values of their
+ * {@link RavenAuthenticationEntryPoint#REQUEST_FIELDS fields}. Values which
+ * are the same for every request (typically {@code ver}, {@code url} and
+ * {@code desc}) are shared with the request they were copied from, so an
+ * entry costs little more than its nonce and date. Requests with fields
+ * outside the protocol aren't stored.
+ *
+ * <p>Requests are held in a {@link StripedExpiringMap} of at most
+ * {@code maxEntries}, and expire {@code ttl} after they're stored. The TTL
+ * should be longer than users are expected to take to log in, but requests
+ * which expire or are evicted are simply recreated.
+ */
+public class InMemoryIssuedRequestStore implements IssuedRequestStore {
+
+    public static final int DEFAULT_STRIPES =
+        StripedExpiringMap.DEFAULT_STRIPES;
+
+    private static final List<String> FIELDS =
+        RavenAuthenticationEntryPoint.REQUEST_FIELDS;
+
+    private final StripedExpiringMap<String, Entry> entries;
+    private final long ttlMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public InMemoryIssuedRequestStore(int maxEntries, Duration ttl) {
+        this(maxEntries, ttl, DEFAULT_STRIPES);
+    }
+
+    public InMemoryIssuedRequestStore(
+        int maxEntries, Duration ttl, int stripes) {
+
+        Assert.notNull(ttl);
+        Assert.isTrue(!ttl.isNegative() && !ttl.isZero(),
+            "ttl must be positive");
+
+        this.entries = new StripedExpiringMap<>(
+            maxEntries, stripes, entry -> entry.expires);
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    @Override
+    public boolean put(String nonce, WebauthRequest request, Instant now) {
+        Assert.notNull(nonce);
+        Assert.notNull(request);
+
+        String[] values = new String[FIELDS.size()];
+        int fieldCount = 0;
+        for(int i = 0; i < values.length; i++) {
+            values[i] = request.get(FIELDS.get(i));
+            if(values[i] != null)
+                fieldCount++;
+        }
+        if(fieldCount != request.length())
+            return false;
+
+        long nowMillis = now.toEpochMilli();
+        this.entries.put(
+            nonce, new Entry(nowMillis + this.ttlMillis, values), nowMillis);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Counts as a hit if a request is returned, otherwise a miss.
+     */
+    @Override
+    public WebauthRequest take(String nonce, Instant now) {
+        Assert.notNull(nonce);
+
+        Entry entry = this.entries.remove(nonce, now.toEpochMilli());
+        if(entry == null) {
+            this.misses.increment();
+            return null;
+        }
+        this.hits.increment();
+
+        WebauthRequest request = new WebauthRequest();
+        for(int i = 0; i < entry.values.length; i++) {
+            if(entry.values[i] != null)
+                request.set(FIELDS.get(i), entry.values[i]);
+        }
+        return request;
+    }
+
+    public Duration getTtl() {
+        return Duration.ofMillis(this.ttlMillis);
+    }
+
+    /** The maximum number of requests held, across all stripes. */
+    public int getMaxEntries() {
+        return this.entries.getMaxEntries();
+    }
+
+    /** The number of requests held, including any which have expired. */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /** The number of requests taken from the store. */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /** The number of nonces which weren't found (or had expired). */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /** The number of requests removed before expiring to make room. */
+    public long getEvictionCount() {
+        return this.entries.getEvictionCount();
+    }
+
+    private static final class Entry {
+        final long expires;
+        final String[] values;
+
+        Entry(long expires, String[] values) {
+            this.expires = expires;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package uk.ac.cam.lib.spring.security.raven.issued;
+
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationEntryPoint;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.time.Instant;
+
+/**
+ * Holds the Raven requests issued by {@link RavenAuthenticationEntryPoint},
+ * keyed by the nonce sent in their {@code params} field, so that
+ * {@link RavenAuthenticationFilter} can use the request which was actually
+ * sent rather than creating it again when the response comes back.
+ *
+ * <p>A store is only an optimisation: the filter recreates the request if its
+ * nonce isn't found, so implementations may forget requests whenever they
+ * like, and decline to store them at all. They must be safe to call from
+ * multiple threads.
+ */
+public interface IssuedRequestStore {
+
+    /**
+     * Remember an issued request.
+     *
+     * @param nonce The value of the request's {@code params} field.
+     * @param request The request. Later changes to it must not affect the
+     *                stored copy.
+     * @param now The time the request was issued.
+     * @return true if the request was stored.
+     */
+    boolean put(String nonce, WebauthRequest request, Instant now);
+
+    /**
+     * Remove and return an issued request. A request can only be taken once.
+     *
+     * @param nonce The value of the response's {@code params} field.
+     * @param now The time the response was received.
+     * @return A copy of the request, or null if no unexpired request was
+     *         stored with the nonce.
+     */
+    WebauthRequest take(String nonce, Instant now);
+}
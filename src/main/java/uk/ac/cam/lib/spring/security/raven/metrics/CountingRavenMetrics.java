@@ -0,0 +1,164 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.util.Assert;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link RavenMetrics} which keeps running totals using {@link LongAdder}s.
+ *
+ * <p>For each stage the number of executions, their total time and the
+ * longest time are kept. Failures are counted by response status and by
+ * exception class. Only the unsuccessful statuses the WLS is known to send
+ * are counted individually; the status of a response is read before its
+ * signature is checked, so any other status is counted as "other" rather than
+ * letting forged responses create new counters.
+ */
+public class CountingRavenMetrics implements RavenMetrics {
+
+    /** Statuses the WLS may send, other than 200. */
+    private static final int[] KNOWN_BAD_STATUSES = {
+        WebauthResponse.CANCELLED, WebauthResponse.NO_MUTUAL_AUTH,
+        WebauthResponse.UNSUPPORTED_PROTOCOL, WebauthResponse.ERROR,
+        WebauthResponse.INTERACTION_REQUIRED, 560,
+        WebauthResponse.AUTH_DECLINED
+    };
+
+    private final Map<Stage, StageTotals> stages;
+    private final LongAdder successes = new LongAdder();
+    /** A counter per known bad status, then one for all others. */
+    private final LongAdder[] badStatuses =
+        new LongAdder[KNOWN_BAD_STATUSES.length + 1];
+    private final ConcurrentMap<Class<?>, LongAdder> failures =
+        new ConcurrentHashMap<>();
+
+    public CountingRavenMetrics() {
+        Map<Stage, StageTotals> stages = new EnumMap<>(Stage.class);
+        for(Stage stage : Stage.values())
+            stages.put(stage, new StageTotals());
+
+        this.stages = Collections.unmodifiableMap(stages);
+
+        for(int i = 0; i < this.badStatuses.length; i++)
+            this.badStatuses[i] = new LongAdder();
+    }
+
+    @Override
+    public void recordStage(Stage stage, long durationNanos) {
+        StageTotals totals = this.stages.get(stage);
+
+        totals.count.increment();
+        totals.nanos.add(durationNanos);
+        totals.maxNanos.accumulate(durationNanos);
+    }
+
+    @Override
+    public void recordSuccess() {
+        this.successes.increment();
+    }
+
+    @Override
+    public void recordBadStatus(int status) {
+        int i = 0;
+        while(i < KNOWN_BAD_STATUSES.length && KNOWN_BAD_STATUSES[i] != status)
+            i++;
+
+        this.badStatuses[i].increment();
+    }
+
+    @Override
+    public void recordFailure(AuthenticationException failure) {
+        Assert.notNull(failure);
+
+        this.failures.computeIfAbsent(failure.getClass(), c -> new LongAdder())
+            .increment();
+    }
+
+    /** The number of times a stage has executed. */
+    public long getCount(Stage stage) {
+        return this.stages.get(stage).count.sum();
+    }
+
+    public Duration getTotalTime(Stage stage) {
+        return Duration.ofNanos(this.stages.get(stage).nanos.sum());
+    }
+
+    /** The mean time of a stage, or zero if it hasn't executed. */
+    public Duration getMeanTime(Stage stage) {
+        StageTotals totals = this.stages.get(stage);
+        long count = totals.count.sum();
+
+        return count == 0 ? Duration.ZERO
+            : Duration.ofNanos(totals.nanos.sum() / count);
+    }
+
+    public Duration getMaxTime(Stage stage) {
+        return Duration.ofNanos(this.stages.get(stage).maxNanos.get());
+    }
+
+    public long getSuccessCount() {
+        return this.successes.sum();
+    }
+
+    /**
+     * The number of logins rejected for each known unsuccessful status which
+     * has occurred.
+     */
+    public Map<Integer, Long> getBadStatusCounts() {
+        Map<Integer, Long> snapshot = new HashMap<>();
+        for(int i = 0; i < KNOWN_BAD_STATUSES.length; i++) {
+            long count = this.badStatuses[i].sum();
+            if(count > 0)
+                snapshot.put(KNOWN_BAD_STATUSES[i], count);
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    /** The number of logins rejected with any other unsuccessful status. */
+    public long getOtherBadStatusCount() {
+        return this.badStatuses[KNOWN_BAD_STATUSES.length].sum();
+    }
+
+    /** The number of other failed logins for each exception class. */
+    public Map<Class<?>, Long> getFailureCounts() {
+        return snapshot(this.failures);
+    }
+
+    /**
+     * Clear all counts and times. Values recorded concurrently may or may not
+     * be kept.
+     */
+    public void reset() {
+        this.stages.values().forEach(totals -> {
+            totals.count.reset();
+            totals.nanos.reset();
+            totals.maxNanos.reset();
+        });
+        this.successes.reset();
+        for(LongAdder count : this.badStatuses)
+            count.reset();
+        this.failures.clear();
+    }
+
+    private static <K> Map<K, Long> snapshot(Map<K, LongAdder> counters) {
+        Map<K, Long> snapshot = new HashMap<>();
+        counters.forEach((key, count) -> snapshot.put(key, count.sum()));
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    private static final class StageTotals {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    }
+}
@@ -0,0 +1,158 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import org.springframework.util.Assert;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link CountingRavenMetrics} which also records the latency of each stage
+ * in a {@link LatencyHistogram}, and exposes them as an MXBean.
+ *
+ * <p>Recording a stage adds to the running totals and increments one
+ * histogram bucket; neither locks or allocates. Register the metrics with
+ * {@link #register()} (or a Spring {@code MBeanExporter}), and pass them to
+ * {@code RavenAuthenticationFilter.setMetrics()} and
+ * {@code RavenAuthenticationProvider.setMetrics()}.
+ */
+public class JmxRavenMetrics extends CountingRavenMetrics
+    implements RavenMetricsMXBean {
+
+    public static final String DEFAULT_OBJECT_NAME =
+        "uk.ac.cam.lib.spring.security.raven:type=RavenMetrics";
+
+    private final Map<Stage, LatencyHistogram> histograms;
+    private final ReentrantLock intervalLock = new ReentrantLock();
+    private Map<Stage, LatencyHistogram.Snapshot> intervalStart;
+
+    public JmxRavenMetrics() {
+        Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+        for(Stage stage : Stage.values())
+            histograms.put(stage, new LatencyHistogram());
+
+        this.histograms = Collections.unmodifiableMap(histograms);
+        this.intervalStart = emptySnapshots();
+    }
+
+    private static Map<Stage, LatencyHistogram.Snapshot> emptySnapshots() {
+        Map<Stage, LatencyHistogram.Snapshot> snapshots =
+            new EnumMap<>(Stage.class);
+        for(Stage stage : Stage.values())
+            snapshots.put(stage, LatencyHistogram.Snapshot.empty());
+        return snapshots;
+    }
+
+    @Override
+    public void recordStage(Stage stage, long durationNanos) {
+        super.recordStage(stage, durationNanos);
+        this.histograms.get(stage).record(durationNanos);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return this.histograms.get(stage);
+    }
+
+    @Override
+    public LatencySummary getCallbackLatency() {
+        return LatencySummary.of(
+            this.histograms.get(Stage.CALLBACK).snapshot());
+    }
+
+    @Override
+    public LatencySummary getValidationLatency() {
+        return LatencySummary.of(
+            this.histograms.get(Stage.VALIDATION).snapshot());
+    }
+
+    @Override
+    public Map<String, LatencySummary> getStageLatencies() {
+        Map<String, LatencySummary> latencies = new LinkedHashMap<>();
+        this.histograms.forEach((stage, histogram) ->
+            latencies.put(stage.name(), LatencySummary.of(
+                histogram.snapshot())));
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getFailureCountsByReason() {
+        Map<String, Long> counts = new TreeMap<>();
+        getBadStatusCounts().forEach((status, count) ->
+            counts.put("status " + status, count));
+        long otherStatuses = getOtherBadStatusCount();
+        if(otherStatuses > 0)
+            counts.put("status other", otherStatuses);
+        getFailureCounts().forEach((type, count) ->
+            counts.put(type.getName(), count));
+        return counts;
+    }
+
+    @Override
+    public Map<String, LatencySummary> takeIntervalSnapshot() {
+        Map<Stage, LatencyHistogram.Snapshot> now = new EnumMap<>(Stage.class);
+        Map<String, LatencySummary> latencies = new LinkedHashMap<>();
+
+        this.intervalLock.lock();
+        try {
+            this.histograms.forEach((stage, histogram) -> {
+                LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+                now.put(stage, snapshot);
+                latencies.put(stage.name(), LatencySummary.of(
+                    snapshot.minus(this.intervalStart.get(stage))));
+            });
+
+            this.intervalStart = now;
+        }
+        finally {
+            this.intervalLock.unlock();
+        }
+        return latencies;
+    }
+
+    @Override
+    public void reset() {
+        this.intervalLock.lock();
+        try {
+            super.reset();
+            this.histograms.values().forEach(LatencyHistogram::reset);
+            this.intervalStart = emptySnapshots();
+        }
+        finally {
+            this.intervalLock.unlock();
+        }
+    }
+
+    /**
+     * Register with the platform MBeanServer as {@link #DEFAULT_OBJECT_NAME}.
+     */
+    public ObjectName register() {
+        try {
+            return register(ManagementFactory.getPlatformMBeanServer(),
+                            new ObjectName(DEFAULT_OBJECT_NAME));
+        }
+        catch(MalformedObjectNameException e) {
+            throw new AssertionError("Won't happen", e);
+        }
+    }
+
+    public ObjectName register(MBeanServer server, ObjectName name) {
+        Assert.notNull(server);
+        Assert.notNull(name);
+
+        try {
+            return server.registerMBean(this, name).getObjectName();
+        }
+        catch(JMException e) {
+            throw new IllegalStateException(
+                "Failed to register MBean: " + name, e);
+        }
+    }
+}
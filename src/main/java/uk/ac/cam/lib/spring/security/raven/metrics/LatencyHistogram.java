@@ -0,0 +1,156 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import org.springframework.util.Assert;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of durations in nanoseconds.
+ *
+ * <p>Buckets are log-linear: each power-of-two range of values is divided
+ * into 32 equal buckets, so a value is identified to within about 3% of its
+ * size. Values below 2<sup>41</sup>ns (about 36 minutes) are
+ * distinguished; larger values are counted in the last bucket. Recording a value increments
+ * one element of an {@link AtomicLongArray}, without locking or allocating.
+ *
+ * <p>{@link #snapshot()} copies the counts. As values may be recorded while
+ * the copy is made, a snapshot is not an atomic view of the histogram, but
+ * every recorded value appears in exactly one of any two consecutive
+ * snapshots' {@link Snapshot#minus(Snapshot) difference}s.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+
+    /** The largest value which has its own bucket. */
+    public static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    static int bucketIndex(long value) {
+        long v = value < 0 ? 0 : Math.min(value, MAX_VALUE);
+        int magnitude = 63 - Long.numberOfLeadingZeros(v | 1);
+        int shift = Math.max(0, magnitude - SUB_BUCKET_BITS);
+
+        return (shift << SUB_BUCKET_BITS) + (int)(v >>> shift);
+    }
+
+    static long bucketLowerBound(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        return (long)(index - (shift << SUB_BUCKET_BITS)) << shift;
+    }
+
+    static long bucketUpperBound(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        return bucketLowerBound(index) + (1L << shift) - 1;
+    }
+
+    public void record(long durationNanos) {
+        this.counts.incrementAndGet(bucketIndex(durationNanos));
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for(int i = 0; i < counts.length; i++)
+            counts[i] = this.counts.get(i);
+
+        return new Snapshot(counts);
+    }
+
+    /**
+     * Clear the counts. Values recorded concurrently may or may not be kept.
+     */
+    public void reset() {
+        for(int i = 0; i < BUCKET_COUNT; i++)
+            this.counts.set(i, 0);
+    }
+
+    /**
+     * An immutable copy of a histogram's counts.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            this.count = Arrays.stream(counts).sum();
+        }
+
+        public static Snapshot empty() {
+            return new Snapshot(new long[BUCKET_COUNT]);
+        }
+
+        /**
+         * @return The values recorded in this snapshot but not in an earlier
+         *         snapshot of the same histogram.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            Assert.notNull(earlier);
+
+            long[] counts = new long[BUCKET_COUNT];
+            for(int i = 0; i < counts.length; i++)
+                counts[i] = Math.max(0, this.counts[i] - earlier.counts[i]);
+
+            return new Snapshot(counts);
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        /**
+         * Get the value below which the given proportion of values fall.
+         *
+         * @param quantile A proportion between 0 and 1, e.g. 0.99.
+         * @return The upper bound of the bucket containing the quantile, or 0
+         *         if the snapshot is empty.
+         */
+        public long getValueAtQuantile(double quantile) {
+            Assert.isTrue(quantile >= 0 && quantile <= 1,
+                "quantile must be between 0 and 1");
+
+            if(this.count == 0)
+                return 0;
+
+            long rank = Math.max(1, (long)Math.ceil(quantile * this.count));
+            long seen = 0;
+            for(int i = 0; i < this.counts.length; i++) {
+                seen += this.counts[i];
+                if(seen >= rank)
+                    return bucketUpperBound(i);
+            }
+            return MAX_VALUE;
+        }
+
+        /** The approximate mean of the values, or 0 if empty. */
+        public double getMean() {
+            if(this.count == 0)
+                return 0;
+
+            double total = 0;
+            for(int i = 0; i < this.counts.length; i++) {
+                if(this.counts[i] != 0) {
+                    double mid = (bucketLowerBound(i) +
+                                  bucketUpperBound(i)) / 2.0;
+                    total += mid * this.counts[i];
+                }
+            }
+            return total / this.count;
+        }
+
+        /** The upper bound of the highest non-empty bucket, or 0. */
+        public long getMax() {
+            for(int i = this.counts.length - 1; i >= 0; i--) {
+                if(this.counts[i] != 0)
+                    return bucketUpperBound(i);
+            }
+            return 0;
+        }
+    }
+}
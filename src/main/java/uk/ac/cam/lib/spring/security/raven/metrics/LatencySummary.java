@@ -0,0 +1,72 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Percentiles of a {@link LatencyHistogram.Snapshot}, in microseconds. Exposed
+ * through JMX as composite data by {@link RavenMetricsMXBean}.
+ */
+public final class LatencySummary {
+
+    private final long count;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double p999Micros;
+    private final double maxMicros;
+
+    @ConstructorProperties({"count", "meanMicros", "p50Micros", "p99Micros",
+                            "p999Micros", "maxMicros"})
+    public LatencySummary(long count, double meanMicros, double p50Micros,
+                          double p99Micros, double p999Micros,
+                          double maxMicros) {
+        this.count = count;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    public static LatencySummary of(LatencyHistogram.Snapshot snapshot) {
+        return new LatencySummary(
+            snapshot.getCount(),
+            snapshot.getMean() / 1000,
+            snapshot.getValueAtQuantile(0.5) / 1000.0,
+            snapshot.getValueAtQuantile(0.99) / 1000.0,
+            snapshot.getValueAtQuantile(0.999) / 1000.0,
+            snapshot.getMax() / 1000.0);
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public double getMeanMicros() {
+        return this.meanMicros;
+    }
+
+    public double getP50Micros() {
+        return this.p50Micros;
+    }
+
+    public double getP99Micros() {
+        return this.p99Micros;
+    }
+
+    public double getP999Micros() {
+        return this.p999Micros;
+    }
+
+    public double getMaxMicros() {
+        return this.maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "LatencySummary(count=%d, mean=%.1fus, p50=%.1fus, p99=%.1fus, " +
+            "p999=%.1fus, max=%.1fus)", this.count, this.meanMicros,
+            this.p50Micros, this.p99Micros, this.p999Micros, this.maxMicros);
+    }
+}
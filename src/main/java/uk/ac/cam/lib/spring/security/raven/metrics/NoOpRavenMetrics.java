@@ -0,0 +1,25 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import org.springframework.security.core.AuthenticationException;
+
+/**
+ * A {@link RavenMetrics} which discards everything. This is the default.
+ */
+public final class NoOpRavenMetrics implements RavenMetrics {
+
+    public static final NoOpRavenMetrics INSTANCE = new NoOpRavenMetrics();
+
+    private NoOpRavenMetrics() { }
+
+    @Override
+    public void recordStage(Stage stage, long durationNanos) { }
+
+    @Override
+    public void recordSuccess() { }
+
+    @Override
+    public void recordBadStatus(int status) { }
+
+    @Override
+    public void recordFailure(AuthenticationException failure) { }
+}
@@ -0,0 +1,60 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import org.springframework.security.core.AuthenticationException;
+
+/**
+ * Receives the timings and outcomes of Raven logins from
+ * {@link uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter} and
+ * {@link uk.ac.cam.lib.spring.security.raven.RavenAuthenticationProvider}.
+ *
+ * <p>Methods are called on request threads, so implementations must be
+ * thread-safe and should return quickly.
+ */
+public interface RavenMetrics {
+
+    enum Stage {
+        /** Checking whether a request contains a Raven response. */
+        QUERY_DETECTION,
+        /** Parsing the {@code WLS-Response} parameter. */
+        RESPONSE_PARSING,
+        /**
+         * Checking the response's fields before the request is looked up
+         * (if the filter has a {@code ResponsePreValidator}).
+         */
+        PRE_VALIDATION,
+        /** Looking up the original request in the {@code RequestCache}. */
+        REQUEST_CACHE_LOOKUP,
+        /** Recreating the Raven request sent for the original request. */
+        REQUEST_RECONSTRUCTION,
+        /** Validating the Raven response. */
+        VALIDATION,
+        /** Creating the authenticated token. */
+        TOKEN_CREATION,
+        /**
+         * The whole of the filter's handling of a Raven response, including
+         * the stages above other than query detection.
+         */
+        CALLBACK
+    }
+
+    /**
+     * Record the time taken by one execution of a stage, whether or not it
+     * succeeded.
+     */
+    void recordStage(Stage stage, long durationNanos);
+
+    /** Record a successful login. */
+    void recordSuccess();
+
+    /**
+     * Record a login rejected because the Raven response had an unsuccessful
+     * status.
+     */
+    void recordBadStatus(int status);
+
+    /**
+     * Record a login which failed for a reason other than an unsuccessful
+     * response status.
+     */
+    void recordFailure(AuthenticationException failure);
+}
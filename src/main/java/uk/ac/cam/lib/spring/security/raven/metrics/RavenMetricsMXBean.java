@@ -0,0 +1,33 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX management interface of {@link JmxRavenMetrics}. Latencies are
+ * keyed by {@link RavenMetrics.Stage} name.
+ */
+public interface RavenMetricsMXBean {
+
+    /** Latency of the filter's handling of Raven responses. */
+    LatencySummary getCallbackLatency();
+
+    /** Latency of validating Raven responses (mainly signature checks). */
+    LatencySummary getValidationLatency();
+
+    /** Latencies of every stage since the metrics were created or reset. */
+    Map<String, LatencySummary> getStageLatencies();
+
+    long getSuccessCount();
+
+    /** Failed logins, keyed by response status or exception class name. */
+    Map<String, Long> getFailureCountsByReason();
+
+    /**
+     * Get the latencies of every stage since the previous call of this
+     * method (or since the metrics were created or reset).
+     */
+    Map<String, LatencySummary> takeIntervalSnapshot();
+
+    /** Clear all latencies and counts. */
+    void reset();
+}
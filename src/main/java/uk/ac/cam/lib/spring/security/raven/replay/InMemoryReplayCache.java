@@ -0,0 +1,103 @@
+package uk.ac.cam.lib.spring.security.raven.replay;
+
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.concurrent.StripedExpiringMap;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, time-expiring set of the Raven responses which have already been
+ * used to log in.
+ *
+ * <p>Keys are held in a {@link StripedExpiringMap} of at most
+ * {@code maxEntries}, and expire {@code ttl} after they are added.
+ *
+ * <p>The TTL must be at least as long as the window in which the validator
+ * accepts a response, otherwise a response could be replayed after its key
+ * expires but before the response itself does. Evicting keys before they
+ * expire (because the cache is full) has the same effect, so size the cache
+ * for the expected peak login rate multiplied by the TTL.
+ */
+public class InMemoryReplayCache implements ReplayStore {
+
+    public static final int DEFAULT_STRIPES =
+        StripedExpiringMap.DEFAULT_STRIPES;
+
+    /** Each key's expiry time. */
+    private final StripedExpiringMap<ReplayKey, Long> keys;
+    private final long ttlMillis;
+
+    private final LongAdder hits = new LongAdder();
+
+    public InMemoryReplayCache(int maxEntries, Duration ttl) {
+        this(maxEntries, ttl, DEFAULT_STRIPES);
+    }
+
+    public InMemoryReplayCache(int maxEntries, Duration ttl, int stripes) {
+        Assert.notNull(ttl);
+        Assert.isTrue(!ttl.isNegative() && !ttl.isZero(),
+            "ttl must be positive");
+
+        this.keys = new StripedExpiringMap<>(
+            maxEntries, stripes, Long::longValue);
+        this.ttlMillis = ttl.toMillis();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Counts as a hit if the key is present.
+     */
+    @Override
+    public boolean contains(ReplayKey key, Instant now) {
+        Assert.notNull(key);
+
+        boolean present = this.keys.get(key, now.toEpochMilli()) != null;
+        if(present)
+            this.hits.increment();
+        return present;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Counts as a hit if the key was already present.
+     */
+    @Override
+    public boolean add(ReplayKey key, Instant now) {
+        Assert.notNull(key);
+
+        long nowMillis = now.toEpochMilli();
+        boolean added = this.keys.putIfAbsent(
+            key, nowMillis + this.ttlMillis, nowMillis);
+        if(!added)
+            this.hits.increment();
+        return added;
+    }
+
+    public Duration getTtl() {
+        return Duration.ofMillis(this.ttlMillis);
+    }
+
+    /** The maximum number of keys held, across all stripes. */
+    public int getMaxEntries() {
+        return this.keys.getMaxEntries();
+    }
+
+    /** The number of keys held, including any which have expired. */
+    public int size() {
+        return this.keys.size();
+    }
+
+    /** The number of times a key was found to have been seen already. */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /** The number of keys removed before expiring to make room for others. */
+    public long getEvictionCount() {
+        return this.keys.getEvictionCount();
+    }
+}
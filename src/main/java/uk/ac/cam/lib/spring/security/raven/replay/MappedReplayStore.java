@@ -0,0 +1,382 @@
+package uk.ac.cam.lib.spring.security.raven.replay;
+
+import org.springframework.util.Assert;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link ReplayStore} held in a fixed-size, memory-mapped file.
+ *
+ * <p>As the keys live in the file rather than the heap, they survive restarts,
+ * and every JVM on a host which opens the same file shares them. The file is
+ * an open-addressing hash table of 16 byte slots, each holding a key's
+ * {@link ReplayKey#longHash() 64 bit hash} and its expiry time. Slots are
+ * grouped into stripes; a stripe is locked with a {@link FileLock} (to exclude
+ * other processes) and a per-JVM lock (as file locks are held by the whole
+ * JVM) while it's read or modified. A key is looked for in a bounded number of
+ * consecutive slots of its stripe. If they're all occupied by unexpired keys
+ * when adding, the key expiring soonest is evicted.
+ *
+ * <p>The size of the table is fixed when the file is created. Opening an
+ * existing file uses the size recorded in it, whatever capacity is requested.
+ * Writes reach the file through the OS page cache, so they survive the JVM
+ * exiting without {@link #flush()}; flushing is only needed to survive the
+ * host crashing.
+ */
+public class MappedReplayStore implements ReplayStore, Closeable {
+
+    private static final int MAGIC = 0x52565253; // "RVRS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    private static final int MAX_STRIPES = 256;
+    private static final int MIN_SLOTS_PER_STRIPE = 64;
+    private static final int MAX_PROBES = 32;
+
+    /**
+     * FileLocks are held on behalf of the whole JVM, and overlapping attempts
+     * to lock a region from one JVM fail rather than block. Threads (and
+     * instances) in one JVM therefore coordinate through these locks before
+     * taking a stripe's FileLock. Entries are shared by the open instances
+     * for a path, and removed when the last is closed.
+     */
+    private static final ConcurrentMap<Path, JvmLocks> JVM_LOCKS =
+        new ConcurrentHashMap<>();
+    private static final ReentrantLock INIT_LOCK = new ReentrantLock();
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer table;
+    private final int slotCount;
+    private final int stripeCount;
+    private final int slotsPerStripe;
+    private final int probes;
+    private final long ttlMillis;
+    private final JvmLocks jvmLocks;
+    private final ReentrantLock[] locks;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Open (creating if necessary) a store.
+     *
+     * @param path The file holding the store.
+     * @param capacity The number of keys the store can hold. Rounded up to a
+     *                 power of two; ignored if the file already exists.
+     * @param ttl How long keys are remembered for.
+     * @throws IOException if the file can't be opened or isn't a replay store.
+     */
+    public MappedReplayStore(Path path, int capacity, Duration ttl)
+        throws IOException {
+
+        Assert.notNull(path);
+        Assert.isTrue(capacity > 0, "capacity must be positive");
+        Assert.isTrue(capacity <= (1 << 26), "capacity must be <= 2^26");
+        Assert.notNull(ttl);
+        Assert.isTrue(!ttl.isNegative() && !ttl.isZero(),
+            "ttl must be positive");
+
+        this.ttlMillis = ttl.toMillis();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            this.path = path.toRealPath();
+            this.slotCount = initialise(this.channel, capacity);
+            this.stripeCount = stripesFor(this.slotCount);
+            this.slotsPerStripe = this.slotCount / this.stripeCount;
+            this.probes = Math.min(MAX_PROBES, this.slotsPerStripe);
+            this.table = this.channel.map(FileChannel.MapMode.READ_WRITE,
+                HEADER_SIZE, (long)this.slotCount * SLOT_SIZE);
+        }
+        catch(IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+
+        // A path's entry has the wrong number of stripes if its file was
+        // replaced by one of another size while open; the new file gets its
+        // own locks.
+        this.jvmLocks = JVM_LOCKS.compute(this.path, (p, existing) -> {
+            JvmLocks locks = existing != null &&
+                existing.stripes.length == this.stripeCount
+                ? existing : new JvmLocks(this.stripeCount);
+            locks.references++;
+            return locks;
+        });
+        this.locks = this.jvmLocks.stripes;
+    }
+
+    private static int stripesFor(int slotCount) {
+        return Math.max(1,
+            Math.min(MAX_STRIPES, slotCount / MIN_SLOTS_PER_STRIPE));
+    }
+
+    /**
+     * Write a header to a new file, or validate an existing one.
+     *
+     * @return The number of slots in the table.
+     */
+    private static int initialise(FileChannel channel, int capacity)
+        throws IOException {
+
+        INIT_LOCK.lock();
+        try(FileLock ignored = channel.lock(0, HEADER_SIZE, false)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+            if(channel.size() == 0) {
+                int slots = Integer.highestOneBit(capacity);
+                if(slots < capacity)
+                    slots <<= 1;
+
+                header.putInt(MAGIC).putInt(VERSION).putInt(slots).flip();
+                channel.write(header, 0);
+
+                // Extend the file (sparsely) to hold the empty table
+                channel.write(ByteBuffer.allocate(1),
+                    HEADER_SIZE + (long)slots * SLOT_SIZE - 1);
+                channel.force(true);
+                return slots;
+            }
+
+            channel.read(header, 0);
+            header.flip();
+            if(header.remaining() < 12 || header.getInt() != MAGIC)
+                throw new IOException("Not a replay store");
+
+            int version = header.getInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported replay store version: " +
+                                      version);
+
+            int slots = header.getInt();
+            if(slots <= 0 || Integer.bitCount(slots) != 1 ||
+               channel.size() < HEADER_SIZE + (long)slots * SLOT_SIZE) {
+                throw new IOException("Corrupt replay store header");
+            }
+            return slots;
+        }
+        finally {
+            INIT_LOCK.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(ReplayKey key, Instant now) {
+        long hash = key.longHash();
+        long nowMillis = now.toEpochMilli();
+        int stripe = stripeOf(hash);
+        int start = (int)hash & (this.slotsPerStripe - 1);
+
+        boolean found = false;
+        try(StripeLock ignored = lockStripe(stripe)) {
+            for(int i = 0; i < this.probes; i++) {
+                int offset = slotOffset(stripe, start + i);
+                long slotHash = this.table.getLong(offset);
+
+                if(slotHash == 0)
+                    break;
+                if(slotHash == hash &&
+                   this.table.getLong(offset + 8) > nowMillis) {
+                    found = true;
+                    break;
+                }
+            }
+        }
+
+        if(found)
+            this.hits.increment();
+        return found;
+    }
+
+    @Override
+    public boolean add(ReplayKey key, Instant now) {
+        long hash = key.longHash();
+        long nowMillis = now.toEpochMilli();
+        int stripe = stripeOf(hash);
+        int start = (int)hash & (this.slotsPerStripe - 1);
+
+        try(StripeLock ignored = lockStripe(stripe)) {
+            int free = -1;
+            int oldest = -1;
+            long oldestExpiry = Long.MAX_VALUE;
+
+            for(int i = 0; i < this.probes; i++) {
+                int offset = slotOffset(stripe, start + i);
+                long slotHash = this.table.getLong(offset);
+
+                if(slotHash == 0) {
+                    if(free < 0)
+                        free = offset;
+                    break;
+                }
+
+                long expiry = this.table.getLong(offset + 8);
+                if(slotHash == hash) {
+                    if(expiry > nowMillis) {
+                        this.hits.increment();
+                        return false;
+                    }
+                    if(free < 0)
+                        free = offset;
+                    break;
+                }
+
+                if(expiry <= nowMillis) {
+                    if(free < 0)
+                        free = offset;
+                }
+                else if(expiry < oldestExpiry) {
+                    oldest = offset;
+                    oldestExpiry = expiry;
+                }
+            }
+
+            if(free < 0) {
+                free = oldest;
+                this.evictions.increment();
+            }
+
+            this.table.putLong(free + 8, nowMillis + this.ttlMillis);
+            this.table.putLong(free, hash);
+            return true;
+        }
+    }
+
+    private int stripeOf(long hash) {
+        return (int)(hash >>> 40) & (this.stripeCount - 1);
+    }
+
+    private int slotOffset(int stripe, int index) {
+        int slot = stripe * this.slotsPerStripe +
+            (index & (this.slotsPerStripe - 1));
+        return slot * SLOT_SIZE;
+    }
+
+    private StripeLock lockStripe(int stripe) {
+        ReentrantLock lock = this.locks[stripe];
+        lock.lock();
+        try {
+            long regionSize = (long)this.slotsPerStripe * SLOT_SIZE;
+            FileLock fileLock = this.channel.lock(
+                HEADER_SIZE + stripe * regionSize, regionSize, false);
+            return new StripeLock(lock, fileLock);
+        }
+        catch(IOException e) {
+            lock.unlock();
+            throw new UncheckedIOException(
+                "Failed to lock replay store: " + this.path, e);
+        }
+        catch(RuntimeException e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Force changes to the file to be written to storage.
+     */
+    public void flush() {
+        this.table.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(!this.closed.compareAndSet(false, true))
+            return;
+
+        try {
+            this.channel.close();
+        }
+        finally {
+            JVM_LOCKS.computeIfPresent(this.path, (p, locks) ->
+                locks != this.jvmLocks || --locks.references > 0
+                    ? locks : null);
+        }
+    }
+
+    /** Whether any open instance holds JVM-wide locks for a (real) path. */
+    static boolean hasJvmLocks(Path path) {
+        return JVM_LOCKS.containsKey(path);
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    /** The number of keys the store can hold. */
+    public int getCapacity() {
+        return this.slotCount;
+    }
+
+    public Duration getTtl() {
+        return Duration.ofMillis(this.ttlMillis);
+    }
+
+    /**
+     * The number of times this instance found a key to have been seen already.
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * The number of unexpired keys this instance removed to make room for
+     * others.
+     */
+    public long getEvictionCount() {
+        return this.evictions.sum();
+    }
+
+    /** The JVM-wide locks for one path. Guarded by {@code JVM_LOCKS}. */
+    private static final class JvmLocks {
+        final ReentrantLock[] stripes;
+        int references;
+
+        JvmLocks(int stripeCount) {
+            this.stripes = new ReentrantLock[stripeCount];
+            for(int i = 0; i < stripeCount; i++)
+                this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private static final class StripeLock implements AutoCloseable {
+        private final ReentrantLock lock;
+        private final FileLock fileLock;
+
+        StripeLock(ReentrantLock lock, FileLock fileLock) {
+            this.lock = lock;
+            this.fileLock = fileLock;
+        }
+
+        @Override
+        public void close() {
+            try {
+                this.fileLock.release();
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            finally {
+                this.lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package uk.ac.cam.lib.spring.security.raven.replay;
+
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import java.util.Objects;
+
+/**
+ * Identifies a Raven response. The WLS guarantees that the combination of a
+ * response's {@code issue} and {@code id} fields is unique.
+ */
+public final class ReplayKey {
+
+    private final String issue;
+    private final String id;
+
+    public ReplayKey(String issue, String id) {
+        Assert.notNull(issue);
+        Assert.notNull(id);
+
+        this.issue = issue;
+        this.id = id;
+    }
+
+    public static ReplayKey of(WebauthResponse response) {
+        return new ReplayKey(
+            Objects.toString(response.get("issue"), ""),
+            Objects.toString(response.get("id"), ""));
+    }
+
+    public static ReplayKey of(WlsResponse response) {
+        return new ReplayKey(response.getIssue(), response.getId());
+    }
+
+    public String getIssue() {
+        return this.issue;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * A 64 bit hash of the key which is stable across JVMs, for stores which
+     * hold fixed-size keys. Never 0.
+     */
+    public long longHash() {
+        // FNV-1a over both fields, followed by a murmur3 finalizer to spread
+        // the bits of the mostly-numeric fields.
+        long h = 0xcbf29ce484222325L;
+        h = fnv1a(h, this.issue);
+        h = (h ^ '!') * 0x100000001b3L;
+        h = fnv1a(h, this.id);
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h == 0 ? 1 : h;
+    }
+
+    private static long fnv1a(long h, String s) {
+        for(int i = 0; i < s.length(); i++)
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof ReplayKey))
+            return false;
+
+        ReplayKey other = (ReplayKey)o;
+        return this.issue.equals(other.issue) && this.id.equals(other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.issue.hashCode() + this.id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.issue + "!" + this.id;
+    }
+}
@@ -0,0 +1,41 @@
+package uk.ac.cam.lib.spring.security.raven.replay;
+
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationProvider;
+
+import java.time.Instant;
+
+/**
+ * Records the Raven responses which have been used to authenticate, so that
+ * {@link RavenAuthenticationProvider} can reject replays of them.
+ *
+ * <p>Implementations decide how long keys are remembered for; it must be at
+ * least as long as the window in which the validator accepts a response.
+ * They must be safe to call from multiple threads. Implementations backed by
+ * shared or remote storage may throw unchecked exceptions if the store can't
+ * be reached; the provider reports these as an
+ * {@link org.springframework.security.authentication.AuthenticationServiceException}
+ * rather than accepting an unchecked response.
+ */
+public interface ReplayStore {
+
+    /**
+     * Check whether a response has already been used. This is called before
+     * the response is validated.
+     *
+     * @param key The response's key.
+     * @param now The time the response was received.
+     * @return true if {@code key} has been recorded and not yet expired.
+     */
+    boolean contains(ReplayKey key, Instant now);
+
+    /**
+     * Record that a response has been used. This is only called once the
+     * response has been validated, and must be atomic: if several callers
+     * add the same key concurrently, only one may succeed.
+     *
+     * @param key The response's key.
+     * @param now The time the response was received.
+     * @return true if the key was recorded, false if it was already present.
+     */
+    boolean add(ReplayKey key, Instant now);
+}
@@ -0,0 +1,422 @@
+package uk.ac.cam.lib.spring.security.raven.session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.authentication.AuthenticationTrustResolver;
+import org.springframework.security.authentication.AuthenticationTrustResolverImpl;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.SaveContextOnUpdateOrErrorResponseWrapper;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+import org.springframework.web.util.WebUtils;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.lib.spring.security.raven.crypto.HmacSigner;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A {@link SecurityContextRepository} which keeps the logged in user in a
+ * signed cookie rather than the HTTP session.
+ *
+ * <p>The cookie holds a ticket with the principal's name, their authorities,
+ * the issue time of the Raven response they logged in with and the ticket's
+ * expiry time, signed with an HMAC. Any node with the same key can restore
+ * the user from the ticket, so no session state needs to be shared or
+ * replicated. Restored users are represented by a
+ * {@link RavenTicketAuthenticationToken}.
+ *
+ * <p>Tickets expire a fixed time after login, and are not renewed: the
+ * cookie is only rewritten when the authentication changes (e.g. on login),
+ * and removed when the user is no longer authenticated (e.g. on logout).
+ * As a ticket can't be revoked before it expires, the TTL should be short
+ * enough for that to be acceptable.
+ *
+ * <p>Cookies are written when the response is committed (like
+ * {@link org.springframework.security.web.context.HttpSessionSecurityContextRepository}),
+ * so login redirects carry the new ticket.
+ */
+public class CookieSecurityContextRepository
+    implements SecurityContextRepository {
+
+    private static final Log logger =
+        LogFactory.getLog(CookieSecurityContextRepository.class);
+
+    public static final String DEFAULT_COOKIE_NAME = "RAVEN-TICKET";
+    public static final Duration DEFAULT_TTL = Duration.ofHours(2);
+
+    /** Tickets which encode to more than this many characters aren't set. */
+    public static final int MAX_COOKIE_LENGTH = 4000;
+
+    private static final String LOADED_ATTRIBUTE =
+        CookieSecurityContextRepository.class.getName() + ".LOADED";
+
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 2;
+
+    private static final DateTimeFormatter RAVEN_TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private static final Base64.Encoder ENCODER =
+        Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final HmacSigner signer;
+    private final AuthenticationTrustResolver trustResolver =
+        new AuthenticationTrustResolverImpl();
+    private String cookieName = DEFAULT_COOKIE_NAME;
+    private String cookiePath;
+    private Boolean secure;
+    private Duration ttl = DEFAULT_TTL;
+    private Clock clock = Clock.systemUTC();
+
+    public CookieSecurityContextRepository(HmacSigner signer) {
+        Assert.notNull(signer);
+        this.signer = signer;
+    }
+
+    public void setCookieName(String cookieName) {
+        Assert.hasText(cookieName);
+        this.cookieName = cookieName;
+    }
+
+    public String getCookieName() {
+        return this.cookieName;
+    }
+
+    /**
+     * @param cookiePath The path of the cookie, or null to use the request's
+     *                   context path (the default).
+     */
+    public void setCookiePath(String cookiePath) {
+        this.cookiePath = cookiePath;
+    }
+
+    public String getCookiePath() {
+        return this.cookiePath;
+    }
+
+    /**
+     * @param secure Whether the cookie is only sent over HTTPS, or null to
+     *               mark it secure when set by a secure request (the
+     *               default).
+     */
+    public void setSecure(Boolean secure) {
+        this.secure = secure;
+    }
+
+    public Boolean getSecure() {
+        return this.secure;
+    }
+
+    /**
+     * @param ttl How long after login tickets are accepted. Defaults to
+     *            {@link #DEFAULT_TTL}.
+     */
+    public void setTtl(Duration ttl) {
+        Assert.notNull(ttl);
+        Assert.isTrue(ttl.getSeconds() > 0,
+            "ttl must be at least one second");
+        this.ttl = ttl;
+    }
+
+    public Duration getTtl() {
+        return this.ttl;
+    }
+
+    public void setClock(Clock clock) {
+        Assert.notNull(clock);
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return this.clock;
+    }
+
+    @Override
+    public SecurityContext loadContext(HttpRequestResponseHolder holder) {
+        HttpServletRequest request = holder.getRequest();
+        SecurityContext context = SecurityContextHolder.createEmptyContext();
+
+        Cookie cookie = WebUtils.getCookie(request, this.cookieName);
+        if(cookie != null) {
+            RavenTicketAuthenticationToken token =
+                this.decode(cookie.getValue());
+            if(token != null) {
+                context.setAuthentication(token);
+                request.setAttribute(LOADED_ATTRIBUTE, token);
+            }
+        }
+
+        holder.setResponse(new TicketResponseWrapper(
+            holder.getResponse(), request, cookie != null));
+        return context;
+    }
+
+    @Override
+    public void saveContext(SecurityContext context,
+                            HttpServletRequest request,
+                            HttpServletResponse response) {
+
+        TicketResponseWrapper wrapper = WebUtils.getNativeResponse(
+            response, TicketResponseWrapper.class);
+
+        if(wrapper == null) {
+            this.save(context, request, response,
+                      WebUtils.getCookie(request, this.cookieName) != null);
+        }
+        else if(!wrapper.isContextSaved()) {
+            wrapper.saveContext(context);
+        }
+    }
+
+    @Override
+    public boolean containsContext(HttpServletRequest request) {
+        return WebUtils.getCookie(request, this.cookieName) != null;
+    }
+
+    private void save(SecurityContext context, HttpServletRequest request,
+                      HttpServletResponse response, boolean hadCookie) {
+
+        Authentication auth = context.getAuthentication();
+
+        if(auth == null || !auth.isAuthenticated() ||
+           this.trustResolver.isAnonymous(auth)) {
+            if(hadCookie)
+                response.addCookie(this.cookie(request, "", 0));
+            return;
+        }
+
+        if(auth == request.getAttribute(LOADED_ATTRIBUTE))
+            return;
+
+        Instant now = this.clock.instant();
+        String ticket = this.encode(auth, now);
+        if(ticket.length() > MAX_COOKIE_LENGTH) {
+            logger.warn(String.format(
+                "Not setting ticket for %s: %d characters is too long",
+                auth.getName(), ticket.length()));
+            return;
+        }
+
+        response.addCookie(this.cookie(
+            request, ticket, (int)this.ttl.getSeconds()));
+    }
+
+    private Cookie cookie(HttpServletRequest request, String value,
+                          int maxAge) {
+        Cookie cookie = new Cookie(this.cookieName, value);
+        cookie.setPath(this.cookiePath != null ? this.cookiePath :
+            (StringUtils.hasLength(request.getContextPath()) ?
+                request.getContextPath() : "/"));
+        cookie.setSecure(this.secure != null ? this.secure :
+                         request.isSecure());
+        cookie.setHttpOnly(true);
+        cookie.setMaxAge(maxAge);
+        return cookie;
+    }
+
+    /**
+     * Get the issue time of the Raven response the user logged in with. Falls
+     * back to {@code now} for non-Raven logins.
+     */
+    private static Instant getIssued(Authentication auth, Instant now) {
+        if(auth instanceof RavenTicketAuthenticationToken)
+            return ((RavenTicketAuthenticationToken)auth).getIssued();
+
+        if(auth instanceof RavenAuthenticationToken) {
+            Optional<String> issue = ((RavenAuthenticationToken)auth)
+                .getWlsResponse().map(WlsResponse::getIssue);
+            if(issue.isPresent()) {
+                try {
+                    return RAVEN_TIME_FORMAT.parse(issue.get(), Instant::from);
+                }
+                catch(DateTimeParseException e) {
+                    // fall through
+                }
+            }
+        }
+        return now;
+    }
+
+    /**
+     * Encode an authentication as a signed ticket which expires one TTL
+     * after {@code now}.
+     */
+    String encode(Authentication auth, Instant now) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        out.write(VERSION);
+        out.write(0);
+        writeVarLong(out, now.plus(this.ttl).getEpochSecond());
+        writeVarLong(out, getIssued(auth, now).getEpochSecond());
+        writeString(out, auth.getName());
+
+        List<String> authorities = new ArrayList<>(
+            auth.getAuthorities().size());
+        for(GrantedAuthority authority : auth.getAuthorities()) {
+            if(authority.getAuthority() != null)
+                authorities.add(authority.getAuthority());
+        }
+        writeVarLong(out, authorities.size());
+        for(String authority : authorities)
+            writeString(out, authority);
+
+        int payloadLength = out.size();
+        byte[] ticket = new byte[payloadLength + this.signer.getMacLength()];
+        System.arraycopy(out.toByteArray(), 0, ticket, 0, payloadLength);
+        this.signer.sign(ticket, 0, payloadLength, ticket, payloadLength);
+
+        return ENCODER.encodeToString(ticket);
+    }
+
+    /**
+     * @return The authentication held by a ticket, or null if the ticket is
+     *         malformed, has an invalid signature or has expired.
+     */
+    RavenTicketAuthenticationToken decode(String ticket) {
+        byte[] data;
+        try {
+            data = DECODER.decode(ticket);
+        }
+        catch(IllegalArgumentException e) {
+            return null;
+        }
+
+        int payloadLength = data.length - this.signer.getMacLength();
+        if(payloadLength < HEADER_LENGTH || data[0] != VERSION ||
+           !this.signer.verify(data, 0, payloadLength, data, payloadLength))
+            return null;
+
+        Reader in = new Reader(data, HEADER_LENGTH, payloadLength);
+        try {
+            Instant expires = Instant.ofEpochSecond(in.readVarLong());
+            if(!this.clock.instant().isBefore(expires))
+                return null;
+
+            Instant issued = Instant.ofEpochSecond(in.readVarLong());
+            String principal = in.readString();
+
+            int count = in.readLength();
+            List<GrantedAuthority> authorities = new ArrayList<>(count);
+            for(int i = 0; i < count; i++)
+                authorities.add(new SimpleGrantedAuthority(in.readString()));
+
+            if(in.remaining() != 0)
+                return null;
+
+            return new RavenTicketAuthenticationToken(
+                principal, authorities, issued, expires);
+        }
+        catch(IllegalArgumentException e) {
+            // Only possible if the key has been used to sign something else
+            logger.warn("Validly signed ticket is malformed: " +
+                        e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while((value & ~0x7fL) != 0) {
+            out.write((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Reader(byte[] data, int start, int end) {
+            this.data = data;
+            this.position = start;
+            this.end = end;
+        }
+
+        int remaining() {
+            return this.end - this.position;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                if(this.position >= this.end)
+                    throw new IllegalArgumentException("truncated varint");
+
+                byte b = this.data[this.position++];
+                value |= (long)(b & 0x7f) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+        int readLength() {
+            long length = this.readVarLong();
+            if(length < 0 || length > this.remaining())
+                throw new IllegalArgumentException("bad length: " + length);
+            return (int)length;
+        }
+
+        String readString() {
+            int length = this.readLength();
+            String value = new String(this.data, this.position, length,
+                                      StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+    }
+
+    /**
+     * Saves the context when the response is committed, as cookies can't be
+     * added afterwards.
+     */
+    private final class TicketResponseWrapper
+        extends SaveContextOnUpdateOrErrorResponseWrapper {
+
+        private final HttpServletRequest request;
+        private final boolean hadCookie;
+
+        TicketResponseWrapper(HttpServletResponse response,
+                              HttpServletRequest request, boolean hadCookie) {
+            super(response, true);
+            this.request = request;
+            this.hadCookie = hadCookie;
+        }
+
+        @Override
+        protected void saveContext(SecurityContext context) {
+            CookieSecurityContextRepository.this.save(
+                context, this.request,
+                (HttpServletResponse)this.getResponse(), this.hadCookie);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package uk.ac.cam.lib.spring.security.raven.session;
+
+import org.springframework.security.authentication.AbstractAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.util.Assert;
+
+import java.time.Instant;
+import java.util.Collection;
+
+/**
+ * An authenticated {@link org.springframework.security.core.Authentication}
+ * restored from a ticket by {@link CookieSecurityContextRepository}.
+ *
+ * <p>The ticket only holds the principal's name, so the principal is always
+ * a String, even if the login's principal was e.g. a UserDetails.
+ */
+public class RavenTicketAuthenticationToken
+    extends AbstractAuthenticationToken {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String principal;
+    private final Instant issued;
+    private final Instant expires;
+
+    public RavenTicketAuthenticationToken(
+        String principal, Collection<? extends GrantedAuthority> authorities,
+        Instant issued, Instant expires) {
+
+        super(authorities);
+
+        Assert.notNull(principal);
+        Assert.notNull(issued);
+        Assert.notNull(expires);
+
+        this.principal = principal;
+        this.issued = issued;
+        this.expires = expires;
+        super.setAuthenticated(true);
+    }
+
+    @Override
+    public void setAuthenticated(boolean authenticated) {
+        throw new IllegalArgumentException(
+            "Cannot change authentication state - use constructor");
+    }
+
+    /** Tickets carry no credentials, so this is always null. */
+    @Override
+    public Object getCredentials() {
+        return null;
+    }
+
+    @Override
+    public String getPrincipal() {
+        return this.principal;
+    }
+
+    /** The issue time of the Raven response the user logged in with. */
+    public Instant getIssued() {
+        return this.issued;
+    }
+
+    /** The time the ticket stops being accepted. */
+    public Instant getExpires() {
+        return this.expires;
+    }
+}
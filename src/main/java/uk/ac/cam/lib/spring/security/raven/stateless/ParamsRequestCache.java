@@ -0,0 +1,441 @@
+package uk.ac.cam.lib.spring.security.raven.stateless;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.security.web.savedrequest.RequestCache;
+import org.springframework.security.web.savedrequest.SavedRequest;
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.OriginalRequestView;
+import uk.ac.cam.lib.spring.security.raven.QueryParameterScanner;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.lib.spring.security.raven.crypto.HmacSigner;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator.RequestParam;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator.ViewParamProducer;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link RequestCache} which keeps the original request in the Raven
+ * {@code params} field instead of the HTTP session.
+ *
+ * <p>The entry point's {@link DefaultRavenRequestCreator} sets {@code params}
+ * with {@link #paramsProducer()}, which encodes the method, URL and
+ * parameters of the request being redirected to Raven, optionally compresses
+ * them, and signs them with an HMAC. The WLS returns {@code params} unchanged
+ * in its (signed) response, so {@link #getRequest(HttpServletRequest,
+ * HttpServletResponse)} can rebuild the original request from the callback
+ * alone. Nothing is read from or written to the session, so callbacks can be
+ * handled by any node which shares the HMAC key, and anonymous requests for
+ * protected pages don't create sessions.
+ *
+ * <p>{@link #saveRequest(HttpServletRequest, HttpServletResponse)} and
+ * {@link #removeRequest(HttpServletRequest, HttpServletResponse)} do nothing,
+ * and {@link #getMatchingRequest(HttpServletRequest, HttpServletResponse)}
+ * always returns null, as there is nothing stored to restore. Encoded requests
+ * are rejected once they're older than the maximum age. The parameters of a
+ * request are visible to the user (and the WLS), so requests with secret
+ * parameters should not be redirected to Raven this way.
+ *
+ * <p>{@code params} also travels to Raven in the login URL, so requests with
+ * many or large parameters may produce URLs longer than browsers or servers
+ * accept.
+ *
+ * @see DefaultRavenRequestCreator
+ */
+public class ParamsRequestCache implements RequestCache {
+
+    private static final Log logger =
+        LogFactory.getLog(ParamsRequestCache.class);
+
+    /**
+     * The request attribute holding the raw {@code params} value a
+     * {@link ParamsSavedRequest} was decoded from.
+     */
+    public static final String PARAMS_ATTRIBUTE =
+        ParamsRequestCache.class.getName() + ".PARAMS";
+
+    private static final String SAVED_REQUEST_ATTRIBUTE =
+        ParamsRequestCache.class.getName() + ".SAVED_REQUEST";
+
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofHours(1);
+
+    /** Decoded requests larger than this are rejected. */
+    static final int MAX_PAYLOAD_LENGTH = 64 * 1024;
+
+    private static final int VERSION = 1;
+    private static final int FLAG_DEFLATED = 1;
+    private static final int HEADER_LENGTH = 2;
+
+    private static final Base64.Encoder ENCODER =
+        Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final HmacSigner signer;
+    private final QueryParameterScanner responseParameter;
+    private Duration maxAge = DEFAULT_MAX_AGE;
+    private boolean compress = true;
+    private Clock clock = Clock.systemUTC();
+
+    public ParamsRequestCache(HmacSigner signer) {
+        this(signer, RavenAuthenticationFilter.RESPONSE_PARAMETER_NAME);
+    }
+
+    /**
+     * @param signer Signs and verifies the encoded requests. Every node which
+     *               handles callbacks must use the same key.
+     * @param responseParameterName The query parameter holding the WLS
+     *                              response, used if the response has not
+     *                              already been parsed by a
+     *                              {@link RavenAuthenticationFilter}.
+     */
+    public ParamsRequestCache(HmacSigner signer,
+                              String responseParameterName) {
+        Assert.notNull(signer);
+        Assert.hasText(responseParameterName);
+
+        this.signer = signer;
+        this.responseParameter =
+            new QueryParameterScanner(responseParameterName);
+    }
+
+    /**
+     * @param maxAge How long after the entry point encodes a request it can
+     *               be restored. Defaults to {@link #DEFAULT_MAX_AGE}.
+     */
+    public void setMaxAge(Duration maxAge) {
+        Assert.notNull(maxAge);
+        Assert.isTrue(!maxAge.isNegative() && !maxAge.isZero(),
+            "maxAge must be positive");
+        this.maxAge = maxAge;
+    }
+
+    public Duration getMaxAge() {
+        return this.maxAge;
+    }
+
+    /**
+     * @param compress Whether to deflate encoded requests when doing so makes
+     *                 them shorter. Defaults to true.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public boolean isCompress() {
+        return this.compress;
+    }
+
+    public void setClock(Clock clock) {
+        Assert.notNull(clock);
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return this.clock;
+    }
+
+    /**
+     * Get a producer of the Raven {@code params} value for a request.
+     *
+     * <p>When the filter reconstructs the login request for a callback, the
+     * {@code params} value the response was decoded from is returned, so
+     * the reconstructed request matches the one sent.
+     */
+    public ViewParamProducer paramsProducer() {
+        return (param, request) -> {
+            Assert.isTrue(param == RequestParam.params,
+                "ParamsRequestCache can only produce the params value");
+
+            Object echoed = request.getAttribute(PARAMS_ATTRIBUTE);
+            if(echoed instanceof String)
+                return echoed;
+            return this.encode(request);
+        };
+    }
+
+    /**
+     * Encode a request's method, URL and parameters as a signed,
+     * URL-safe string.
+     */
+    public String encode(HttpServletRequest request) {
+        return this.encode(OriginalRequestView.of(request));
+    }
+
+    public String encode(OriginalRequestView request) {
+        Assert.notNull(request);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        writeVarLong(body, this.clock.instant().getEpochSecond());
+        writeString(body, request.getMethod());
+        writeString(body, request.getUrl());
+
+        Map<String, String[]> params = new TreeMap<>(request.getParameterMap());
+        writeVarLong(body, params.size());
+        for(Map.Entry<String, String[]> param : params.entrySet()) {
+            writeString(body, param.getKey());
+            writeVarLong(body, param.getValue().length);
+            for(String value : param.getValue())
+                writeString(body, value);
+        }
+
+        byte[] payload = body.toByteArray();
+        int flags = 0;
+        if(this.compress) {
+            byte[] deflated = deflate(payload);
+            if(deflated.length < payload.length) {
+                payload = deflated;
+                flags |= FLAG_DEFLATED;
+            }
+        }
+
+        int macLength = this.signer.getMacLength();
+        byte[] token = new byte[HEADER_LENGTH + payload.length + macLength];
+        token[0] = VERSION;
+        token[1] = (byte)flags;
+        System.arraycopy(payload, 0, token, HEADER_LENGTH, payload.length);
+        this.signer.sign(token, 0, HEADER_LENGTH + payload.length,
+                         token, HEADER_LENGTH + payload.length);
+
+        return ENCODER.encodeToString(token);
+    }
+
+    /**
+     * Decode a string produced by {@link #encode(HttpServletRequest)}.
+     *
+     * @return The request, or null if the string is malformed, its signature
+     *         is invalid or it's older than the maximum age.
+     */
+    public ParamsSavedRequest decode(String encoded) {
+        if(encoded == null || encoded.isEmpty())
+            return null;
+
+        try {
+            return this.decodeVerified(encoded);
+        }
+        catch(IllegalArgumentException e) {
+            logger.debug("Rejected Raven params value: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private ParamsSavedRequest decodeVerified(String encoded) {
+        byte[] token = DECODER.decode(encoded);
+        int macLength = this.signer.getMacLength();
+        int payloadEnd = token.length - macLength;
+
+        if(payloadEnd < HEADER_LENGTH)
+            throw new IllegalArgumentException("too short");
+        if(!this.signer.verify(token, 0, payloadEnd, token, payloadEnd))
+            throw new IllegalArgumentException("bad signature");
+        if(token[0] != VERSION)
+            throw new IllegalArgumentException("unknown version: " + token[0]);
+
+        byte[] payload = Arrays.copyOfRange(token, HEADER_LENGTH, payloadEnd);
+        if((token[1] & FLAG_DEFLATED) != 0)
+            payload = inflate(payload);
+
+        Reader in = new Reader(payload);
+        Instant created = Instant.ofEpochSecond(in.readVarLong());
+        if(created.plus(this.maxAge).isBefore(this.clock.instant()))
+            throw new IllegalArgumentException("expired at " +
+                                               created.plus(this.maxAge));
+
+        String method = in.readString();
+        String url = in.readString();
+
+        int paramCount = in.readLength();
+        Map<String, String[]> params = new LinkedHashMap<>();
+        for(int i = 0; i < paramCount; i++) {
+            String name = in.readString();
+            String[] values = new String[in.readLength()];
+            for(int j = 0; j < values.length; j++)
+                values[j] = in.readString();
+            params.put(name, values);
+        }
+        if(in.remaining() != 0)
+            throw new IllegalArgumentException("trailing data");
+
+        return new ParamsSavedRequest(method, url, params, created);
+    }
+
+    /** Does nothing; the request is saved by the entry point's login URL. */
+    @Override
+    public void saveRequest(HttpServletRequest request,
+                            HttpServletResponse response) { }
+
+    /**
+     * Get the original request from the {@code params} field of the WLS
+     * response in the current request.
+     *
+     * @return The original request, or null if the current request has no
+     *         valid WLS response, or its {@code params} are not a valid
+     *         encoded request.
+     */
+    @Override
+    public SavedRequest getRequest(HttpServletRequest request,
+                                   HttpServletResponse response) {
+        Object saved = request.getAttribute(SAVED_REQUEST_ATTRIBUTE);
+        if(saved instanceof ParamsSavedRequest)
+            return (ParamsSavedRequest)saved;
+
+        String params = this.getEchoedParams(request);
+        ParamsSavedRequest savedRequest = this.decode(params);
+
+        if(savedRequest != null) {
+            request.setAttribute(SAVED_REQUEST_ATTRIBUTE, savedRequest);
+            request.setAttribute(PARAMS_ATTRIBUTE, params);
+        }
+        return savedRequest;
+    }
+
+    private String getEchoedParams(HttpServletRequest request) {
+        Object parsed = request.getAttribute(
+            RavenAuthenticationFilter.RESPONSE_ATTRIBUTE);
+        if(parsed instanceof WlsResponse)
+            return ((WlsResponse)parsed).getParams();
+        if(parsed instanceof WebauthResponse)
+            return ((WebauthResponse)parsed).get("params");
+
+        try {
+            String raw = this.responseParameter.extractFrom(
+                request.getQueryString());
+            return raw == null ? null : WlsResponse.parse(raw).getParams();
+        }
+        catch(IllegalArgumentException | WebauthException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Always returns null, as the original request can only be restored by
+     * the Raven callback.
+     */
+    @Override
+    public HttpServletRequest getMatchingRequest(HttpServletRequest request,
+                                                 HttpServletResponse response) {
+        return null;
+    }
+
+    /** Does nothing; nothing is stored. */
+    @Override
+    public void removeRequest(HttpServletRequest request,
+                              HttpServletResponse response) { }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] buffer = new byte[512];
+            while(!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                data.length * 4);
+            byte[] buffer = new byte[512];
+            while(!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if(n == 0 && (inflater.needsInput() ||
+                              inflater.needsDictionary()))
+                    throw new IllegalArgumentException("truncated payload");
+                if(out.size() + n > MAX_PAYLOAD_LENGTH)
+                    throw new IllegalArgumentException("payload too large");
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+        catch(DataFormatException e) {
+            throw new IllegalArgumentException("malformed payload", e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while((value & ~0x7fL) != 0) {
+            out.write((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int position;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int remaining() {
+            return this.data.length - this.position;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                if(this.position >= this.data.length)
+                    throw new IllegalArgumentException("truncated varint");
+
+                byte b = this.data[this.position++];
+                value |= (long)(b & 0x7f) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+        int readLength() {
+            long length = this.readVarLong();
+            if(length < 0 || length > this.remaining())
+                throw new IllegalArgumentException("bad length: " + length);
+            return (int)length;
+        }
+
+        String readString() {
+            int length = this.readLength();
+            String value = new String(this.data, this.position, length,
+                                      StandardCharsets.UTF_8);
+            this.position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package uk.ac.cam.lib.spring.security.raven.stateless;
+
+import org.springframework.security.web.savedrequest.SavedRequest;
+import org.springframework.util.Assert;
+
+import javax.servlet.http.Cookie;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link SavedRequest} decoded from the Raven {@code params} field by a
+ * {@link ParamsRequestCache}.
+ *
+ * <p>Only the method, URL and parameters of the original request are carried
+ * through the login, so it has no headers, cookies or locales.
+ */
+public final class ParamsSavedRequest implements SavedRequest {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String method;
+    private final String redirectUrl;
+    private final Map<String, String[]> parameters;
+    private final Instant created;
+
+    ParamsSavedRequest(String method, String redirectUrl,
+                       Map<String, String[]> parameters, Instant created) {
+        Assert.hasText(method);
+        Assert.hasText(redirectUrl);
+        Assert.notNull(parameters);
+        Assert.notNull(created);
+
+        this.method = method;
+        this.redirectUrl = redirectUrl;
+        this.parameters = Collections.unmodifiableMap(
+            new LinkedHashMap<>(parameters));
+        this.created = created;
+    }
+
+    /** The time the original request was encoded by the entry point. */
+    public Instant getCreated() {
+        return this.created;
+    }
+
+    @Override
+    public String getRedirectUrl() {
+        return this.redirectUrl;
+    }
+
+    @Override
+    public String getMethod() {
+        return this.method;
+    }
+
+    @Override
+    public List<Cookie> getCookies() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<String> getHeaderValues(String name) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Locale> getLocales() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        String[] values = this.parameters.get(name);
+        return values == null ? null : values.clone();
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return this.parameters;
+    }
+}
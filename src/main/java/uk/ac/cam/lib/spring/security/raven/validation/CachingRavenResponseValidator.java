@@ -0,0 +1,222 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.lib.spring.security.raven.concurrent.StripedExpiringMap;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the outcome of validating a response for a short time, so that
+ * the same {@code WLS-Response} arriving again (from a browser retrying, a
+ * proxy or a link prefetcher) isn't parsed and verified again.
+ *
+ * <p>Outcomes are keyed by the raw response and the request fields the
+ * validation depends on ({@code url} and {@code ver}). Failures are cached
+ * with their message, and rethrown as a new {@link WebauthException}. A
+ * success is cached until the response leaves its issue window, if that's
+ * sooner than the TTL, so a cached success never outlives the response.
+ * Responses which are not yet valid (issued in the future by a fast WLS
+ * clock) are cached as failures for the TTL, so keep it short.
+ *
+ * <p>Caching successes doesn't weaken replay detection:
+ * {@link uk.ac.cam.lib.spring.security.raven.RavenAuthenticationProvider}
+ * checks its {@code ReplayStore} before validating.
+ *
+ * <p>Outcomes are held in a {@link StripedExpiringMap} of at most
+ * {@code maxEntries}.
+ */
+public class CachingRavenResponseValidator implements RavenResponseValidator {
+
+    public static final int DEFAULT_STRIPES =
+        StripedExpiringMap.DEFAULT_STRIPES;
+
+    /** The default time for which outcomes are remembered. */
+    public static final Duration DEFAULT_TTL = Duration.ofSeconds(10);
+
+    private final RavenResponseValidator delegate;
+    private final StripedExpiringMap<Key, Outcome> outcomes;
+    private final long ttlMillis;
+    private final long issueWindowMillis;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder failureHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Cache the outcomes of a {@link NativeRavenResponseValidator}, whose
+     * timeout and skew (which must already be set) bound the lifetime of
+     * cached successes.
+     */
+    public CachingRavenResponseValidator(
+        NativeRavenResponseValidator delegate, int maxEntries) {
+
+        this(delegate, maxEntries, DEFAULT_TTL,
+             delegate.getTimeout().plus(delegate.getMaxSkew())
+                 .plusSeconds(1));
+    }
+
+    /**
+     * @param delegate The validator whose outcomes are cached.
+     * @param maxEntries The maximum number of outcomes remembered.
+     * @param ttl How long outcomes are remembered for.
+     * @param issueWindow How long after it's issued the delegate accepts a
+     *                    response (its timeout and any skew allowance).
+     */
+    public CachingRavenResponseValidator(
+        RavenResponseValidator delegate, int maxEntries, Duration ttl,
+        Duration issueWindow) {
+
+        this(delegate, maxEntries, ttl, issueWindow, DEFAULT_STRIPES);
+    }
+
+    public CachingRavenResponseValidator(
+        RavenResponseValidator delegate, int maxEntries, Duration ttl,
+        Duration issueWindow, int stripes) {
+
+        Assert.notNull(delegate);
+        Assert.notNull(ttl);
+        Assert.isTrue(!ttl.isNegative() && !ttl.isZero(),
+            "ttl must be positive");
+        Assert.notNull(issueWindow);
+        Assert.isTrue(!issueWindow.isNegative(),
+            "issueWindow must not be negative");
+
+        this.delegate = delegate;
+        this.outcomes = new StripedExpiringMap<>(
+            maxEntries, stripes, outcome -> outcome.expiresMillis);
+        this.ttlMillis = ttl.toMillis();
+        this.issueWindowMillis = issueWindow.toMillis();
+    }
+
+    @Override
+    public void validate(
+        WebauthRequest request, WlsResponse response, Instant now)
+        throws WebauthException {
+
+        Assert.notNull(request);
+        Assert.notNull(response);
+        Assert.notNull(now);
+
+        Key key = new Key(
+            response.getToken(), request.get("url"), request.get("ver"));
+        long nowMillis = now.toEpochMilli();
+
+        Outcome cached = this.outcomes.get(key, nowMillis);
+        if(cached != null) {
+            this.hits.increment();
+            if(cached.failure == null)
+                return;
+
+            this.failureHits.increment();
+            throw new WebauthException(cached.failure);
+        }
+        this.misses.increment();
+
+        Outcome outcome;
+        try {
+            this.delegate.validate(request, response, now);
+            outcome = new Outcome(null, Math.min(
+                nowMillis + this.ttlMillis,
+                NativeRavenResponseValidator.parseIssue(response.getIssue()) +
+                    this.issueWindowMillis));
+        }
+        catch(WebauthException e) {
+            this.outcomes.put(key, new Outcome(
+                String.valueOf(e.getMessage()), nowMillis + this.ttlMillis),
+                nowMillis);
+            throw e;
+        }
+        this.outcomes.put(key, outcome, nowMillis);
+    }
+
+    public RavenResponseValidator getDelegate() {
+        return this.delegate;
+    }
+
+    public Duration getTtl() {
+        return Duration.ofMillis(this.ttlMillis);
+    }
+
+    public Duration getIssueWindow() {
+        return Duration.ofMillis(this.issueWindowMillis);
+    }
+
+    /** The maximum number of outcomes held, across all stripes. */
+    public int getMaxEntries() {
+        return this.outcomes.getMaxEntries();
+    }
+
+    /** The number of outcomes held, including any which have expired. */
+    public int size() {
+        return this.outcomes.size();
+    }
+
+    /** The number of validations answered from the cache. */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /** The number of cache hits which were cached failures. */
+    public long getFailureHitCount() {
+        return this.failureHits.sum();
+    }
+
+    /** The number of validations passed to the delegate. */
+    public long getMissCount() {
+        return this.misses.sum();
+    }
+
+    /** The number of outcomes removed before expiring to make room. */
+    public long getEvictionCount() {
+        return this.outcomes.getEvictionCount();
+    }
+
+    private static final class Key {
+        final String token;
+        final String url;
+        final String ver;
+        final int hash;
+
+        Key(String token, String url, String ver) {
+            this.token = token;
+            this.url = url;
+            this.ver = ver;
+            this.hash = Objects.hash(token, url, ver);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(!(o instanceof Key))
+                return false;
+            Key other = (Key)o;
+            return this.hash == other.hash &&
+                this.token.equals(other.token) &&
+                Objects.equals(this.url, other.url) &&
+                Objects.equals(this.ver, other.ver);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    private static final class Outcome {
+        /** The failure message, or null if the response was valid. */
+        final String failure;
+        final long expiresMillis;
+
+        Outcome(String failure, long expiresMillis) {
+            this.failure = failure;
+            this.expiresMillis = expiresMillis;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.lib.spring.security.raven.concurrent.ThreadCache;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Validates Raven responses using the JDK's signature implementations
+ * directly, making the same checks as the toolkit's
+ * {@link uk.ac.cam.ucs.webauth.WebauthValidator}: the response's protocol
+ * version, status and return URL, that it was issued within the timeout
+ * (allowing for clock skew), and its signature by the WLS key named by its
+ * {@code kid}.
+ *
+ * <p>The WLS public keys are read once, into an immutable table indexed by
+ * {@code kid}, which {@link #setKeys(Map)} replaces as a whole (see
+ * {@link WatchedKeyDirectory}). Each key's {@link Signature}s are initialised
+ * for verification once and reused for later responses (per platform thread,
+ * or from a shared pool on virtual threads; see {@link ThreadCache}), so
+ * validation doesn't look up providers. Unless a provider is given, the
+ * installed provider which verifies signatures with the keys fastest is
+ * chosen when the validator is created.
+ *
+ * <p>The timeout and skew should be set before the validator is used.
+ */
+public class NativeRavenResponseValidator implements RavenResponseValidator {
+
+    private static final Log logger =
+        LogFactory.getLog(NativeRavenResponseValidator.class);
+
+    /** The alias prefix of WLS keys in a {@link KeyStore}. */
+    public static final String KEY_ALIAS_PREFIX = "webauth-pubkey";
+
+    public static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    /** The toolkit's default: responses older than this are rejected. */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+    /** The number of fields which aren't covered by the signature. */
+    private static final int UNSIGNED_FIELDS = 2;
+
+    private static final int SELECTION_ROUNDS = 3;
+    private static final int SELECTION_VERIFICATIONS = 200;
+
+    private volatile Map<String, VerificationKey> keys;
+    private final Provider provider;
+    private final ThreadCache<byte[]> buffers =
+        new ThreadCache<>(() -> new byte[2048]);
+
+    private long timeoutMillis = DEFAULT_TIMEOUT.toMillis();
+    private long maxSkewMillis;
+
+    /**
+     * @param keys The WLS public keys, by {@code kid}.
+     */
+    public NativeRavenResponseValidator(Map<String, PublicKey> keys) {
+        this(keys, fastestProvider(requireKeys(keys).values()));
+    }
+
+    private static Map<String, PublicKey> requireKeys(
+        Map<String, PublicKey> keys) {
+
+        Assert.notEmpty(keys, "keys must not be empty");
+        return keys;
+    }
+
+    /**
+     * @param keys The WLS public keys, by {@code kid}.
+     * @param provider The provider of {@link #SIGNATURE_ALGORITHM} to use.
+     */
+    public NativeRavenResponseValidator(
+        Map<String, PublicKey> keys, Provider provider) {
+
+        Assert.notNull(provider);
+
+        this.provider = provider;
+        this.keys = keyTable(keys, Collections.emptyMap());
+    }
+
+    /**
+     * Replace the validator's keys. The new table is built before being
+     * published with a single volatile write, so responses being validated
+     * concurrently see either the old or the new keys, without waiting. Keys
+     * which are unchanged keep their threads' {@link Signature}s.
+     *
+     * @param keys The WLS public keys, by {@code kid}.
+     * @throws IllegalArgumentException if {@code keys} is empty, or the
+     *         validator's provider can't use one of them. The existing keys
+     *         are kept.
+     */
+    public void setKeys(Map<String, PublicKey> keys) {
+        this.keys = keyTable(keys, this.keys);
+    }
+
+    private Map<String, VerificationKey> keyTable(
+        Map<String, PublicKey> keys, Map<String, VerificationKey> current) {
+
+        Assert.notEmpty(keys, "keys must not be empty");
+
+        Map<String, VerificationKey> table = new HashMap<>();
+        for(Map.Entry<String, PublicKey> e : keys.entrySet()) {
+            Assert.hasText(e.getKey(), "kid must not be empty");
+            Assert.notNull(e.getValue());
+
+            VerificationKey key = current.get(e.getKey());
+            if(key == null || !key.publicKey.equals(e.getValue()))
+                key = new VerificationKey(e.getValue(), this.provider);
+            table.put(e.getKey(), key);
+        }
+
+        return Collections.unmodifiableMap(table);
+    }
+
+    /**
+     * Create a validator for the keys in a {@link KeyStore}, held as
+     * certificates with aliases of the form {@code webauth-pubkey<kid>}, as
+     * the toolkit expects.
+     */
+    public static NativeRavenResponseValidator fromKeyStore(KeyStore keyStore)
+        throws KeyStoreException {
+
+        Assert.notNull(keyStore);
+
+        Map<String, PublicKey> keys = new HashMap<>();
+        for(Enumeration<String> aliases = keyStore.aliases();
+            aliases.hasMoreElements();) {
+
+            String alias = aliases.nextElement();
+            if(!alias.startsWith(KEY_ALIAS_PREFIX) ||
+               alias.length() == KEY_ALIAS_PREFIX.length())
+                continue;
+
+            Certificate cert = keyStore.getCertificate(alias);
+            if(cert != null) {
+                keys.put(alias.substring(KEY_ALIAS_PREFIX.length()),
+                         cert.getPublicKey());
+            }
+        }
+
+        if(keys.isEmpty()) {
+            throw new IllegalArgumentException(
+                "KeyStore contains no " + KEY_ALIAS_PREFIX + " certificates");
+        }
+        return new NativeRavenResponseValidator(keys);
+    }
+
+    public Provider getProvider() {
+        return this.provider;
+    }
+
+    /** The {@code kid}s of the keys the validator holds. */
+    public Set<String> getKids() {
+        return this.keys.keySet();
+    }
+
+    /**
+     * Set how long after it's issued a response is accepted. Defaults to
+     * {@link #DEFAULT_TIMEOUT}.
+     */
+    public void setTimeout(Duration timeout) {
+        Assert.notNull(timeout);
+        Assert.isTrue(!timeout.isNegative(), "timeout must not be negative");
+        this.timeoutMillis = timeout.toMillis();
+    }
+
+    public Duration getTimeout() {
+        return Duration.ofMillis(this.timeoutMillis);
+    }
+
+    /**
+     * Set the maximum difference between our clock and the WLS's. Defaults to
+     * zero; as with the toolkit, a further second is always allowed.
+     */
+    public void setMaxSkew(Duration maxSkew) {
+        Assert.notNull(maxSkew);
+        Assert.isTrue(!maxSkew.isNegative(), "maxSkew must not be negative");
+        this.maxSkewMillis = maxSkew.toMillis();
+    }
+
+    public Duration getMaxSkew() {
+        return Duration.ofMillis(this.maxSkewMillis);
+    }
+
+    @Override
+    public void validate(
+        WebauthRequest request, WlsResponse response, Instant now)
+        throws WebauthException {
+
+        Assert.notNull(request);
+        Assert.notNull(response);
+        Assert.notNull(now);
+
+        int version = intField(response, "ver");
+        if(version < 1 || version > 3 ||
+           response.length() != (version == 3 ? 14 : 13)) {
+            throw new WebauthException(
+                "Unsupported response version: " + version);
+        }
+        String requestVersion = request.get("ver");
+        if(requestVersion != null && version > parseVersion(requestVersion)) {
+            throw new WebauthException(
+                "Response version " + version + " is newer than requested");
+        }
+
+        int status = intField(response, "status");
+        if(status != WebauthResponse.SUCCESS)
+            throw new WebauthException("status " + status);
+
+        if(!response.getUrl().equals(request.get("url")))
+            throw new WebauthException("url mismatch");
+
+        long issued = parseIssue(response.getIssue());
+        long nowMillis = now.toEpochMilli();
+        long slack = this.maxSkewMillis + 1000;
+        if(issued > nowMillis + slack ||
+           nowMillis - slack > issued + this.timeoutMillis) {
+            throw new WebauthException("stale");
+        }
+
+        VerificationKey key = this.keys.get(response.getKid());
+        if(key == null)
+            throw new WebauthException("no key");
+
+        verifySignature(key, response);
+    }
+
+    private static int intField(WlsResponse response, String name)
+        throws WebauthException {
+
+        try {
+            return response.getInt(name);
+        }
+        catch(NumberFormatException e) {
+            throw new WebauthException("Invalid " + name, e);
+        }
+    }
+
+    private static int parseVersion(String version) throws WebauthException {
+        try {
+            return Integer.parseInt(version);
+        }
+        catch(NumberFormatException e) {
+            throw new WebauthException("Invalid request ver", e);
+        }
+    }
+
+    /**
+     * Parse a {@code yyyyMMdd'T'HHmmss'Z'} time as epoch milliseconds.
+     */
+    static long parseIssue(String issue) throws WebauthException {
+        if(issue.length() != 16 || issue.charAt(8) != 'T' ||
+           issue.charAt(15) != 'Z')
+            throw new WebauthException("bad issue");
+
+        try {
+            return LocalDateTime.of(
+                digits(issue, 0, 4), digits(issue, 4, 6),
+                digits(issue, 6, 8), digits(issue, 9, 11),
+                digits(issue, 11, 13), digits(issue, 13, 15))
+                .toEpochSecond(ZoneOffset.UTC) * 1000;
+        }
+        catch(DateTimeException e) {
+            throw new WebauthException("bad issue", e);
+        }
+    }
+
+    private static int digits(String s, int start, int end)
+        throws WebauthException {
+
+        int value = 0;
+        for(int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if(c < '0' || c > '9')
+                throw new WebauthException("bad issue");
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void verifySignature(VerificationKey key, WlsResponse response)
+        throws WebauthException {
+
+        // The signature covers the response up to the kid field, exactly as
+        // received.
+        String token = response.getToken();
+        int end = token.length();
+        for(int i = 0; i < UNSIGNED_FIELDS; i++)
+            end = token.lastIndexOf('!', end - 1);
+
+        byte[] sig;
+        try {
+            sig = Base64.getDecoder().decode(response.getSig()
+                .replace('-', '+').replace('.', '/').replace('_', '='));
+        }
+        catch(IllegalArgumentException e) {
+            throw new WebauthException("bad sig", e);
+        }
+
+        byte[] buffer = this.buffers.acquire();
+        Signature verifier = key.signatures.acquire();
+        boolean valid;
+        try {
+            if(buffer.length < end)
+                buffer = new byte[Math.max(end, buffer.length * 2)];
+
+            if(encode(token, end, buffer)) {
+                verifier.update(buffer, 0, end);
+            }
+            else {
+                verifier.update(token.substring(0, end)
+                    .getBytes(StandardCharsets.UTF_8));
+            }
+            valid = verifier.verify(sig);
+        }
+        catch(GeneralSecurityException | RuntimeException e) {
+            // The Signature may be left part way through an operation
+            key.signatures.discard(verifier);
+            throw new WebauthException("sig error", e);
+        }
+        finally {
+            this.buffers.release(buffer);
+        }
+        key.signatures.release(verifier);
+
+        if(!valid)
+            throw new WebauthException("bad sig");
+    }
+
+    /**
+     * Copy the first {@code length} chars of an ASCII string into a buffer.
+     *
+     * @return false if the string isn't ASCII.
+     */
+    private static boolean encode(String token, int length, byte[] buffer) {
+        for(int i = 0; i < length; i++) {
+            char c = token.charAt(i);
+            if(c >= 0x80)
+                return false;
+            buffer[i] = (byte)c;
+        }
+        return true;
+    }
+
+    /**
+     * Choose the installed provider of {@link #SIGNATURE_ALGORITHM} which
+     * verifies signatures with the keys fastest. Providers which can't use
+     * the keys are ignored.
+     */
+    static Provider fastestProvider(Iterable<PublicKey> keys) {
+        Assert.notNull(keys);
+
+        Provider[] providers =
+            Security.getProviders("Signature." + SIGNATURE_ALGORITHM);
+        if(providers == null || providers.length == 0) {
+            throw new IllegalStateException(
+                "No provider of " + SIGNATURE_ALGORITHM + " is installed");
+        }
+
+        PublicKey key = keys.iterator().hasNext()
+            ? keys.iterator().next() : null;
+        if(providers.length == 1 || !(key instanceof RSAPublicKey))
+            return providers[0];
+
+        // An arbitrary value below the modulus costs the same to check as a
+        // genuine signature.
+        byte[] sig = new byte[
+            (((RSAPublicKey)key).getModulus().bitLength() + 7) / 8];
+        new Random(0).nextBytes(sig);
+        sig[0] = 0;
+        byte[] data = new byte[256];
+
+        Provider fastest = null;
+        long fastestTime = Long.MAX_VALUE;
+        for(Provider provider : providers) {
+            long time = timeVerification(provider, key, data, sig);
+            if(time < fastestTime) {
+                fastest = provider;
+                fastestTime = time;
+            }
+        }
+
+        if(fastest == null) {
+            throw new IllegalStateException(
+                "No provider of " + SIGNATURE_ALGORITHM + " accepts the keys");
+        }
+        if(logger.isDebugEnabled()) {
+            logger.debug("Using " + fastest.getName() + " to verify Raven " +
+                         "responses");
+        }
+        return fastest;
+    }
+
+    /**
+     * @return The best time of several rounds of verifications, or
+     *         {@link Long#MAX_VALUE} if the provider can't use the key.
+     */
+    private static long timeVerification(
+        Provider provider, PublicKey key, byte[] data, byte[] sig) {
+
+        long best = Long.MAX_VALUE;
+        try {
+            Signature verifier =
+                Signature.getInstance(SIGNATURE_ALGORITHM, provider);
+            verifier.initVerify(key);
+
+            for(int round = 0; round < SELECTION_ROUNDS; round++) {
+                long start = System.nanoTime();
+                for(int i = 0; i < SELECTION_VERIFICATIONS; i++) {
+                    verifier.update(data);
+                    try {
+                        verifier.verify(sig);
+                    }
+                    catch(SignatureException e) {
+                        // Providers may reject rather than fail to verify
+                        verifier.initVerify(key);
+                    }
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        }
+        catch(GeneralSecurityException | RuntimeException e) {
+            return Long.MAX_VALUE;
+        }
+        return best;
+    }
+
+    private static final class VerificationKey {
+        final PublicKey publicKey;
+        final ThreadCache<Signature> signatures;
+
+        VerificationKey(PublicKey key, Provider provider) {
+            this.publicKey = key;
+
+            // Fail now, rather than on the first response, if the provider
+            // can't use the key.
+            newSignature(key, provider);
+
+            this.signatures =
+                new ThreadCache<>(() -> newSignature(key, provider));
+        }
+
+        private static Signature newSignature(
+            PublicKey key, Provider provider) {
+
+            try {
+                Signature signature =
+                    Signature.getInstance(SIGNATURE_ALGORITHM, provider);
+                signature.initVerify(key);
+                return signature;
+            }
+            catch(GeneralSecurityException e) {
+                throw new IllegalArgumentException(
+                    "Provider " + provider.getName() + " can't verify " +
+                    SIGNATURE_ALGORITHM + " signatures with key: " + key, e);
+            }
+        }
+    }
+}
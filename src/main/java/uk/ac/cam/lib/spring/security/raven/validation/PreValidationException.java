@@ -0,0 +1,22 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationException;
+
+/**
+ * Thrown by {@link ResponsePreValidator} when a response fails one of its
+ * structural checks, before its signature has been verified.
+ */
+public class PreValidationException extends RavenAuthenticationException {
+
+    private final ResponsePreValidator.Reason reason;
+
+    public PreValidationException(ResponsePreValidator.Reason reason,
+                                  String msg) {
+        super(msg);
+        this.reason = reason;
+    }
+
+    public ResponsePreValidator.Reason getReason() {
+        return this.reason;
+    }
+}
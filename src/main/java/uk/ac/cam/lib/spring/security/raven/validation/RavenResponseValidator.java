@@ -0,0 +1,30 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationProvider;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.time.Instant;
+
+/**
+ * Checks that a Raven response is a genuine, current answer to the request
+ * which was sent. This is the role the toolkit's
+ * {@link uk.ac.cam.ucs.webauth.WebauthValidator} plays for
+ * {@link RavenAuthenticationProvider}, for responses parsed as
+ * {@link WlsResponse}s.
+ *
+ * <p>Implementations must be safe to call from multiple threads.
+ */
+@FunctionalInterface
+public interface RavenResponseValidator {
+
+    /**
+     * @param request The request sent to the WLS.
+     * @param response The WLS's response.
+     * @param now The time the response was received.
+     * @throws WebauthException if the response isn't valid.
+     */
+    void validate(WebauthRequest request, WlsResponse response, Instant now)
+        throws WebauthException;
+}
@@ -0,0 +1,222 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.BadStatusRavenAuthenticationException;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Rejects responses which can't be valid using only their fields, so that
+ * {@link RavenAuthenticationFilter} doesn't read the session, recreate the
+ * request or verify a signature for them.
+ *
+ * <p>The checks are made in the order of {@link Reason}, stopping at the
+ * first which fails, and each failure is counted. Responses with a known but
+ * unsuccessful status are rejected with a
+ * {@link BadStatusRavenAuthenticationException}, as the provider would;
+ * other failures throw a {@link PreValidationException}. A response which
+ * passes may still be rejected by the validator.
+ */
+public class ResponsePreValidator {
+
+    /** The checks, in the order they're made. */
+    public enum Reason {
+        /** The {@code ver} is not 1, 2 or 3. */
+        VERSION,
+        /** The number of fields is wrong for the {@code ver}. */
+        FIELD_COUNT,
+        /**
+         * The {@code status} is not 200. This is checked before the
+         * {@code kid}, as unsuccessful responses aren't signed.
+         */
+        STATUS,
+        /** The {@code kid} is not one of the known keys. */
+        KID,
+        /** The {@code issue} time is malformed or outside the window. */
+        ISSUE,
+        /** The {@code url} doesn't start with the expected prefix. */
+        URL
+    }
+
+    /** Statuses the WLS may send, other than 200. */
+    private static final int[] UNSUCCESSFUL_STATUSES = {
+        WebauthResponse.CANCELLED, WebauthResponse.NO_MUTUAL_AUTH,
+        WebauthResponse.UNSUPPORTED_PROTOCOL, WebauthResponse.ERROR,
+        WebauthResponse.INTERACTION_REQUIRED, 560,
+        WebauthResponse.AUTH_DECLINED
+    };
+
+    private final Map<Reason, LongAdder> rejections;
+    private Supplier<? extends Set<String>> kids;
+    private String urlPrefix;
+    private long timeoutMillis =
+        NativeRavenResponseValidator.DEFAULT_TIMEOUT.toMillis();
+    private long maxSkewMillis;
+
+    public ResponsePreValidator() {
+        Map<Reason, LongAdder> rejections = new EnumMap<>(Reason.class);
+        for(Reason reason : Reason.values())
+            rejections.put(reason, new LongAdder());
+        this.rejections = Collections.unmodifiableMap(rejections);
+    }
+
+    /**
+     * Create a pre-validator which checks the {@code kid}s, timeout and skew
+     * of a {@link NativeRavenResponseValidator}. The kids are those the
+     * validator holds at the time of each check; the timeout and skew are
+     * copied, so must be set on the validator first.
+     */
+    public static ResponsePreValidator forValidator(
+        NativeRavenResponseValidator validator) {
+
+        Assert.notNull(validator);
+
+        ResponsePreValidator preValidator = new ResponsePreValidator();
+        preValidator.setKids(validator::getKids);
+        preValidator.setTimeout(validator.getTimeout());
+        preValidator.setMaxSkew(validator.getMaxSkew());
+        return preValidator;
+    }
+
+    /**
+     * Reject responses whose {@code kid} is not in the set returned by
+     * {@code kids}, which is called for each response.
+     *
+     * @param kids The source of known kids, or null not to check them (the
+     *             default).
+     */
+    public void setKids(Supplier<? extends Set<String>> kids) {
+        this.kids = kids;
+    }
+
+    /**
+     * Reject responses whose {@code url} doesn't start with a prefix, such
+     * as the application's scheme, host and context path.
+     *
+     * @param urlPrefix The prefix, or null not to check URLs (the default).
+     */
+    public void setUrlPrefix(String urlPrefix) {
+        this.urlPrefix = urlPrefix;
+    }
+
+    public String getUrlPrefix() {
+        return this.urlPrefix;
+    }
+
+    /**
+     * Set how long after it's issued a response is accepted. This should be
+     * the validator's timeout. Defaults to
+     * {@link NativeRavenResponseValidator#DEFAULT_TIMEOUT}.
+     */
+    public void setTimeout(Duration timeout) {
+        Assert.notNull(timeout);
+        Assert.isTrue(!timeout.isNegative(), "timeout must not be negative");
+        this.timeoutMillis = timeout.toMillis();
+    }
+
+    public Duration getTimeout() {
+        return Duration.ofMillis(this.timeoutMillis);
+    }
+
+    /**
+     * Set the maximum difference between our clock and the WLS's. This should
+     * be the validator's skew. Defaults to zero; a further second is always
+     * allowed.
+     */
+    public void setMaxSkew(Duration maxSkew) {
+        Assert.notNull(maxSkew);
+        Assert.isTrue(!maxSkew.isNegative(), "maxSkew must not be negative");
+        this.maxSkewMillis = maxSkew.toMillis();
+    }
+
+    public Duration getMaxSkew() {
+        return Duration.ofMillis(this.maxSkewMillis);
+    }
+
+    /**
+     * Check a response.
+     *
+     * @param response The response, whose {@code ver} and {@code status} are
+     *                 numeric.
+     * @param now The time the response was received.
+     * @throws PreValidationException if the response fails a check.
+     * @throws BadStatusRavenAuthenticationException if the response has a
+     *         known, unsuccessful status.
+     */
+    public void check(WlsResponse response, Instant now)
+        throws PreValidationException, BadStatusRavenAuthenticationException {
+
+        Assert.notNull(response);
+        Assert.notNull(now);
+
+        int version = response.getVersion();
+        if(version < 1 || version > 3)
+            throw reject(Reason.VERSION, "Unsupported version: " + version);
+
+        if(response.length() != (version == 3 ? 14 : 13))
+            throw reject(Reason.FIELD_COUNT, "Wrong number of fields");
+
+        int status = response.getStatus();
+        if(status != WebauthResponse.SUCCESS) {
+            PreValidationException e =
+                reject(Reason.STATUS, "Unsuccessful status: " + status);
+            for(int known : UNSUCCESSFUL_STATUSES) {
+                if(status == known)
+                    throw new BadStatusRavenAuthenticationException(status, e);
+            }
+            throw e;
+        }
+
+        Supplier<? extends Set<String>> kids = this.kids;
+        if(kids != null && !kids.get().contains(response.getKid()))
+            throw reject(Reason.KID, "Unknown kid");
+
+        long issued;
+        try {
+            issued = NativeRavenResponseValidator.parseIssue(
+                response.getIssue());
+        }
+        catch(WebauthException e) {
+            throw reject(Reason.ISSUE, "Malformed issue");
+        }
+        long nowMillis = now.toEpochMilli();
+        long slack = this.maxSkewMillis + 1000;
+        if(issued > nowMillis + slack ||
+           nowMillis - slack > issued + this.timeoutMillis)
+            throw reject(Reason.ISSUE, "Stale or future issue");
+
+        String urlPrefix = this.urlPrefix;
+        if(urlPrefix != null && !response.getUrl().startsWith(urlPrefix))
+            throw reject(Reason.URL, "Unexpected url");
+    }
+
+    private PreValidationException reject(Reason reason, String message) {
+        this.rejections.get(reason).increment();
+        return new PreValidationException(reason, message);
+    }
+
+    /** The number of responses which have failed a check. */
+    public long getRejectionCount(Reason reason) {
+        Assert.notNull(reason);
+        return this.rejections.get(reason).sum();
+    }
+
+    /** The number of responses which have failed each check. */
+    public Map<Reason, Long> getRejectionCounts() {
+        Map<Reason, Long> counts = new EnumMap<>(Reason.class);
+        for(Map.Entry<Reason, LongAdder> e : this.rejections.entrySet())
+            counts.put(e.getKey(), e.getValue().sum());
+        return counts;
+    }
+}
@@ -0,0 +1,337 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Loads WLS public keys from a directory into a
+ * {@link NativeRavenResponseValidator}, and reloads them when the directory
+ * changes, so keys can be rotated without restarting.
+ *
+ * <p>Each regular file in the directory holds one key, either as an X.509
+ * certificate (PEM or DER) or as a PEM {@code PUBLIC KEY}. The file's name,
+ * without any extension and {@code pubkey} prefix, is the key's {@code kid}:
+ * the WLS's {@code pubkey2.crt} is key {@code 2}. Files whose names start with
+ * {@code .} are ignored.
+ *
+ * <p>{@link #start()} loads the keys, failing if they can't be, then watches
+ * the directory with a {@link WatchService} on a daemon thread. After a
+ * change, the thread waits until the directory has been quiet for
+ * {@link #setQuietPeriod(Duration) a short time}, then parses every key and
+ * replaces the validator's keys in one step. Request threads never parse keys
+ * or wait for a reload. If any file can't be parsed (for example, because it
+ * was only partly written), the validator keeps its existing keys and the
+ * failure is reported; the next change triggers another attempt.
+ */
+public class WatchedKeyDirectory implements Closeable {
+
+    private static final Log logger =
+        LogFactory.getLog(WatchedKeyDirectory.class);
+
+    public static final Duration DEFAULT_QUIET_PERIOD = Duration.ofMillis(200);
+
+    private static final String KEY_FILE_PREFIX = "pubkey";
+
+    /**
+     * Receives the outcome of each reload, on the watching thread.
+     */
+    public interface ReloadListener {
+        void keysReloaded(Map<String, PublicKey> keys);
+
+        void keyReloadFailed(Exception cause);
+    }
+
+    private final Path directory;
+    private final NativeRavenResponseValidator validator;
+    private ReloadListener listener;
+    private long quietPeriodMillis = DEFAULT_QUIET_PERIOD.toMillis();
+
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Exception lastFailure;
+
+    // Not synchronized: start() does I/O while holding the lock, which would
+    // pin a virtual thread to its carrier.
+    private final ReentrantLock lifecycleLock = new ReentrantLock();
+    private WatchService watchService;
+    private Thread thread;
+
+    public WatchedKeyDirectory(
+        Path directory, NativeRavenResponseValidator validator) {
+
+        Assert.notNull(directory);
+        Assert.notNull(validator);
+
+        this.directory = directory;
+        this.validator = validator;
+    }
+
+    /**
+     * Create a validator for the keys currently in a directory. The validator
+     * isn't updated until a {@code WatchedKeyDirectory} is started for it.
+     */
+    public static NativeRavenResponseValidator loadValidator(Path directory)
+        throws IOException {
+
+        return new NativeRavenResponseValidator(readKeys(directory));
+    }
+
+    public Path getDirectory() {
+        return this.directory;
+    }
+
+    public NativeRavenResponseValidator getValidator() {
+        return this.validator;
+    }
+
+    /**
+     * @param listener The receiver of reload outcomes, or null for none (the
+     *                 default). Outcomes are also logged.
+     */
+    public void setListener(ReloadListener listener) {
+        this.listener = listener;
+    }
+
+    public ReloadListener getListener() {
+        return this.listener;
+    }
+
+    /**
+     * Set how long the directory must go without changes before the keys are
+     * reloaded. Defaults to {@link #DEFAULT_QUIET_PERIOD}.
+     */
+    public void setQuietPeriod(Duration quietPeriod) {
+        Assert.notNull(quietPeriod);
+        Assert.isTrue(!quietPeriod.isNegative(),
+            "quietPeriod must not be negative");
+        this.quietPeriodMillis = quietPeriod.toMillis();
+    }
+
+    public Duration getQuietPeriod() {
+        return Duration.ofMillis(this.quietPeriodMillis);
+    }
+
+    /** The number of successful reloads, including the initial load. */
+    public long getReloadCount() {
+        return this.reloads.get();
+    }
+
+    /** The number of reloads which failed. */
+    public long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /** The cause of the most recent failure, or null if none has failed. */
+    public Exception getLastFailure() {
+        return this.lastFailure;
+    }
+
+    /**
+     * Load the keys and start watching the directory.
+     *
+     * @throws IOException if the directory can't be watched or its keys
+     *         can't be loaded.
+     */
+    public void start() throws IOException {
+        this.lifecycleLock.lock();
+        try {
+            Assert.state(this.watchService == null, "Already started");
+
+            WatchService watchService =
+                this.directory.getFileSystem().newWatchService();
+            try {
+                // Register before loading, so changes made while loading
+                // aren't missed.
+                this.directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+
+                if(!reload())
+                    throw new IOException(
+                        "Failed to load keys from " + this.directory,
+                        this.lastFailure);
+            }
+            catch(IOException | RuntimeException e) {
+                watchService.close();
+                throw e;
+            }
+
+            this.watchService = watchService;
+            this.thread = new Thread(
+                () -> watch(watchService), "raven-key-watcher");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+        finally {
+            this.lifecycleLock.unlock();
+        }
+    }
+
+    /** Stop watching the directory. The validator keeps its current keys. */
+    @Override
+    public void close() throws IOException {
+        this.lifecycleLock.lock();
+        try {
+            if(this.watchService == null)
+                return;
+
+            this.watchService.close();
+            this.thread.interrupt();
+            this.watchService = null;
+            this.thread = null;
+        }
+        finally {
+            this.lifecycleLock.unlock();
+        }
+    }
+
+    private void watch(WatchService watchService) {
+        try {
+            while(true) {
+                WatchKey key = watchService.take();
+                drain(key);
+
+                // Wait for the directory to settle
+                while((key = watchService.poll(
+                    this.quietPeriodMillis, TimeUnit.MILLISECONDS)) != null) {
+                    drain(key);
+                }
+
+                reload();
+            }
+        }
+        catch(InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private void drain(WatchKey key) {
+        key.pollEvents();
+        if(!key.reset())
+            logger.warn("No longer watching " + this.directory);
+    }
+
+    /**
+     * Load the keys from the directory now, replacing the validator's keys if
+     * they're all parsed.
+     *
+     * @return true if the keys were replaced.
+     */
+    public boolean reload() {
+        Map<String, PublicKey> keys;
+        try {
+            keys = readKeys(this.directory);
+            this.validator.setKeys(keys);
+        }
+        catch(IOException | RuntimeException e) {
+            this.failures.incrementAndGet();
+            this.lastFailure = e;
+            logger.error("Failed to reload Raven keys from " + this.directory +
+                         "; keeping kids " + this.validator.getKids(), e);
+
+            ReloadListener listener = this.listener;
+            if(listener != null)
+                listener.keyReloadFailed(e);
+            return false;
+        }
+
+        this.reloads.incrementAndGet();
+        if(logger.isInfoEnabled()) {
+            logger.info("Loaded Raven keys " + keys.keySet() + " from " +
+                        this.directory);
+        }
+
+        ReloadListener listener = this.listener;
+        if(listener != null)
+            listener.keysReloaded(keys);
+        return true;
+    }
+
+    static Map<String, PublicKey> readKeys(Path directory) throws IOException {
+        Map<String, PublicKey> keys = new HashMap<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for(Path file : files) {
+                String name = file.getFileName().toString();
+                if(name.startsWith(".") || !Files.isRegularFile(file))
+                    continue;
+
+                String kid = kid(name);
+                if(kid.isEmpty())
+                    throw new IOException("Key file has no kid: " + file);
+
+                PublicKey previous = keys.put(kid, readKey(file));
+                if(previous != null)
+                    throw new IOException("Duplicate key file for kid: " + kid);
+            }
+        }
+
+        if(keys.isEmpty())
+            throw new IOException("No keys in " + directory);
+        return Collections.unmodifiableMap(keys);
+    }
+
+    static String kid(String fileName) {
+        int dot = fileName.indexOf('.');
+        String kid = dot < 0 ? fileName : fileName.substring(0, dot);
+        return kid.startsWith(KEY_FILE_PREFIX)
+            ? kid.substring(KEY_FILE_PREFIX.length()) : kid;
+    }
+
+    static PublicKey readKey(Path file) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        String text = new String(content, StandardCharsets.US_ASCII);
+
+        try {
+            if(text.contains("-----BEGIN PUBLIC KEY-----")) {
+                return KeyFactory.getInstance("RSA").generatePublic(
+                    new X509EncodedKeySpec(pem(text, "PUBLIC KEY")));
+            }
+
+            return CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(content))
+                .getPublicKey();
+        }
+        catch(GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Invalid key file: " + file, e);
+        }
+    }
+
+    private static byte[] pem(String text, String type) {
+        String begin = "-----BEGIN " + type + "-----";
+        String end = "-----END " + type + "-----";
+
+        int start = text.indexOf(begin) + begin.length();
+        int stop = text.indexOf(end, start);
+        if(stop < 0)
+            throw new IllegalArgumentException("No " + end);
+
+        return Base64.getMimeDecoder().decode(text.substring(start, stop));
+    }
+}
@@ -20,26 +20,26 @@ package uk.ac.cam.lib.spring.security.raven.vedorised;
  * limitations under the License.
  */
 
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.TimeZone;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.springframework.security.web.savedrequest.Enumerator;
-import org.springframework.security.web.savedrequest.FastHttpDateFormat;
 import org.springframework.security.web.savedrequest.SavedRequest;
 
 
@@ -50,6 +50,12 @@ import org.springframework.security.web.savedrequest.SavedRequest;
  * Nevertheless, the important data from the original request is emulated and this should prove
  * adequate for most purposes (in particular standard HTTP GET and POST operations).</p>
  *
+ * <p>Unlike Spring's version, the wrapper is a lazy view: nothing is computed on construction, date
+ * headers are parsed with thread-safe {@code java.time} formatters only when requested, and the
+ * merged parameter map and cookie array are built once, on first use. The wrapped request's
+ * parameters are therefore read when they're first merged; later changes to them (e.g. by a
+ * forward) are seen by {@link #getParameter(String)}, but not by the merged parameter map.</p>
+ *
  * <p>
  * Added into a request by {@link org.springframework.security.web.savedrequest.RequestCacheAwareFilter}.
  *
@@ -60,44 +66,53 @@ import org.springframework.security.web.savedrequest.SavedRequest;
 public class SavedRequestAwareWrapper extends HttpServletRequestWrapper {
     //~ Static fields/initializers =====================================================================================
 
-    protected static final Log logger = LogFactory.getLog(SavedRequestAwareWrapper.class);
-    protected static final TimeZone GMT_ZONE = TimeZone.getTimeZone("GMT");
-
-    /** The default Locale if none are specified. */
-    protected static Locale defaultLocale = Locale.getDefault();
+    /** The date formats allowed by RFC 2616: RFC 1123, RFC 850 and asctime(). */
+    private static final DateTimeFormatter[] DATE_FORMATS = {
+        DateTimeFormatter.RFC_1123_DATE_TIME,
+        new DateTimeFormatterBuilder()
+            .appendPattern("EEEE, dd-MMM-")
+            .appendValueReduced(ChronoField.YEAR, 2, 2, 1970)
+            .appendPattern(" HH:mm:ss z")
+            .toFormatter(Locale.US),
+        DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US)
+            .withZone(ZoneOffset.UTC)
+    };
 
     //~ Instance fields ================================================================================================
 
-    protected SavedRequest savedRequest = null;
+    protected final SavedRequest savedRequest;
 
-    /**
-     * The set of SimpleDateFormat formats to use in getDateHeader(). Notice that because SimpleDateFormat is
-     * not thread-safe, we can't declare formats[] as a static variable.
-     */
-    protected final SimpleDateFormat[] formats = new SimpleDateFormat[3];
+    private Cookie[] cookies;
+    private Map<String, String[]> parameterMap;
 
     //~ Constructors ===================================================================================================
 
     public SavedRequestAwareWrapper(SavedRequest saved, HttpServletRequest request) {
         super(request);
         savedRequest = saved;
-
-        formats[0] = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-        formats[1] = new SimpleDateFormat("EEEEEE, dd-MMM-yy HH:mm:ss zzz", Locale.US);
-        formats[2] = new SimpleDateFormat("EEE MMMM d HH:mm:ss yyyy", Locale.US);
-
-        formats[0].setTimeZone(GMT_ZONE);
-        formats[1].setTimeZone(GMT_ZONE);
-        formats[2].setTimeZone(GMT_ZONE);
     }
 
     //~ Methods ========================================================================================================
 
+    static long parseDate(String value) {
+        for (DateTimeFormatter format : DATE_FORMATS) {
+            try {
+                return ZonedDateTime.parse(value, format).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                // Try the next format
+            }
+        }
+        return -1L;
+    }
+
     @Override
     public Cookie[] getCookies() {
-        List<Cookie> cookies = savedRequest.getCookies();
+        if (cookies == null) {
+            List<Cookie> saved = savedRequest.getCookies();
+            cookies = saved.toArray(new Cookie[saved.size()]);
+        }
 
-        return cookies.toArray(new Cookie[cookies.size()]);
+        return cookies;
     }
 
     @Override
@@ -109,7 +124,7 @@ public class SavedRequestAwareWrapper extends HttpServletRequestWrapper {
         }
 
         // Attempt to convert the date header in a variety of formats
-        long result = FastHttpDateFormat.parseDate(value, formats);
+        long result = parseDate(value);
 
         if (result != -1L) {
             return result;
@@ -126,15 +141,13 @@ public class SavedRequestAwareWrapper extends HttpServletRequestWrapper {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public Enumeration getHeaderNames() {
-        return new Enumerator<String>(savedRequest.getHeaderNames());
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(savedRequest.getHeaderNames());
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public Enumeration getHeaders(String name) {
-        return new Enumerator<String>(savedRequest.getHeaderValues(name));
+    public Enumeration<String> getHeaders(String name) {
+        return Collections.enumeration(savedRequest.getHeaderValues(name));
     }
 
     @Override
@@ -156,17 +169,15 @@ public class SavedRequestAwareWrapper extends HttpServletRequestWrapper {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public Enumeration getLocales() {
+    public Enumeration<Locale> getLocales() {
         List<Locale> locales = savedRequest.getLocales();
 
         if (locales.isEmpty()) {
             // Fall back to default locale
-            locales = new ArrayList<Locale>(1);
-            locales.add(Locale.getDefault());
+            locales = Collections.singletonList(Locale.getDefault());
         }
 
-        return new Enumerator<Locale>(locales);
+        return Collections.enumeration(locales);
     }
 
     @Override
@@ -200,58 +211,72 @@ public class SavedRequestAwareWrapper extends HttpServletRequestWrapper {
         return values[0];
     }
 
+    /**
+     * Get the parameters of both requests. Parameters present in both have the wrapped request's values followed by
+     * those of the saved request which the wrapped request doesn't have. The map is built on first use.
+     */
     @Override
-    @SuppressWarnings("unchecked")
-    public Map getParameterMap() {
-        Set<String> names = getCombinedParameterNames();
-        Map<String, String[]> parameterMap = new HashMap<String, String[]>(names.size());
-
-        for (String name : names) {
-            parameterMap.put(name, getParameterValues(name));
+    public Map<String, String[]> getParameterMap() {
+        if (parameterMap == null) {
+            parameterMap = Collections.unmodifiableMap(mergeParameters());
         }
 
         return parameterMap;
     }
 
-    @SuppressWarnings("unchecked")
-    private Set<String> getCombinedParameterNames() {
-        Set<String> names = new HashSet<String>();
-        names.addAll(super.getParameterMap().keySet());
-        names.addAll(savedRequest.getParameterMap().keySet());
+    private Map<String, String[]> mergeParameters() {
+        Map<String, String[]> wrapped = super.getParameterMap();
+        Map<String, String[]> saved = savedRequest.getParameterMap();
+        Map<String, String[]> merged = new LinkedHashMap<String, String[]>(
+            (wrapped.size() + saved.size()) * 4 / 3 + 1);
+
+        merged.putAll(wrapped);
+        for (Map.Entry<String, String[]> param : saved.entrySet()) {
+            String[] wrappedValues = merged.get(param.getKey());
+            merged.put(param.getKey(), wrappedValues == null ? param.getValue() :
+                mergeValues(wrappedValues, param.getValue()));
+        }
 
-        return names;
+        return merged;
+    }
+
+    /**
+     * Get the wrapped request's values followed by those of the saved request which aren't also values of the wrapped
+     * request.
+     */
+    private static String[] mergeValues(String[] wrappedValues, String[] savedValues) {
+        Set<String> wrapped = new HashSet<String>(wrappedValues.length * 4 / 3 + 1);
+        Collections.addAll(wrapped, wrappedValues);
+
+        String[] combined = Arrays.copyOf(wrappedValues, wrappedValues.length + savedValues.length);
+        int length = wrappedValues.length;
+        for (String value : savedValues) {
+            if (!wrapped.contains(value)) {
+                combined[length++] = value;
+            }
+        }
+
+        return length == combined.length ? combined : Arrays.copyOf(combined, length);
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public Enumeration getParameterNames() {
-        return new Enumerator(getCombinedParameterNames());
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(getParameterMap().keySet());
     }
 
     @Override
     public String[] getParameterValues(String name) {
         String[] savedRequestParams = savedRequest.getParameterValues(name);
-        String[] wrappedRequestParams = super.getParameterValues(name);
 
         if (savedRequestParams == null) {
-            return wrappedRequestParams;
+            return super.getParameterValues(name);
         }
 
-        if (wrappedRequestParams == null) {
+        if (super.getParameterValues(name) == null) {
             return savedRequestParams;
         }
 
-        // We have parameters in both saved and wrapped requests so have to merge them
-        List<String> wrappedParamsList = Arrays.asList(wrappedRequestParams);
-        List<String> combinedParams = new ArrayList<String>(wrappedParamsList);
-
-        // We want to add all parameters of the saved request *apart from* duplicates of those already added
-        for (String savedRequestParam : savedRequestParams) {
-            if (!wrappedParamsList.contains(savedRequestParam)) {
-                combinedParams.add(savedRequestParam);
-            }
-        }
-
-        return combinedParams.toArray(new String[combinedParams.size()]);
+        // We have parameters in both saved and wrapped requests, which have been merged
+        return getParameterMap().get(name);
     }
 }
@@ -0,0 +1,144 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.util.Assert;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Binds a {@link SecurityContext} for the duration of a task, which
+ * {@link ScopedSecurityContextHolderStrategy} then uses as the task's
+ * context.
+ *
+ * <p>This is the Java 21 version of this multi-release class. Contexts are
+ * bound with a {@code java.lang.ScopedValue}, which is only inherited by
+ * structured subtasks and can't leak into a pooled thread's next task.
+ * {@code ScopedValue} is a preview API before Java 25, so it's used
+ * reflectively; where the runtime won't allow it (a preview API without
+ * {@code --enable-preview}) contexts are bound with a restored
+ * {@link ThreadLocal} instead, as on Java 8.
+ */
+public final class ScopedSecurityContext {
+
+    private static final Object SCOPED_VALUE;
+    private static final Method WHERE;
+    private static final Method CARRIER_RUN;
+    private static final Method IS_BOUND;
+    private static final Method GET;
+
+    private static final ThreadLocal<SecurityContext> CONTEXT =
+        new ThreadLocal<>();
+
+    static {
+        Object scopedValue = null;
+        Method where = null, carrierRun = null, isBound = null, get = null;
+        try {
+            Class<?> type = Class.forName("java.lang.ScopedValue");
+            Object candidate = type.getMethod("newInstance").invoke(null);
+            Method whereMethod = type.getMethod(
+                "where", type, Object.class);
+            Method runMethod = whereMethod.getReturnType().getMethod(
+                "run", Runnable.class);
+            Method isBoundMethod = type.getMethod("isBound");
+            Method getMethod = type.getMethod("get");
+
+            // Check the API works before relying on it.
+            Object carrier = whereMethod.invoke(null, candidate, "probe");
+            Object[] seen = new Object[1];
+            runMethod.invoke(carrier, (Runnable) () -> {
+                try {
+                    seen[0] = getMethod.invoke(candidate);
+                }
+                catch(ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            if("probe".equals(seen[0]) &&
+                Boolean.FALSE.equals(isBoundMethod.invoke(candidate))) {
+                scopedValue = candidate;
+                where = whereMethod;
+                carrierRun = runMethod;
+                isBound = isBoundMethod;
+                get = getMethod;
+            }
+        }
+        catch(ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // Not available; use the ThreadLocal.
+        }
+        SCOPED_VALUE = scopedValue;
+        WHERE = where;
+        CARRIER_RUN = carrierRun;
+        IS_BOUND = isBound;
+        GET = get;
+    }
+
+    private ScopedSecurityContext() {}
+
+    /** Whether contexts are bound with a {@code ScopedValue}. */
+    public static boolean isScopedValue() {
+        return SCOPED_VALUE != null;
+    }
+
+    /**
+     * @return The context bound by the innermost
+     *         {@link #run(SecurityContext, Runnable)} on this thread, or null.
+     */
+    public static SecurityContext get() {
+        if(SCOPED_VALUE == null)
+            return CONTEXT.get();
+
+        try {
+            if(!(Boolean) IS_BOUND.invoke(SCOPED_VALUE))
+                return null;
+            return (SecurityContext) GET.invoke(SCOPED_VALUE);
+        }
+        catch(IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        catch(InvocationTargetException e) {
+            throw rethrow(e);
+        }
+    }
+
+    /** Run a task with a context bound. */
+    public static void run(SecurityContext context, Runnable task) {
+        Assert.notNull(context);
+        Assert.notNull(task);
+
+        if(SCOPED_VALUE == null) {
+            SecurityContext previous = CONTEXT.get();
+            CONTEXT.set(context);
+            try {
+                task.run();
+            }
+            finally {
+                if(previous == null)
+                    CONTEXT.remove();
+                else
+                    CONTEXT.set(previous);
+            }
+            return;
+        }
+
+        try {
+            CARRIER_RUN.invoke(WHERE.invoke(null, SCOPED_VALUE, context), task);
+        }
+        catch(IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        catch(InvocationTargetException e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if(cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if(cause instanceof Error)
+            throw (Error) cause;
+        throw new IllegalStateException(cause);
+    }
+}
@@ -0,0 +1,38 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads from code compiled for Java 8.
+ *
+ * <p>This is the Java 21 version of this multi-release class.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {}
+
+    /** Whether this version of Java supports virtual threads. */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /** Whether {@code thread} is a virtual thread. */
+    public static boolean isVirtual(Thread thread) {
+        Assert.notNull(thread);
+        return thread.isVirtual();
+    }
+
+    /**
+     * Create an executor which runs each task on a new virtual thread.
+     *
+     * @param name The prefix of the threads' names.
+     */
+    public static ExecutorService newExecutor(String name) {
+        Assert.hasText(name);
+        return Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+}
@@ -0,0 +1,97 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.web.PortResolverImpl;
+import org.springframework.security.web.savedrequest.DefaultSavedRequest;
+import org.springframework.security.web.savedrequest.SavedRequest;
+import uk.ac.cam.lib.spring.security.raven.vedorised.SavedRequestAwareWrapper;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class OriginalRequestViewTest {
+
+    private MockHttpServletRequest original, callback;
+    private SavedRequest saved;
+
+    @Before
+    public void setUp() {
+        original = new MockHttpServletRequest("POST", "/things/1");
+        original.setServerName("example.com");
+        original.setQueryString("view=full");
+        original.addParameter("view", "full");
+        original.addParameter("tag", new String[]{"a", "b"});
+        original.addHeader("Accept", "text/html");
+        saved = new DefaultSavedRequest(original, new PortResolverImpl());
+
+        callback = new MockHttpServletRequest("GET", "/callback");
+        callback.addParameter("WLS-Response", "...");
+        callback.setAttribute("attr", "value");
+    }
+
+    private static void assertViewsOriginal(OriginalRequestView view) {
+        assertThat(view.getMethod(), equalTo("POST"));
+        assertThat(view.getUrl(),
+                   equalTo("http://example.com/things/1?view=full"));
+        assertThat(view.getParameter("view"), equalTo("full"));
+        assertThat(view.getParameter("missing"), nullValue());
+        assertArrayEquals(new String[]{"a", "b"},
+                          view.getParameterValues("tag"));
+        assertThat(view.getParameterMap().keySet(),
+                   containsInAnyOrder("view", "tag"));
+        assertThat(view.getHeader("Accept"), equalTo("text/html"));
+        assertThat(view.getHeader("Missing"), nullValue());
+    }
+
+    @Test
+    public void testServletRequestView() {
+        original.setAttribute("attr", "original");
+        OriginalRequestView view = OriginalRequestView.of(original);
+
+        assertViewsOriginal(view);
+        assertThat(view.getAttribute("attr"), equalTo("original"));
+        assertThat(view.toServletRequest(), sameInstance(original));
+    }
+
+    @Test
+    public void testSavedRequestView() {
+        OriginalRequestView view = OriginalRequestView.of(saved, callback);
+
+        assertViewsOriginal(view);
+        assertThat(((SavedRequestView)view).getSavedRequest(),
+                   sameInstance(saved));
+
+        // Callback parameters aren't visible, but its attributes are
+        assertThat(view.getParameter("WLS-Response"), nullValue());
+        assertThat(view.getAttribute("attr"), equalTo("value"));
+    }
+
+    @Test
+    public void testSavedRequestViewCreatesWrapperOnce() {
+        OriginalRequestView view = OriginalRequestView.of(saved, callback);
+
+        assertThat(view.toServletRequest(),
+                   instanceOf(SavedRequestAwareWrapper.class));
+        assertThat(view.toServletRequest(),
+                   sameInstance(view.toServletRequest()));
+        assertThat(view.toServletRequest().getParameter("WLS-Response"),
+                   equalTo("..."));
+    }
+
+    @Test
+    public void testCreatorsBridgeViewsToServletRequests() {
+        WebauthRequest request = new WebauthRequest();
+        RavenRequestCreator creator = r -> {
+            assertThat(r.getParameter("WLS-Response"), equalTo("..."));
+            return request;
+        };
+
+        assertThat(creator.createLoginRequest(
+                       OriginalRequestView.of(saved, callback)),
+                   sameInstance(request));
+    }
+}
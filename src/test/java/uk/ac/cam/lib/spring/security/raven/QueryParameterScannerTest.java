@@ -0,0 +1,115 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class QueryParameterScannerTest {
+
+    private final QueryParameterScanner scanner =
+        new QueryParameterScanner("WLS-Response");
+
+    @Test
+    public void testNullOrEmptyQueryDoesNotContainParam() {
+        assertFalse(scanner.isPresentIn(null));
+        assertFalse(scanner.isPresentIn(""));
+        assertThat(scanner.extractFrom(null), is(nullValue()));
+        assertThat(scanner.extractFrom(""), is(nullValue()));
+    }
+
+    @Test
+    public void testParamIsDetectedAnywhereInQuery() {
+        assertTrue(scanner.isPresentIn("WLS-Response=abc"));
+        assertTrue(scanner.isPresentIn("x=y&WLS-Response=abc&z"));
+        assertTrue(scanner.isPresentIn("x=y&WLS-Response"));
+        assertTrue(scanner.isPresentIn("WLS-Response&x=y"));
+        assertTrue(scanner.isPresentIn("&&WLS-Response="));
+    }
+
+    @Test
+    public void testOtherParamsAreNotDetected() {
+        assertFalse(scanner.isPresentIn("x=y"));
+        assertFalse(scanner.isPresentIn("WLS-Responses=abc"));
+        assertFalse(scanner.isPresentIn("WLS-Respons=abc"));
+        assertFalse(scanner.isPresentIn("xWLS-Response=abc"));
+        assertFalse(scanner.isPresentIn("x=WLS-Response"));
+        assertFalse(scanner.isPresentIn("x=WLS-Response&y=WLS-Response"));
+        assertFalse(scanner.isPresentIn("wls-response=abc"));
+    }
+
+    @Test
+    public void testEncodedNamesAreDecoded() {
+        assertTrue(scanner.isPresentIn("WLS%2DResponse=abc"));
+        assertTrue(scanner.isPresentIn("%57%4c%53%2d%52esponse=abc"));
+        assertFalse(scanner.isPresentIn("WLS%2Response=abc"));
+        assertFalse(scanner.isPresentIn("WLS-Response%=abc"));
+        assertFalse(scanner.isPresentIn("WLS+Response=abc"));
+    }
+
+    @Test
+    public void testNonAsciiNamesAreComparedAsUtf8() {
+        QueryParameterScanner s = new QueryParameterScanner("café");
+
+        assertTrue(s.isPresentIn("caf%C3%A9=1"));
+        assertTrue(s.isPresentIn("café=1"));
+        assertFalse(s.isPresentIn("caf%E9=1"));
+        assertFalse(s.isPresentIn("caf=1"));
+        assertFalse(s.isPresentIn("caféé=1"));
+    }
+
+    @Test
+    public void testExtractReturnsFirstValue() {
+        assertThat(scanner.extractFrom("a=b&WLS-Response=1!200&WLS-Response=2"),
+                   equalTo("1!200"));
+    }
+
+    @Test
+    public void testExtractReturnsEmptyStringWithoutValue() {
+        assertThat(scanner.extractFrom("WLS-Response&a=b"), equalTo(""));
+        assertThat(scanner.extractFrom("WLS-Response"), equalTo(""));
+        assertThat(scanner.extractFrom("WLS-Response=&a=b"), equalTo(""));
+    }
+
+    @Test
+    public void testExtractDecodesValue() {
+        assertThat(scanner.extractFrom(
+                "WLS-Response=3!200!!x!http%3A%2F%2Fexample.com%2F%3Fa%3Db+c"),
+            equalTo("3!200!!x!http://example.com/?a=b c"));
+        assertThat(scanner.extractFrom("WLS-Response=caf%C3%A9"),
+            equalTo("café"));
+    }
+
+    @Test
+    public void testExtractReturnsNullWhenAbsent() {
+        assertThat(scanner.extractFrom("a=WLS-Response"), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExtractRejectsMalformedEscapes() {
+        scanner.extractFrom("WLS-Response=abc%2");
+    }
+
+    @Test
+    public void testExtractRejectsLongValues() {
+        QueryParameterScanner s = scanner.withMaxValueLength(5);
+
+        assertThat(s.getMaxValueLength(), equalTo(5));
+        assertThat(s.extractFrom("WLS-Response=12345&x=123456"),
+                   equalTo("12345"));
+        assertTrue(s.isPresentIn("WLS-Response=123456"));
+
+        try {
+            s.extractFrom("WLS-Response=123456");
+            fail();
+        }
+        catch(IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("longer than 5"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNameIsRequired() {
+        new QueryParameterScanner("");
+    }
+}
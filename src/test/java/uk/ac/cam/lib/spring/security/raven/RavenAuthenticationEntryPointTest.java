@@ -4,15 +4,32 @@ import org.junit.Test;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.security.authentication.InsufficientAuthenticationException;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.util.UriComponents;
 import org.springframework.web.util.UriComponentsBuilder;
 import org.springframework.web.util.UriUtils;
 import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator;
+import uk.ac.cam.lib.spring.security.raven.issued.InMemoryIssuedRequestStore;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -58,4 +75,207 @@ public class RavenAuthenticationEntryPointTest {
             UriUtils.decode(uri.getQueryParams().getFirst("url"), "UTF-8"),
             equalTo(url));
     }
+
+    @Test
+    public void testGetLoginUrlForViewMatchesRedirect()
+        throws IOException, ServletException {
+
+        RavenAuthenticationEntryPoint ep = new RavenAuthenticationEntryPoint(
+            DefaultRavenRequestCreator.builder("http://example.com/").build());
+
+        MockHttpServletRequest req = new MockHttpServletRequest();
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ep.commence(req, resp, new InsufficientAuthenticationException("foo"));
+
+        MultiValueMap<String, String> redirected =
+            decodedQueryParams(resp.getRedirectedUrl());
+        MultiValueMap<String, String> viewed =
+            decodedQueryParams(ep.getLoginUrl(OriginalRequestView.of(req)));
+
+        redirected.remove("date");
+        viewed.remove("date");
+        assertThat(viewed, equalTo(redirected));
+    }
+
+    private static MultiValueMap<String, String> redirectParams(
+        RavenAuthenticationEntryPoint ep, WebauthRequest ravenRequest)
+        throws IOException, ServletException {
+
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        RavenAuthenticationEntryPoint fixed = new RavenAuthenticationEntryPoint(
+            r -> ravenRequest, ep.getRavenAuthUri());
+        fixed.setLoginUrlCache(ep.getLoginUrlCache());
+        fixed.commence(new MockHttpServletRequest(), resp,
+            new InsufficientAuthenticationException("foo"));
+
+        return decodedQueryParams(resp.getRedirectedUrl());
+    }
+
+    private static MultiValueMap<String, String> decodedQueryParams(String url)
+        throws UnsupportedEncodingException {
+
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<>();
+        for(Map.Entry<String, List<String>> e : UriComponentsBuilder
+            .fromUriString(url).build(true).getQueryParams().entrySet()) {
+
+            for(String value : e.getValue())
+                params.add(e.getKey(), UriUtils.decode(value, "UTF-8"));
+        }
+        return params;
+    }
+
+    @Test
+    public void testLoginUrlEncodesValuesLikeWebauthRequest()
+        throws IOException, ServletException {
+
+        WebauthRequest req = new WebauthRequest();
+        req.set("ver", "3");
+        req.set("url", "http://example.com/a b?c=d&e=\u00e9+f#g");
+        req.set("desc", "~*._-!'()%\uD83D\uDE00");
+        req.set("msg", "100% & more");
+
+        RavenAuthenticationEntryPoint ep = new RavenAuthenticationEntryPoint(
+            DefaultRavenRequestCreator.builder("").build());
+
+        String expected = UriComponentsBuilder
+            .fromUri(RavenAuthenticationEntryPoint.DEFAULT_RAVEN_AUTH_URL)
+            .replaceQuery(req.toQString().replace("+", "%20"))
+            .build(true)
+            .toUri().toString();
+
+        MultiValueMap<String, String> params = redirectParams(ep, req);
+        assertThat(params, equalTo(decodedQueryParams(expected)));
+        assertThat(params.getFirst("url"),
+            equalTo("http://example.com/a b?c=d&e=\u00e9+f#g"));
+    }
+
+    @Test
+    public void testLoginUrlReplacesQueryAndKeepsFragmentOfAuthUrl()
+        throws IOException, ServletException {
+
+        RavenAuthenticationEntryPoint ep = new RavenAuthenticationEntryPoint(
+            DefaultRavenRequestCreator.builder("http://example.com/").build(),
+            URI.create("https://wls.example.com/auth?foo=bar#frag"));
+
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ep.commence(new MockHttpServletRequest(), resp,
+            new InsufficientAuthenticationException("foo"));
+
+        String location = resp.getRedirectedUrl();
+        assertTrue(location.startsWith("https://wls.example.com/auth?ver=3&"));
+        assertTrue(location.endsWith("#frag"));
+        assertFalse(location.contains("foo=bar"));
+    }
+
+    @Test
+    public void testLoginUrlPreservesUnknownFields()
+        throws IOException, ServletException {
+
+        WebauthRequest req = new WebauthRequest();
+        req.set("ver", "3");
+        req.set("url", "http://example.com/");
+        req.set("x-extra", "a b");
+
+        RavenAuthenticationEntryPoint ep = new RavenAuthenticationEntryPoint(
+            DefaultRavenRequestCreator.builder("").build());
+
+        assertThat(redirectParams(ep, req).getFirst("x-extra"),
+            equalTo("a b"));
+    }
+
+    @Test
+    public void testLoginUrlCacheReusesUrlsWithFreshDate()
+        throws IOException, ServletException {
+
+        RavenAuthenticationEntryPoint ep = new RavenAuthenticationEntryPoint(
+            DefaultRavenRequestCreator.builder("").build());
+        RavenLoginUrlCache cache = new RavenLoginUrlCache(10);
+        ep.setLoginUrlCache(cache);
+        assertSame(cache, ep.getLoginUrlCache());
+
+        WebauthRequest first = new WebauthRequest();
+        first.set("ver", "3");
+        first.set("url", "http://example.com/");
+        first.set("date", "20161012T120000Z");
+
+        WebauthRequest second = new WebauthRequest();
+        second.set("ver", "3");
+        second.set("url", "http://example.com/");
+        second.set("date", "20161012T120001Z");
+
+        assertThat(redirectParams(ep, first).getFirst("date"),
+            equalTo("20161012T120000Z"));
+        MultiValueMap<String, String> params = redirectParams(ep, second);
+        assertThat(params.getFirst("date"), equalTo("20161012T120001Z"));
+        assertThat(params.getFirst("url"), equalTo("http://example.com/"));
+
+        assertThat(cache.getMissCount(), equalTo(1L));
+        assertThat(cache.getHitCount(), equalTo(1L));
+        assertThat(cache.getHitRate(), equalTo(0.5));
+        assertThat(cache.size(), equalTo(1));
+    }
+
+    @Test
+    public void testIssuedRequestsAreStoredUnderNonceInParams()
+        throws IOException, ServletException {
+
+        Instant now = Instant.parse("2016-10-12T12:00:00Z");
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(10, Duration.ofMinutes(5));
+        RavenLoginUrlCache cache = new RavenLoginUrlCache(10);
+
+        RavenAuthenticationEntryPoint ep = new RavenAuthenticationEntryPoint(
+            DefaultRavenRequestCreator.builder("http://example.com/").build());
+        ep.setIssuedRequestStore(store);
+        ep.setLoginUrlCache(cache);
+        ep.setClock(Clock.fixed(now, ZoneId.of("Z")));
+        assertSame(store, ep.getIssuedRequestStore());
+
+        String first = commence(ep);
+        String second = commence(ep);
+
+        String nonce = decodedQueryParams(first).getFirst("params");
+        assertThat(nonce.length(), equalTo(22));
+        assertThat(decodedQueryParams(second).getFirst("params"),
+                   not(equalTo(nonce)));
+        assertTrue(first.contains("&params=" + nonce + "&date="));
+
+        // The nonce isn't part of the cached URL
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.getHitCount(), equalTo(1L));
+
+        WebauthRequest issued = store.take(nonce, now.plusSeconds(60));
+        assertThat(issued, notNullValue());
+        assertThat(issued.get("params"), equalTo(nonce));
+        assertThat(issued.get("url"), equalTo("http://example.com/"));
+        assertThat(decodedQueryParams(first).getFirst("date"),
+                   equalTo(issued.get("date")));
+    }
+
+    @Test
+    public void testRequestsWithParamsAreNotStored()
+        throws IOException, ServletException {
+
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(10, Duration.ofMinutes(5));
+
+        RavenAuthenticationEntryPoint ep = new RavenAuthenticationEntryPoint(
+            DefaultRavenRequestCreator.builder("http://example.com/")
+                .withValue(DefaultRavenRequestCreator.RequestParam.params, "foo").build());
+        ep.setIssuedRequestStore(store);
+
+        assertThat(decodedQueryParams(commence(ep)).getFirst("params"),
+                   equalTo("foo"));
+        assertThat(store.size(), equalTo(0));
+        assertThat(store.take("foo", Instant.now()), nullValue());
+    }
+
+    private static String commence(RavenAuthenticationEntryPoint ep)
+        throws IOException, ServletException {
+
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ep.commence(new MockHttpServletRequest(), resp,
+            new InsufficientAuthenticationException("foo"));
+        return resp.getRedirectedUrl();
+    }
 }
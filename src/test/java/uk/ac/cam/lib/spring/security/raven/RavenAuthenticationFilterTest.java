@@ -10,11 +10,16 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
 import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.PortResolverImpl;
 import org.springframework.security.web.savedrequest.DefaultSavedRequest;
 import org.springframework.security.web.savedrequest.NullRequestCache;
@@ -23,19 +28,34 @@ import org.springframework.security.web.savedrequest.SavedRequest;
 import org.springframework.security.web.util.matcher.AnyRequestMatcher;
 import org.springframework.security.web.util.matcher.RequestMatcher;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import uk.ac.cam.lib.spring.security.raven.admission.AdmissionController;
+import uk.ac.cam.lib.spring.security.raven.issued.InMemoryIssuedRequestStore;
+import uk.ac.cam.lib.spring.security.raven.metrics.CountingRavenMetrics;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics.Stage;
+import uk.ac.cam.lib.spring.security.raven.validation.PreValidationException;
+import uk.ac.cam.lib.spring.security.raven.validation.ResponsePreValidator;
 import uk.ac.cam.ucs.webauth.WebauthException;
 import uk.ac.cam.ucs.webauth.WebauthRequest;
 import uk.ac.cam.ucs.webauth.WebauthResponse;
 
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.URI;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -96,8 +116,8 @@ public class RavenAuthenticationFilterTest {
         when(requestCache.getRequest(postRavenRequest, resp))
             .thenReturn(savedPreRavenRequest);
 
-        doReturn(reqCreatorRequest)
-            .when(reqCreator).createLoginRequest(anyObject());
+        doReturn(reqCreatorRequest).when(reqCreator)
+            .createLoginRequest(Mockito.any(OriginalRequestView.class));
     }
 
     @Test
@@ -119,6 +139,55 @@ public class RavenAuthenticationFilterTest {
         filter.attemptAuthentication(badAuthRequest, resp);
     }
 
+    @Test(expected=AuthenticationException.class)
+    public void testAttemptAuthenticationIgnoresResponseInRequestBody()
+        throws IOException, ServletException {
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(
+                mock(AuthenticationManager.class), reqCreator, requestCache);
+
+        HttpServletRequest bodyRequest = MockMvcRequestBuilders
+            .post("http://example.com/callback")
+            .param(RESPONSE_PARAM, AUTH_RESPONSE)
+            .buildRequest(null);
+
+        filter.attemptAuthentication(bodyRequest, resp);
+    }
+
+    @Test(expected=AuthenticationException.class)
+    public void testAttemptAuthenticationRejectsOverlongResponse()
+        throws IOException, ServletException {
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(
+                mock(AuthenticationManager.class), reqCreator, requestCache);
+        filter.setMaxResponseLength(AUTH_RESPONSE.length() - 1);
+
+        filter.attemptAuthentication(postRavenRequest, resp);
+    }
+
+    @Test(expected=AuthenticationException.class)
+    public void testAttemptAuthenticationRejectsNonNumericStatus()
+        throws IOException, ServletException {
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(
+                mock(AuthenticationManager.class), reqCreator, requestCache);
+
+        HttpServletRequest badStatusRequest = MockMvcRequestBuilders
+            .request(HttpMethod.GET, "http://example.com/callback?{a}={b}",
+                     RESPONSE_PARAM, AUTH_RESPONSE.replace("!200!", "!ok!"))
+            .buildRequest(null);
+
+        try {
+            filter.attemptAuthentication(badStatusRequest, resp);
+        }
+        finally {
+            verifyZeroInteractions(requestCache);
+        }
+    }
+
     @Test
     public void testFilterPassesUnauthenticatedRavenTokenToAuthManager()
         throws IOException, ServletException, WebauthException {
@@ -139,7 +208,13 @@ public class RavenAuthenticationFilterTest {
         assertThat(actualResult, is(result));
 
         verify(requestCache).getRequest(postRavenRequest, resp);
-        verify(reqCreator).createLoginRequest(anyObject());
+        // The request is reconstructed from a view of the saved request
+        ArgumentCaptor<OriginalRequestView> viewCaptor =
+            ArgumentCaptor.forClass(OriginalRequestView.class);
+        verify(reqCreator).createLoginRequest(viewCaptor.capture());
+        assertThat(viewCaptor.getValue().getUrl(),
+                   equalTo("http://example.com/thing"));
+        assertThat(viewCaptor.getValue().getMethod(), equalTo("GET"));
 
         // Verify the token passed to the AuthenticationManager
         ArgumentCaptor<Authentication> authCaptor = ArgumentCaptor.forClass(Authentication.class);
@@ -156,6 +231,415 @@ public class RavenAuthenticationFilterTest {
                    is(equalTo(TEST_TIME)));
     }
 
+    private HttpServletRequest callbackWithParams(String params) {
+        return MockMvcRequestBuilders
+            .request(HttpMethod.GET, "http://example.com/callback?{a}={b}",
+                     RESPONSE_PARAM,
+                     AUTH_RESPONSE.replace("!9793!!", "!9793!" + params + "!"))
+            .buildRequest(null);
+    }
+
+    private RavenAuthenticationToken authenticateWithStore(
+        HttpServletRequest callback, InMemoryIssuedRequestStore store)
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(
+                authManager, reqCreator, requestCache,
+                AnyRequestMatcher.INSTANCE, TEST_CLOCK, RESPONSE_PARAM);
+        filter.setIssuedRequestStore(store);
+        assertThat(filter.getIssuedRequestStore(), sameInstance(store));
+
+        filter.attemptAuthentication(callback, resp);
+
+        ArgumentCaptor<Authentication> authCaptor =
+            ArgumentCaptor.forClass(Authentication.class);
+        verify(authManager).authenticate(authCaptor.capture());
+        return (RavenAuthenticationToken)authCaptor.getValue();
+    }
+
+    @Test
+    public void testFilterUsesIssuedRequestFromStore()
+        throws IOException, ServletException {
+
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(10, Duration.ofMinutes(5));
+        WebauthRequest issued = new WebauthRequest();
+        issued.set("url", "http://example.com/issued");
+        issued.set("params", "nonce");
+        store.put("nonce", issued, TEST_TIME);
+
+        RavenAuthenticationToken token = authenticateWithStore(
+            callbackWithParams("nonce"), store);
+
+        assertThat(token.getRavenRequest().get().toQString(),
+                   equalTo(issued.toQString()));
+        verifyZeroInteractions(requestCache);
+        verify(reqCreator, never())
+            .createLoginRequest(Mockito.any(OriginalRequestView.class));
+        assertThat(store.getHitCount(), equalTo(1L));
+    }
+
+    @Test
+    public void testFilterRecreatesRequestMissingFromStore()
+        throws IOException, ServletException {
+
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(10, Duration.ofMinutes(5));
+
+        HttpServletRequest callback = callbackWithParams("nonce");
+        when(requestCache.getRequest(callback, resp))
+            .thenReturn(savedRequest(preRavenRequest));
+
+        RavenAuthenticationToken token = authenticateWithStore(
+            callback, store);
+
+        // The recreated request is given the nonce, without modifying the
+        // creator's request
+        WebauthRequest request = token.getRavenRequest().get();
+        assertThat(request.get("url"), equalTo("http://example.com/foo"));
+        assertThat(request.get("params"), equalTo("nonce"));
+        assertThat(reqCreatorRequest.get("params"), nullValue());
+        assertThat(store.getMissCount(), equalTo(1L));
+    }
+
+    @Test
+    public void testFilterRecordsStagesAndSuccess()
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        doReturn(mock(RavenAuthenticationToken.class))
+            .when(authManager).authenticate(anyObject());
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(authManager, reqCreator, requestCache);
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+        filter.setMetrics(metrics);
+        assertThat(filter.getMetrics(), is(sameInstance(metrics)));
+
+        filter.doFilter(postRavenRequest, resp, mock(FilterChain.class));
+
+        for(Stage stage : Arrays.asList(
+            Stage.QUERY_DETECTION, Stage.RESPONSE_PARSING,
+            Stage.REQUEST_CACHE_LOOKUP, Stage.REQUEST_RECONSTRUCTION,
+            Stage.CALLBACK)) {
+            assertThat(stage.toString(), metrics.getCount(stage), is(1L));
+        }
+        assertThat(metrics.getSuccessCount(), is(1L));
+    }
+
+    @Test
+    public void testFilterHandlesCallbackOnExecutorWhenAsyncSupported()
+        throws IOException, ServletException {
+
+        Authentication auth = mock(RavenAuthenticationToken.class);
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        doReturn(auth).when(authManager).authenticate(anyObject());
+        List<Runnable> tasks = new ArrayList<>();
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(authManager, reqCreator, requestCache);
+        filter.setCallbackExecutor(tasks::add);
+
+        MockHttpServletRequest request =
+            (MockHttpServletRequest)postRavenRequest;
+        request.setAsyncSupported(true);
+        FilterChain chain = mock(FilterChain.class);
+        filter.doFilter(request, resp, chain);
+
+        // Nothing happens on the container's thread
+        assertThat(tasks, hasSize(1));
+        assertTrue(request.isAsyncStarted());
+        verifyZeroInteractions(authManager);
+
+        List<Authentication> dispatchedAuth = new ArrayList<>();
+        onDispatch(request, (req, res) -> {
+            filter.doFilter(req, resp, chain);
+            dispatchedAuth.add(
+                SecurityContextHolder.getContext().getAuthentication());
+        });
+        tasks.get(0).run();
+
+        // The handler runs when the request is dispatched back, leaving the
+        // context for the SecurityContextPersistenceFilter to save
+        verify(authManager).authenticate(anyObject());
+        assertThat(dispatchedAuth, contains(sameInstance(auth)));
+        assertThat(((MockHttpServletResponse)resp).getRedirectedUrl(),
+                   notNullValue());
+        verifyZeroInteractions(chain);
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testFilterDispatchesFailedAsyncCallback()
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        doThrow(new BadCredentialsException("bad"))
+            .when(authManager).authenticate(anyObject());
+        List<Runnable> tasks = new ArrayList<>();
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(authManager, reqCreator, requestCache);
+        filter.setCallbackExecutor(tasks::add);
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+        filter.setMetrics(metrics);
+
+        MockHttpServletRequest request =
+            (MockHttpServletRequest)postRavenRequest;
+        request.setAsyncSupported(true);
+        FilterChain chain = mock(FilterChain.class);
+        filter.doFilter(request, resp, chain);
+
+        onDispatch(request, (req, res) -> filter.doFilter(req, resp, chain));
+        tasks.get(0).run();
+
+        assertThat(((MockHttpServletResponse)resp).getStatus(),
+                   is(HttpServletResponse.SC_UNAUTHORIZED));
+        assertThat(metrics.getFailureCounts(), equalTo(
+            Collections.singletonMap(BadCredentialsException.class, 1L)));
+        verifyZeroInteractions(chain);
+    }
+
+    @Test
+    public void testFilterCompletesAsyncCallbackWhichThrows()
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        doThrow(new IllegalStateException("broken"))
+            .when(authManager).authenticate(anyObject());
+        List<Runnable> tasks = new ArrayList<>();
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(authManager, reqCreator, requestCache);
+        filter.setCallbackExecutor(tasks::add);
+
+        MockHttpServletRequest request =
+            (MockHttpServletRequest)postRavenRequest;
+        request.setAsyncSupported(true);
+        filter.doFilter(request, resp, mock(FilterChain.class));
+        onDispatch(request,
+                   (req, res) -> fail("Failed callback was dispatched"));
+        tasks.get(0).run();
+
+        assertThat(((MockHttpServletResponse)resp).getStatus(),
+                   is(HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+        assertFalse(request.isAsyncStarted());
+    }
+
+    /**
+     * Dispatch the request back to {@code dispatch} when its async context
+     * is dispatched, as the container would.
+     */
+    private static void onDispatch(MockHttpServletRequest request,
+                                   FilterChain dispatch) {
+        ((MockAsyncContext)request.getAsyncContext()).addDispatchHandler(
+            () -> {
+                request.setDispatcherType(DispatcherType.ASYNC);
+                try {
+                    dispatch.doFilter(request, null);
+                }
+                catch(IOException | ServletException e) {
+                    throw new AssertionError(e);
+                }
+            });
+    }
+
+    @Test
+    public void testFilterHandlesCallbackSynchronouslyWithoutAsyncSupport()
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        doReturn(mock(RavenAuthenticationToken.class))
+            .when(authManager).authenticate(anyObject());
+        Executor executor = mock(Executor.class);
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(authManager, reqCreator, requestCache);
+        filter.setCallbackExecutor(executor);
+
+        ((MockHttpServletRequest)postRavenRequest).setAsyncSupported(false);
+        filter.doFilter(postRavenRequest, resp, mock(FilterChain.class));
+
+        verifyZeroInteractions(executor);
+        verify(authManager).authenticate(anyObject());
+        assertFalse(postRavenRequest.isAsyncStarted());
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testFilterHandlesRejectedCallbackOnContainerThread()
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        doReturn(mock(RavenAuthenticationToken.class))
+            .when(authManager).authenticate(anyObject());
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(authManager, reqCreator, requestCache);
+        filter.setCallbackExecutor(task -> {
+            throw new RejectedExecutionException();
+        });
+
+        MockHttpServletRequest request =
+            (MockHttpServletRequest)postRavenRequest;
+        request.setAsyncSupported(true);
+        FilterChain chain = mock(FilterChain.class);
+        filter.doFilter(request, resp, chain);
+
+        verify(authManager).authenticate(anyObject());
+        assertThat(((MockAsyncContext)request.getAsyncContext())
+                       .getDispatchedPath(), notNullValue());
+
+        // The container dispatches once the original dispatch has returned
+        request.setDispatcherType(DispatcherType.ASYNC);
+        filter.doFilter(request, resp, chain);
+
+        assertThat(((MockHttpServletResponse)resp).getRedirectedUrl(),
+                   notNullValue());
+        verifyZeroInteractions(chain);
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testFilterRejectsCallbacksNotAdmitted()
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        AdmissionController admission = mock(AdmissionController.class);
+        when(admission.tryAdmit(anyString(), anyObject())).thenReturn(false);
+        AtomicInteger matches = new AtomicInteger();
+
+        RavenAuthenticationFilter filter = new RavenAuthenticationFilter(
+            authManager, reqCreator, requestCache,
+            request -> matches.incrementAndGet() > 0, TEST_CLOCK,
+            RESPONSE_PARAM);
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+        filter.setMetrics(metrics);
+        filter.setAdmissionController(admission);
+        assertThat(filter.getAdmissionController(), is(sameInstance(admission)));
+
+        ((MockHttpServletRequest)postRavenRequest).setRemoteAddr("192.0.2.1");
+        FilterChain chain = mock(FilterChain.class);
+        filter.doFilter(postRavenRequest, resp, chain);
+
+        verify(admission).tryAdmit("192.0.2.1", TEST_TIME);
+        assertThat(resp.getStatus(), is(429));
+        assertThat(resp.getHeader("Retry-After"), equalTo("1"));
+        verifyZeroInteractions(authManager, chain);
+        assertThat(metrics.getCount(Stage.RESPONSE_PARSING), is(0L));
+        assertThat(metrics.getFailureCounts().isEmpty(), is(true));
+
+        // Other requests aren't subject to admission
+        filter.doFilter(preRavenRequest, new MockHttpServletResponse(), chain);
+        verify(chain).doFilter(eq(preRavenRequest), anyObject());
+        verifyNoMoreInteractions(admission);
+
+        // Each request is only matched once
+        assertThat(matches.get(), is(2));
+        assertThat(metrics.getCount(Stage.QUERY_DETECTION), is(2L));
+    }
+
+    @Test
+    public void testFilterHandlesAdmittedCallbacks()
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        doReturn(mock(RavenAuthenticationToken.class))
+            .when(authManager).authenticate(anyObject());
+        AdmissionController admission = mock(AdmissionController.class);
+        when(admission.tryAdmit(anyString(), anyObject())).thenReturn(true);
+
+        AtomicInteger matches = new AtomicInteger();
+
+        RavenAuthenticationFilter filter = new RavenAuthenticationFilter(
+            authManager, reqCreator, requestCache,
+            request -> matches.incrementAndGet() > 0, TEST_CLOCK,
+            RESPONSE_PARAM);
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+        filter.setMetrics(metrics);
+        filter.setAdmissionController(admission);
+        filter.doFilter(postRavenRequest, resp, mock(FilterChain.class));
+
+        verify(authManager).authenticate(anyObject());
+        assertThat(matches.get(), is(1));
+        assertThat(metrics.getCount(Stage.QUERY_DETECTION), is(1L));
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testFilterRejectsResponsesFailingPreValidation()
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        ResponsePreValidator preValidator = new ResponsePreValidator();
+        preValidator.setKids(() -> Collections.singleton("901"));
+
+        RavenAuthenticationFilter filter = new RavenAuthenticationFilter(
+            authManager, reqCreator, requestCache, AnyRequestMatcher.INSTANCE,
+            Clock.fixed(Instant.parse("2016-08-11T15:58:18Z"), ZoneId.of("Z")),
+            RESPONSE_PARAM);
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+        filter.setMetrics(metrics);
+        filter.setPreValidator(preValidator);
+        assertThat(filter.getPreValidator(), is(sameInstance(preValidator)));
+
+        filter.doFilter(postRavenRequest, resp, mock(FilterChain.class));
+
+        // AUTH_RESPONSE's kid is 2
+        assertThat(preValidator.getRejectionCount(
+            ResponsePreValidator.Reason.KID), is(1L));
+        assertThat(metrics.getFailureCounts(), equalTo(
+            Collections.singletonMap(PreValidationException.class, 1L)));
+        assertThat(metrics.getCount(Stage.PRE_VALIDATION), is(1L));
+        verifyZeroInteractions(authManager, reqCreator);
+        verify(requestCache, never()).getRequest(anyObject(), anyObject());
+
+        // Passes once the kid is known
+        preValidator.setKids(() -> Collections.singleton("2"));
+        doReturn(mock(RavenAuthenticationToken.class))
+            .when(authManager).authenticate(anyObject());
+        doReturn(savedRequest(preRavenRequest)).when(requestCache)
+            .getRequest(eq(postRavenRequest), anyObject());
+        filter.doFilter(postRavenRequest, new MockHttpServletResponse(),
+                        mock(FilterChain.class));
+        verify(authManager).authenticate(anyObject());
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testFilterRecordsFailureOutcomes()
+        throws IOException, ServletException {
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        when(authManager.authenticate(anyObject()))
+            .thenThrow(new BadStatusRavenAuthenticationException(410))
+            .thenThrow(new RavenAuthenticationException("invalid"));
+        doReturn(savedRequest(preRavenRequest)).when(requestCache)
+            .getRequest(eq(postRavenRequest), anyObject());
+
+        RavenAuthenticationFilter filter =
+            new RavenAuthenticationFilter(authManager, reqCreator, requestCache);
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+        filter.setMetrics(metrics);
+
+        FilterChain chain = mock(FilterChain.class);
+        filter.doFilter(postRavenRequest, new MockHttpServletResponse(), chain);
+        filter.doFilter(postRavenRequest, new MockHttpServletResponse(), chain);
+
+        // Requests without a response are only counted by detection
+        filter.doFilter(preRavenRequest, new MockHttpServletResponse(), chain);
+
+        assertThat(metrics.getBadStatusCounts(), equalTo(
+            Collections.singletonMap(410, 1L)));
+        assertThat(metrics.getFailureCounts(), equalTo(
+            Collections.singletonMap(RavenAuthenticationException.class, 1L)));
+        assertThat(metrics.getCount(Stage.QUERY_DETECTION), is(3L));
+        assertThat(metrics.getCount(Stage.CALLBACK), is(2L));
+        assertThat(metrics.getSuccessCount(), is(0L));
+    }
+
     private static <T> Matcher<T> satisfiesPredicate(Predicate<T> predicate) {
         return satisfiesPredicate(
             predicate,
@@ -8,11 +8,19 @@ import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
+import org.mockito.Mockito;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import uk.ac.cam.lib.spring.security.raven.metrics.CountingRavenMetrics;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics.Stage;
+import uk.ac.cam.lib.spring.security.raven.replay.InMemoryReplayCache;
+import uk.ac.cam.lib.spring.security.raven.replay.ReplayKey;
+import uk.ac.cam.lib.spring.security.raven.replay.ReplayStore;
 import uk.ac.cam.ucs.webauth.WebauthException;
 import uk.ac.cam.ucs.webauth.WebauthRequest;
 import uk.ac.cam.ucs.webauth.WebauthResponse;
 import uk.ac.cam.ucs.webauth.WebauthValidator;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Optional;
@@ -93,6 +101,26 @@ public class RavenAuthenticationProviderTest {
         }
     }
 
+    @Test
+    public void testValidateDoesNotCreateToken() throws WebauthException {
+        WebauthValidator validator = mock(WebauthValidator.class);
+        AuthenticatedRavenTokenCreator creator = mock(
+            AuthenticatedRavenTokenCreator.class);
+
+        WebauthRequest req = mock(WebauthRequest.class);
+        WebauthResponse resp = mock(WebauthResponse.class);
+        RavenAuthenticationToken token = mock(RavenAuthenticationToken.class);
+        when(token.getRavenRequest()).thenReturn(Optional.of(req));
+        when(token.getRavenResponse()).thenReturn(Optional.of(resp));
+        when(token.getResponseReceivedTime())
+            .thenReturn(Optional.of(Instant.ofEpochMilli(123456)));
+
+        new RavenAuthenticationProvider(validator, creator).validate(token);
+
+        verify(validator).validate(req, resp, 123456);
+        verifyZeroInteractions(creator);
+    }
+
     @Test
     public void testTokenCreatorMustCreateAuthenticatedToken() {
         WebauthValidator validator = mock(WebauthValidator.class);
@@ -150,6 +178,147 @@ public class RavenAuthenticationProviderTest {
                    is(sameInstance(authenticatedToken)));
     }
 
+    @Test
+    public void testProviderRecordsStageTimes() throws WebauthException {
+        WebauthValidator validator = mock(WebauthValidator.class);
+        AuthenticatedRavenTokenCreator creator = mock(
+            AuthenticatedRavenTokenCreator.class);
+        WebauthRequest req = mock(WebauthRequest.class);
+        WebauthResponse resp = mock(WebauthResponse.class);
+        RavenAuthenticationToken token = replayableToken(req, resp);
+
+        RavenAuthenticationToken authenticatedToken =
+            mock(RavenAuthenticationToken.class);
+        when(authenticatedToken.isAuthenticated()).thenReturn(true);
+        when(creator.createAuthenticatedToken(token))
+            .thenReturn(authenticatedToken);
+
+        RavenAuthenticationProvider provider =
+            new RavenAuthenticationProvider(validator, creator);
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+        provider.setMetrics(metrics);
+        assertThat(provider.getMetrics(), is(sameInstance(metrics)));
+
+        provider.authenticate(token);
+
+        doThrow(new WebauthException("invalid")).when(validator)
+            .validate(Mockito.any(), Mockito.any(), anyLong());
+        try {
+            provider.authenticate(token);
+            fail();
+        }
+        catch(RavenAuthenticationException e) { }
+
+        assertThat(metrics.getCount(Stage.VALIDATION), is(2L));
+        assertThat(metrics.getCount(Stage.TOKEN_CREATION), is(1L));
+    }
+
+    private static RavenAuthenticationToken replayableToken(
+        WebauthRequest req, WebauthResponse resp) {
+
+        when(resp.get("issue")).thenReturn("20160811T155817Z");
+        when(resp.get("id")).thenReturn("1470931097-27163-123");
+
+        RavenAuthenticationToken token = mock(RavenAuthenticationToken.class);
+        when(token.getRavenRequest()).thenReturn(Optional.of(req));
+        when(token.getRavenResponse()).thenReturn(Optional.of(resp));
+        when(token.getResponseReceivedTime())
+            .thenReturn(Optional.of(Instant.ofEpochMilli(123456)));
+        return token;
+    }
+
+    @Test
+    public void testReplayedResponseIsRejectedBeforeValidation()
+        throws WebauthException {
+
+        WebauthValidator validator = mock(WebauthValidator.class);
+        AuthenticatedRavenTokenCreator creator = mock(
+            AuthenticatedRavenTokenCreator.class);
+        WebauthRequest req = mock(WebauthRequest.class);
+        WebauthResponse resp = mock(WebauthResponse.class);
+        RavenAuthenticationToken token = replayableToken(req, resp);
+
+        RavenAuthenticationToken authenticatedToken =
+            mock(RavenAuthenticationToken.class);
+        when(authenticatedToken.isAuthenticated()).thenReturn(true);
+        when(creator.createAuthenticatedToken(token))
+            .thenReturn(authenticatedToken);
+
+        RavenAuthenticationProvider provider =
+            new RavenAuthenticationProvider(validator, creator);
+        InMemoryReplayCache cache =
+            new InMemoryReplayCache(100, Duration.ofMinutes(5));
+        provider.setReplayStore(cache);
+        assertThat(provider.getReplayStore(), is(sameInstance(cache)));
+
+        assertThat(provider.authenticate(token),
+                   is(sameInstance(authenticatedToken)));
+        verify(validator, times(1)).validate(req, resp, 123456);
+
+        thrown.expect(ReplayedRavenAuthenticationException.class);
+        try {
+            provider.authenticate(token);
+        }
+        finally {
+            verify(validator, times(1)).validate(req, resp, 123456);
+            assertThat(cache.getHitCount(), equalTo(1L));
+        }
+    }
+
+    @Test
+    public void testInvalidResponsesAreNotRecordedAsSeen()
+        throws WebauthException {
+
+        WebauthValidator validator = mock(WebauthValidator.class);
+        WebauthRequest req = mock(WebauthRequest.class);
+        WebauthResponse resp = mock(WebauthResponse.class);
+        RavenAuthenticationToken token = replayableToken(req, resp);
+
+        doThrow(WebauthException.class)
+            .when(validator).validate(req, resp, 123456);
+
+        RavenAuthenticationProvider provider = new RavenAuthenticationProvider(
+            validator, mock(AuthenticatedRavenTokenCreator.class));
+        InMemoryReplayCache cache =
+            new InMemoryReplayCache(100, Duration.ofMinutes(5));
+        provider.setReplayStore(cache);
+
+        try {
+            provider.authenticate(token);
+            fail();
+        }
+        catch(RavenAuthenticationException e) {
+            assertThat(e, is(not(instanceOf(
+                ReplayedRavenAuthenticationException.class))));
+        }
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void testReplayStoreFailuresAreReportedAsServiceErrors()
+        throws WebauthException {
+
+        WebauthValidator validator = mock(WebauthValidator.class);
+        RavenAuthenticationToken token = replayableToken(
+            mock(WebauthRequest.class), mock(WebauthResponse.class));
+
+        ReplayStore store = mock(ReplayStore.class);
+        when(store.contains(Mockito.any(ReplayKey.class), Mockito.any(Instant.class)))
+            .thenThrow(new IllegalStateException("unavailable"));
+
+        RavenAuthenticationProvider provider = new RavenAuthenticationProvider(
+            validator, mock(AuthenticatedRavenTokenCreator.class));
+        provider.setReplayStore(store);
+
+        thrown.expect(AuthenticationServiceException.class);
+        try {
+            provider.authenticate(token);
+        }
+        finally {
+            verifyZeroInteractions(validator);
+        }
+    }
+
     @RunWith(Parameterized.class)
     public static class MissingCredentialsTest {
         @Parameters
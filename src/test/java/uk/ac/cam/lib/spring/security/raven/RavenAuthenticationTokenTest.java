@@ -79,6 +79,18 @@ public class RavenAuthenticationTokenTest {
         assertThat(t.getResponseReceivedTime().get(), equalTo(i));
     }
 
+    @Test
+    public void testHasCredentialsDoesNotConvertResponse()
+        throws WebauthException {
+
+        WlsResponse response = WlsResponse.parse(EXAMPLE_RESPONSE);
+        RavenAuthenticationToken t = new RavenAuthenticationToken(
+            new WebauthRequest(), response, Instant.now());
+
+        assertTrue(t.hasCredentials());
+        assertFalse(response.isConverted());
+    }
+
     @Test
     public void testEraseCredentials() throws WebauthException {
         RavenAuthenticationToken t = createUnauthenticatedToken();
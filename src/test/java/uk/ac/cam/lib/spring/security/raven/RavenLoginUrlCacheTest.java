@@ -0,0 +1,60 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class RavenLoginUrlCacheTest {
+
+    private static List<String> key(String url) {
+        return Arrays.asList("3", url);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxEntriesMustBePositive() {
+        new RavenLoginUrlCache(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripesMustBePowerOfTwo() {
+        new RavenLoginUrlCache(10, 3);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedUrlIsEvicted() {
+        RavenLoginUrlCache cache = new RavenLoginUrlCache(2, 1);
+        assertThat(cache.getMaxEntries(), equalTo(2));
+
+        cache.put(key("a"), "url-a");
+        cache.put(key("b"), "url-b");
+        assertThat(cache.get(key("a")), equalTo("url-a"));
+
+        cache.put(key("c"), "url-c");
+
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.get(key("b")), nullValue());
+        assertThat(cache.get(key("a")), equalTo("url-a"));
+        assertThat(cache.get(key("c")), equalTo("url-c"));
+    }
+
+    @Test
+    public void testHitRate() {
+        RavenLoginUrlCache cache = new RavenLoginUrlCache(10);
+        assertThat(cache.getHitRate(), equalTo(0.0));
+
+        cache.get(key("a"));
+        cache.put(key("a"), "url-a");
+        cache.get(key("a"));
+        cache.get(key("a"));
+        cache.get(key("a"));
+
+        assertThat(cache.getHitCount(), equalTo(3L));
+        assertThat(cache.getMissCount(), equalTo(1L));
+        assertThat(cache.getHitRate(), equalTo(0.75));
+    }
+}
@@ -0,0 +1,319 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.web.authentication.WebAuthenticationDetails;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class RavenTokenCodecTest {
+
+    private static final String RESPONSE =
+        "3!200!!20160811T155817Z!1470931097-27163-123!http://" +
+        "cudl-dev.lib.cam.ac.uk:80/auth/ravenlogin!hwtb2!current!pwd!!" +
+        "36000!!2!xxx";
+
+    private static final List<GrantedAuthority> AUTHORITIES =
+        AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN");
+
+    private WebauthRequest request;
+    private WebauthResponse response;
+    private Instant received;
+
+    @Before
+    public void setUp() throws WebauthException {
+        request = new WebauthRequest();
+        request.set("ver", "3");
+        request.set("url", "http://example.com/a b?c=d&e=é");
+        request.set("desc", "Example");
+        request.set("date", "20160811T155810Z");
+
+        response = new WebauthResponse(RESPONSE);
+        received = Instant.parse("2016-08-11T15:58:18.123456789Z");
+    }
+
+    private static void assertSameToken(
+        RavenAuthenticationToken expected, RavenAuthenticationToken actual) {
+
+        assertThat(actual.isAuthenticated(),
+                   equalTo(expected.isAuthenticated()));
+        assertThat(actual.getPrincipal(), equalTo(expected.getPrincipal()));
+        assertThat(actual.getAuthorities(),
+                   equalTo(expected.getAuthorities()));
+        assertThat(actual.getDetails(), equalTo(expected.getDetails()));
+        assertThat(actual.hasCredentials(),
+                   equalTo(expected.hasCredentials()));
+        assertThat(actual.getResponseReceivedTime(),
+                   equalTo(expected.getResponseReceivedTime()));
+        assertThat(actual.getRavenResponse().map(WebauthResponse::getToken),
+            equalTo(expected.getRavenResponse().map(WebauthResponse::getToken)));
+
+        expected.getRavenRequest().ifPresent(req -> {
+            WebauthRequest actualReq = actual.getRavenRequest().get();
+            assertThat(actualReq.length(), equalTo(req.length()));
+            for(String field : Arrays.asList("ver", "url", "desc", "date",
+                                             "x-extra")) {
+                assertThat(actualReq.get(field), equalTo(req.get(field)));
+            }
+        });
+    }
+
+    private static RavenAuthenticationToken roundTrip(
+        RavenAuthenticationToken token) {
+
+        return RavenTokenCodec.decode(RavenTokenCodec.encode(token));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T javaRoundTrip(T value)
+        throws IOException, ClassNotFoundException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        try(ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T)in.readObject();
+        }
+    }
+
+    @Test
+    public void testUnauthenticatedTokenRoundTrips() {
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received);
+
+        assertSameToken(token, roundTrip(token));
+    }
+
+    @Test
+    public void testUserPrincipalRoundTrips() {
+        User user = new User("hwtb2", "", true, true, false, true,
+                             AUTHORITIES);
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received)
+                .authenticate(user, AUTHORITIES);
+        token.setDetails(new WebAuthenticationDetails(
+            new MockHttpServletRequest()));
+
+        RavenAuthenticationToken decoded = roundTrip(token);
+        assertSameToken(token, decoded);
+
+        User decodedUser = (User)decoded.getPrincipal();
+        assertThat(decodedUser.getPassword(), equalTo(""));
+        assertFalse(decodedUser.isCredentialsNonExpired());
+        assertTrue(decodedUser.isAccountNonLocked());
+        assertThat(decodedUser.getAuthorities(),
+                   equalTo((Object)user.getAuthorities()));
+    }
+
+    @Test
+    public void testErasedCredentialsRoundTrip() {
+        User user = new User("hwtb2", "secret", AUTHORITIES);
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received)
+                .authenticate(user, AUTHORITIES);
+        token.eraseCredentials();
+
+        RavenAuthenticationToken decoded = roundTrip(token);
+        assertSameToken(token, decoded);
+        assertThat(((User)decoded.getPrincipal()).getPassword(), nullValue());
+    }
+
+    @Test
+    public void testRequestWithUnknownFieldsRoundTrips() {
+        request.set("x-extra", "a&b=c %");
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received);
+
+        assertSameToken(token, roundTrip(token));
+    }
+
+    @Test
+    public void testOtherPrincipalsAndAuthoritiesUseJavaSerialization() {
+        GrantedAuthority custom = new CustomAuthority("custom");
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received)
+                .authenticate(new CustomPrincipal("hwtb2"),
+                              Arrays.asList(custom));
+
+        assertSameToken(token, roundTrip(token));
+    }
+
+    @Test
+    public void testJavaSerializationUsesCodec() throws Exception {
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received)
+                .authenticate("hwtb2", AUTHORITIES);
+
+        SecurityContextImpl context = new SecurityContextImpl();
+        context.setAuthentication(token);
+
+        SecurityContextImpl decoded = javaRoundTrip(context);
+        assertThat(decoded.getAuthentication(),
+                   instanceOf(RavenAuthenticationToken.class));
+        assertSameToken(token,
+            (RavenAuthenticationToken)decoded.getAuthentication());
+    }
+
+    @Test
+    public void testJavaSerializationUsesEnclosingStreamForValues()
+        throws Exception {
+
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received)
+                .authenticate(new CustomPrincipal("hwtb2"),
+                              Arrays.asList(new CustomAuthority("custom")));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(token);
+        }
+
+        // Classes must be resolved by the enclosing stream, which applies
+        // its class loader and filters, not by a nested stream.
+        List<String> resolved = new ArrayList<>();
+        try(ObjectInputStream in = new ObjectInputStream(
+            new ByteArrayInputStream(bytes.toByteArray())) {
+
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+
+                resolved.add(desc.getName());
+                return super.resolveClass(desc);
+            }
+        }) {
+            assertSameToken(token, (RavenAuthenticationToken)in.readObject());
+        }
+
+        assertThat(resolved, hasItems(CustomPrincipal.class.getName(),
+                                      CustomAuthority.class.getName()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testObjectEncodingRequiresObjectInput() throws IOException {
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received)
+                .authenticate(new CustomPrincipal("hwtb2"), AUTHORITIES);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            RavenTokenCodec.write(token, out);
+        }
+
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(bytes.toByteArray()));
+        in.skipBytes(6);  // The object stream header and block data header
+        RavenTokenCodec.read(in);
+    }
+
+    @Test
+    public void testEncodingIsCompact() throws IOException {
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received)
+                .authenticate("hwtb2", AUTHORITIES);
+
+        int size = RavenTokenCodec.encode(token).length;
+        assertThat(size, lessThan(RESPONSE.length() + 150));
+    }
+
+    @Test(expected = NotSerializableException.class)
+    public void testSubclassesMustOverrideWriteReplace() throws Exception {
+        RavenAuthenticationToken token =
+            new RavenAuthenticationToken(request, response, received) { };
+
+        javaRoundTrip(token);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFutureVersionsAreRejected() {
+        byte[] encoded = RavenTokenCodec.encode(
+            new RavenAuthenticationToken(request, response, received));
+        encoded[0] = RavenTokenCodec.VERSION + 1;
+
+        RavenTokenCodec.decode(encoded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrailingDataIsRejected() {
+        byte[] encoded = RavenTokenCodec.encode(
+            new RavenAuthenticationToken(request, response, received));
+
+        RavenTokenCodec.decode(Arrays.copyOf(encoded, encoded.length + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedDataIsRejected() {
+        byte[] encoded = RavenTokenCodec.encode(
+            new RavenAuthenticationToken(request, response, received));
+
+        RavenTokenCodec.decode(Arrays.copyOf(encoded, encoded.length - 3));
+    }
+
+    private static final class CustomPrincipal implements Serializable {
+        final String name;
+
+        CustomPrincipal(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CustomPrincipal &&
+                ((CustomPrincipal)o).name.equals(this.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.name.hashCode();
+        }
+    }
+
+    private static final class CustomAuthority implements GrantedAuthority {
+        final String authority;
+
+        CustomAuthority(String authority) {
+            this.authority = authority;
+        }
+
+        @Override
+        public String getAuthority() {
+            return this.authority;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CustomAuthority &&
+                ((CustomAuthority)o).authority.equals(this.authority);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.authority.hashCode();
+        }
+    }
+}
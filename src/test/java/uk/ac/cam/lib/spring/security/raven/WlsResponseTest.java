@@ -0,0 +1,197 @@
+package uk.ac.cam.lib.spring.security.raven;
+
+import org.junit.Test;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class WlsResponseTest {
+
+    private static final String V3_RESPONSE =
+        "3!200!!20160811T155817Z!1470931097-27163-123!http://example.com/" +
+        "login!hwtb2!current,staff!pwd!!36000!a%21b%25c!901!sig.-_";
+
+    private static final String V1_RESPONSE =
+        "1!200!!20160811T155817Z!1470931097-27163-123!http://" +
+        "cudl-dev.lib.cam.ac.uk:80/auth/ravenlogin!hwtb2!!pwd!9793!!2!xxx";
+
+    private static final List<String> NAMES = Arrays.asList(
+        "ver", "status", "msg", "issue", "id", "url", "principal", "ptags",
+        "auth", "sso", "life", "params", "kid", "sig", "unknown");
+
+    @Test
+    public void testTypedAccessorsOfVersion3Response() throws WebauthException {
+        WlsResponse response = WlsResponse.parse(V3_RESPONSE);
+
+        assertThat(response.length(), equalTo(14));
+        assertThat(response.getVersion(), equalTo(3));
+        assertThat(response.getStatus(), equalTo(200));
+        assertThat(response.getMessage(), equalTo(""));
+        assertThat(response.getIssue(), equalTo("20160811T155817Z"));
+        assertThat(response.getId(), equalTo("1470931097-27163-123"));
+        assertThat(response.getUrl(), equalTo("http://example.com/login"));
+        assertThat(response.getPrincipal(), equalTo("hwtb2"));
+        assertThat(response.getPtags(), contains("current", "staff"));
+        assertThat(response.getAuth(), equalTo("pwd"));
+        assertThat(response.getSso(), equalTo(""));
+        assertThat(response.getLife(), equalTo("36000"));
+        assertThat(response.getParams(), equalTo("a!b%c"));
+        assertThat(response.getKid(), equalTo("901"));
+        assertThat(response.getSig(), equalTo("sig.-_"));
+        assertThat(response.getInt("life"), equalTo(36000));
+        assertThat(response.getToken(), equalTo(V3_RESPONSE));
+        assertThat(response.toString(), equalTo(V3_RESPONSE));
+    }
+
+    @Test
+    public void testTypedAccessorsOfVersion1Response() throws WebauthException {
+        WlsResponse response = WlsResponse.parse(V1_RESPONSE);
+
+        assertThat(response.length(), equalTo(13));
+        assertThat(response.getVersion(), equalTo(1));
+        assertThat(response.getPrincipal(), equalTo("hwtb2"));
+        assertThat(response.getPtags(), empty());
+        assertThat(response.get("ptags"), nullValue());
+        assertThat(response.getAuth(), equalTo(""));
+        assertThat(response.getSso(), equalTo("pwd"));
+        assertThat(response.getLife(), equalTo("9793"));
+        assertThat(response.getParams(), equalTo(""));
+        assertThat(response.getKid(), equalTo("2"));
+        assertThat(response.getSig(), equalTo("xxx"));
+    }
+
+    @Test
+    public void testWebauthResponseIsCreatedOnce() throws WebauthException {
+        WlsResponse response = WlsResponse.parse(V3_RESPONSE);
+
+        WebauthResponse converted = response.toWebauthResponse();
+        assertThat(converted.getToken(), equalTo(V3_RESPONSE));
+        assertThat(response.toWebauthResponse(), sameInstance(converted));
+    }
+
+    @Test
+    public void testViewOfWebauthResponseReturnsIt() throws WebauthException {
+        WebauthResponse original = new WebauthResponse(V1_RESPONSE);
+        WlsResponse response = WlsResponse.of(original);
+
+        assertThat(response.toWebauthResponse(), sameInstance(original));
+        assertThat(response.getId(), equalTo("1470931097-27163-123"));
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testParseRejectsNull() throws WebauthException {
+        WlsResponse.parse(null);
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testParseRejectsTooManyFields() throws WebauthException {
+        WlsResponse.parse(V3_RESPONSE + "!extra");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testGetIntOfUnknownFieldThrows() throws WebauthException {
+        WlsResponse.parse(V1_RESPONSE).getInt("ptags");
+    }
+
+    /**
+     * Parse a large corpus of generated responses with both parsers, checking
+     * they accept the same responses and read the same values from them.
+     */
+    @Test
+    public void testParserAgreesWithWebauthResponse() {
+        Random random = new Random(20161017);
+        int accepted = 0;
+
+        for(int i = 0; i < 50000; i++) {
+            String token = randomResponse(random);
+
+            WebauthResponse expected;
+            try {
+                expected = new WebauthResponse(token);
+            }
+            catch(WebauthException e) {
+                expected = null;
+            }
+
+            WlsResponse actual;
+            try {
+                actual = WlsResponse.parse(token);
+            }
+            catch(WebauthException e) {
+                actual = null;
+            }
+
+            assertThat(token, actual == null, equalTo(expected == null));
+            if(actual == null)
+                continue;
+            accepted++;
+
+            assertThat(token, actual.length(), equalTo(expected.length()));
+            for(String name : NAMES) {
+                assertThat(token + " " + name, actual.get(name),
+                           equalTo(expected.get(name)));
+                assertThat(token + " " + name, intOrError(actual, name),
+                           equalTo(intOrError(expected, name)));
+            }
+        }
+
+        assertThat(accepted, greaterThan(10000));
+    }
+
+    private static String randomResponse(Random random) {
+        int fields = 11 + random.nextInt(5);
+        StringBuilder token = new StringBuilder();
+        for(int i = 0; i < fields; i++) {
+            if(i > 0)
+                token.append('!');
+            randomField(random, token);
+        }
+        return token.toString();
+    }
+
+    private static final String[] FRAGMENTS = {
+        "%21", "%25", "%2", "%", "2", "1", "5", "a", "Z", " ", ",", "-", "+",
+        "0", "9", "200", "é", "%2521"
+    };
+
+    private static void randomField(Random random, StringBuilder token) {
+        switch(random.nextInt(4)) {
+            case 0:
+                // Numbers, including ones which overflow an int
+                token.append(random.nextInt(3) == 0
+                    ? Long.toString(random.nextLong())
+                    : Integer.toString(random.nextInt(1 << random.nextInt(31))));
+                break;
+            case 1:
+                break;
+            default:
+                int length = random.nextInt(8);
+                for(int i = 0; i < length; i++)
+                    token.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        }
+    }
+
+    private static Object intOrError(WlsResponse response, String name) {
+        try {
+            return response.getInt(name);
+        }
+        catch(NumberFormatException e) {
+            return NumberFormatException.class;
+        }
+    }
+
+    private static Object intOrError(WebauthResponse response, String name) {
+        try {
+            return response.getInt(name);
+        }
+        catch(NumberFormatException e) {
+            return NumberFormatException.class;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package uk.ac.cam.lib.spring.security.raven.admission;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class TokenBucketAdmissionControllerTest {
+
+    private static final Instant T0 = Instant.parse("2016-01-01T12:00:00Z");
+
+    private static int admitted(AdmissionController controller, String client,
+                                Instant now, int attempts) {
+        int admitted = 0;
+        for(int i = 0; i < attempts; i++) {
+            if(controller.tryAdmit(client, now))
+                admitted++;
+        }
+        return admitted;
+    }
+
+    @Test
+    public void testClientIsLimitedToBurstThenRate() {
+        TokenBucketAdmissionController controller =
+            new TokenBucketAdmissionController(
+                null, RateLimit.perSecond(10, 5));
+
+        assertThat(admitted(controller, "a", T0, 10), is(5));
+        assertThat(controller.getClientRejectionCount(), is(5L));
+
+        // One permit is replenished every 100ms
+        assertThat(admitted(controller, "a", T0.plusMillis(100), 10), is(1));
+        assertThat(admitted(controller, "a", T0.plusMillis(350), 10), is(2));
+
+        // Refills to the burst, no further
+        assertThat(admitted(controller, "a", T0.plusSeconds(60), 10), is(5));
+    }
+
+    @Test
+    public void testClientsHaveSeparateBuckets() {
+        AdmissionController controller = new TokenBucketAdmissionController(
+            null, RateLimit.perSecond(1, 2));
+
+        assertThat(admitted(controller, "a", T0, 5), is(2));
+        assertThat(admitted(controller, "b", T0, 5), is(2));
+    }
+
+    @Test
+    public void testGlobalLimitAppliesToAllClients() {
+        TokenBucketAdmissionController controller =
+            new TokenBucketAdmissionController(
+                RateLimit.perSecond(1, 3), RateLimit.perSecond(1, 2));
+
+        assertThat(admitted(controller, "a", T0, 5), is(2));
+        assertThat(admitted(controller, "b", T0, 5), is(1));
+        assertThat(admitted(controller, "c", T0, 5), is(0));
+
+        // Rejected clients don't use the global bucket
+        assertThat(controller.getClientRejectionCount(), is(9L));
+        assertThat(controller.getGlobalRejectionCount(), is(3L));
+    }
+
+    @Test
+    public void testNoLimits() {
+        AdmissionController controller =
+            new TokenBucketAdmissionController(null, null);
+
+        assertThat(admitted(controller, "a", T0, 1000), is(1000));
+    }
+
+    @Test
+    public void testClientTableIsBounded() {
+        TokenBucketAdmissionController controller =
+            new TokenBucketAdmissionController(
+                null, RateLimit.perSecond(1, 1), 5);
+        assertThat(controller.getMaxClients(), is(8));
+
+        for(int i = 0; i < 1000; i++)
+            assertTrue(controller.tryAdmit("client-" + i, T0));
+
+        assertThat(controller.getEvictionCount(), greaterThan(0L));
+        assertThat(controller.getEvictionCount(), lessThanOrEqualTo(992L));
+    }
+
+    @Test
+    public void testRefilledBucketsAreReusedWithoutEviction() {
+        TokenBucketAdmissionController controller =
+            new TokenBucketAdmissionController(
+                null, RateLimit.perSecond(10, 1), 4);
+
+        for(int i = 0; i < 100; i++) {
+            assertTrue(controller.tryAdmit(
+                "client-" + i, T0.plus(Duration.ofSeconds(i))));
+        }
+        assertThat(controller.getEvictionCount(), is(0L));
+    }
+
+    @Test
+    public void testConcurrentClientsGetExactlyTheBurst()
+        throws InterruptedException {
+
+        AdmissionController controller = new TokenBucketAdmissionController(
+            RateLimit.perSecond(1, 100), null);
+        AtomicInteger admitted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for(int t = 0; t < 8; t++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+                admitted.addAndGet(admitted(controller, "a", T0, 50));
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertThat(admitted.get(), is(100));
+    }
+
+    @Test
+    public void testRateLimitProperties() {
+        RateLimit limit = RateLimit.perSecond(4, 8);
+
+        assertThat(limit.getPermitsPerSecond(), is(4.0));
+        assertThat(limit.getBurst(), is(8));
+        assertThat(limit.getInterval(), equalTo(Duration.ofMillis(250)));
+        assertThat(limit.toString(), containsString("burst 8"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRateMustBePositive() {
+        RateLimit.perSecond(0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBurstMustBePositive() {
+        RateLimit.perSecond(1, 0);
+    }
+}
@@ -0,0 +1,58 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.junit.Test;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class ScopedSecurityContextTest {
+
+    @Test
+    public void testContextIsBoundForDurationOfTask() {
+        SecurityContext outer = new SecurityContextImpl();
+        SecurityContext inner = new SecurityContextImpl();
+        SecurityContext[] seen = new SecurityContext[3];
+
+        assertThat(ScopedSecurityContext.get(), nullValue());
+        ScopedSecurityContext.run(outer, () -> {
+            seen[0] = ScopedSecurityContext.get();
+            ScopedSecurityContext.run(
+                inner, () -> seen[1] = ScopedSecurityContext.get());
+            seen[2] = ScopedSecurityContext.get();
+        });
+
+        assertThat(seen[0], is(sameInstance(outer)));
+        assertThat(seen[1], is(sameInstance(inner)));
+        assertThat(seen[2], is(sameInstance(outer)));
+        assertThat(ScopedSecurityContext.get(), nullValue());
+    }
+
+    @Test
+    public void testContextIsUnboundWhenTaskFails() {
+        try {
+            ScopedSecurityContext.run(new SecurityContextImpl(), () -> {
+                throw new IllegalStateException();
+            });
+            fail();
+        }
+        catch(IllegalStateException e) {
+            assertThat(ScopedSecurityContext.get(), nullValue());
+        }
+    }
+
+    /** Unit tests run against the Java 8 classes; see the *IT tests. */
+    @Test
+    public void testJava8ClassesHaveNoVirtualThreads() {
+        assertFalse(VirtualThreads.isSupported());
+        assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+        assertFalse(ScopedSecurityContext.isScopedValue());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testNewExecutorRequiresVirtualThreads() {
+        VirtualThreads.newExecutor("test");
+    }
+}
@@ -0,0 +1,108 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class SecurityContextHandOffTest {
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+        SecurityContextHolder.setStrategyName(
+            SecurityContextHolder.MODE_THREADLOCAL);
+    }
+
+    private static SecurityContext context(String user) {
+        return new SecurityContextImpl() {{
+            setAuthentication(new TestingAuthenticationToken(user, "pw"));
+        }};
+    }
+
+    private static void runOnOtherThread(Runnable task)
+        throws InterruptedException {
+
+        Thread thread = new Thread(task);
+        thread.start();
+        thread.join();
+    }
+
+    @Test
+    public void testWrappedTaskSeesCallersContext()
+        throws InterruptedException {
+
+        SecurityContext context = context("alice");
+        SecurityContextHolder.setContext(context);
+
+        SecurityContext[] seen = new SecurityContext[1];
+        runOnOtherThread(SecurityContextHandOff.wrap(
+            () -> seen[0] = SecurityContextHolder.getContext()));
+
+        assertThat(seen[0], is(sameInstance(context)));
+    }
+
+    @Test
+    public void testThreadLocalContextIsRestored() {
+        SecurityContext original = context("alice");
+        SecurityContextHolder.setContext(original);
+
+        SecurityContextHandOff.wrap(context("bob"), () -> {}).run();
+        assertThat(SecurityContextHolder.getContext(),
+                   is(sameInstance(original)));
+
+        SecurityContextHolder.clearContext();
+        SecurityContextHandOff.wrap(context("bob"), () -> {}).run();
+        assertThat(SecurityContextHolder.getContext().getAuthentication(),
+                   nullValue());
+    }
+
+    @Test
+    public void testScopedStrategyUsesBoundContext() {
+        SecurityContextHolder.setStrategyName(
+            ScopedSecurityContextHolderStrategy.class.getName());
+        assertTrue(ScopedSecurityContextHolderStrategy.isInstalled());
+
+        SecurityContext context = context("alice");
+        SecurityContext[] seen = new SecurityContext[2];
+        SecurityContextHandOff.wrap(context, () -> {
+            seen[0] = SecurityContextHolder.getContext();
+
+            // Explicitly set contexts take precedence
+            SecurityContext other = context("bob");
+            SecurityContextHolder.setContext(other);
+            seen[1] = SecurityContextHolder.getContext();
+            SecurityContextHolder.clearContext();
+        }).run();
+
+        assertThat(seen[0], is(sameInstance(context)));
+        assertThat(seen[1].getAuthentication().getName(), equalTo("bob"));
+        assertThat(SecurityContextHolder.getContext().getAuthentication(),
+                   nullValue());
+    }
+
+    @Test
+    public void testScopedStrategyCreatesEmptyContextWhenUnbound() {
+        ScopedSecurityContextHolderStrategy strategy =
+            new ScopedSecurityContextHolderStrategy();
+
+        SecurityContext context = strategy.getContext();
+        assertThat(context.getAuthentication(), nullValue());
+        assertThat(strategy.getContext(), is(sameInstance(context)));
+
+        strategy.clearContext();
+        assertThat(strategy.getContext(), is(not(sameInstance(context))));
+        strategy.clearContext();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testScopedStrategyRejectsNullContext() {
+        new ScopedSecurityContextHolderStrategy().setContext(null);
+    }
+}
@@ -0,0 +1,151 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class StripedExpiringMapTest {
+
+    // Each value is its own expiry time
+    private final StripedExpiringMap<String, Long> map =
+        new StripedExpiringMap<>(4, 1, Long::longValue);
+
+    @Test
+    public void testValueIsReturnedUntilItExpires() {
+        map.put("a", 100L, 0);
+
+        assertThat(map.get("a", 99), is(100L));
+        assertThat(map.get("a", 100), is(nullValue()));
+        assertThat(map.size(), is(0));
+    }
+
+    @Test
+    public void testExpiredEntriesAreRemovedFromTheHead() {
+        map.put("a", 100L, 0);
+        map.put("b", 200L, 0);
+
+        map.get("c", 150);
+
+        assertThat(map.size(), is(1));
+        assertThat(map.get("b", 150), is(200L));
+    }
+
+    @Test
+    public void testExpiredEntryBehindTheHeadIsNotReturned() {
+        map.put("a", 200L, 0);
+        map.put("b", 100L, 0);
+
+        assertThat(map.get("b", 150), is(nullValue()));
+        assertThat(map.remove("b", 150), is(nullValue()));
+        assertThat(map.get("a", 150), is(200L));
+    }
+
+    @Test
+    public void testPutIfAbsent() {
+        assertThat(map.putIfAbsent("a", 100L, 0), is(true));
+        assertThat(map.putIfAbsent("a", 200L, 50), is(false));
+        assertThat(map.get("a", 50), is(100L));
+    }
+
+    @Test
+    public void testPutIfAbsentReplacesExpiredValue() {
+        map.put("a", 200L, 0);
+        map.put("b", 100L, 0);
+
+        assertThat(map.putIfAbsent("b", 300L, 150), is(true));
+        assertThat(map.get("b", 150), is(300L));
+    }
+
+    @Test
+    public void testPutReplacesValue() {
+        map.put("a", 100L, 0);
+        map.put("a", 200L, 0);
+
+        assertThat(map.get("a", 150), is(200L));
+        assertThat(map.size(), is(1));
+    }
+
+    @Test
+    public void testRemoveReturnsUnexpiredValue() {
+        map.put("a", 100L, 0);
+
+        assertThat(map.remove("a", 50), is(100L));
+        assertThat(map.get("a", 50), is(nullValue()));
+        assertThat(map.remove("a", 50), is(nullValue()));
+    }
+
+    @Test
+    public void testEldestEntryIsEvictedWhenFull() {
+        for(String key : new String[]{"a", "b", "c", "d"})
+            map.put(key, 100L, 0);
+        // Re-putting moves a to the end, so b is the eldest
+        map.put("a", 100L, 0);
+        map.put("e", 100L, 0);
+
+        assertThat(map.size(), is(4));
+        assertThat(map.getEvictionCount(), is(1L));
+        assertThat(map.get("b", 0), is(nullValue()));
+        assertThat(map.get("a", 0), is(100L));
+    }
+
+    @Test
+    public void testAccessOrderEvictsLeastRecentlyUsed() {
+        StripedExpiringMap<String, Long> lru =
+            new StripedExpiringMap<>(2, 1, true, Long::longValue);
+        lru.put("a", Long.MAX_VALUE, 0);
+        lru.put("b", Long.MAX_VALUE, 0);
+
+        lru.get("a", 0);
+        lru.put("c", Long.MAX_VALUE, 0);
+
+        assertThat(lru.get("a", 0), is(Long.MAX_VALUE));
+        assertThat(lru.get("b", 0), is(nullValue()));
+    }
+
+    @Test
+    public void testMaxEntriesIsRoundedToStripes() {
+        assertThat(new StripedExpiringMap<String, Long>(
+            100, 16, Long::longValue).getMaxEntries(), is(96));
+        assertThat(new StripedExpiringMap<String, Long>(
+            4, 16, Long::longValue).getMaxEntries(), is(16));
+    }
+
+    @Test
+    public void testEntriesAreSpreadOverStripes() {
+        StripedExpiringMap<String, Long> striped =
+            new StripedExpiringMap<>(64, 16, Long::longValue);
+        for(int i = 0; i < 64; i++)
+            striped.put("key" + i, 100L, 0);
+
+        // Would be 4 if every key fell in the same stripe
+        assertThat(striped.size(), is(greaterThan(32)));
+    }
+
+    @Test
+    public void testClear() {
+        map.put("a", 100L, 0);
+        map.put("b", 100L, 0);
+
+        map.clear();
+
+        assertThat(map.size(), is(0));
+        assertThat(map.get("a", 0), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxEntriesMustBePositive() {
+        new StripedExpiringMap<String, Long>(0, 1, Long::longValue);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripesMustBePowerOfTwo() {
+        new StripedExpiringMap<String, Long>(16, 3, Long::longValue);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValuesAreRejected() {
+        map.put("a", null, 0);
+    }
+}
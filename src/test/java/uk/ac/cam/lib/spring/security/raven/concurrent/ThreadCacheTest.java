@@ -0,0 +1,66 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class ThreadCacheTest {
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final ThreadCache<Object> cache =
+        new ThreadCache<>(() -> created.incrementAndGet());
+
+    @Test
+    public void testReleasedValueIsReused() {
+        Object value = cache.acquire();
+        cache.release(value);
+
+        assertThat(cache.acquire(), is(sameInstance(value)));
+        assertThat(created.get(), is(1));
+    }
+
+    @Test
+    public void testAcquiredValueIsNotShared() {
+        Object first = cache.acquire();
+        Object second = cache.acquire();
+
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(created.get(), is(2));
+    }
+
+    @Test
+    public void testDiscardedValueIsNotReused() {
+        Object value = cache.acquire();
+        cache.discard(value);
+
+        assertThat(cache.acquire(), is(not(sameInstance(value))));
+    }
+
+    @Test
+    public void testThreadsHaveTheirOwnValues() throws InterruptedException {
+        Object value = cache.acquire();
+        cache.release(value);
+
+        Object[] other = new Object[1];
+        Thread thread = new Thread(() -> other[0] = cache.acquire());
+        thread.start();
+        thread.join();
+
+        assertThat(other[0], is(not(sameInstance(value))));
+        assertThat(cache.acquire(), is(sameInstance(value)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNullValuesAreRejected() {
+        new ThreadCache<>(() -> null).acquire();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxSharedMustBePositive() {
+        new ThreadCache<>(Object::new, 0);
+    }
+}
@@ -0,0 +1,82 @@
+package uk.ac.cam.lib.spring.security.raven.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests the Java 21 versions of the multi-release classes. Run on Java 21 by
+ * the java21 profile.
+ */
+public class VirtualThreadsIT {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        assumeTrue(VirtualThreads.isSupported());
+        executor = VirtualThreads.newExecutor("test");
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        SecurityContextHolder.setStrategyName(
+            SecurityContextHolder.MODE_THREADLOCAL);
+        if(executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testExecutorRunsTasksOnNamedVirtualThreads() throws Exception {
+        Future<Thread> thread = executor.submit(Thread::currentThread);
+
+        assertTrue(VirtualThreads.isVirtual(thread.get()));
+        assertThat(thread.get().getName(), startsWith("test-"));
+        assertFalse(VirtualThreads.isVirtual(Thread.currentThread()));
+    }
+
+    @Test
+    public void testThreadCacheSharesValuesBetweenVirtualThreads()
+        throws Exception {
+
+        AtomicInteger created = new AtomicInteger();
+        ThreadCache<Object> cache = new ThreadCache<>(created::incrementAndGet);
+
+        for(int i = 0; i < 100; i++) {
+            executor.submit(() -> cache.release(cache.acquire())).get();
+        }
+        assertThat(created.get(), is(1));
+    }
+
+    @Test
+    public void testScopedValueBindsContextOnVirtualThread() throws Exception {
+        assertTrue(ScopedSecurityContext.isScopedValue());
+
+        SecurityContextHolder.setStrategyName(
+            ScopedSecurityContextHolderStrategy.class.getName());
+        SecurityContext context = new SecurityContextImpl();
+        context.setAuthentication(new TestingAuthenticationToken("alice", "pw"));
+
+        SecurityContext[] seen = new SecurityContext[1];
+        executor.submit(SecurityContextHandOff.wrap(context, () ->
+            seen[0] = SecurityContextHolder.getContext())).get();
+
+        assertThat(seen[0], is(sameInstance(context)));
+        assertThat(ScopedSecurityContext.get(), nullValue());
+    }
+}
@@ -0,0 +1,95 @@
+package uk.ac.cam.lib.spring.security.raven.crypto;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class HmacSignerTest {
+
+    private static final byte[] KEY =
+        "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DATA =
+        "some data".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testSignatureVerifies() {
+        HmacSigner signer = new HmacSigner(KEY);
+        byte[] mac = signer.sign(DATA);
+
+        assertThat(mac.length, equalTo(signer.getMacLength()));
+        assertThat(signer.getMacLength(), equalTo(32));
+        assertThat(signer.getAlgorithm(), equalTo("HmacSHA256"));
+        assertTrue(signer.verify(DATA, mac));
+    }
+
+    @Test
+    public void testSignaturesMatchBetweenInstancesWithSameKey() {
+        assertArrayEquals(new HmacSigner(KEY).sign(DATA),
+                          new HmacSigner(KEY.clone()).sign(DATA));
+    }
+
+    @Test
+    public void testModifiedDataIsRejected() {
+        HmacSigner signer = new HmacSigner(KEY);
+        byte[] mac = signer.sign(DATA);
+        byte[] modified = DATA.clone();
+        modified[0] ^= 1;
+
+        assertFalse(signer.verify(modified, mac));
+    }
+
+    @Test
+    public void testModifiedOrTruncatedMacIsRejected() {
+        HmacSigner signer = new HmacSigner(KEY);
+        byte[] mac = signer.sign(DATA);
+        byte[] modified = mac.clone();
+        modified[31] ^= 1;
+
+        assertFalse(signer.verify(DATA, modified));
+        assertFalse(signer.verify(DATA, Arrays.copyOf(mac, 16)));
+    }
+
+    @Test
+    public void testDifferentKeyIsRejected() {
+        byte[] otherKey = KEY.clone();
+        otherKey[0] ^= 1;
+
+        assertFalse(new HmacSigner(otherKey).verify(
+            DATA, new HmacSigner(KEY).sign(DATA)));
+    }
+
+    @Test
+    public void testSignIntoArrayAndRange() {
+        HmacSigner signer = new HmacSigner(KEY);
+        byte[] buffer = new byte[4 + DATA.length + 32];
+        System.arraycopy(DATA, 0, buffer, 4, DATA.length);
+
+        signer.sign(buffer, 4, DATA.length, buffer, 4 + DATA.length);
+
+        assertArrayEquals(signer.sign(DATA),
+                          Arrays.copyOfRange(buffer, 4 + DATA.length,
+                                             buffer.length));
+        assertTrue(signer.verify(buffer, 4, DATA.length,
+                                 signer.sign(DATA)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSignIntoTooSmallArrayIsRejected() {
+        new HmacSigner(KEY).sign(DATA, 0, DATA.length, new byte[16], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShortKeyIsRejected() {
+        new HmacSigner(new byte[15]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownAlgorithmIsRejected() {
+        new HmacSigner(KEY, "HmacNothing");
+    }
+}
@@ -0,0 +1,250 @@
+package uk.ac.cam.lib.spring.security.raven.hooks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class CachingUserDetailsRavenTokenCreatorTest {
+
+    private MutableClock clock;
+    private UserDetailsService uds;
+    private CachingUserDetailsRavenTokenCreator creator;
+    private List<Runnable> refreshTasks;
+
+    private static UserDetails user(String username, String authority) {
+        return new User(username, "", AuthorityUtils.createAuthorityList(
+            authority));
+    }
+
+    @Before
+    public void setUp() {
+        clock = new MutableClock(Instant.parse("2016-10-12T12:00:00Z"));
+        uds = mock(UserDetailsService.class);
+        creator = new CachingUserDetailsRavenTokenCreator(
+            uds, Duration.ofMinutes(10), 100);
+        creator.setClock(clock);
+        refreshTasks = new ArrayList<>();
+    }
+
+    private UserDetails login(String username) {
+        RavenAuthenticationToken token = mock(RavenAuthenticationToken.class);
+        when(token.getPrincipal()).thenReturn(username);
+        when(token.authenticate(any(), any()))
+            .thenReturn(mock(RavenAuthenticationToken.class));
+
+        creator.createAuthenticatedToken(token);
+
+        ArgumentCaptor<Object> details = ArgumentCaptor.forClass(Object.class);
+        verify(token).authenticate(details.capture(), any());
+        return (UserDetails)details.getValue();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTtlMustBePositive() {
+        new CachingUserDetailsRavenTokenCreator(uds, Duration.ZERO, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRefreshAfterMustBeLessThanTtl() {
+        creator.setRefreshAfter(Duration.ofMinutes(10));
+    }
+
+    @Test
+    public void testUsersAreCachedUntilTheyExpire() {
+        UserDetails first = user("abc123", "first");
+        UserDetails second = user("abc123", "second");
+        when(uds.loadUserByUsername("abc123")).thenReturn(first, second);
+
+        assertThat(login("abc123"), sameInstance(first));
+        clock.advance(Duration.ofMinutes(9));
+        assertThat(login("abc123"), sameInstance(first));
+        clock.advance(Duration.ofMinutes(1));
+        assertThat(login("abc123"), sameInstance(second));
+
+        verify(uds, times(2)).loadUserByUsername("abc123");
+        assertThat(creator.getHitCount(), equalTo(1L));
+        assertThat(creator.getMissCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testUnknownUsersAreCachedForNegativeTtl() {
+        UsernameNotFoundException notFound =
+            new UsernameNotFoundException("No such user");
+        when(uds.loadUserByUsername("zz999")).thenThrow(notFound);
+        creator.setNegativeTtl(Duration.ofSeconds(5));
+
+        for(int i = 0; i < 3; i++) {
+            try {
+                login("zz999");
+                fail();
+            }
+            catch(UsernameNotFoundException e) {
+                assertThat(e.getMessage(), equalTo("No such user"));
+            }
+        }
+        verify(uds, times(1)).loadUserByUsername("zz999");
+        assertThat(creator.getNegativeHitCount(), equalTo(2L));
+
+        clock.advance(Duration.ofSeconds(5));
+        try {
+            login("zz999");
+            fail();
+        }
+        catch(UsernameNotFoundException e) { }
+        verify(uds, times(2)).loadUserByUsername("zz999");
+    }
+
+    @Test
+    public void testOtherExceptionsAreNotCached() {
+        when(uds.loadUserByUsername("abc123"))
+            .thenThrow(new IllegalStateException("directory down"))
+            .thenReturn(user("abc123", "a"));
+
+        try {
+            login("abc123");
+            fail();
+        }
+        catch(IllegalStateException e) { }
+
+        assertThat(login("abc123").getUsername(), equalTo("abc123"));
+        verify(uds, times(2)).loadUserByUsername("abc123");
+    }
+
+    @Test
+    public void testHotUsersAreRefreshedAhead() {
+        UserDetails first = user("abc123", "first");
+        UserDetails second = user("abc123", "second");
+        when(uds.loadUserByUsername("abc123")).thenReturn(first, second);
+        creator.setRefreshExecutor(refreshTasks::add);
+        creator.setRefreshAfter(Duration.ofMinutes(5));
+
+        login("abc123");
+        clock.advance(Duration.ofMinutes(6));
+
+        // Stale entry is used while a single refresh is scheduled
+        assertThat(login("abc123"), sameInstance(first));
+        assertThat(login("abc123"), sameInstance(first));
+        assertThat(refreshTasks, hasSize(1));
+
+        refreshTasks.get(0).run();
+        assertThat(creator.getRefreshCount(), equalTo(1L));
+
+        // The refreshed entry lasts a full TTL from the refresh
+        clock.advance(Duration.ofMinutes(9));
+        assertThat(login("abc123"), sameInstance(second));
+        verify(uds, times(2)).loadUserByUsername("abc123");
+    }
+
+    @Test
+    public void testFailedRefreshKeepsExistingEntry() {
+        UserDetails first = user("abc123", "first");
+        when(uds.loadUserByUsername("abc123"))
+            .thenReturn(first)
+            .thenThrow(new IllegalStateException("directory down"));
+        creator.setRefreshExecutor(refreshTasks::add);
+
+        login("abc123");
+        clock.advance(Duration.ofMinutes(8));
+        login("abc123");
+        refreshTasks.get(0).run();
+
+        assertThat(creator.getFailedRefreshCount(), equalTo(1L));
+        assertThat(login("abc123"), sameInstance(first));
+    }
+
+    @Test
+    public void testRejectedRefreshIsRetried() {
+        when(uds.loadUserByUsername("abc123"))
+            .thenReturn(user("abc123", "a"));
+        creator.setRefreshExecutor(task -> {
+            throw new RejectedExecutionException();
+        });
+
+        login("abc123");
+        clock.advance(Duration.ofMinutes(8));
+        login("abc123");
+        login("abc123");
+
+        assertThat(creator.getFailedRefreshCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testLeastRecentlyLoadedUsersAreEvicted() {
+        creator = new CachingUserDetailsRavenTokenCreator(
+            uds, Duration.ofMinutes(10), 2, 1);
+        creator.setClock(clock);
+        when(uds.loadUserByUsername(anyString()))
+            .thenAnswer(inv -> user((String)inv.getArguments()[0], "a"));
+
+        login("a");
+        login("b");
+        login("c");
+
+        assertThat(creator.size(), equalTo(2));
+        assertThat(creator.getEvictionCount(), equalTo(1L));
+
+        login("a");
+        verify(uds, times(2)).loadUserByUsername("a");
+    }
+
+    @Test
+    public void testInvalidate() {
+        when(uds.loadUserByUsername(anyString()))
+            .thenAnswer(inv -> user((String)inv.getArguments()[0], "a"));
+
+        login("a");
+        login("b");
+        creator.invalidate("a");
+        login("a");
+        verify(uds, times(2)).loadUserByUsername("a");
+
+        creator.invalidateAll();
+        assertThat(creator.size(), equalTo(0));
+    }
+
+    private static final class MutableClock extends Clock {
+        private Instant now;
+
+        MutableClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(Duration duration) {
+            this.now = this.now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return this.now;
+        }
+    }
+}
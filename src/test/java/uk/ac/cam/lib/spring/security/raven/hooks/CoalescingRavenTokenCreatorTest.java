@@ -0,0 +1,222 @@
+package uk.ac.cam.lib.spring.security.raven.hooks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import uk.ac.cam.lib.spring.security.raven.AuthenticatedRavenTokenCreator;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class CoalescingRavenTokenCreatorTest {
+
+    private static final List<GrantedAuthority> AUTHORITIES =
+        AuthorityUtils.createAuthorityList("ROLE_USER");
+
+    /** Bounds waits for other threads, so a broken test fails, not hangs. */
+    private static final Duration AWAIT_TIMEOUT = Duration.ofSeconds(10);
+    private static final long TEST_TIMEOUT_MILLIS = 30_000;
+
+    private ExecutorService executor;
+    private CountDownLatch release;
+    private AtomicInteger delegateCalls;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+        release = new CountDownLatch(1);
+        delegateCalls = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    private static RavenAuthenticationToken token(String username) {
+        RavenAuthenticationToken token = mock(RavenAuthenticationToken.class);
+        RavenAuthenticationToken result = mock(RavenAuthenticationToken.class);
+        when(token.getPrincipal()).thenReturn(username);
+        when(token.authenticate("details of " + username, AUTHORITIES))
+            .thenReturn(result);
+        return token;
+    }
+
+    private AuthenticatedRavenTokenCreator blockingDelegate(
+        RuntimeException failure) {
+
+        return validatedToken -> {
+            delegateCalls.incrementAndGet();
+            try {
+                release.await();
+            }
+            catch(InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            if(failure != null)
+                throw failure;
+
+            return new TestingAuthenticationToken(
+                "details of " + validatedToken.getPrincipal(), null,
+                AUTHORITIES);
+        };
+    }
+
+    /**
+     * Wait for a condition reached by logins running on other threads,
+     * failing rather than hanging if a login dies before reaching it.
+     */
+    private static void await(BooleanSupplier condition,
+                              List<Future<Authentication>> logins)
+        throws InterruptedException {
+
+        long deadline = System.nanoTime() + AWAIT_TIMEOUT.toNanos();
+        while(!condition.getAsBoolean()) {
+            for(Future<Authentication> login : logins) {
+                if(login.isDone()) {
+                    try {
+                        login.get();
+                    }
+                    catch(ExecutionException e) {
+                        throw new AssertionError(
+                            "Login failed while waiting", e.getCause());
+                    }
+                }
+            }
+            if(System.nanoTime() - deadline > 0)
+                throw new AssertionError("Timed out waiting for logins");
+            Thread.sleep(1);
+        }
+    }
+
+    private List<Future<Authentication>> startLogins(
+        CoalescingRavenTokenCreator creator, String username, int count)
+        throws InterruptedException {
+
+        List<Future<Authentication>> logins = new ArrayList<>();
+        logins.add(executor.submit(
+            () -> creator.createAuthenticatedToken(token(username))));
+        await(() -> delegateCalls.get() > 0, logins);
+
+        for(int i = 1; i < count; i++) {
+            logins.add(executor.submit(
+                () -> creator.createAuthenticatedToken(token(username))));
+        }
+        await(() -> creator.getCoalescedCount() >= count - 1, logins);
+
+        return logins;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxWaitMustBePositive() {
+        new CoalescingRavenTokenCreator(t -> t, Duration.ZERO);
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MILLIS)
+    public void testConcurrentLoginsShareOneDelegateCall() throws Exception {
+        CoalescingRavenTokenCreator creator =
+            new CoalescingRavenTokenCreator(blockingDelegate(null));
+
+        List<Future<Authentication>> logins = startLogins(creator, "abc123", 5);
+        release.countDown();
+
+        for(Future<Authentication> login : logins) {
+            assertThat(login.get(5, TimeUnit.SECONDS), notNullValue());
+        }
+        assertThat(delegateCalls.get(), equalTo(1));
+        assertThat(creator.getCoalescedCount(), equalTo(4L));
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MILLIS)
+    public void testDifferentUsersAreNotCoalesced() throws Exception {
+        CoalescingRavenTokenCreator creator =
+            new CoalescingRavenTokenCreator(blockingDelegate(null));
+
+        List<Future<Authentication>> logins =
+            new ArrayList<>(startLogins(creator, "abc123", 1));
+        Future<Authentication> other = executor.submit(
+            () -> creator.createAuthenticatedToken(token("xyz789")));
+        logins.add(other);
+        await(() -> delegateCalls.get() >= 2, logins);
+
+        release.countDown();
+        assertThat(other.get(5, TimeUnit.SECONDS), notNullValue());
+        assertThat(creator.getCoalescedCount(), equalTo(0L));
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MILLIS)
+    public void testFailuresArePropagatedToWaitingLogins() throws Exception {
+        UsernameNotFoundException failure =
+            new UsernameNotFoundException("unknown");
+        CoalescingRavenTokenCreator creator =
+            new CoalescingRavenTokenCreator(blockingDelegate(failure));
+
+        List<Future<Authentication>> logins = startLogins(creator, "abc123", 3);
+        release.countDown();
+
+        for(Future<Authentication> login : logins) {
+            try {
+                login.get(5, TimeUnit.SECONDS);
+                fail();
+            }
+            catch(ExecutionException e) {
+                assertThat(e.getCause(), sameInstance(failure));
+            }
+        }
+        assertThat(delegateCalls.get(), equalTo(1));
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MILLIS)
+    public void testWaitingIsBounded() throws Exception {
+        CoalescingRavenTokenCreator creator = new CoalescingRavenTokenCreator(
+            blockingDelegate(null), Duration.ofMillis(50));
+
+        List<Future<Authentication>> logins = startLogins(creator, "abc123", 2);
+
+        try {
+            logins.get(1).get(5, TimeUnit.SECONDS);
+            fail();
+        }
+        catch(ExecutionException e) {
+            assertThat(e.getCause(),
+                instanceOf(AuthenticationServiceException.class));
+        }
+        assertThat(creator.getTimeoutCount(), equalTo(1L));
+
+        release.countDown();
+        assertThat(logins.get(0).get(5, TimeUnit.SECONDS), notNullValue());
+    }
+
+    @Test
+    public void testLaterLoginsCallDelegateAgain() throws Exception {
+        CoalescingRavenTokenCreator creator =
+            new CoalescingRavenTokenCreator(blockingDelegate(null));
+        release.countDown();
+
+        creator.createAuthenticatedToken(token("abc123"));
+        creator.createAuthenticatedToken(token("abc123"));
+
+        assertThat(delegateCalls.get(), equalTo(2));
+    }
+}
@@ -5,19 +5,30 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.web.PortResolverImpl;
+import org.springframework.security.web.savedrequest.DefaultSavedRequest;
+import org.springframework.security.web.savedrequest.SavedRequest;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import uk.ac.cam.lib.spring.security.raven.OriginalRequestView;
 import uk.ac.cam.lib.spring.security.raven.RavenRequestCreator;
 import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator.RequestParam;
 import uk.ac.cam.ucs.webauth.WebauthRequest;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
 
 public class DefaultRavenRequestCreatorTest {
 
@@ -59,6 +70,193 @@ public class DefaultRavenRequestCreatorTest {
             .buildRequest(null));
     }
 
+    @Test
+    public void testFixedValuesShareOneRequest() {
+        DefaultRavenRequestCreator c = DefaultRavenRequestCreator
+            .builder("http://example.com/")
+            .withValue(RequestParam.desc, "An example")
+            .build();
+
+        WebauthRequest r = c.createLoginRequest(new MockHttpServletRequest());
+        assertSame(r, c.createLoginRequest(new MockHttpServletRequest()));
+        assertThat(r.get("desc"), equalTo("An example"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSharedRequestCannotBeModified() {
+        DefaultRavenRequestCreator.builder("http://example.com/").build()
+            .createLoginRequest(new MockHttpServletRequest())
+            .set("desc", "foo");
+    }
+
+    @Test
+    public void testSharedRequestCannotBeCleared() {
+        DefaultRavenRequestCreator c =
+            DefaultRavenRequestCreator.builder("http://example.com/").build();
+        WebauthRequest r = c.createLoginRequest(new MockHttpServletRequest());
+
+        try {
+            r.clear();
+            fail();
+        }
+        catch(UnsupportedOperationException e) {
+            // expected
+        }
+
+        assertThat(c.createLoginRequest(new MockHttpServletRequest())
+            .get("url"), equalTo("http://example.com/"));
+    }
+
+    @Test
+    public void testClearedRequestQueryReflectsClear() {
+        WebauthRequest r = DefaultRavenRequestCreator
+            .builder((param, req) -> "http://example.com/")
+            .build()
+            .createLoginRequest(new MockHttpServletRequest());
+
+        r.clear();
+
+        assertThat(r.length(), is(0));
+        assertThat(r.toQString(), not(containsString("url=")));
+    }
+
+    @Test
+    public void testDynamicValuesAreProducedPerRequest() {
+        AtomicInteger calls = new AtomicInteger();
+        DefaultRavenRequestCreator c = DefaultRavenRequestCreator
+            .builder((param, req) -> req.getRequestURL().toString())
+            .withDynamicValue(RequestParam.msg,
+                (param, req) -> "call " + calls.incrementAndGet())
+            .build();
+
+        WebauthRequest a = c.createLoginRequest(
+            new MockHttpServletRequest("GET", "/a"));
+        WebauthRequest b = c.createLoginRequest(
+            new MockHttpServletRequest("GET", "/b"));
+
+        assertNotSame(a, b);
+        assertThat(a.get("url"), equalTo("http://localhost/a"));
+        assertThat(b.get("url"), equalTo("http://localhost/b"));
+        assertThat(a.get("msg"), equalTo("call 1"));
+        assertThat(b.get("msg"), equalTo("call 2"));
+        assertThat(a.get("ver"), equalTo("3"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testInvalidDynamicValuesAreRejected() {
+        DefaultRavenRequestCreator
+            .builder((param, req) -> 42)
+            .build()
+            .createLoginRequest(new MockHttpServletRequest());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidFixedValuesAreRejectedOnConstruction() {
+        DefaultRavenRequestCreator.fromFixedValues(
+            ImmutableMap.of(RequestParam.url, "", RequestParam.ver, "foo"));
+    }
+
+    @Test
+    public void testPreEncodedQueryMatchesWebauthRequest() {
+        DefaultRavenRequestCreator c = DefaultRavenRequestCreator
+            .builder("http://example.com/a b?c=d&e=é")
+            .withValue(RequestParam.desc, "Some + description")
+            .withDynamicValue(RequestParam.msg, (param, req) -> "100% & more")
+            .build();
+
+        WebauthRequest planned = c.createLoginRequest(
+            new MockHttpServletRequest());
+
+        WebauthRequest plain = new WebauthRequest();
+        plain.set("ver", "3");
+        plain.set("url", "http://example.com/a b?c=d&e=é");
+        plain.set("desc", "Some + description");
+        plain.set("msg", "100% & more");
+        plain.set("date", planned.get("date"));
+
+        assertThat(queryParams(planned.toQString()),
+                   equalTo(queryParams(plain.toQString())));
+    }
+
+    @Test
+    public void testModifiedRequestQueryReflectsModification() {
+        WebauthRequest r = DefaultRavenRequestCreator
+            .builder((param, req) -> "http://example.com/")
+            .withValue(RequestParam.desc, "before")
+            .build()
+            .createLoginRequest(new MockHttpServletRequest());
+
+        r.set("desc", "after");
+
+        assertThat(queryParams(r.toQString()).get("desc"), equalTo("after"));
+    }
+
+    @Test
+    public void testViewProducersDontNeedServletRequest() {
+        DefaultRavenRequestCreator c = DefaultRavenRequestCreator
+            .builder("http://example.com/callback")
+            .withViewValue(RequestParam.desc,
+                           (param, req) -> "Viewing " + req.getUrl())
+            .build();
+
+        MockHttpServletRequest original = new MockHttpServletRequest(
+            "GET", "/things/1");
+        original.setServerName("example.com");
+        SavedRequest saved =
+            new DefaultSavedRequest(original, new PortResolverImpl());
+        OriginalRequestView savedView =
+            OriginalRequestView.of(saved, new MockHttpServletRequest());
+        OriginalRequestView view = mock(OriginalRequestView.class);
+        when(view.getUrl()).thenReturn(savedView.getUrl());
+        when(view.toServletRequest()).thenThrow(new AssertionError());
+
+        WebauthRequest r = c.createLoginRequest(view);
+
+        assertThat(r.get("desc"),
+                   equalTo("Viewing http://example.com/things/1"));
+        verify(view, never()).toServletRequest();
+
+        // View producers also work with the servlet signature
+        DefaultRavenRequestCreator.ViewParamProducer producer =
+            (param, req) -> req.getUrl();
+        assertThat(producer.getRequestValue(RequestParam.desc, original),
+                   equalTo("http://example.com/things/1"));
+    }
+
+    @Test
+    public void testServletProducersAreBridgedFromViews() {
+        DefaultRavenRequestCreator c = DefaultRavenRequestCreator
+            .builder((param, req) -> req.getParameter("return"))
+            .build();
+
+        MockHttpServletRequest original = new MockHttpServletRequest();
+        original.addParameter("return", "http://example.com/r");
+        SavedRequest saved =
+            new DefaultSavedRequest(original, new PortResolverImpl());
+
+        assertThat(c.createLoginRequest(
+                       OriginalRequestView.of(saved,
+                                              new MockHttpServletRequest()))
+                       .get("url"),
+                   equalTo("http://example.com/r"));
+    }
+
+    private static Map<String, String> queryParams(String query) {
+        return Arrays.stream(query.split("&"))
+            .map(pair -> pair.split("=", 2))
+            .collect(Collectors.toMap(
+                pair -> pair[0], pair -> decode(pair[1])));
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
     @RunWith(Parameterized.class)
     public static class RequiredParamsTest {
 
@@ -0,0 +1,124 @@
+package uk.ac.cam.lib.spring.security.raven.issued;
+
+import org.junit.Test;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class InMemoryIssuedRequestStoreTest {
+
+    private static final Instant T = Instant.parse("2016-08-11T15:58:17Z");
+
+    private static WebauthRequest request(String nonce) {
+        WebauthRequest request = new WebauthRequest();
+        request.set("ver", "3");
+        request.set("url", "http://example.com/");
+        request.set("params", nonce);
+        request.set("date", "20160811T155817Z");
+        return request;
+    }
+
+    @Test
+    public void testStoredRequestsCanBeTakenOnce() {
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(100, Duration.ofMinutes(5));
+
+        WebauthRequest request = request("a");
+        assertTrue(store.put("a", request, T));
+        assertThat(store.size(), equalTo(1));
+
+        WebauthRequest taken = store.take("a", T.plusSeconds(1));
+        assertThat(taken, not(sameInstance(request)));
+        assertThat(taken.toQString(), equalTo(request.toQString()));
+
+        assertNull(store.take("a", T.plusSeconds(2)));
+        assertNull(store.take("b", T.plusSeconds(2)));
+        assertThat(store.size(), equalTo(0));
+        assertThat(store.getHitCount(), equalTo(1L));
+        assertThat(store.getMissCount(), equalTo(2L));
+    }
+
+    @Test
+    public void testStoredRequestIsACopy() {
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(100, Duration.ofMinutes(5));
+
+        WebauthRequest request = request("a");
+        store.put("a", request, T);
+        request.set("url", "http://example.com/changed");
+
+        assertThat(store.take("a", T).get("url"),
+                   equalTo("http://example.com/"));
+    }
+
+    @Test
+    public void testRequestsWithUnknownFieldsAreNotStored() {
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(100, Duration.ofMinutes(5));
+
+        WebauthRequest request = request("a");
+        request.set("x-extra", "foo");
+
+        assertFalse(store.put("a", request, T));
+        assertNull(store.take("a", T));
+    }
+
+    @Test
+    public void testRequestsExpireAfterTtl() {
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(100, Duration.ofSeconds(30), 1);
+
+        store.put("a", request("a"), T);
+        store.put("b", request("b"), T.plusSeconds(10));
+
+        assertNull(store.take("a", T.plusSeconds(30)));
+        assertThat(store.size(), equalTo(1));
+        assertNotNull(store.take("b", T.plusSeconds(30)));
+        assertThat(store.getTtl(), equalTo(Duration.ofSeconds(30)));
+    }
+
+    @Test
+    public void testFullStripeEvictsOldestRequest() {
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(2, Duration.ofMinutes(5), 1);
+        assertThat(store.getMaxEntries(), equalTo(2));
+
+        store.put("a", request("a"), T);
+        store.put("b", request("b"), T);
+        store.put("c", request("c"), T);
+
+        assertThat(store.size(), equalTo(2));
+        assertThat(store.getEvictionCount(), equalTo(1L));
+        assertNull(store.take("a", T));
+        assertNotNull(store.take("b", T));
+        assertNotNull(store.take("c", T));
+    }
+
+    @Test
+    public void testPuttingExistingNonceReplacesRequest() {
+        InMemoryIssuedRequestStore store =
+            new InMemoryIssuedRequestStore(100, Duration.ofMinutes(5));
+
+        store.put("a", request("a"), T);
+        WebauthRequest replacement = request("a");
+        replacement.set("desc", "replacement");
+        store.put("a", replacement, T.plusSeconds(1));
+
+        assertThat(store.size(), equalTo(1));
+        assertThat(store.take("a", T).get("desc"), equalTo("replacement"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorRejectsZeroTtl() {
+        new InMemoryIssuedRequestStore(100, Duration.ZERO);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorRejectsNonPowerOfTwoStripes() {
+        new InMemoryIssuedRequestStore(100, Duration.ofMinutes(5), 3);
+    }
+}
@@ -0,0 +1,167 @@
+package uk.ac.cam.lib.spring.security.raven.loadtest;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.springframework.security.authentication.AuthenticationCredentialsNotFoundException;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.DefaultSecurityFilterChain;
+import org.springframework.security.web.FilterChainProxy;
+import org.springframework.security.web.access.ExceptionTranslationFilter;
+import org.springframework.security.web.context.SecurityContextPersistenceFilter;
+import org.springframework.security.web.savedrequest.HttpSessionRequestCache;
+import org.springframework.security.web.util.matcher.AnyRequestMatcher;
+import org.springframework.util.Assert;
+import org.springframework.web.filter.OncePerRequestFilter;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationEntryPoint;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationProvider;
+import uk.ac.cam.lib.spring.security.raven.RavenRequestCreator;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator;
+import uk.ac.cam.lib.spring.security.raven.validation.NativeRavenResponseValidator;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.EnumSet;
+
+/**
+ * A Jetty server on a free local port, serving an application protected by
+ * Raven and the {@link FakeWls} it logs in with.
+ *
+ * <p>The application's security filters are those a Spring Security
+ * configuration would create: a {@link SecurityContextPersistenceFilter}
+ * keeping logins in the session, a {@link RavenAuthenticationFilter} with a
+ * {@link RavenAuthenticationProvider}, and an
+ * {@link ExceptionTranslationFilter} sending anonymous users to the
+ * {@link RavenAuthenticationEntryPoint}.
+ */
+public class EmbeddedLoginServer implements AutoCloseable {
+
+    public static final String PROTECTED_PATH = "/app/protected";
+    public static final String CALLBACK_PATH = "/app/callback";
+    public static final String WLS_PATH = "/wls/authenticate";
+
+    private final Server server;
+    private final URI baseUri;
+    private final FakeWls wls;
+    private final RavenAuthenticationFilter filter;
+
+    public EmbeddedLoginServer(FakeWls wls, int maxThreads) throws Exception {
+        Assert.notNull(wls);
+        this.wls = wls;
+
+        this.server = new Server(new QueuedThreadPool(maxThreads));
+        ServerConnector connector = new ServerConnector(this.server);
+        connector.setHost("localhost");
+        connector.setPort(0);
+        connector.setAcceptQueueSize(1024);
+        this.server.addConnector(connector);
+
+        // Bind now, so the filters can be given the port
+        connector.open();
+        this.baseUri = URI.create(
+            "http://localhost:" + connector.getLocalPort());
+
+        HttpSessionRequestCache requestCache = new HttpSessionRequestCache();
+        RavenRequestCreator requestCreator = DefaultRavenRequestCreator
+            .builder(this.baseUri.resolve(CALLBACK_PATH).toString())
+            .build();
+
+        RavenAuthenticationProvider provider = new RavenAuthenticationProvider(
+            new NativeRavenResponseValidator(wls.getKeys()),
+            token -> token.authenticate(
+                token.getPrincipal(), Collections.emptyList()));
+
+        this.filter = new RavenAuthenticationFilter(
+            provider::authenticate, requestCreator, requestCache);
+
+        FilterChainProxy security = new FilterChainProxy(
+            new DefaultSecurityFilterChain(AnyRequestMatcher.INSTANCE,
+                new SecurityContextPersistenceFilter(),
+                this.filter,
+                new ExceptionTranslationFilter(
+                    new RavenAuthenticationEntryPoint(
+                        requestCreator, this.baseUri.resolve(WLS_PATH)),
+                    requestCache),
+                new RequireAuthenticationFilter()));
+
+        // Async support lets the filter be given a callback executor
+        FilterHolder securityHolder = new FilterHolder(security);
+        securityHolder.setAsyncSupported(true);
+        ServletHolder principalHolder = new ServletHolder(new PrincipalServlet());
+        principalHolder.setAsyncSupported(true);
+
+        ServletContextHandler context =
+            new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.addFilter(securityHolder, "/app/*",
+                          EnumSet.of(DispatcherType.REQUEST,
+                                     DispatcherType.ASYNC));
+        context.addServlet(principalHolder, "/app/*");
+        context.addServlet(new ServletHolder(wls), WLS_PATH);
+        this.server.setHandler(context);
+
+        this.server.start();
+    }
+
+    public URI getBaseUri() {
+        return this.baseUri;
+    }
+
+    /** The URI of a page which requires the user to log in. */
+    public URI getProtectedUri() {
+        return this.baseUri.resolve(PROTECTED_PATH);
+    }
+
+    public FakeWls getWls() {
+        return this.wls;
+    }
+
+    /** The application's filter, to be configured further. */
+    public RavenAuthenticationFilter getFilter() {
+        return this.filter;
+    }
+
+    @Override
+    public void close() throws Exception {
+        this.server.stop();
+    }
+
+    /** Deny anonymous users, as an authorization rule would. */
+    private static final class RequireAuthenticationFilter
+        extends OncePerRequestFilter {
+
+        @Override
+        protected void doFilterInternal(
+            HttpServletRequest request, HttpServletResponse response,
+            FilterChain filterChain) throws ServletException, IOException {
+
+            if(SecurityContextHolder.getContext().getAuthentication() == null)
+                throw new AuthenticationCredentialsNotFoundException(
+                    "Login required");
+
+            filterChain.doFilter(request, response);
+        }
+    }
+
+    /** Greet the logged in user. */
+    private static final class PrincipalServlet extends HttpServlet {
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+
+            resp.setContentType("text/plain");
+            resp.getWriter().print(SecurityContextHolder.getContext()
+                .getAuthentication().getName());
+        }
+    }
+}
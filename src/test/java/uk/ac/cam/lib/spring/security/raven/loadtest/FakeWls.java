@@ -0,0 +1,184 @@
+package uk.ac.cam.lib.spring.security.raven.loadtest;
+
+import org.springframework.util.Assert;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stand-in for Raven's WLS, to be served at a
+ * {@code RavenAuthenticationEntryPoint}'s {@code ravenAuthUri}.
+ *
+ * <p>Every request is answered with a redirect to its {@code url}, carrying a
+ * {@code WLS-Response}. Each response authenticates a new principal, and is
+ * signed with a key pair generated by this WLS, unless it's one of the
+ * configured proportion of failures, which have status 410 (the user
+ * cancelled). Each response is delayed by the configured latency, standing in
+ * for the user and the real WLS.
+ */
+public class FakeWls extends HttpServlet {
+
+    public static final String KID = "901";
+
+    private static final DateTimeFormatter ISSUE_FORMAT = DateTimeFormatter
+        .ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private final KeyPair keyPair;
+    private final Clock clock;
+    private final AtomicLong ids = new AtomicLong();
+    private volatile Duration latency = Duration.ZERO;
+    private volatile double failureRate;
+
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public FakeWls() {
+        this(Clock.systemUTC());
+    }
+
+    public FakeWls(Clock clock) {
+        Assert.notNull(clock);
+        this.clock = clock;
+
+        try {
+            KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+            gen.initialize(1024);
+            this.keyPair = gen.generateKeyPair();
+        }
+        catch(GeneralSecurityException e) {
+            throw new AssertionError("RSA is always available", e);
+        }
+    }
+
+    /** The keys to validate this WLS's responses with, by {@code kid}. */
+    public Map<String, PublicKey> getKeys() {
+        return Collections.singletonMap(KID, this.keyPair.getPublic());
+    }
+
+    /** Set how long each request waits before it's answered. */
+    public void setLatency(Duration latency) {
+        Assert.notNull(latency);
+        Assert.isTrue(!latency.isNegative(), "latency must not be negative");
+        this.latency = latency;
+    }
+
+    public Duration getLatency() {
+        return this.latency;
+    }
+
+    /** Set the proportion of requests answered with status 410. */
+    public void setFailureRate(double failureRate) {
+        Assert.isTrue(failureRate >= 0 && failureRate <= 1,
+            "failureRate must be between 0 and 1");
+        this.failureRate = failureRate;
+    }
+
+    public double getFailureRate() {
+        return this.failureRate;
+    }
+
+    /** The number of successful authentications issued. */
+    public long getSuccessCount() {
+        return this.successes.sum();
+    }
+
+    /** The number of requests answered with status 410. */
+    public long getFailureCount() {
+        return this.failures.sum();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+        throws IOException {
+
+        String ver = req.getParameter("ver");
+        String url = req.getParameter("url");
+        if(!"3".equals(ver) || url == null) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                           "ver must be 3 and url is required");
+            return;
+        }
+
+        long latencyMillis = this.latency.toMillis();
+        if(latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+        }
+
+        boolean fail = ThreadLocalRandom.current().nextDouble() <
+            this.failureRate;
+        (fail ? this.failures : this.successes).increment();
+
+        String response = response(fail, url, req.getParameter("params"));
+        resp.sendRedirect(UriComponentsBuilder.fromUriString(url)
+            .queryParam("WLS-Response",
+                        URLEncoder.encode(response, "UTF-8"))
+            .build(true)
+            .toUriString());
+    }
+
+    /**
+     * Produce a version 3 response, as described in the WAA->WLS protocol
+     * specification. Only successful responses are signed.
+     */
+    String response(boolean fail, String url, String params) {
+        long id = this.ids.incrementAndGet();
+        String principal = fail ? "" : "test" + id;
+
+        String signed = String.join("!",
+            "3", fail ? "410" : "200", "",
+            ISSUE_FORMAT.format(this.clock.instant()),
+            this.clock.millis() + "-" + id, escape(url), principal,
+            fail ? "" : "current", fail ? "" : "pwd", "",
+            fail ? "" : "36000", params == null ? "" : escape(params));
+
+        if(fail)
+            return signed + "!!";
+        return signed + "!" + KID + "!" + sign(signed);
+    }
+
+    private static String escape(String field) {
+        return field.replace("%", "%25").replace("!", "%21");
+    }
+
+    private String sign(String data) {
+        try {
+            Signature sig = Signature.getInstance("SHA1withRSA");
+            sig.initSign(this.keyPair.getPrivate());
+            sig.update(data.getBytes(StandardCharsets.UTF_8));
+
+            // Raven uses base64 with URL-safe substitutions of its own
+            return Base64.getEncoder().encodeToString(sig.sign())
+                .replace('+', '-').replace('/', '.').replace('=', '_');
+        }
+        catch(GeneralSecurityException e) {
+            throw new AssertionError("Failed to sign response", e);
+        }
+    }
+}
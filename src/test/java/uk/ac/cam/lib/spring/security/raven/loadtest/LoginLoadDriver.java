@@ -0,0 +1,215 @@
+package uk.ac.cam.lib.spring.security.raven.loadtest;
+
+import org.springframework.util.Assert;
+import uk.ac.cam.lib.spring.security.raven.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs in repeatedly from a number of threads, as a browser would: each login
+ * requests a protected page without a session, follows the redirect to the
+ * WLS and its redirect back to the callback, and then requests the protected
+ * page again with the resulting session.
+ *
+ * <p>A login succeeds if the protected page is finally returned, and is
+ * rejected if the callback responds with 401, as it does for responses the
+ * WLS failed. Anything else is an error.
+ */
+public class LoginLoadDriver {
+
+    private final URI protectedUri;
+    private final int threads;
+
+    public LoginLoadDriver(URI protectedUri, int threads) {
+        Assert.notNull(protectedUri);
+        Assert.isTrue(threads > 0, "threads must be positive");
+
+        this.protectedUri = protectedUri;
+        this.threads = threads;
+    }
+
+    /** Make {@code logins} attempts to log in, and wait for them to finish. */
+    public Result run(int logins) throws InterruptedException {
+        Assert.isTrue(logins >= 0, "logins must not be negative");
+
+        AtomicInteger remaining = new AtomicInteger(logins);
+        Result result = new Result();
+
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int i = 0; i < this.threads; i++) {
+            Thread worker = new Thread(() -> {
+                while(remaining.getAndDecrement() > 0)
+                    login(result);
+            }, "login-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        for(Thread worker : workers)
+            worker.join();
+
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void login(Result result) {
+        long start = System.nanoTime();
+        try {
+            Exchange page = Exchange.get(this.protectedUri, null);
+            page.expect(HttpURLConnection.HTTP_MOVED_TEMP);
+
+            Exchange wls = Exchange.get(page.location(), null);
+            wls.expect(HttpURLConnection.HTTP_MOVED_TEMP);
+
+            Exchange callback = Exchange.get(wls.location(), page.cookie);
+            if(callback.status == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                result.rejections.increment();
+                return;
+            }
+            callback.expect(HttpURLConnection.HTTP_MOVED_TEMP);
+
+            String cookie = callback.cookie != null
+                ? callback.cookie : page.cookie;
+            Exchange.get(callback.location(), cookie)
+                .expect(HttpURLConnection.HTTP_OK);
+
+            result.latencies.record(System.nanoTime() - start);
+            result.logins.increment();
+        }
+        catch(IOException | RuntimeException e) {
+            result.errors.increment();
+            result.firstError.compareAndSet(null, e);
+        }
+    }
+
+    /** A request and the parts of its response the driver needs. */
+    private static final class Exchange {
+        final URI uri;
+        final int status;
+        final String location;
+        final String cookie;
+
+        private Exchange(URI uri, int status, String location,
+                         String cookie) {
+            this.uri = uri;
+            this.status = status;
+            this.location = location;
+            this.cookie = cookie;
+        }
+
+        static Exchange get(URI uri, String cookie) throws IOException {
+            HttpURLConnection conn =
+                (HttpURLConnection)uri.toURL().openConnection();
+            conn.setInstanceFollowRedirects(false);
+            if(cookie != null)
+                conn.setRequestProperty("Cookie", cookie);
+
+            int status = conn.getResponseCode();
+            String location = conn.getHeaderField("Location");
+            String setCookie = conn.getHeaderField("Set-Cookie");
+
+            // Read the body, so the connection can be reused
+            InputStream body = status >= 400
+                ? conn.getErrorStream() : conn.getInputStream();
+            if(body != null) {
+                try(InputStream in = body) {
+                    byte[] buffer = new byte[1024];
+                    while(in.read(buffer) >= 0)
+                        continue;
+                }
+            }
+
+            return new Exchange(uri, status, location,
+                setCookie == null ? null : setCookie.split(";", 2)[0]);
+        }
+
+        void expect(int expected) {
+            if(this.status != expected)
+                throw new IllegalStateException(String.format(
+                    "Expected %d from %s but got %d", expected, this.uri,
+                    this.status));
+        }
+
+        URI location() {
+            if(this.location == null)
+                throw new IllegalStateException(
+                    "No Location in response from " + this.uri);
+            return this.uri.resolve(this.location);
+        }
+    }
+
+    public static final class Result {
+        private final LongAdder logins = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final AtomicReference<Exception> firstError =
+            new AtomicReference<>();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long elapsedNanos;
+
+        private Result() {}
+
+        /** The number of successful logins. */
+        public long getLoginCount() {
+            return this.logins.sum();
+        }
+
+        /** The number of logins rejected by the callback. */
+        public long getRejectionCount() {
+            return this.rejections.sum();
+        }
+
+        /** The number of logins which went wrong in any other way. */
+        public long getErrorCount() {
+            return this.errors.sum();
+        }
+
+        /** The first error, or null if there were none. */
+        public Exception getFirstError() {
+            return this.firstError.get();
+        }
+
+        /** The duration of each successful login. */
+        public LatencyHistogram.Snapshot getLatencies() {
+            return this.latencies.snapshot();
+        }
+
+        public Duration getElapsed() {
+            return Duration.ofNanos(this.elapsedNanos);
+        }
+
+        /** Successful logins per second. */
+        public double getLoginsPerSecond() {
+            return this.elapsedNanos == 0 ? 0 :
+                getLoginCount() / (this.elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            LatencyHistogram.Snapshot latencies = getLatencies();
+            return String.format(
+                "%d logins, %d rejected, %d errors in %.1fs: %.0f logins/s; " +
+                "latency p50 %.1fms, p90 %.1fms, p99 %.1fms, max %.1fms",
+                getLoginCount(), getRejectionCount(), getErrorCount(),
+                this.elapsedNanos / 1e9, getLoginsPerSecond(),
+                millis(latencies.getValueAtQuantile(0.5)),
+                millis(latencies.getValueAtQuantile(0.9)),
+                millis(latencies.getValueAtQuantile(0.99)),
+                millis(latencies.getMax()));
+        }
+
+        private static double millis(long nanos) {
+            return nanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+}
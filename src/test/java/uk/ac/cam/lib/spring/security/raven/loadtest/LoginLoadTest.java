@@ -0,0 +1,118 @@
+package uk.ac.cam.lib.spring.security.raven.loadtest;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeThat;
+
+/**
+ * End-to-end logins through an {@link EmbeddedLoginServer}.
+ *
+ * <p>{@link #testLoad()} only runs when {@code raven.load.logins} is set:
+ *
+ * <pre>
+ * mvn test -Dtest=LoginLoadTest -Draven.load.logins=10000 \
+ *     -Draven.load.threads=32 -Draven.load.wlsLatencyMillis=0 \
+ *     -Draven.load.failureRate=0.01
+ * </pre>
+ */
+public class LoginLoadTest {
+
+    @Test
+    public void testLoginsSucceedAndFailuresAreRejected() throws Exception {
+        FakeWls wls = new FakeWls();
+        wls.setFailureRate(0.2);
+
+        try(EmbeddedLoginServer server = new EmbeddedLoginServer(wls, 32)) {
+            LoginLoadDriver.Result result =
+                new LoginLoadDriver(server.getProtectedUri(), 4).run(100);
+
+            assertThat(result.toString(), result.getErrorCount(), is(0L));
+            assertThat(result.getLoginCount(), is(wls.getSuccessCount()));
+            assertThat(result.getRejectionCount(), is(wls.getFailureCount()));
+            assertThat(result.getLoginCount() + result.getRejectionCount(),
+                       is(100L));
+            assertThat(result.getLatencies().getCount(),
+                       is(result.getLoginCount()));
+        }
+    }
+
+    @Test
+    public void testLoginsOnCallbackExecutor() throws Exception {
+        FakeWls wls = new FakeWls();
+        wls.setFailureRate(0.2);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        LongAdder callbacks = new LongAdder();
+
+        try(EmbeddedLoginServer server = new EmbeddedLoginServer(wls, 32)) {
+            server.getFilter().setCallbackExecutor(task -> {
+                callbacks.increment();
+                executor.execute(task);
+            });
+
+            LoginLoadDriver.Result result =
+                new LoginLoadDriver(server.getProtectedUri(), 4).run(100);
+
+            // Each login's session must hold the context saved after the
+            // callback was dispatched back from the executor
+            assertThat(String.valueOf(result.getFirstError()),
+                       result.getErrorCount(), is(0L));
+            assertThat(result.getLoginCount(), is(wls.getSuccessCount()));
+            assertThat(result.getRejectionCount(), is(wls.getFailureCount()));
+            assertThat(callbacks.sum(), is(100L));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWlsLatencyIsIncluded() throws Exception {
+        FakeWls wls = new FakeWls();
+        wls.setLatency(Duration.ofMillis(50));
+
+        try(EmbeddedLoginServer server = new EmbeddedLoginServer(wls, 32)) {
+            LoginLoadDriver.Result result =
+                new LoginLoadDriver(server.getProtectedUri(), 2).run(4);
+
+            assertThat(result.getLoginCount(), is(4L));
+            assertThat(result.getLatencies().getValueAtQuantile(0),
+                       greaterThanOrEqualTo(Duration.ofMillis(50).toNanos()));
+        }
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        Integer logins = Integer.getInteger("raven.load.logins");
+        assumeThat(logins, is(notNullValue()));
+
+        FakeWls wls = new FakeWls();
+        wls.setLatency(Duration.ofMillis(
+            Long.getLong("raven.load.wlsLatencyMillis", 0)));
+        wls.setFailureRate(Double.parseDouble(
+            System.getProperty("raven.load.failureRate", "0")));
+        int threads = Integer.getInteger("raven.load.threads", 32);
+
+        try(EmbeddedLoginServer server =
+                new EmbeddedLoginServer(wls, threads + 16)) {
+
+            LoginLoadDriver driver =
+                new LoginLoadDriver(server.getProtectedUri(), threads);
+
+            // Warm up the JIT before measuring
+            driver.run(Math.min(logins, 1000));
+            LoginLoadDriver.Result result = driver.run(logins);
+
+            System.out.printf("%d threads, %dms WLS latency: %s%n",
+                              threads, wls.getLatency().toMillis(), result);
+            assertThat(String.valueOf(result.getFirstError()),
+                       result.getErrorCount(), is(0L));
+        }
+    }
+}
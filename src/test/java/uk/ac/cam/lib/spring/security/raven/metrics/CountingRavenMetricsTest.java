@@ -0,0 +1,86 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics.Stage;
+
+import java.time.Duration;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class CountingRavenMetricsTest {
+
+    @Test
+    public void testStageTimes() {
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+
+        assertThat(metrics.getMeanTime(Stage.VALIDATION),
+                   equalTo(Duration.ZERO));
+
+        metrics.recordStage(Stage.VALIDATION, 100);
+        metrics.recordStage(Stage.VALIDATION, 300);
+        metrics.recordStage(Stage.TOKEN_CREATION, 50);
+
+        assertThat(metrics.getCount(Stage.VALIDATION), equalTo(2L));
+        assertThat(metrics.getTotalTime(Stage.VALIDATION),
+                   equalTo(Duration.ofNanos(400)));
+        assertThat(metrics.getMeanTime(Stage.VALIDATION),
+                   equalTo(Duration.ofNanos(200)));
+        assertThat(metrics.getMaxTime(Stage.VALIDATION),
+                   equalTo(Duration.ofNanos(300)));
+        assertThat(metrics.getCount(Stage.TOKEN_CREATION), equalTo(1L));
+        assertThat(metrics.getCount(Stage.QUERY_DETECTION), equalTo(0L));
+    }
+
+    @Test
+    public void testOutcomes() {
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+
+        metrics.recordSuccess();
+        metrics.recordBadStatus(410);
+        metrics.recordBadStatus(410);
+        metrics.recordBadStatus(520);
+        metrics.recordFailure(new BadCredentialsException("a"));
+        metrics.recordFailure(new UsernameNotFoundException("b"));
+        metrics.recordFailure(new UsernameNotFoundException("c"));
+
+        assertThat(metrics.getSuccessCount(), equalTo(1L));
+        assertThat(metrics.getBadStatusCounts(),
+                   equalTo(ImmutableMap.of(410, 2L, 520, 1L)));
+        assertThat(metrics.getFailureCounts(), equalTo(ImmutableMap.of(
+            BadCredentialsException.class, 1L,
+            UsernameNotFoundException.class, 2L)));
+    }
+
+    @Test
+    public void testUnknownStatusesShareOneCounter() {
+        CountingRavenMetrics metrics = new CountingRavenMetrics();
+
+        for(int status = 0; status < 10000; status++) {
+            if(status != 200)
+                metrics.recordBadStatus(status);
+        }
+
+        assertThat(metrics.getBadStatusCounts(), equalTo(ImmutableMap.builder()
+            .put(410, 1L).put(510, 1L).put(520, 1L).put(530, 1L)
+            .put(540, 1L).put(560, 1L).put(570, 1L).build()));
+        assertThat(metrics.getOtherBadStatusCount(), equalTo(10000L - 8));
+
+        metrics.reset();
+        assertThat(metrics.getBadStatusCounts().isEmpty(), is(true));
+        assertThat(metrics.getOtherBadStatusCount(), equalTo(0L));
+    }
+
+    @Test
+    public void testNoOpMetricsIgnoreEverything() {
+        RavenMetrics metrics = NoOpRavenMetrics.INSTANCE;
+
+        metrics.recordStage(Stage.CALLBACK, 1);
+        metrics.recordSuccess();
+        metrics.recordBadStatus(410);
+        metrics.recordFailure(new BadCredentialsException("a"));
+    }
+}
@@ -0,0 +1,81 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import org.junit.Test;
+import org.springframework.security.authentication.BadCredentialsException;
+import uk.ac.cam.lib.spring.security.raven.metrics.RavenMetrics.Stage;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class JmxRavenMetricsTest {
+
+    @Test
+    public void testLatenciesAreExposedOverJmx() throws Exception {
+        JmxRavenMetrics metrics = new JmxRavenMetrics();
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        ObjectName name = metrics.register(
+            server, new ObjectName(JmxRavenMetrics.DEFAULT_OBJECT_NAME));
+
+        for(int i = 1; i <= 100; i++)
+            metrics.recordStage(Stage.CALLBACK, i * 1000);
+        metrics.recordStage(Stage.VALIDATION, 2000);
+        metrics.recordSuccess();
+        metrics.recordBadStatus(410);
+        metrics.recordBadStatus(999);
+        metrics.recordFailure(new BadCredentialsException("bad"));
+
+        CompositeData callback =
+            (CompositeData)server.getAttribute(name, "CallbackLatency");
+        assertThat(callback.get("count"), equalTo((Object)100L));
+        assertThat((Double)callback.get("p50Micros"), closeTo(50, 2));
+        assertThat((Double)callback.get("p99Micros"), closeTo(99, 4));
+
+        CompositeData validation =
+            (CompositeData)server.getAttribute(name, "ValidationLatency");
+        assertThat(validation.get("count"), equalTo((Object)1L));
+
+        TabularData stages =
+            (TabularData)server.getAttribute(name, "StageLatencies");
+        assertThat(stages.size(), equalTo(Stage.values().length));
+
+        assertThat(server.getAttribute(name, "SuccessCount"),
+                   equalTo((Object)1L));
+        assertThat(metrics.getFailureCountsByReason(), allOf(
+            hasEntry("status 410", 1L),
+            hasEntry("status other", 1L),
+            hasEntry(BadCredentialsException.class.getName(), 1L)));
+
+        server.invoke(name, "reset", new Object[0], new String[0]);
+        assertThat(metrics.getCallbackLatency().getCount(), equalTo(0L));
+        assertThat(metrics.getSuccessCount(), equalTo(0L));
+    }
+
+    @Test
+    public void testIntervalSnapshots() {
+        JmxRavenMetrics metrics = new JmxRavenMetrics();
+
+        metrics.recordStage(Stage.VALIDATION, 1000);
+        Map<String, LatencySummary> first = metrics.takeIntervalSnapshot();
+        metrics.recordStage(Stage.VALIDATION, 5000);
+        metrics.recordStage(Stage.VALIDATION, 5000);
+        Map<String, LatencySummary> second = metrics.takeIntervalSnapshot();
+        Map<String, LatencySummary> third = metrics.takeIntervalSnapshot();
+
+        assertThat(first.get("VALIDATION").getCount(), equalTo(1L));
+        assertThat(second.get("VALIDATION").getCount(), equalTo(2L));
+        assertThat(second.get("VALIDATION").getP50Micros(), closeTo(5, 0.2));
+        assertThat(third.get("VALIDATION").getCount(), equalTo(0L));
+        assertThat(metrics.getValidationLatency().getCount(), equalTo(3L));
+        assertThat(metrics.getHistogram(Stage.VALIDATION).snapshot().getCount(),
+                   equalTo(3L));
+        assertThat(metrics.getStageLatencies().get("VALIDATION").toString(),
+                   startsWith("LatencySummary(count=3"));
+    }
+}
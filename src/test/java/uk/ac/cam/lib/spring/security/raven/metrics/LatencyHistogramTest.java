@@ -0,0 +1,93 @@
+package uk.ac.cam.lib.spring.security.raven.metrics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testValuesFallWithinTheirBucket() {
+        Random random = new Random(42);
+        for(int i = 0; i < 100000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            value = Math.min(value, LatencyHistogram.MAX_VALUE);
+
+            int index = LatencyHistogram.bucketIndex(value);
+            long lower = LatencyHistogram.bucketLowerBound(index);
+            long upper = LatencyHistogram.bucketUpperBound(index);
+
+            assertThat(value, allOf(greaterThanOrEqualTo(lower),
+                                    lessThanOrEqualTo(upper)));
+            // Log-linear buckets are at most ~3% of their values
+            assertThat((double)(upper - lower), lessThanOrEqualTo(
+                Math.max(0, lower / 32.0)));
+        }
+    }
+
+    @Test
+    public void testOutOfRangeValuesAreClamped() {
+        assertThat(LatencyHistogram.bucketIndex(-5), equalTo(0));
+        assertThat(LatencyHistogram.bucketIndex(Long.MAX_VALUE),
+                   equalTo(LatencyHistogram.bucketIndex(
+                       LatencyHistogram.MAX_VALUE)));
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long micros = 1; micros <= 1000; micros++)
+            histogram.record(micros * 1000);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertThat(snapshot.getCount(), equalTo(1000L));
+        assertThat((double)snapshot.getValueAtQuantile(0.5),
+                   closeTo(500000, 500000 * 0.04));
+        assertThat((double)snapshot.getValueAtQuantile(0.99),
+                   closeTo(990000, 990000 * 0.04));
+        assertThat((double)snapshot.getValueAtQuantile(0.999),
+                   closeTo(999000, 999000 * 0.04));
+        assertThat((double)snapshot.getMax(),
+                   closeTo(1000000, 1000000 * 0.04));
+        assertThat(snapshot.getMean(), closeTo(500500, 500500 * 0.04));
+    }
+
+    @Test
+    public void testEmptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+
+        assertThat(snapshot.getCount(), equalTo(0L));
+        assertThat(snapshot.getValueAtQuantile(0.99), equalTo(0L));
+        assertThat(snapshot.getMean(), equalTo(0.0));
+        assertThat(snapshot.getMax(), equalTo(0L));
+    }
+
+    @Test
+    public void testSnapshotDifference() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        LatencyHistogram.Snapshot first = histogram.snapshot();
+        histogram.record(1000);
+        histogram.record(1000);
+
+        LatencyHistogram.Snapshot interval = histogram.snapshot().minus(first);
+
+        assertThat(interval.getCount(), equalTo(2L));
+        assertThat(interval.getValueAtQuantile(0), equalTo(
+            LatencyHistogram.bucketUpperBound(
+                LatencyHistogram.bucketIndex(1000))));
+    }
+
+    @Test
+    public void testReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.reset();
+
+        assertThat(histogram.snapshot().getCount(), equalTo(0L));
+    }
+}
@@ -0,0 +1,134 @@
+package uk.ac.cam.lib.spring.security.raven.replay;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class InMemoryReplayCacheTest {
+
+    private static final Instant T = Instant.parse("2016-08-11T15:58:17Z");
+
+    private static ReplayKey key(String id) {
+        return new ReplayKey("20160811T155817Z", id);
+    }
+
+    @Test
+    public void testAddedKeysAreContained() {
+        InMemoryReplayCache cache =
+            new InMemoryReplayCache(100, Duration.ofSeconds(30));
+
+        assertFalse(cache.contains(key("a"), T));
+        assertTrue(cache.add(key("a"), T));
+        assertTrue(cache.contains(key("a"), T));
+        assertFalse(cache.contains(key("b"), T));
+
+        assertThat(cache.size(), equalTo(1));
+        assertThat(cache.getHitCount(), equalTo(1L));
+    }
+
+    @Test
+    public void testAddingExistingKeyIsAHit() {
+        InMemoryReplayCache cache =
+            new InMemoryReplayCache(100, Duration.ofSeconds(30));
+
+        assertTrue(cache.add(key("a"), T));
+        assertFalse(cache.add(key("a"), T.plusSeconds(1)));
+        assertThat(cache.getHitCount(), equalTo(1L));
+    }
+
+    @Test
+    public void testKeysExpireAfterTtl() {
+        InMemoryReplayCache cache =
+            new InMemoryReplayCache(100, Duration.ofSeconds(30), 1);
+
+        cache.add(key("a"), T);
+        cache.add(key("b"), T.plusSeconds(10));
+
+        assertTrue(cache.contains(key("a"), T.plusMillis(29999)));
+        assertFalse(cache.contains(key("a"), T.plusSeconds(30)));
+        assertTrue(cache.contains(key("b"), T.plusSeconds(30)));
+        assertThat(cache.size(), equalTo(1));
+
+        assertTrue(cache.add(key("a"), T.plusSeconds(30)));
+        assertThat(cache.getEvictionCount(), equalTo(0L));
+    }
+
+    @Test
+    public void testOldestKeysAreEvictedWhenFull() {
+        InMemoryReplayCache cache =
+            new InMemoryReplayCache(4, Duration.ofMinutes(5), 1);
+
+        for(int i = 0; i < 6; i++)
+            assertTrue(cache.add(key("k" + i), T.plusSeconds(i)));
+
+        assertThat(cache.size(), equalTo(4));
+        assertThat(cache.getMaxEntries(), equalTo(4));
+        assertThat(cache.getEvictionCount(), equalTo(2L));
+        assertFalse(cache.contains(key("k0"), T));
+        assertFalse(cache.contains(key("k1"), T));
+        assertTrue(cache.contains(key("k5"), T));
+    }
+
+    @Test
+    public void testSizeIsBoundedAcrossStripes() {
+        InMemoryReplayCache cache =
+            new InMemoryReplayCache(64, Duration.ofMinutes(5), 8);
+
+        for(int i = 0; i < 1000; i++)
+            cache.add(key("key-" + i), T);
+
+        assertThat(cache.size(), lessThanOrEqualTo(64));
+        assertThat(cache.getEvictionCount(),
+                   equalTo(1000L - cache.size()));
+    }
+
+    @Test
+    public void testConcurrentAddsOfSameKeySucceedOnce() throws Exception {
+        InMemoryReplayCache cache =
+            new InMemoryReplayCache(10000, Duration.ofMinutes(5));
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger added = new AtomicInteger();
+
+        for(int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                try {
+                    start.await();
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i < 1000; i++) {
+                    if(cache.add(key("key-" + i), T))
+                        added.incrementAndGet();
+                }
+            });
+        }
+        start.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertThat(added.get(), equalTo(1000));
+        assertThat(cache.getHitCount(), equalTo(1000L * (threads - 1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripesMustBePowerOfTwo() {
+        new InMemoryReplayCache(100, Duration.ofMinutes(1), 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTtlMustBePositive() {
+        new InMemoryReplayCache(100, Duration.ZERO);
+    }
+}
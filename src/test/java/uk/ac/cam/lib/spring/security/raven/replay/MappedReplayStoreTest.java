@@ -0,0 +1,205 @@
+package uk.ac.cam.lib.spring.security.raven.replay;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MappedReplayStoreTest {
+
+    private static final Instant T = Instant.parse("2016-08-11T15:58:17Z");
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static ReplayKey key(int i) {
+        return new ReplayKey("20160811T155817Z", "1470931097-27163-" + i);
+    }
+
+    private Path storePath() throws IOException {
+        return tmp.getRoot().toPath().resolve("replay.store");
+    }
+
+    @Test
+    public void testAddedKeysAreContained() throws IOException {
+        try(MappedReplayStore store =
+                new MappedReplayStore(storePath(), 1024, TTL)) {
+
+            assertFalse(store.contains(key(1), T));
+            assertTrue(store.add(key(1), T));
+            assertTrue(store.contains(key(1), T));
+            assertFalse(store.add(key(1), T));
+            assertFalse(store.contains(key(2), T));
+
+            assertThat(store.getHitCount(), equalTo(2L));
+            assertThat(store.getCapacity(), equalTo(1024));
+        }
+    }
+
+    @Test
+    public void testKeysExpire() throws IOException {
+        try(MappedReplayStore store =
+                new MappedReplayStore(storePath(), 1024, TTL)) {
+
+            store.add(key(1), T);
+
+            assertTrue(store.contains(key(1), T.plus(TTL).minusMillis(1)));
+            assertFalse(store.contains(key(1), T.plus(TTL)));
+            assertTrue(store.add(key(1), T.plus(TTL)));
+            assertThat(store.getEvictionCount(), equalTo(0L));
+        }
+    }
+
+    @Test
+    public void testKeysSurviveReopening() throws IOException {
+        try(MappedReplayStore store =
+                new MappedReplayStore(storePath(), 1000, TTL)) {
+
+            for(int i = 0; i < 100; i++)
+                assertTrue(store.add(key(i), T));
+            store.flush();
+        }
+
+        // The size recorded in the file wins over the requested capacity
+        try(MappedReplayStore store =
+                new MappedReplayStore(storePath(), 64, TTL)) {
+
+            assertThat(store.getCapacity(), equalTo(1024));
+            for(int i = 0; i < 100; i++)
+                assertTrue(store.contains(key(i), T));
+            assertFalse(store.contains(key(100), T));
+        }
+    }
+
+    @Test
+    public void testCapacityIsBoundedByEviction() throws IOException {
+        try(MappedReplayStore store =
+                new MappedReplayStore(storePath(), 64, TTL)) {
+
+            for(int i = 0; i < 1000; i++)
+                assertTrue(store.add(key(i), T.plusMillis(i)));
+
+            assertThat(store.getEvictionCount(), equalTo(1000L - 64));
+            assertThat(Files.size(store.getPath()),
+                       equalTo(64L + 64 * 16));
+
+            // The most recent keys are retained
+            assertTrue(store.contains(key(999), T));
+            assertFalse(store.contains(key(0), T));
+        }
+    }
+
+    @Test
+    public void testJvmLocksAreReleasedByLastClose() throws IOException {
+        MappedReplayStore a = new MappedReplayStore(storePath(), 1024, TTL);
+        MappedReplayStore b = new MappedReplayStore(storePath(), 1024, TTL);
+        Path path = a.getPath();
+
+        a.close();
+        a.close();
+        assertTrue(MappedReplayStore.hasJvmLocks(path));
+        assertTrue(b.add(key(1), T));
+
+        b.close();
+        assertFalse(MappedReplayStore.hasJvmLocks(path));
+    }
+
+    @Test
+    public void testReplacedFileCanHaveMoreStripes() throws IOException {
+        try(MappedReplayStore small =
+                new MappedReplayStore(storePath(), 64, TTL)) {
+
+            // Replace the file while the small store is still open
+            Files.delete(storePath());
+            try(MappedReplayStore large =
+                    new MappedReplayStore(storePath(), 1 << 16, TTL)) {
+
+                for(int i = 0; i < 2000; i++)
+                    assertTrue(large.add(key(i), T));
+            }
+            assertTrue(small.add(key(1), T));
+        }
+        Files.delete(storePath());
+
+        try(MappedReplayStore large =
+                new MappedReplayStore(storePath(), 1 << 16, TTL)) {
+
+            for(int i = 0; i < 2000; i++)
+                assertTrue(large.add(key(i), T));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testOtherFilesAreRejected() throws IOException {
+        Path path = storePath();
+        Files.write(path, "not a replay store".getBytes("UTF-8"));
+
+        new MappedReplayStore(path, 64, TTL);
+    }
+
+    /**
+     * Several threads using two stores backed by the same file (as two JVMs
+     * on a host would) race to add an overlapping set of keys. Every key must
+     * be accepted exactly once.
+     */
+    @Test
+    public void testConcurrentAddsThroughSharedFile() throws Exception {
+        final int keys = 20000;
+        final int threads = 8;
+
+        try(MappedReplayStore a = new MappedReplayStore(storePath(), 65536, TTL);
+            MappedReplayStore b = new MappedReplayStore(storePath(), 65536, TTL)) {
+
+            AtomicIntegerArray accepted = new AtomicIntegerArray(keys);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<>();
+
+            for(int t = 0; t < threads; t++) {
+                MappedReplayStore store = t % 2 == 0 ? a : b;
+                int offset = t * 997;
+
+                results.add(pool.submit(() -> {
+                    start.await();
+                    for(int i = 0; i < keys; i++) {
+                        int k = (i + offset) % keys;
+                        if(store.add(key(k), T))
+                            accepted.incrementAndGet(k);
+                        assertTrue(store.contains(key(k), T));
+                    }
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            for(Future<?> f : results)
+                f.get(60, TimeUnit.SECONDS);
+            pool.shutdown();
+
+            for(int k = 0; k < keys; k++)
+                assertThat("key " + k, accepted.get(k), equalTo(1));
+
+            assertThat(a.getEvictionCount() + b.getEvictionCount(),
+                       equalTo(0L));
+            assertThat(a.getHitCount() + b.getHitCount(),
+                       greaterThanOrEqualTo((long)keys * (threads - 1)));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package uk.ac.cam.lib.spring.security.raven.replay;
+
+import org.junit.Test;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class ReplayKeyTest {
+
+    @Test
+    public void testKeyIsCreatedFromIssueAndId() throws WebauthException {
+        WebauthResponse response = new WebauthResponse(
+            "1!200!!20160811T155817Z!1470931097-27163-123!http://" +
+            "cudl-dev.lib.cam.ac.uk:80/auth/ravenlogin!hwtb2!!pwd!9793!!2!xxx");
+
+        ReplayKey key = ReplayKey.of(response);
+
+        assertThat(key.getIssue(), equalTo("20160811T155817Z"));
+        assertThat(key.getId(), equalTo("1470931097-27163-123"));
+        assertThat(key.toString(),
+                   equalTo("20160811T155817Z!1470931097-27163-123"));
+    }
+
+    @Test
+    public void testEquality() {
+        ReplayKey a = new ReplayKey("20160811T155817Z", "1");
+
+        assertThat(a, equalTo(new ReplayKey("20160811T155817Z", "1")));
+        assertThat(a.hashCode(),
+                   equalTo(new ReplayKey("20160811T155817Z", "1").hashCode()));
+        assertThat(a, not(equalTo(new ReplayKey("20160811T155817Z", "2"))));
+        assertThat(a, not(equalTo(new ReplayKey("20160811T155818Z", "1"))));
+    }
+
+    @Test
+    public void testLongHashIsStableAndDistinguishesFields() {
+        ReplayKey a = new ReplayKey("20160811T155817Z", "1470931097-27163-123");
+
+        // The hash is persisted by MappedReplayStore, so must never change.
+        assertThat(a.longHash(), equalTo(
+            new ReplayKey("20160811T155817Z", "1470931097-27163-123")
+                .longHash()));
+        assertThat(new ReplayKey("a", "bc").longHash(),
+                   not(equalTo(new ReplayKey("ab", "c").longHash())));
+        assertThat(new ReplayKey("", "").longHash(), not(equalTo(0L)));
+    }
+}
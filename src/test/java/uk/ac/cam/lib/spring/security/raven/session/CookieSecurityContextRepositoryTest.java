@@ -0,0 +1,318 @@
+package uk.ac.cam.lib.spring.security.raven.session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.crypto.HmacSigner;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class CookieSecurityContextRepositoryTest {
+
+    private static final byte[] KEY =
+        "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final String RESPONSE =
+        "3!200!!20160811T155817Z!1470931097-27163-123!http://" +
+        "example.com/callback!hwtb2!current!pwd!!36000!!2!xxx";
+
+    private static final Instant TEST_TIME =
+        Instant.parse("2016-08-11T15:58:20Z");
+
+    private static final List<GrantedAuthority> AUTHORITIES =
+        AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN");
+
+    private CookieSecurityContextRepository repo;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+
+    @Before
+    public void setUp() {
+        repo = new CookieSecurityContextRepository(new HmacSigner(KEY));
+        setTime(TEST_TIME);
+
+        request = new MockHttpServletRequest();
+        response = new MockHttpServletResponse();
+    }
+
+    private void setTime(Instant time) {
+        repo.setClock(Clock.fixed(time, ZoneId.of("Z")));
+    }
+
+    private RavenAuthenticationToken ravenLogin() throws Exception {
+        return new RavenAuthenticationToken(
+            new WebauthRequest(), new WebauthResponse(RESPONSE), TEST_TIME,
+            new User("hwtb2", "", AUTHORITIES), AUTHORITIES);
+    }
+
+    private static SecurityContext context(Authentication auth) {
+        return new SecurityContextImpl() {{ setAuthentication(auth); }};
+    }
+
+    private SecurityContext load(MockHttpServletRequest request) {
+        HttpRequestResponseHolder holder =
+            new HttpRequestResponseHolder(request, response);
+        SecurityContext context = repo.loadContext(holder);
+        assertThat(holder.getResponse(), not(sameInstance(response)));
+        return context;
+    }
+
+    private MockHttpServletRequest requestWithTicket(String ticket) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setCookies(new Cookie(repo.getCookieName(), ticket));
+        return request;
+    }
+
+    @Test
+    public void testTicketRoundTrip() throws Exception {
+        String ticket = repo.encode(ravenLogin(), TEST_TIME);
+        RavenTicketAuthenticationToken token = repo.decode(ticket);
+
+        assertThat(token.getPrincipal(), equalTo("hwtb2"));
+        assertThat(token.getName(), equalTo("hwtb2"));
+        assertThat(token.getCredentials(), nullValue());
+        assertThat(token.isAuthenticated(), is(true));
+        assertThat(token.getAuthorities(), equalTo(AUTHORITIES));
+        assertThat(token.getIssued(),
+                   equalTo(Instant.parse("2016-08-11T15:58:17Z")));
+        assertThat(token.getExpires(),
+                   equalTo(TEST_TIME.plus(repo.getTtl())));
+    }
+
+    @Test
+    public void testNonRavenLoginsAreIssuedNow() {
+        RavenTicketAuthenticationToken token = repo.decode(repo.encode(
+            new TestingAuthenticationToken("abc123", null, AUTHORITIES),
+            TEST_TIME));
+
+        assertThat(token.getIssued(), equalTo(TEST_TIME));
+    }
+
+    @Test
+    public void testModifiedTicketIsRejected() throws Exception {
+        byte[] ticket = Base64.getUrlDecoder().decode(
+            repo.encode(ravenLogin(), TEST_TIME));
+
+        for(int i = 0; i < ticket.length; i++) {
+            byte[] modified = ticket.clone();
+            modified[i] ^= 1;
+            assertThat(repo.decode(Base64.getUrlEncoder().encodeToString(
+                modified)), nullValue());
+        }
+    }
+
+    @Test
+    public void testMalformedTicketsAreRejected() {
+        assertThat(repo.decode(""), nullValue());
+        assertThat(repo.decode("abc"), nullValue());
+        assertThat(repo.decode("not base64!"), nullValue());
+    }
+
+    @Test
+    public void testTicketSignedWithOtherKeyIsRejected() throws Exception {
+        byte[] otherKey = KEY.clone();
+        otherKey[0] ^= 1;
+        String ticket = new CookieSecurityContextRepository(
+            new HmacSigner(otherKey)).encode(ravenLogin(), TEST_TIME);
+
+        assertThat(repo.decode(ticket), nullValue());
+    }
+
+    @Test
+    public void testTicketExpires() throws Exception {
+        repo.setTtl(Duration.ofMinutes(10));
+        String ticket = repo.encode(ravenLogin(), TEST_TIME);
+
+        setTime(TEST_TIME.plus(Duration.ofMinutes(10)).minusSeconds(1));
+        assertThat(repo.decode(ticket), notNullValue());
+
+        setTime(TEST_TIME.plus(Duration.ofMinutes(10)));
+        assertThat(repo.decode(ticket), nullValue());
+    }
+
+    @Test
+    public void testLoadWithoutCookieIsEmpty() {
+        assertThat(load(request).getAuthentication(), nullValue());
+        assertFalse(repo.containsContext(request));
+    }
+
+    @Test
+    public void testLoadRestoresTicket() throws Exception {
+        MockHttpServletRequest request =
+            requestWithTicket(repo.encode(ravenLogin(), TEST_TIME));
+
+        assertTrue(repo.containsContext(request));
+        assertThat(load(request).getAuthentication().getName(),
+                   equalTo("hwtb2"));
+        assertThat(request.getSession(false), nullValue());
+    }
+
+    @Test
+    public void testSaveSetsCookieOnLogin() throws Exception {
+        HttpRequestResponseHolder holder =
+            new HttpRequestResponseHolder(request, response);
+        repo.loadContext(holder);
+
+        repo.saveContext(context(ravenLogin()), holder.getRequest(),
+                         holder.getResponse());
+
+        Cookie cookie = response.getCookie(repo.getCookieName());
+        assertThat(cookie.getMaxAge(),
+                   equalTo((int)repo.getTtl().getSeconds()));
+        assertThat(cookie.isHttpOnly(), is(true));
+        assertThat(cookie.getSecure(), is(false));
+        assertThat(cookie.getPath(), equalTo("/"));
+        assertThat(repo.decode(cookie.getValue()).getName(), equalTo("hwtb2"));
+        assertThat(request.getSession(false), nullValue());
+    }
+
+    @Test
+    public void testCookieIsSetWhenResponseIsCommitted() throws Exception {
+        HttpRequestResponseHolder holder =
+            new HttpRequestResponseHolder(request, response);
+        repo.loadContext(holder);
+
+        SecurityContext context = context(ravenLogin());
+        org.springframework.security.core.context.SecurityContextHolder
+            .setContext(context);
+        try {
+            holder.getResponse().sendRedirect("/somewhere");
+        }
+        finally {
+            org.springframework.security.core.context.SecurityContextHolder
+                .clearContext();
+        }
+
+        assertThat(response.getCookie(repo.getCookieName()), notNullValue());
+
+        // Saving after the response is committed does nothing
+        MockHttpServletResponse raw = response;
+        repo.saveContext(context, holder.getRequest(), holder.getResponse());
+        assertThat(raw.getCookies().length, equalTo(1));
+    }
+
+    @Test
+    public void testUnchangedTicketIsNotRewritten() throws Exception {
+        MockHttpServletRequest request =
+            requestWithTicket(repo.encode(ravenLogin(), TEST_TIME));
+        HttpRequestResponseHolder holder =
+            new HttpRequestResponseHolder(request, response);
+        SecurityContext context = repo.loadContext(holder);
+
+        repo.saveContext(context, holder.getRequest(), holder.getResponse());
+
+        assertThat(response.getCookies().length, equalTo(0));
+    }
+
+    @Test
+    public void testLogoutClearsCookie() throws Exception {
+        MockHttpServletRequest request =
+            requestWithTicket(repo.encode(ravenLogin(), TEST_TIME));
+        HttpRequestResponseHolder holder =
+            new HttpRequestResponseHolder(request, response);
+        repo.loadContext(holder);
+
+        repo.saveContext(new SecurityContextImpl(), holder.getRequest(),
+                         holder.getResponse());
+
+        Cookie cookie = response.getCookie(repo.getCookieName());
+        assertThat(cookie.getMaxAge(), equalTo(0));
+        assertThat(cookie.getValue(), equalTo(""));
+    }
+
+    @Test
+    public void testAnonymousUserSetsNoCookie() {
+        repo.saveContext(context(new AnonymousAuthenticationToken(
+            "key", "anonymous",
+            AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS"))),
+            request, response);
+        repo.saveContext(new SecurityContextImpl(), request, response);
+
+        assertThat(response.getCookies().length, equalTo(0));
+    }
+
+    @Test
+    public void testCookieSettings() throws Exception {
+        repo.setCookieName("T");
+        repo.setCookiePath("/app");
+        repo.setSecure(true);
+
+        repo.saveContext(context(ravenLogin()), request, response);
+
+        Cookie cookie = response.getCookie("T");
+        assertThat(cookie.getPath(), equalTo("/app"));
+        assertThat(cookie.getSecure(), is(true));
+        assertThat(repo.getCookieName(), equalTo("T"));
+        assertThat(repo.getCookiePath(), equalTo("/app"));
+        assertThat(repo.getSecure(), is(true));
+    }
+
+    @Test
+    public void testCookiePathDefaultsToContextPath() throws Exception {
+        request.setContextPath("/ctx");
+        request.setSecure(true);
+
+        repo.saveContext(context(ravenLogin()), request, response);
+
+        Cookie cookie = response.getCookie(repo.getCookieName());
+        assertThat(cookie.getPath(), equalTo("/ctx"));
+        assertThat(cookie.getSecure(), is(true));
+    }
+
+    @Test
+    public void testOversizedTicketIsNotSet() {
+        List<GrantedAuthority> authorities = AuthorityUtils
+            .createAuthorityList(Collections.nCopies(
+                400, "ROLE_SOMETHING").toArray(new String[0]));
+
+        repo.saveContext(context(new TestingAuthenticationToken(
+            "abc123", null, authorities)), request, response);
+
+        assertThat(response.getCookies().length, equalTo(0));
+    }
+
+    @Test
+    public void testSaveWithoutWrapperAfterLoad() throws Exception {
+        HttpServletResponse unwrapped = response;
+        repo.saveContext(context(ravenLogin()), request, unwrapped);
+
+        assertThat(response.getCookie(repo.getCookieName()), notNullValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTtlMustBePositive() {
+        repo.setTtl(Duration.ofMillis(10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTicketTokenCannotBeMadeUntrusted() {
+        new RavenTicketAuthenticationToken(
+            "a", AUTHORITIES, TEST_TIME, TEST_TIME).setAuthenticated(false);
+    }
+}
@@ -0,0 +1,247 @@
+package uk.ac.cam.lib.spring.security.raven.stateless;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpMethod;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.web.authentication.SavedRequestAwareAuthenticationSuccessHandler;
+import org.springframework.security.web.savedrequest.SavedRequest;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationFilter;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.crypto.HmacSigner;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator;
+import uk.ac.cam.lib.spring.security.raven.hooks.DefaultRavenRequestCreator.RequestParam;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Base64;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+
+public class ParamsRequestCacheTest {
+
+    private static final byte[] KEY =
+        "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private static final Instant TEST_TIME =
+        Instant.parse("2016-08-11T15:58:00Z");
+
+    private ParamsRequestCache cache;
+    private MockHttpServletRequest original;
+    private MockHttpServletResponse resp;
+
+    private static String authResponse(String params) {
+        return "1!200!!20160811T155817Z!1470931097-27163-123!" +
+            "http://example.com/callback!hwtb2!!pwd!9793!" + params + "!2!xxx";
+    }
+
+    private static MockHttpServletRequest callback(String params) {
+        return MockMvcRequestBuilders
+            .request(HttpMethod.GET, "http://example.com/callback?{a}={b}",
+                     RavenAuthenticationFilter.RESPONSE_PARAMETER_NAME,
+                     authResponse(params))
+            .buildRequest(null);
+    }
+
+    @Before
+    public void setUp() {
+        cache = new ParamsRequestCache(new HmacSigner(KEY));
+        cache.setClock(Clock.fixed(TEST_TIME, ZoneId.of("Z")));
+
+        original = MockMvcRequestBuilders
+            .request(HttpMethod.GET,
+                     "http://example.com/things/1?view=full&tag=a&tag=b")
+            .buildRequest(null);
+        resp = new MockHttpServletResponse();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        ParamsSavedRequest saved = cache.decode(cache.encode(original));
+
+        assertThat(saved, notNullValue());
+        assertThat(saved.getMethod(), equalTo("GET"));
+        assertThat(saved.getRedirectUrl(), equalTo(
+            "http://example.com/things/1?view=full&tag=a&tag=b"));
+        assertThat(saved.getCreated(), equalTo(TEST_TIME));
+        assertThat(saved.getParameterMap().keySet(),
+                   containsInAnyOrder("view", "tag"));
+        assertArrayEquals(new String[]{"a", "b"},
+                          saved.getParameterValues("tag"));
+        assertThat(saved.getParameterValues("missing"), nullValue());
+        assertThat(saved.getCookies(), empty());
+        assertThat(saved.getHeaderNames(), empty());
+        assertThat(saved.getHeaderValues("Accept"), empty());
+        assertThat(saved.getLocales(), empty());
+    }
+
+    @Test
+    public void testEncodingIsUrlSafe() {
+        original.addParameter("q", "spaces & symbols / + = ! % é");
+
+        assertTrue(cache.encode(original).matches("[A-Za-z0-9_-]+"));
+    }
+
+    @Test
+    public void testEncodingIsDeterministic() {
+        assertThat(cache.encode(original), equalTo(cache.encode(original)));
+    }
+
+    @Test
+    public void testLargeRequestsAreCompressed() {
+        for(int i = 0; i < 20; i++)
+            original.addParameter("param" + i, "value value value " + i);
+
+        String compressed = cache.encode(original);
+        cache.setCompress(false);
+        String uncompressed = cache.encode(original);
+
+        assertThat(compressed.length(), lessThan(uncompressed.length()));
+        assertThat(cache.decode(compressed).getParameterMap().size(),
+                   equalTo(22));
+        assertThat(cache.decode(uncompressed).getParameterMap().size(),
+                   equalTo(22));
+    }
+
+    @Test
+    public void testModifiedEncodingIsRejected() {
+        byte[] token = Base64.getUrlDecoder().decode(cache.encode(original));
+        token[4] ^= 1;
+
+        assertThat(cache.decode(
+            Base64.getUrlEncoder().withoutPadding().encodeToString(token)),
+            nullValue());
+    }
+
+    @Test
+    public void testEncodingWithOtherKeyIsRejected() {
+        byte[] otherKey = KEY.clone();
+        otherKey[0] ^= 1;
+        String encoded = new ParamsRequestCache(new HmacSigner(otherKey))
+            .encode(original);
+
+        assertThat(cache.decode(encoded), nullValue());
+    }
+
+    @Test
+    public void testMalformedEncodingsAreRejected() {
+        assertThat(cache.decode(null), nullValue());
+        assertThat(cache.decode(""), nullValue());
+        assertThat(cache.decode("abc"), nullValue());
+        assertThat(cache.decode("not base64!"), nullValue());
+    }
+
+    @Test
+    public void testExpiredEncodingIsRejected() {
+        String encoded = cache.encode(original);
+
+        cache.setClock(Clock.fixed(
+            TEST_TIME.plus(ParamsRequestCache.DEFAULT_MAX_AGE), ZoneId.of("Z")));
+        assertThat(cache.decode(encoded), notNullValue());
+
+        cache.setMaxAge(Duration.ofMinutes(5));
+        assertThat(cache.decode(encoded), nullValue());
+    }
+
+    @Test
+    public void testGetRequestParsesResponseFromQuery() {
+        HttpServletRequest callback = callback(cache.encode(original));
+
+        SavedRequest saved = cache.getRequest(callback, resp);
+
+        assertThat(saved.getRedirectUrl(),
+                   equalTo(original.getRequestURL() + "?" +
+                           original.getQueryString()));
+        assertThat(cache.getRequest(callback, resp), sameInstance(saved));
+    }
+
+    @Test
+    public void testGetRequestUsesResponseParsedByFilter() throws Exception {
+        MockHttpServletRequest callback = new MockHttpServletRequest();
+        callback.setAttribute(RavenAuthenticationFilter.RESPONSE_ATTRIBUTE,
+            new WebauthResponse(authResponse(cache.encode(original))));
+
+        assertThat(cache.getRequest(callback, resp), notNullValue());
+    }
+
+    @Test
+    public void testGetRequestReturnsNullWithoutValidParams() {
+        assertThat(cache.getRequest(callback(""), resp), nullValue());
+        assertThat(cache.getRequest(callback("garbage"), resp), nullValue());
+        assertThat(cache.getRequest(new MockHttpServletRequest(), resp),
+                   nullValue());
+        assertThat(cache.getRequest(MockMvcRequestBuilders
+            .request(HttpMethod.GET, "http://example.com/callback?" +
+                     "WLS-Response=not-a-response")
+            .buildRequest(null), resp), nullValue());
+    }
+
+    @Test
+    public void testCacheDoesNotTouchTheSession() {
+        MockHttpServletRequest callback = callback(cache.encode(original));
+
+        cache.saveRequest(original, resp);
+        cache.getRequest(callback, resp);
+        cache.removeRequest(callback, resp);
+
+        assertThat(cache.getMatchingRequest(callback, resp), nullValue());
+        assertThat(original.getSession(false), nullValue());
+        assertThat(callback.getSession(false), nullValue());
+    }
+
+    @Test
+    public void testFilterRebuildsRequestFromParams() throws Exception {
+        DefaultRavenRequestCreator creator = DefaultRavenRequestCreator
+            .builder("http://example.com/callback")
+            .withViewValue(RequestParam.params, cache.paramsProducer())
+            .build();
+
+        // The entry point's request carries the encoded original request
+        String params = creator.createLoginRequest(original).get("params");
+        MockHttpServletRequest callback = callback(params);
+
+        AuthenticationManager authManager = mock(AuthenticationManager.class);
+        when(authManager.authenticate(org.mockito.Mockito.any()))
+            .thenReturn(new TestingAuthenticationToken("hwtb2", null));
+
+        RavenAuthenticationFilter filter = new RavenAuthenticationFilter(
+            authManager, creator, cache);
+        filter.setRequiresAuthenticationRequestMatcher(r -> true);
+        SavedRequestAwareAuthenticationSuccessHandler successHandler =
+            new SavedRequestAwareAuthenticationSuccessHandler();
+        successHandler.setRequestCache(cache);
+        filter.setAuthenticationSuccessHandler(successHandler);
+        filter.doFilter(callback, resp, mock(FilterChain.class));
+
+        ArgumentCaptor<RavenAuthenticationToken> token =
+            ArgumentCaptor.forClass(RavenAuthenticationToken.class);
+        verify(authManager).authenticate(token.capture());
+        WebauthRequest rebuilt = token.getValue().getRavenRequest().get();
+
+        assertThat(rebuilt.get("params"), equalTo(params));
+        assertThat(rebuilt.get("url"), equalTo("http://example.com/callback"));
+        assertThat(resp.getRedirectedUrl(), equalTo(
+            "http://example.com/things/1?view=full&tag=a&tag=b"));
+        assertThat(callback.getSession(false), nullValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProducerOnlyProducesParams() {
+        cache.paramsProducer().getRequestValue(RequestParam.desc, original);
+    }
+}
@@ -0,0 +1,170 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class CachingRavenResponseValidatorTest {
+
+    private static final Instant ISSUE = Instant.parse("2016-08-11T15:58:17Z");
+    private static final String URL = "http://example.com/callback";
+
+    private AtomicInteger calls;
+    private String failure;
+    private CachingRavenResponseValidator validator;
+
+    @Before
+    public void setUp() {
+        calls = new AtomicInteger();
+        failure = null;
+        validator = new CachingRavenResponseValidator(
+            (request, response, now) -> {
+                calls.incrementAndGet();
+                if(failure != null)
+                    throw new WebauthException(failure);
+            },
+            100, Duration.ofSeconds(10), Duration.ofSeconds(31));
+    }
+
+    private static WebauthRequest request(String url) {
+        WebauthRequest request = new WebauthRequest();
+        request.set("ver", "3");
+        request.set("url", url);
+        return request;
+    }
+
+    private static WlsResponse response(String id) {
+        try {
+            return WlsResponse.parse(String.join("!", "3", "200", "",
+                "20160811T155817Z", id, URL, "hwtb2", "current", "pwd", "",
+                "36000", "", "901", "sig"));
+        }
+        catch(WebauthException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void validate(String id, Instant now) throws WebauthException {
+        validator.validate(request(URL), response(id), now);
+    }
+
+    @Test
+    public void testSuccessIsCached() throws WebauthException {
+        validate("1", ISSUE);
+        validate("1", ISSUE.plusSeconds(5));
+
+        assertThat(calls.get(), is(1));
+        assertThat(validator.getHitCount(), is(1L));
+        assertThat(validator.getMissCount(), is(1L));
+        assertThat(validator.size(), is(1));
+    }
+
+    @Test
+    public void testFailureIsCachedWithReason() {
+        failure = "bad sig";
+        for(int i = 0; i < 3; i++) {
+            try {
+                validate("1", ISSUE);
+                fail();
+            }
+            catch(WebauthException e) {
+                assertThat(e.getMessage(), equalTo("bad sig"));
+            }
+        }
+
+        assertThat(calls.get(), is(1));
+        assertThat(validator.getFailureHitCount(), is(2L));
+    }
+
+    @Test
+    public void testOutcomesExpireAfterTtl() throws WebauthException {
+        validate("1", ISSUE);
+        validate("1", ISSUE.plusSeconds(10));
+
+        assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void testSuccessDoesNotOutliveIssueWindow()
+        throws WebauthException {
+
+        CachingRavenResponseValidator validator =
+            new CachingRavenResponseValidator(
+                (request, response, now) -> calls.incrementAndGet(),
+                100, Duration.ofMinutes(10), Duration.ofSeconds(31));
+
+        validator.validate(request(URL), response("1"), ISSUE.plusSeconds(20));
+        validator.validate(request(URL), response("1"), ISSUE.plusSeconds(30));
+        assertThat(calls.get(), is(1));
+
+        validator.validate(request(URL), response("1"), ISSUE.plusSeconds(31));
+        assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void testOutcomesAreSpecificToRequestAndResponse()
+        throws WebauthException {
+
+        validate("1", ISSUE);
+        validate("2", ISSUE);
+        validator.validate(request("http://example.com/other"), response("1"),
+                           ISSUE);
+
+        assertThat(calls.get(), is(3));
+        assertThat(validator.getHitCount(), is(0L));
+    }
+
+    @Test
+    public void testCacheIsBounded() throws WebauthException {
+        CachingRavenResponseValidator validator =
+            new CachingRavenResponseValidator(
+                (request, response, now) -> {}, 4, Duration.ofSeconds(10),
+                Duration.ofSeconds(31), 1);
+        assertThat(validator.getMaxEntries(), is(4));
+
+        for(int i = 0; i < 10; i++)
+            validator.validate(request(URL), response("" + i), ISSUE);
+
+        assertThat(validator.size(), is(4));
+        assertThat(validator.getEvictionCount(), is(6L));
+    }
+
+    @Test
+    public void testNativeValidatorWindowIsUsed()
+        throws NoSuchAlgorithmException {
+
+        NativeRavenResponseValidator delegate =
+            new NativeRavenResponseValidator(Collections.singletonMap(
+                "901", KeyPairGenerator.getInstance("RSA")
+                    .generateKeyPair().getPublic()));
+        delegate.setMaxSkew(Duration.ofSeconds(5));
+
+        CachingRavenResponseValidator validator =
+            new CachingRavenResponseValidator(delegate, 100);
+
+        assertThat(validator.getDelegate(), is(sameInstance(delegate)));
+        assertThat(validator.getIssueWindow(), equalTo(Duration.ofSeconds(36)));
+        assertThat(validator.getTtl(),
+                   equalTo(CachingRavenResponseValidator.DEFAULT_TTL));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripesMustBePowerOfTwo() {
+        new CachingRavenResponseValidator(
+            (request, response, now) -> {}, 100, Duration.ofSeconds(1),
+            Duration.ofSeconds(1), 3);
+    }
+}
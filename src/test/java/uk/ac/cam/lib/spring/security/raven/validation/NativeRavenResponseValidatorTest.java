@@ -0,0 +1,378 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.security.core.Authentication;
+import uk.ac.cam.lib.spring.security.raven.BadStatusRavenAuthenticationException;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationProvider;
+import uk.ac.cam.lib.spring.security.raven.RavenAuthenticationToken;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+import uk.ac.cam.ucs.webauth.WebauthResponse;
+import uk.ac.cam.ucs.webauth.WebauthValidator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class NativeRavenResponseValidatorTest {
+
+    private static final String KID = "901";
+    private static final String URL = "http://example.com/callback";
+    private static final Instant ISSUE = Instant.parse("2016-08-11T15:58:17Z");
+    private static final Instant NOW = ISSUE.plusSeconds(1);
+
+    private static final DateTimeFormatter ISSUE_FORMAT = DateTimeFormatter
+        .ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+    private static KeyPair keyPair;
+    private static KeyPair otherKeyPair;
+    private static NativeRavenResponseValidator validator;
+
+    @BeforeClass
+    public static void setUpClass() throws GeneralSecurityException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        keyPair = gen.generateKeyPair();
+        otherKeyPair = gen.generateKeyPair();
+
+        validator = new NativeRavenResponseValidator(
+            Collections.singletonMap(KID, keyPair.getPublic()));
+    }
+
+    private static WebauthRequest request() {
+        WebauthRequest request = new WebauthRequest();
+        request.set("ver", "3");
+        request.set("url", URL);
+        return request;
+    }
+
+    static String response(String ver, String status, String url,
+                                   String principal, Instant issue) {
+        return response(ver, status, url, principal, issue, KID, keyPair);
+    }
+
+    static String response(String ver, String status, String url,
+                                   String principal, Instant issue,
+                                   String kid, KeyPair key) {
+        List<String> fields = Arrays.asList(
+            ver, status, "", ISSUE_FORMAT.format(issue), "1470931097-27163-123",
+            escape(url), escape(principal));
+        String signed = String.join("!", fields) +
+            (ver.equals("3") ? "!current" : "") + "!pwd!!36000!";
+
+        try {
+            Signature sig = Signature.getInstance("SHA1withRSA");
+            sig.initSign(key.getPrivate());
+            sig.update(signed.getBytes(StandardCharsets.UTF_8));
+            return signed + "!" + kid + "!" +
+                Base64.getEncoder().encodeToString(sig.sign())
+                    .replace('+', '-').replace('/', '.').replace('=', '_');
+        }
+        catch(GeneralSecurityException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String escape(String field) {
+        return field.replace("%", "%25").replace("!", "%21");
+    }
+
+    private static String validResponse() {
+        return response("3", "200", URL, "hwtb2", ISSUE);
+    }
+
+    private static void validate(String response) throws WebauthException {
+        validator.validate(request(), WlsResponse.parse(response), NOW);
+    }
+
+    @Test
+    public void testValidResponseIsAccepted() throws WebauthException {
+        validate(validResponse());
+        // Again, reusing this thread's Signature
+        validate(validResponse());
+        validate(response("1", "200", URL, "hwtb2", ISSUE));
+    }
+
+    @Test
+    public void testNonAsciiResponseIsAccepted() throws WebauthException {
+        validate(response("3", "200", URL, "\u00e9t\u00e9!%", ISSUE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeysMustNotBeNull() {
+        new NativeRavenResponseValidator(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeysMustNotBeEmpty() {
+        new NativeRavenResponseValidator(Collections.emptyMap());
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testTamperedResponseIsRejected() throws WebauthException {
+        validate(validResponse().replace("!hwtb2!", "!abc123!"));
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testResponseSignedWithOtherKeyIsRejected()
+        throws WebauthException {
+        validate(response("3", "200", URL, "hwtb2", ISSUE, KID, otherKeyPair));
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testUnknownKidIsRejected() throws WebauthException {
+        validate(response("3", "200", URL, "hwtb2", ISSUE, "1", keyPair));
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testOtherUrlIsRejected() throws WebauthException {
+        validate(response("3", "200", URL + "/x", "hwtb2", ISSUE));
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testStaleResponseIsRejected() throws WebauthException {
+        validate(response("3", "200", URL, "hwtb2", ISSUE.minusSeconds(60)));
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testFutureResponseIsRejected() throws WebauthException {
+        validate(response("3", "200", URL, "hwtb2", ISSUE.plusSeconds(60)));
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testUnsuccessfulStatusIsRejected() throws WebauthException {
+        validate(response("3", "410", URL, "hwtb2", ISSUE));
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testVersionNewerThanRequestIsRejected()
+        throws WebauthException {
+
+        WebauthRequest request = request();
+        request.set("ver", "2");
+        validator.validate(request, WlsResponse.parse(validResponse()), NOW);
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testVersionNotMatchingFieldsIsRejected()
+        throws WebauthException {
+        validate(response("1", "200", URL, "hwtb2", ISSUE)
+            .replaceFirst("^1!", "3!"));
+    }
+
+    @Test(expected = WebauthException.class)
+    public void testMalformedSignatureIsRejected() throws WebauthException {
+        String response = validResponse();
+        validate(response.substring(0, response.lastIndexOf('!')) + "!**");
+    }
+
+    @Test
+    public void testValidatorRecoversFromVerificationErrors()
+        throws WebauthException {
+
+        String response = validResponse();
+        String badLength = response.substring(0, response.lastIndexOf('!')) +
+            "!AAAA";
+        try {
+            validate(badLength);
+            fail();
+        }
+        catch(WebauthException e) { }
+
+        validate(response);
+    }
+
+    @Test
+    public void testTimeoutAndSkewAreConfigurable() throws WebauthException {
+        NativeRavenResponseValidator v = new NativeRavenResponseValidator(
+            Collections.singletonMap(KID, keyPair.getPublic()),
+            validator.getProvider());
+        v.setTimeout(Duration.ofMinutes(5));
+        v.setMaxSkew(Duration.ofSeconds(30));
+        assertThat(v.getTimeout(), equalTo(Duration.ofMinutes(5)));
+        assertThat(v.getMaxSkew(), equalTo(Duration.ofSeconds(30)));
+
+        v.validate(request(), WlsResponse.parse(
+            response("3", "200", URL, "hwtb2", ISSUE.minusSeconds(200))), NOW);
+        v.validate(request(), WlsResponse.parse(
+            response("3", "200", URL, "hwtb2", ISSUE.plusSeconds(20))), NOW);
+    }
+
+    @Test
+    public void testIssueParsing() throws WebauthException {
+        assertThat(NativeRavenResponseValidator.parseIssue("20160811T155817Z"),
+                   equalTo(ISSUE.toEpochMilli()));
+
+        for(String bad : Arrays.asList("", "20160811T155817", "2016081lT155817Z",
+                                       "20161311T155817Z", "20160811 155817Z")) {
+            try {
+                NativeRavenResponseValidator.parseIssue(bad);
+                fail(bad);
+            }
+            catch(WebauthException e) { }
+        }
+    }
+
+    /**
+     * The checks agree with the toolkit's validator.
+     */
+    @Test
+    public void testAgreesWithWebauthValidator() throws Exception {
+        WebauthValidator toolkit = new WebauthValidator(keyStore());
+
+        List<String> responses = Arrays.asList(
+            validResponse(),
+            response("3", "200", URL, "\u00e9t\u00e9!%", ISSUE),
+            response("3", "200", URL + "/x", "hwtb2", ISSUE),
+            response("3", "410", URL, "hwtb2", ISSUE),
+            response("3", "200", URL, "hwtb2", ISSUE.minusSeconds(31)),
+            response("3", "200", URL, "hwtb2", ISSUE.minusSeconds(30)),
+            response("3", "200", URL, "hwtb2", ISSUE.plusSeconds(2)),
+            response("3", "200", URL, "hwtb2", ISSUE.plusSeconds(3)),
+            response("3", "200", URL, "hwtb2", ISSUE, "1", keyPair),
+            response("3", "200", URL, "hwtb2", ISSUE, KID, otherKeyPair),
+            validResponse().replace("!hwtb2!", "!hwtb3!"));
+
+        for(String response : responses) {
+            boolean expected = accepts(() -> toolkit.validate(
+                request(), new WebauthResponse(response), NOW.toEpochMilli()));
+            boolean actual = accepts(() -> validate(response));
+            assertThat(response, actual, equalTo(expected));
+        }
+    }
+
+    private interface Validation {
+        void run() throws WebauthException;
+    }
+
+    private static boolean accepts(Validation validation) {
+        try {
+            validation.run();
+            return true;
+        }
+        catch(WebauthException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testFromKeyStoreReadsWebauthKeys() throws Exception {
+        NativeRavenResponseValidator v =
+            NativeRavenResponseValidator.fromKeyStore(keyStore());
+
+        assertThat(v.getKids(), contains(KID));
+        v.validate(request(), WlsResponse.parse(validResponse()), NOW);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromKeyStoreRequiresKeys() throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(null, null);
+        NativeRavenResponseValidator.fromKeyStore(ks);
+    }
+
+    @Test
+    public void testFastestProviderCanUseKey() {
+        assertThat(NativeRavenResponseValidator.fastestProvider(
+                Collections.singletonList(keyPair.getPublic())),
+            notNullValue());
+        assertThat(validator.getProvider().getService(
+                "Signature", NativeRavenResponseValidator.SIGNATURE_ALGORITHM),
+            notNullValue());
+    }
+
+    @Test
+    public void testProviderAuthenticatesWithNativeValidator() {
+        RavenAuthenticationProvider provider = new RavenAuthenticationProvider(
+            validator,
+            t -> t.authenticate(t.getPrincipal(), Collections.emptyList()));
+        assertThat(provider.getResponseValidator(), sameInstance(validator));
+        assertThat(provider.getWebauthValidator(), nullValue());
+
+        Authentication result = provider.authenticate(token(validResponse()));
+        assertTrue(result.isAuthenticated());
+        assertThat(result.getPrincipal(), equalTo("hwtb2"));
+    }
+
+    @Test(expected = BadStatusRavenAuthenticationException.class)
+    public void testProviderReportsBadStatusWithNativeValidator() {
+        RavenAuthenticationProvider provider = new RavenAuthenticationProvider(
+            validator,
+            t -> t.authenticate(t.getPrincipal(), Collections.emptyList()));
+
+        provider.authenticate(
+            token(response("3", "410", URL, "hwtb2", ISSUE)));
+    }
+
+    private static RavenAuthenticationToken token(String response) {
+        try {
+            return new RavenAuthenticationToken(
+                request(), WlsResponse.parse(response), NOW);
+        }
+        catch(WebauthException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static KeyStore keyStore() throws Exception {
+        KeyStore ks = KeyStore.getInstance("JKS");
+        ks.load(null, null);
+        ks.setCertificateEntry(
+            NativeRavenResponseValidator.KEY_ALIAS_PREFIX + KID,
+            new PublicKeyCertificate(keyPair.getPublic()));
+        return ks;
+    }
+
+    /** A certificate which only carries a public key. */
+    private static final class PublicKeyCertificate extends Certificate {
+        private final PublicKey key;
+
+        PublicKeyCertificate(PublicKey key) {
+            super("X.509");
+            this.key = key;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return this.key.getEncoded();
+        }
+
+        @Override
+        public void verify(PublicKey key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void verify(PublicKey key, String sigProvider) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString() {
+            return "PublicKeyCertificate(" + this.key + ")";
+        }
+
+        @Override
+        public PublicKey getPublicKey() {
+            return this.key;
+        }
+    }
+}
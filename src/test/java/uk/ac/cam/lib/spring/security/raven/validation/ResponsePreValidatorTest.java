@@ -0,0 +1,195 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.junit.Before;
+import org.junit.Test;
+import uk.ac.cam.lib.spring.security.raven.BadStatusRavenAuthenticationException;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.lib.spring.security.raven.validation.ResponsePreValidator.Reason;
+import uk.ac.cam.ucs.webauth.WebauthException;
+
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+
+public class ResponsePreValidatorTest {
+
+    private static final Instant NOW = Instant.parse("2016-08-11T15:58:18Z");
+    private static final String URL = "http://example.com/callback";
+
+    private ResponsePreValidator preValidator;
+
+    @Before
+    public void setUp() {
+        preValidator = new ResponsePreValidator();
+        preValidator.setKids(() -> Collections.singleton("901"));
+        preValidator.setUrlPrefix("http://example.com/");
+    }
+
+    private static WlsResponse response(String ver, String status, String issue,
+                                        String url, String kid) {
+        try {
+            return WlsResponse.parse(String.join("!", ver, status, "", issue,
+                "1470931097-27163-123", url, "hwtb2",
+                ver.equals("3") ? "current!pwd" : "pwd", "", "36000", "",
+                kid, "sig"));
+        }
+        catch(WebauthException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static WlsResponse response() {
+        return response("3", "200", "20160811T155817Z", URL, "901");
+    }
+
+    private Reason rejectionOf(WlsResponse response) {
+        try {
+            preValidator.check(response, NOW);
+            return null;
+        }
+        catch(PreValidationException e) {
+            assertThat(preValidator.getRejectionCount(e.getReason()),
+                       greaterThan(0L));
+            return e.getReason();
+        }
+    }
+
+    @Test
+    public void testValidResponsePasses() {
+        preValidator.check(response(), NOW);
+        preValidator.check(
+            response("1", "200", "20160811T155817Z", URL, "901"), NOW);
+
+        assertThat(preValidator.getRejectionCounts().values(),
+                   everyItem(is(0L)));
+    }
+
+    @Test
+    public void testRejectsUnsupportedVersion() {
+        assertThat(rejectionOf(
+            response("4", "200", "20160811T155817Z", URL, "901")),
+            is(Reason.VERSION));
+    }
+
+    @Test
+    public void testRejectsFieldCountNotMatchingVersion() throws Exception {
+        // A version 3 response with version 1's fields
+        WlsResponse response = WlsResponse.parse(response(
+            "1", "200", "20160811T155817Z", URL, "901").getToken()
+            .replaceFirst("^1", "3"));
+
+        assertThat(rejectionOf(response), is(Reason.FIELD_COUNT));
+    }
+
+    @Test
+    public void testRejectsUnknownStatus() {
+        assertThat(rejectionOf(
+            response("3", "999", "20160811T155817Z", URL, "")),
+            is(Reason.STATUS));
+    }
+
+    @Test
+    public void testKnownUnsuccessfulStatusIsBadStatus() {
+        try {
+            preValidator.check(
+                response("3", "410", "20160811T155817Z", URL, ""), NOW);
+            fail();
+        }
+        catch(BadStatusRavenAuthenticationException e) {
+            assertThat(e.getStatus(), is(410));
+            assertThat(preValidator.getRejectionCount(Reason.STATUS), is(1L));
+        }
+    }
+
+    @Test
+    public void testRejectsUnknownKid() {
+        assertThat(rejectionOf(
+            response("3", "200", "20160811T155817Z", URL, "2")),
+            is(Reason.KID));
+    }
+
+    @Test
+    public void testRejectsMalformedOrStaleIssue() {
+        assertThat(rejectionOf(
+            response("3", "200", "2016081XT155817Z", URL, "901")),
+            is(Reason.ISSUE));
+        assertThat(rejectionOf(
+            response("3", "200", "20160811T155700Z", URL, "901")),
+            is(Reason.ISSUE));
+        assertThat(rejectionOf(
+            response("3", "200", "20160811T160000Z", URL, "901")),
+            is(Reason.ISSUE));
+        assertThat(preValidator.getRejectionCount(Reason.ISSUE), is(3L));
+
+        preValidator.setMaxSkew(Duration.ofMinutes(5));
+        assertThat(preValidator.getMaxSkew(), equalTo(Duration.ofMinutes(5)));
+        assertThat(rejectionOf(
+            response("3", "200", "20160811T160000Z", URL, "901")),
+            nullValue());
+    }
+
+    @Test
+    public void testRejectsUnexpectedUrl() {
+        assertThat(rejectionOf(
+            response("3", "200", "20160811T155817Z",
+                     "http://evil.example.org/callback", "901")),
+            is(Reason.URL));
+    }
+
+    @Test
+    public void testChecksAreOptional() {
+        preValidator.setKids(null);
+        preValidator.setUrlPrefix(null);
+        assertThat(preValidator.getUrlPrefix(), nullValue());
+
+        preValidator.check(response("3", "200", "20160811T155817Z",
+                                    "http://other/", "2"), NOW);
+    }
+
+    @Test
+    public void testChecksStopAtFirstFailure() {
+        // Wrong kid, stale and wrong url: only the kid is counted
+        rejectionOf(response("3", "200", "20100101T000000Z",
+                             "http://other/", "2"));
+
+        Map<Reason, Long> counts = preValidator.getRejectionCounts();
+        assertThat(counts.get(Reason.KID), is(1L));
+        assertThat(counts.get(Reason.ISSUE), is(0L));
+        assertThat(counts.get(Reason.URL), is(0L));
+    }
+
+    @Test
+    public void testForValidatorUsesValidatorsKidsAndWindow()
+        throws NoSuchAlgorithmException {
+
+        NativeRavenResponseValidator validator =
+            new NativeRavenResponseValidator(Collections.singletonMap(
+                "901", KeyPairGenerator.getInstance("RSA")
+                    .generateKeyPair().getPublic()));
+        validator.setTimeout(Duration.ofMinutes(2));
+
+        preValidator = ResponsePreValidator.forValidator(validator);
+        assertThat(preValidator.getTimeout(), equalTo(Duration.ofMinutes(2)));
+
+        assertThat(rejectionOf(
+            response("3", "200", "20160811T155700Z", URL, "901")),
+            nullValue());
+        assertThat(rejectionOf(
+            response("3", "200", "20160811T155817Z", URL, "902")),
+            is(Reason.KID));
+
+        validator.setKeys(Collections.singletonMap(
+            "902", KeyPairGenerator.getInstance("RSA")
+                .generateKeyPair().getPublic()));
+        assertThat(rejectionOf(
+            response("3", "200", "20160811T155817Z", URL, "902")),
+            nullValue());
+    }
+}
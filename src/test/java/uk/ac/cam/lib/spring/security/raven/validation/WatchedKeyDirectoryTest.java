@@ -0,0 +1,187 @@
+package uk.ac.cam.lib.spring.security.raven.validation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import uk.ac.cam.lib.spring.security.raven.WlsResponse;
+import uk.ac.cam.ucs.webauth.WebauthException;
+import uk.ac.cam.ucs.webauth.WebauthRequest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class WatchedKeyDirectoryTest {
+
+    private static final String URL = "http://example.com/callback";
+    private static final Instant ISSUE = Instant.parse("2016-08-11T15:58:17Z");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+    private KeyPair first, second;
+    private WatchedKeyDirectory watcher;
+
+    @Before
+    public void setUp() throws GeneralSecurityException, IOException {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024);
+        first = gen.generateKeyPair();
+        second = gen.generateKeyPair();
+
+        dir = folder.getRoot().toPath();
+        writeKey("pubkey2.crt", first.getPublic());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if(watcher != null)
+            watcher.close();
+    }
+
+    private void writeKey(String name, PublicKey key) throws IOException {
+        String pem = "-----BEGIN PUBLIC KEY-----\n" +
+            Base64.getMimeEncoder().encodeToString(key.getEncoded()) +
+            "\n-----END PUBLIC KEY-----\n";
+        // Write then move, so the watcher never sees a partial file
+        Path tmp = folder.newFile().toPath();
+        Files.write(tmp, pem.getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp, dir.resolve(name));
+    }
+
+    private static void validate(
+        NativeRavenResponseValidator validator, String kid, KeyPair key)
+        throws WebauthException {
+
+        WebauthRequest request = new WebauthRequest();
+        request.set("url", URL);
+        validator.validate(request, WlsResponse.parse(
+            NativeRavenResponseValidatorTest.response(
+                "3", "200", URL, "hwtb2", ISSUE, kid, key)),
+            ISSUE);
+    }
+
+    @Test
+    public void testKidIsFileNameWithoutPrefixOrExtension() {
+        assertThat(WatchedKeyDirectory.kid("pubkey2.crt"), equalTo("2"));
+        assertThat(WatchedKeyDirectory.kid("901.pem"), equalTo("901"));
+        assertThat(WatchedKeyDirectory.kid("pubkey3"), equalTo("3"));
+    }
+
+    @Test
+    public void testLoadValidatorReadsKeys() throws Exception {
+        writeKey("901.pem", second.getPublic());
+        Files.write(dir.resolve(".hidden"), new byte[]{1});
+
+        NativeRavenResponseValidator validator =
+            WatchedKeyDirectory.loadValidator(dir);
+
+        assertThat(validator.getKids(), containsInAnyOrder("2", "901"));
+        validate(validator, "2", first);
+        validate(validator, "901", second);
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidKeyFileIsRejected() throws IOException {
+        Files.write(dir.resolve("pubkey3.crt"), "junk".getBytes());
+        WatchedKeyDirectory.readKeys(dir);
+    }
+
+    @Test(expected = IOException.class)
+    public void testStartFailsWithoutKeys() throws IOException {
+        NativeRavenResponseValidator validator =
+            WatchedKeyDirectory.loadValidator(dir);
+        Files.delete(dir.resolve("pubkey2.crt"));
+
+        watcher = new WatchedKeyDirectory(dir, validator);
+        watcher.start();
+    }
+
+    @Test
+    public void testChangedKeysAreReloaded() throws Exception {
+        NativeRavenResponseValidator validator =
+            WatchedKeyDirectory.loadValidator(dir);
+        watcher = new WatchedKeyDirectory(dir, validator);
+        watcher.setQuietPeriod(Duration.ofMillis(50));
+
+        BlockingQueue<Object> outcomes = new LinkedBlockingQueue<>();
+        watcher.setListener(new WatchedKeyDirectory.ReloadListener() {
+            @Override
+            public void keysReloaded(Map<String, PublicKey> keys) {
+                outcomes.add(keys.keySet());
+            }
+
+            @Override
+            public void keyReloadFailed(Exception cause) {
+                outcomes.add(cause);
+            }
+        });
+        watcher.start();
+        assertThat(outcomes.poll(), equalTo(validator.getKids()));
+        assertThat(watcher.getReloadCount(), equalTo(1L));
+
+        // A new key is picked up
+        writeKey("pubkey3.crt", second.getPublic());
+        assertThat(outcomes.poll(30, TimeUnit.SECONDS),
+                   equalTo((Object)validator.getKids()));
+        assertThat(validator.getKids(), containsInAnyOrder("2", "3"));
+        validate(validator, "3", second);
+        validate(validator, "2", first);
+
+        // A broken key is reported, and the existing keys kept
+        Files.write(dir.resolve("pubkey4.crt"), "junk".getBytes());
+        assertThat(outcomes.poll(30, TimeUnit.SECONDS),
+                   instanceOf(IOException.class));
+        assertThat(watcher.getFailureCount(), greaterThanOrEqualTo(1L));
+        assertThat(watcher.getLastFailure(), instanceOf(IOException.class));
+        assertThat(validator.getKids(), containsInAnyOrder("2", "3"));
+
+        // Removing keys removes them from the validator
+        Files.delete(dir.resolve("pubkey4.crt"));
+        Files.delete(dir.resolve("pubkey2.crt"));
+        Object outcome;
+        while((outcome = outcomes.poll(30, TimeUnit.SECONDS))
+              instanceof Exception) { }
+        assertThat(outcome, equalTo((Object)validator.getKids()));
+        assertThat(validator.getKids(), contains("3"));
+        try {
+            validate(validator, "2", first);
+            fail();
+        }
+        catch(WebauthException e) { }
+    }
+
+    @Test
+    public void testSetKeysKeepsUnchangedKeys() throws Exception {
+        NativeRavenResponseValidator validator =
+            WatchedKeyDirectory.loadValidator(dir);
+        validator.setKeys(WatchedKeyDirectory.readKeys(dir));
+        validate(validator, "2", first);
+
+        try {
+            validator.setKeys(Collections.emptyMap());
+            fail();
+        }
+        catch(IllegalArgumentException e) { }
+        assertThat(validator.getKids(), contains("2"));
+    }
+}
@@ -0,0 +1,163 @@
+package uk.ac.cam.lib.spring.security.raven.vedorised;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.web.PortResolverImpl;
+import org.springframework.security.web.savedrequest.DefaultSavedRequest;
+import org.springframework.security.web.savedrequest.SavedRequest;
+
+import javax.servlet.http.Cookie;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+
+public class SavedRequestAwareWrapperTest {
+
+    private static final long DATE =
+        Instant.parse("1994-11-06T08:49:37Z").toEpochMilli();
+
+    private MockHttpServletRequest original, callback;
+    private SavedRequestAwareWrapper wrapper;
+
+    @Before
+    public void setUp() {
+        original = new MockHttpServletRequest("POST", "/things/1");
+        original.addParameter("page", "2");
+        original.addParameter("tag", new String[]{"a", "b", "b"});
+        original.addHeader("Accept", "text/html");
+        original.addHeader("X-Count", "42");
+        original.setCookies(new Cookie("theme", "dark"));
+
+        callback = new MockHttpServletRequest("GET", "/callback");
+        callback.addParameter("WLS-Response", "3!200!...");
+        callback.addParameter("tag", new String[]{"c", "b", "c"});
+
+        wrapper = wrapper();
+    }
+
+    private SavedRequestAwareWrapper wrapper() {
+        return new SavedRequestAwareWrapper(
+            new DefaultSavedRequest(original, new PortResolverImpl()),
+            callback);
+    }
+
+    @Test
+    public void testParametersComeFromBothRequests() {
+        assertThat(wrapper.getParameter("page"), equalTo("2"));
+        assertThat(wrapper.getParameter("WLS-Response"), equalTo("3!200!..."));
+        assertThat(wrapper.getParameter("tag"), equalTo("c"));
+        assertThat(wrapper.getParameter("missing"), nullValue());
+
+        assertArrayEquals(new String[]{"2"},
+                          wrapper.getParameterValues("page"));
+        assertArrayEquals(new String[]{"3!200!..."},
+                          wrapper.getParameterValues("WLS-Response"));
+        assertThat(wrapper.getParameterValues("missing"), nullValue());
+    }
+
+    @Test
+    public void testValuesInBothRequestsAreMergedAsBefore() {
+        // The wrapped request's values, then the saved request's values which
+        // the wrapped request doesn't have.
+        assertArrayEquals(new String[]{"c", "b", "c", "a"},
+                          wrapper.getParameterValues("tag"));
+    }
+
+    @Test
+    public void testParameterMapIsMergedOnce() {
+        Map<String, String[]> params = wrapper.getParameterMap();
+
+        assertThat(params.keySet(),
+                   containsInAnyOrder("page", "tag", "WLS-Response"));
+        assertArrayEquals(new String[]{"c", "b", "c", "a"}, params.get("tag"));
+        assertThat(wrapper.getParameterMap(), sameInstance(params));
+        assertThat(Collections.list(wrapper.getParameterNames()),
+                   containsInAnyOrder("page", "tag", "WLS-Response"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testParameterMapIsUnmodifiable() {
+        wrapper.getParameterMap().put("x", new String[0]);
+    }
+
+    @Test
+    public void testHeadersComeFromSavedRequest() {
+        assertThat(wrapper.getHeader("Accept"), equalTo("text/html"));
+        assertThat(wrapper.getHeader("Missing"), nullValue());
+        assertThat(Collections.list(wrapper.getHeaders("Accept")),
+                   org.hamcrest.Matchers.contains("text/html"));
+        assertThat(Collections.list(wrapper.getHeaderNames()),
+                   hasItems("Accept", "X-Count"));
+        assertThat(wrapper.getIntHeader("X-Count"), equalTo(42));
+        assertThat(wrapper.getIntHeader("Missing"), equalTo(-1));
+        assertThat(wrapper.getMethod(), equalTo("POST"));
+    }
+
+    @Test
+    public void testCookiesAreMemoized() {
+        Cookie[] cookies = wrapper.getCookies();
+
+        assertThat(cookies.length, equalTo(1));
+        assertThat(cookies[0].getName(), equalTo("theme"));
+        assertThat(wrapper.getCookies(), sameInstance(cookies));
+    }
+
+    @Test
+    public void testLocalesComeFromSavedRequest() {
+        original.addPreferredLocale(Locale.FRENCH);
+        SavedRequestAwareWrapper wrapper = wrapper();
+
+        assertThat(wrapper.getLocale(), equalTo(Locale.FRENCH));
+        assertThat(Collections.list(wrapper.getLocales()),
+                   hasItem(Locale.FRENCH));
+    }
+
+    @Test
+    public void testLocalesFallBackToDefault() {
+        SavedRequest saved = mock(SavedRequest.class);
+        when(saved.getLocales()).thenReturn(Collections.emptyList());
+        SavedRequestAwareWrapper wrapper =
+            new SavedRequestAwareWrapper(saved, callback);
+
+        assertThat(wrapper.getLocale(), equalTo(Locale.getDefault()));
+        assertThat(Collections.list(wrapper.getLocales()),
+                   org.hamcrest.Matchers.contains(Locale.getDefault()));
+    }
+
+    @Test
+    public void testDateHeadersInEachHttpFormat() {
+        assertThat(SavedRequestAwareWrapper.parseDate(
+            "Sun, 06 Nov 1994 08:49:37 GMT"), equalTo(DATE));
+        assertThat(SavedRequestAwareWrapper.parseDate(
+            "Sunday, 06-Nov-94 08:49:37 GMT"), equalTo(DATE));
+        assertThat(SavedRequestAwareWrapper.parseDate(
+            "Sun Nov  6 08:49:37 1994"), equalTo(DATE));
+        assertThat(SavedRequestAwareWrapper.parseDate("yesterday"),
+                   equalTo(-1L));
+    }
+
+    @Test
+    public void testGetDateHeader() {
+        original.addHeader("Date",
+                           "Sun, 06 Nov 1994 08:49:37 GMT");
+        original.addHeader("X-Bad-Date", "yesterday");
+        SavedRequestAwareWrapper wrapper = wrapper();
+
+        assertThat(wrapper.getDateHeader("Date"), equalTo(DATE));
+        assertThat(wrapper.getDateHeader("Missing"), equalTo(-1L));
+        try {
+            wrapper.getDateHeader("X-Bad-Date");
+            fail();
+        }
+        catch(IllegalArgumentException e) {
+            assertThat(e.getMessage(), equalTo("yesterday"));
+        }
+    }
+}